@@ -0,0 +1,106 @@
+package p3.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.ByteStreams;
+
+import p3.BinaryPersisterStore;
+import p3.Persisted;
+import p3.Persister;
+import p3.PersisterCodec;
+
+/**
+ * Compares saving an object by building a Persister by hand with saving it through a
+ * PersisterCodec, either via an intermediate Persister or directly into the store.
+ * Run with {@code -prof gc} to compare the allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class CodecBenchmark {
+
+    private Item item;
+    private PersisterCodec<Item> codec;
+
+    @Setup
+    public void setup() {
+        item = new Item();
+        item.name = "item";
+        item.count = 17;
+        item.timestamp = System.currentTimeMillis();
+        item.weight = 0.25;
+        for (int n = 0; n < 100; ++n) {
+            Item part = new Item();
+            part.name = Trees.key(n);
+            part.count = n;
+            part.timestamp = n * 1000L;
+            part.weight = n / 3.0;
+            item.parts.add(part);
+        }
+        codec = PersisterCodec.of(Item.class);
+    }
+
+    @Benchmark
+    public BinaryPersisterStore byHand() throws IOException {
+        try (BinaryPersisterStore store = BinaryPersisterStore.open(ByteStreams.nullOutputStream())) {
+            Persister p = new Persister();
+            item.writeTo(p);
+            return store.store(p);
+        }
+    }
+
+    @Benchmark
+    public BinaryPersisterStore encode() throws IOException {
+        try (BinaryPersisterStore store = BinaryPersisterStore.open(ByteStreams.nullOutputStream())) {
+            return store.store(codec.encode(item));
+        }
+    }
+
+    @Benchmark
+    public BinaryPersisterStore storeDirectly() throws IOException {
+        try (BinaryPersisterStore store = BinaryPersisterStore.open(ByteStreams.nullOutputStream())) {
+            return store.store(item, codec);
+        }
+    }
+
+
+    public static final class Item {
+        @Persisted
+        String name;
+        @Persisted
+        int count;
+        @Persisted
+        long timestamp;
+        @Persisted
+        double weight;
+        @Persisted("part")
+        List<Item> parts = new ArrayList<>();
+
+        void writeTo(Persister p) {
+            p.putString("name", name);
+            p.putInt("count", count);
+            p.putLong("timestamp", timestamp);
+            p.putDouble("weight", weight);
+            for (Item part : parts) {
+                part.writeTo(p.newChild("part"));
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package p3.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import p3.ConcurrentPersister;
+import p3.Persister;
+
+/**
+ * Compares the throughput of several threads putting values in, and adding children to,
+ * a shared ConcurrentPersister, with that of the same threads sharing a Persister guarded
+ * by a single lock. Run with {@code -t} to vary the number of threads, e.g.
+ * {@code -t 1} and {@code -t 8}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Threads(4)
+public class ConcurrentPersisterBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        final ConcurrentPersister concurrent = new ConcurrentPersister();
+        final Persister synced = new Persister();
+        final AtomicInteger threadIds = new AtomicInteger();
+    }
+
+    /**
+     * The roots that children are added to, which are replaced after every iteration so
+     * that they do not grow without bounds.
+     */
+    @State(Scope.Benchmark)
+    public static class Roots {
+        ConcurrentPersister concurrent;
+        Persister synced;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            concurrent = new ConcurrentPersister();
+            synced = new Persister();
+        }
+    }
+
+    /**
+     * Every thread writes to its own child, with its own keys, so that the benchmarks measure
+     * the cost of sharing the tree rather than contention on individual keys.
+     */
+    @State(Scope.Thread)
+    public static class Writer {
+        private static final int KEYS = 64;
+
+        final String[] keys = new String[KEYS];
+        ConcurrentPersister concurrentChild;
+        Persister syncedChild;
+        int next;
+
+        @Setup
+        public void setup(Shared shared) {
+            int id = shared.threadIds.getAndIncrement();
+            for (int n = 0; n < KEYS; ++n) {
+                keys[n] = "t" + id + "k" + n;
+            }
+            concurrentChild = shared.concurrent.newChild("thread");
+            synchronized (shared.synced) {
+                syncedChild = shared.synced.newChild("thread");
+            }
+        }
+
+        String nextKey() {
+            next = (next + 1) % KEYS;
+            return keys[next];
+        }
+    }
+
+    @Benchmark
+    public ConcurrentPersister concurrentPutInt(Writer writer) {
+        return writer.concurrentChild.putInt(writer.nextKey(), writer.next);
+    }
+
+    @Benchmark
+    public Persister synchronizedPutInt(Shared shared, Writer writer) {
+        synchronized (shared.synced) {
+            return writer.syncedChild.putInt(writer.nextKey(), writer.next);
+        }
+    }
+
+    @Benchmark
+    public ConcurrentPersister concurrentPutString(Writer writer) {
+        String key = writer.nextKey();
+        return writer.concurrentChild.putString(key, key);
+    }
+
+    @Benchmark
+    public Persister synchronizedPutString(Shared shared, Writer writer) {
+        synchronized (shared.synced) {
+            String key = writer.nextKey();
+            return writer.syncedChild.putString(key, key);
+        }
+    }
+
+    @Benchmark
+    public ConcurrentPersister concurrentNewChild(Roots roots) {
+        return roots.concurrent.newChild("child");
+    }
+
+    @Benchmark
+    public Persister synchronizedNewChild(Roots roots) {
+        synchronized (roots.synced) {
+            return roots.synced.newChild("child");
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package p3.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.ByteStreams;
+
+import p3.JsonPersisterStore;
+import p3.Persister;
+import p3.PersisterFormat;
+
+/**
+ * Measures saving a Persister as JSON, and loading it back, for each of the tree shapes, next
+ * to the same work in the XML format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class JsonStoreBenchmark {
+
+    @Param
+    public Trees.Shape shape;
+
+    private Persister persister;
+    private byte[] json;
+    private byte[] xml;
+
+    @Setup
+    public void setup() throws IOException {
+        persister = shape.build();
+        json = toBytes(PersisterFormat.JSON);
+        xml = toBytes(PersisterFormat.XML);
+    }
+
+    private byte[] toBytes(PersisterFormat format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        format.write(persister, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes to a stream that discards everything, to measure serialization rather than disk I/O.
+     */
+    @Benchmark
+    public void writeJson() throws IOException {
+        PersisterFormat.JSON.write(persister, ByteStreams.nullOutputStream());
+    }
+
+    @Benchmark
+    public void writeXml() throws IOException {
+        PersisterFormat.XML.write(persister, ByteStreams.nullOutputStream());
+    }
+
+    @Benchmark
+    public Persister loadJsonFromBytes() throws IOException {
+        return JsonPersisterStore.load(json);
+    }
+
+    @Benchmark
+    public Persister loadJsonFromStream() throws IOException {
+        return PersisterFormat.JSON.read(new ByteArrayInputStream(json));
+    }
+
+    @Benchmark
+    public Persister loadXmlFromStream() throws IOException {
+        return PersisterFormat.XML.read(new ByteArrayInputStream(xml));
+    }
+}
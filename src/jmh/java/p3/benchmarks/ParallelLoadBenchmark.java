@@ -0,0 +1,66 @@
+package p3.benchmarks;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import p3.Persister;
+import p3.XmlPersisterStore;
+
+/**
+ * Measures how parallel loading of a wide document scales with the number of threads.
+ * Compare the {@code parallel} scores for the different thread counts with each other,
+ * and with the {@code sequential} score.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ParallelLoadBenchmark {
+
+    @Param({ "1", "2", "4", "8", "16", "32" })
+    public int threads;
+
+    @Param({ "20000" })
+    public int width;
+
+    private String xml;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setup() {
+        XmlPersisterStore store = XmlPersisterStore.newInstance();
+        store.store(Trees.wide(width, 4));
+        xml = store.getXml();
+        pool = new ForkJoinPool(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public Persister parallel() throws Exception {
+        return XmlPersisterStore.load(xml, pool);
+    }
+
+    @Benchmark
+    public Persister sequential() throws Exception {
+        return XmlPersisterStore.load(xml);
+    }
+}
@@ -0,0 +1,212 @@
+package p3.benchmarks;
+
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import p3.FrozenPersister;
+import p3.Persister;
+import p3.PersisterDiff;
+
+/**
+ * Measures the in-memory operations of a Persister: putting, getting and checking values,
+ * looking up children, equals and hashCode, and digests and diffs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class PersisterBenchmark {
+    private static final int KEYS = 1000;
+
+    private String[] keys;
+    private String[] missingKeys;
+    private Persister manyKeys;
+    private Persister wide;
+    private Persister deep;
+    private Persister deepCopy;
+    private FrozenPersister frozenDeep;
+    private FrozenPersister frozenDeepCopy;
+    private Persister wideLeaf;
+    private Persister wideWithLeaves;
+    private Persister wideWithLeavesChanged;
+    private Persister changedItem;
+
+    @Setup
+    public void setup() {
+        keys = new String[KEYS];
+        missingKeys = new String[KEYS];
+        for (int n = 0; n < KEYS; ++n) {
+            keys[n] = Trees.key(n);
+            missingKeys[n] = "missing" + n;
+        }
+        manyKeys = Trees.manyKeys(KEYS);
+        wide = Trees.wide(1000, 0);
+        wide.newChild("single");
+        deep = Trees.deep(500);
+        deepCopy = Trees.deep(500);
+        frozenDeep = deep.freeze();
+        wideLeaf = wide.getChildren("item").get(500);
+        frozenDeepCopy = deepCopy.freeze();
+        wideWithLeaves = Trees.wide(1000, 10);
+        wideWithLeavesChanged = Trees.wide(1000, 10);
+        changedItem = wideWithLeavesChanged.getChildren("item").get(500);
+        changedItem.putInt("id", -1);
+    }
+
+    @Benchmark
+    public Persister putInt() {
+        Persister p = new Persister();
+        for (int n = 0; n < KEYS; ++n) {
+            p.putInt(keys[n], n);
+        }
+        return p;
+    }
+
+    @Benchmark
+    public Persister putString() {
+        Persister p = new Persister();
+        for (int n = 0; n < KEYS; ++n) {
+            p.putString(keys[n], keys[n]);
+        }
+        return p;
+    }
+
+    @Benchmark
+    public long getInt() {
+        long sum = 0;
+        for (int n = 0; n < KEYS; ++n) {
+            sum += manyKeys.getInt(keys[n]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long getIntWithDefault() {
+        long sum = 0;
+        for (int n = 0; n < KEYS; ++n) {
+            sum += manyKeys.getInt(missingKeys[n], n);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double getDouble() {
+        double sum = 0;
+        for (int n = 0; n < KEYS; ++n) {
+            sum += manyKeys.getDouble(keys[n]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public void getString(Blackhole bh) {
+        for (int n = 0; n < KEYS; ++n) {
+            bh.consume(manyKeys.getString(keys[n]));
+        }
+    }
+
+    @Benchmark
+    public long checkInt() {
+        long sum = 0;
+        for (int n = 0; n < KEYS; ++n) {
+            OptionalInt value = manyKeys.checkInt(keys[n]);
+            if (value.isPresent()) {
+                sum += value.getAsInt();
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public void checkString(Blackhole bh) {
+        for (int n = 0; n < KEYS; ++n) {
+            bh.consume(manyKeys.checkString(keys[n]));
+        }
+    }
+
+    @Benchmark
+    public List<Persister> getChildren() {
+        return wide.getChildren("item");
+    }
+
+    @Benchmark
+    public Persister getChild() {
+        return wide.getChild("single");
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean equalsDeep() {
+        return deep.equals(deepCopy);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int hashCodeDeep() {
+        return deep.hashCode();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean equalsFrozenDeep() {
+        return frozenDeep.equals(frozenDeepCopy);
+    }
+
+    @Benchmark
+    public int hashCodeFrozenDeep() {
+        return frozenDeep.hashCode();
+    }
+
+    /**
+     * Compares two large trees that differ in a single value, by walking both trees.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean equalsWideWithOneChange() {
+        return wideWithLeaves.equals(wideWithLeavesChanged);
+    }
+
+    /**
+     * Diffs two large trees that differ in a single value. The value is changed before every
+     * diff, so the digests of the changed child and of the root are recomputed every time,
+     * while the digests of all other children are cached.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public PersisterDiff diffWideWithOneChange() {
+        changedItem.putInt("id", changedItem.getInt("id") - 1);
+        return PersisterDiff.diff(wideWithLeaves, wideWithLeavesChanged);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public FrozenPersister freezeDeep() {
+        return deep.freeze();
+    }
+
+    /**
+     * Takes a snapshot of a wide tree and then modifies one of its children, which copies
+     * the state of the child and of the root.
+     */
+    @Benchmark
+    public Persister snapshotAndModify() {
+        Persister snapshot = wide.snapshot();
+        wideLeaf.putInt("id", 500);
+        return snapshot;
+    }
+}
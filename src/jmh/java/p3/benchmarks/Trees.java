@@ -0,0 +1,135 @@
+package p3.benchmarks;
+
+import com.google.common.base.Strings;
+
+import p3.Persister;
+
+/**
+ * Synthetic Persister trees for the benchmarks.
+ */
+final class Trees {
+
+    /**
+     * The tree shapes used as benchmark parameters. All shapes have a few thousand values in
+     * total, so that the scores of the different shapes are of the same order of magnitude.
+     */
+    enum Shape {
+        /**
+         * A single chain of 500 Persisters, each with one value of each type.
+         */
+        DEEP {
+            @Override
+            Persister build() {
+                return deep(500);
+            }
+        },
+        /**
+         * A root with 1000 children, each with four values and no children of its own.
+         */
+        WIDE {
+            @Override
+            Persister build() {
+                return wide(1000, 0);
+            }
+        },
+        /**
+         * A single Persister with 1000 values of each type.
+         */
+        MANY_KEYS {
+            @Override
+            Persister build() {
+                return manyKeys(1000);
+            }
+        },
+        /**
+         * A root with 100 children, each with a 10,000 character string value.
+         */
+        LONG_STRINGS {
+            @Override
+            Persister build() {
+                return longStrings(100, 10000);
+            }
+        };
+
+        abstract Persister build();
+    }
+
+    private Trees() {}
+    
+    /**
+     * The key of the n-th value in the Persisters returned by {@link #manyKeys(int)}.
+     */
+    static String key(int n) {
+        return "key" + n;
+    }
+
+    /**
+     * A root with {@code width} children, each of which has a handful of values and
+     * {@code leaves} children of its own.
+     */
+    static Persister wide(int width, int leaves) {
+        Persister root = new Persister();
+        root.putString("kind", "wide");
+        for (int n = 0; n < width; ++n) {
+            Persister child = root.newChild("item");
+            child.putInt("id", n);
+            child.putLong("timestamp", 1500000000000L + n);
+            child.putDouble("value", n * 0.25);
+            child.putString("label", "item number " + n);
+            for (int m = 0; m < leaves; ++m) {
+                Persister leaf = child.newChild("leaf");
+                leaf.putInt("index", m);
+                leaf.putDouble("weight", m / 3.0);
+            }
+        }
+        return root;
+    }
+
+    /**
+     * A chain of {@code depth} Persisters, all named "level", with one value of each type.
+     */
+    static Persister deep(int depth) {
+        Persister root = new Persister();
+        Persister p = root;
+        for (int n = 0; n < depth; ++n) {
+            p.putInt("depth", n);
+            p.putLong("id", 1500000000000L + n);
+            p.putDouble("value", n * 0.25);
+            p.putString("label", "level " + n);
+            if (n < depth - 1) {
+                p = p.newChild("level");
+            }
+        }
+        return root;
+    }
+    
+    /**
+     * A single Persister with {@code keys} values of each type, with the keys given by
+     * {@link #key(int)}.
+     */
+    static Persister manyKeys(int keys) {
+        Persister p = new Persister();
+        for (int n = 0; n < keys; ++n) {
+            String key = key(n);
+            p.putInt(key, n);
+            p.putLong(key, -n);
+            p.putDouble(key, n / 7.0);
+            p.putString(key, "value " + n);
+        }
+        return p;
+    }
+    
+    /**
+     * A root with {@code count} children named "text", each with a string value of
+     * {@code length} characters. The strings contain characters that must be escaped in XML.
+     */
+    static Persister longStrings(int count, int length) {
+        Persister root = new Persister();
+        for (int n = 0; n < count; ++n) {
+            String pattern = "Lorem <ipsum> & dolor " + n + ". ";
+            String text = Strings.repeat(pattern, length / pattern.length() + 1).substring(0, length);
+            root.newChild("text").putString("text", text);
+        }
+        return root;
+    }
+}
@@ -0,0 +1,86 @@
+package p3.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.ByteStreams;
+
+import p3.Persister;
+import p3.XmlPersisterStore;
+
+/**
+ * Measures saving a Persister as XML, and loading it back, for each of the tree shapes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class XmlStoreBenchmark {
+
+    @Param
+    public Trees.Shape shape;
+
+    private Persister persister;
+    private String xml;
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        persister = shape.build();
+        XmlPersisterStore store = XmlPersisterStore.newInstance();
+        store.store(persister);
+        xml = store.getXml();
+        file = File.createTempFile("p3-benchmark", ".xml");
+        store.writeTo(file);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(file.toPath());
+    }
+
+    @Benchmark
+    public String storeAndGetXml() {
+        XmlPersisterStore store = XmlPersisterStore.newInstance();
+        store.store(persister);
+        return store.getXml();
+    }
+
+    /**
+     * Writes to a stream that discards everything, to measure serialization rather than disk I/O.
+     */
+    @Benchmark
+    public XmlPersisterStore storeAndWriteTo() throws IOException {
+        XmlPersisterStore store = XmlPersisterStore.newInstance();
+        store.store(persister);
+        store.writeTo(ByteStreams.nullOutputStream());
+        return store;
+    }
+
+    @Benchmark
+    public Persister loadFromString() throws Exception {
+        return XmlPersisterStore.load(xml);
+    }
+
+    @Benchmark
+    public Persister loadFromFile() throws Exception {
+        return XmlPersisterStore.load(file);
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ * JMH benchmarks for Persister and its stores. Build them with the {@code benchmarks}
+ * profile, and run all of them, or those matching a regular expression, from the shaded jar:
+ * <pre>
+ * mvn -Pbenchmarks package
+ * java -jar target/benchmarks.jar -prof gc
+ * java -jar target/benchmarks.jar XmlStoreBenchmark -p shape=DEEP,WIDE -prof gc
+ * </pre>
+ * With {@code -prof gc} every score is accompanied by the allocation rate, and by the
+ * number of bytes allocated per operation ({@code gc.alloc.rate.norm}), which is the number
+ * to watch for allocation regressions since it does not depend on the speed of the machine.
+ * <p>
+ * To record a baseline, write the results of a full run as JSON, and keep the file together
+ * with the commit and the JVM and machine it was recorded on:
+ * <pre>
+ * java -jar target/benchmarks.jar -prof gc -rf json -rff baseline.json
+ * </pre>
+ * A new store implementation, or a change to an existing one, is then compared against the
+ * baseline by running the same benchmarks on the same machine. Scores from different
+ * machines are not comparable.
+ */
+package p3.benchmarks;
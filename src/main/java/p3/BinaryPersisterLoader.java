@@ -0,0 +1,256 @@
+package p3;
+
+import static p3.BinaryPersisterStore.CHILD;
+import static p3.BinaryPersisterStore.DOUBLE;
+import static p3.BinaryPersisterStore.DOUBLE_ARRAY;
+import static p3.BinaryPersisterStore.END;
+import static p3.BinaryPersisterStore.INT;
+import static p3.BinaryPersisterStore.INT_ARRAY;
+import static p3.BinaryPersisterStore.LONG;
+import static p3.BinaryPersisterStore.LONG_ARRAY;
+import static p3.BinaryPersisterStore.MAGIC;
+import static p3.BinaryPersisterStore.STRING;
+import static p3.BinaryPersisterStore.VERSION;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reads a Persister from the format written by {@link BinaryPersisterStore}.
+ */
+final class BinaryPersisterLoader {
+    /**
+     * The initial size of an array for a string or array value read from the stream, which
+     * grows as the bytes arrive.
+     */
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    @Nullable
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+    private final List<String> dictionary = new ArrayList<>();
+    /**
+     * The number of bytes read from the stream, or the length of the array.
+     */
+    private long bytesRead;
+
+    BinaryPersisterLoader(InputStream in) {
+        this.in = in;
+        this.buffer = new byte[8192];
+    }
+
+    BinaryPersisterLoader(byte[] bytes) {
+        this.in = null;
+        this.buffer = bytes;
+        this.limit = bytes.length;
+        this.bytesRead = bytes.length;
+    }
+
+    Persister load() throws IOException {
+        PersisterMetrics metrics = Metrics.installed();
+        long start = Metrics.start(metrics);
+        Persister root = readDocument();
+        if (metrics != PersisterMetrics.NOOP) {
+            metrics.phaseCompleted(PersisterMetrics.Phase.PARSE, System.nanoTime() - start);
+            metrics.bytesRead(bytesRead);
+            Metrics.loaded(metrics, root);
+        }
+        return root;
+    }
+
+    private Persister readDocument() throws IOException {
+        readHeader();
+        Persister root = new Persister();
+        Deque<Persister> persisters = new ArrayDeque<>();
+        persisters.push(root);
+        while (!persisters.isEmpty()) {
+            Persister p = persisters.peek();
+            int tag = readByte();
+            switch (tag) {
+            case END:
+                persisters.pop();
+                break;
+            case STRING:
+                p.putString(readRef(), readString());
+                break;
+            case INT: {
+                String key = readRef();
+                int zigzag = (int) readVarLong();
+                p.putInt(key, (zigzag >>> 1) ^ -(zigzag & 1));
+                break;
+            }
+            case LONG: {
+                String key = readRef();
+                long zigzag = readVarLong();
+                p.putLong(key, (zigzag >>> 1) ^ -(zigzag & 1));
+                break;
+            }
+            case DOUBLE: {
+                String key = readRef();
+                p.putDouble(key, Double.longBitsToDouble(readFixedLong()));
+                break;
+            }
+            case INT_ARRAY: {
+                String key = readRef();
+                p.adoptIntArray(key, PackedArrays.toInts(readPacked(4)));
+                break;
+            }
+            case LONG_ARRAY: {
+                String key = readRef();
+                p.adoptLongArray(key, PackedArrays.toLongs(readPacked(8)));
+                break;
+            }
+            case DOUBLE_ARRAY: {
+                String key = readRef();
+                p.adoptDoubleArray(key, PackedArrays.toDoubles(readPacked(8)));
+                break;
+            }
+            case CHILD:
+                persisters.push(p.newChild(readRef()));
+                break;
+            default:
+                throw new IOException("Corrupt document: unexpected tag " + tag);
+            }
+        }
+        return root;
+    }
+
+    private void readHeader() throws IOException {
+        for (byte b : MAGIC) {
+            if (readByte() != b) {
+                throw new IOException("Not a binary Persister document");
+            }
+        }
+        int version = readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary Persister version: " + version);
+        }
+    }
+
+    private String readRef() throws IOException {
+        long ref = readVarLong();
+        if (ref == 0) {
+            String name = readString();
+            dictionary.add(name);
+            return name;
+        }
+        if (ref > dictionary.size()) {
+            throw new IOException("Corrupt document: invalid dictionary reference " + ref);
+        }
+        return dictionary.get((int) ref - 1);
+    }
+
+    private String readString() throws IOException {
+        long length = readVarLong();
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Corrupt document: invalid string length " + length);
+        }
+        int len = (int) length;
+        if (limit - position >= len) {
+            String s = new String(buffer, position, len, StandardCharsets.UTF_8);
+            position += len;
+            return s;
+        }
+        return new String(readBytes(len), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the element count and the elements of an array, and returns the bytes of the
+     * elements. The bytes are only valid until the next read.
+     */
+    private ByteBuffer readPacked(int elementSize) throws IOException {
+        long count = readVarLong();
+        if (count < 0 || count > Integer.MAX_VALUE / elementSize) {
+            throw new IOException("Corrupt document: invalid array length " + count);
+        }
+        int len = (int) count * elementSize;
+        if (limit - position >= len) {
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, position, len);
+            position += len;
+            return bytes;
+        }
+        return ByteBuffer.wrap(readBytes(len));
+    }
+
+    /**
+     * Reads the given number of bytes, more than there are left in the buffer, into a new
+     * array. Since the length comes from the document, the array is grown as the bytes
+     * arrive, so that a corrupt length cannot allocate much more than the size of the input.
+     */
+    private byte[] readBytes(int len) throws IOException {
+        if (in == null) {
+            // The buffer holds the whole document.
+            throw new EOFException();
+        }
+        byte[] bytes = new byte[Math.min(len, CHUNK_SIZE)];
+        int read = 0;
+        while (true) {
+            int n = Math.min(bytes.length - read, limit - position);
+            System.arraycopy(buffer, position, bytes, read, n);
+            position += n;
+            read += n;
+            if (read == len) {
+                return bytes;
+            }
+            if (read == bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(len, 2L * bytes.length));
+            }
+            if (position == limit && !fill()) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt document: malformed varint");
+    }
+
+    private long readFixedLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 8) {
+            value |= (long) readByte() << shift;
+        }
+        return value;
+    }
+
+    private int readByte() throws IOException {
+        if (position == limit && !fill()) {
+            throw new EOFException();
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        if (in == null) {
+            return false;
+        }
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = n;
+        bytesRead += n;
+        return true;
+    }
+}
@@ -0,0 +1,446 @@
+package p3;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.Objects.requireNonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A PersisterStore that writes a compact binary representation of the Persister
+ * directly to an output stream or channel, as the Persister tree is walked.
+ * <p>
+ * The format is as follows:
+ * <pre>
+ * document := MAGIC VERSION node
+ * node     := record* END
+ * record   := STRING ref string
+ *           | INT ref varint
+ *           | LONG ref varlong
+ *           | DOUBLE ref 8 bytes (IEEE 754, little endian)
+ *           | CHILD ref node
+ *           | INT_ARRAY ref varint count, count x 4 bytes (little endian)
+ *           | LONG_ARRAY ref varint count, count x 8 bytes (little endian)
+ *           | DOUBLE_ARRAY ref varint count, count x 8 bytes (IEEE 754, little endian)
+ * ref      := varint, where 0 means that a new dictionary entry follows as a string,
+ *             and n &gt; 0 refers to the (n-1)th dictionary entry
+ * string   := varint byte length, followed by the UTF-8 encoded bytes
+ * </pre>
+ * Keys and child names are written in full only the first time they are used. Ints and
+ * longs are zig-zag encoded before being written as base 128 varints. The elements of
+ * arrays are written raw, so that they can be read back with bulk copies.
+ * <p>
+ * Like {@link StreamingXmlPersisterStore}, only the path from the root to the node
+ * currently being written is kept in memory, which means that a child store can only
+ * be written to until one of its siblings (or an ancestor) is written to. The document
+ * is completed by calling {@link #finish()} or {@link #close()}.
+ */
+public final class BinaryPersisterStore extends PersisterStore<BinaryPersisterStore> implements Closeable {
+    static final byte[] MAGIC = { 'P', '3', 'B' };
+    static final int VERSION = 1;
+
+    static final int END = 0;
+    static final int STRING = 1;
+    static final int INT = 2;
+    static final int LONG = 3;
+    static final int DOUBLE = 4;
+    static final int CHILD = 5;
+    static final int INT_ARRAY = 6;
+    static final int LONG_ARRAY = 7;
+    static final int DOUBLE_ARRAY = 8;
+
+    private final Output output;
+    private final int depth;
+
+    private BinaryPersisterStore(Output output, int depth) {
+        this.output = output;
+        this.depth = depth;
+    }
+
+    /**
+     * Creates a store that writes to the given stream.
+     */
+    public static BinaryPersisterStore open(OutputStream out) throws IOException {
+        requireNonNull(out);
+        Output output = new Output(out);
+        output.writeBytes(MAGIC, 0, MAGIC.length);
+        output.writeByte(VERSION);
+        BinaryPersisterStore root = new BinaryPersisterStore(output, 0);
+        output.openNodes.add(root);
+        return root;
+    }
+
+    /**
+     * Creates a store that writes to the given channel.
+     */
+    public static BinaryPersisterStore open(WritableByteChannel channel) throws IOException {
+        requireNonNull(channel);
+        return open(Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Creates a store that writes to the given file.
+     */
+    public static BinaryPersisterStore open(File file) throws IOException {
+        requireNonNull(file);
+        return open(new FileOutputStream(file));
+    }
+
+    /**
+     * Loads a Persister from a stream containing a binary Persister document, which may
+     * be {@linkplain CompressedOutputStream compressed}.
+     */
+    public static Persister load(InputStream in) throws IOException {
+        requireNonNull(in);
+        return new BinaryPersisterLoader(CompressedInputStream.decompressIfCompressed(in)).load();
+    }
+
+    /**
+     * Loads a Persister from a channel containing a binary Persister document.
+     */
+    public static Persister load(ReadableByteChannel channel) throws IOException {
+        requireNonNull(channel);
+        return load(Channels.newInputStream(channel));
+    }
+
+    /**
+     * Loads a Persister from a binary Persister file.
+     */
+    public static Persister load(File file) throws IOException {
+        requireNonNull(file);
+        try (InputStream in = new FileInputStream(file)) {
+            return load(in);
+        }
+    }
+
+    /**
+     * Loads a Persister from an array holding a binary Persister document, which may
+     * be {@linkplain CompressedOutputStream compressed}.
+     */
+    public static Persister load(byte[] bytes) throws IOException {
+        requireNonNull(bytes);
+        if (CompressedInputStream.isCompressed(bytes)) {
+            return load(new ByteArrayInputStream(bytes));
+        }
+        return new BinaryPersisterLoader(bytes).load();
+    }
+
+    @Override
+    void putString(String key, String value) {
+        requireNonNull(key);
+        requireNonNull(value);
+        try {
+            output.enter(this);
+            output.writeByte(STRING);
+            output.writeRef(key);
+            output.writeString(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    void putInt(String key, int value) {
+        requireNonNull(key);
+        try {
+            output.enter(this);
+            output.writeByte(INT);
+            output.writeRef(key);
+            output.writeVarLong(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    void putLong(String key, long value) {
+        requireNonNull(key);
+        try {
+            output.enter(this);
+            output.writeByte(LONG);
+            output.writeRef(key);
+            output.writeVarLong((value << 1) ^ (value >> 63));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    void putDouble(String key, double value) {
+        requireNonNull(key);
+        try {
+            output.enter(this);
+            output.writeByte(DOUBLE);
+            output.writeRef(key);
+            output.writeFixedLong(Double.doubleToRawLongBits(value));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    void putIntArray(String key, int[] values) {
+        requireNonNull(key);
+        try {
+            output.enter(this);
+            output.writeByte(INT_ARRAY);
+            output.writeRef(key);
+            output.writeVarLong(values.length);
+            byte[] bytes = PackedArrays.toBytes(values);
+            output.writeBytes(bytes, 0, bytes.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    void putLongArray(String key, long[] values) {
+        requireNonNull(key);
+        try {
+            output.enter(this);
+            output.writeByte(LONG_ARRAY);
+            output.writeRef(key);
+            output.writeVarLong(values.length);
+            byte[] bytes = PackedArrays.toBytes(values);
+            output.writeBytes(bytes, 0, bytes.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    void putDoubleArray(String key, double[] values) {
+        requireNonNull(key);
+        try {
+            output.enter(this);
+            output.writeByte(DOUBLE_ARRAY);
+            output.writeRef(key);
+            output.writeVarLong(values.length);
+            byte[] bytes = PackedArrays.toBytes(values);
+            output.writeBytes(bytes, 0, bytes.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    BinaryPersisterStore newChild(String name) {
+        requireNonNull(name);
+        try {
+            output.enter(this);
+            output.writeByte(CHILD);
+            output.writeRef(name);
+            BinaryPersisterStore child = new BinaryPersisterStore(output, depth + 1);
+            output.openNodes.add(child);
+            return child;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    protected BinaryPersisterStore self() {
+        return this;
+    }
+
+    /**
+     * Ends all open nodes and flushes the output. The underlying stream or channel
+     * is left open. No more values can be written after this.
+     */
+    public void finish() throws IOException {
+        output.finish();
+    }
+
+    /**
+     * Finishes the document, if not already done, and closes the underlying stream or channel.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            output.out.close();
+        }
+    }
+
+
+    /**
+     * The state shared by all stores writing to the same document.
+     */
+    private static final class Output {
+        final OutputStream out;
+        private final byte[] buffer = new byte[8192];
+        private int position;
+        /**
+         * The stores whose nodes are currently open, indexed by depth.
+         */
+        final List<BinaryPersisterStore> openNodes = new ArrayList<>();
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private boolean finished;
+        private long bytesWritten;
+        /**
+         * The time the store was opened, if metrics are installed.
+         */
+        private final long start = Metrics.start(Metrics.installed());
+
+        Output(OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * Makes the node of the given store the innermost open node, ending any deeper nodes.
+         */
+        void enter(BinaryPersisterStore store) throws IOException {
+            checkState(!finished, "The document has been finished");
+            checkState(store.depth < openNodes.size() && openNodes.get(store.depth) == store,
+                    "The store is no longer writable, since a sibling or an ancestor has been written to");
+            while (openNodes.size() > store.depth + 1) {
+                endNode();
+            }
+        }
+
+        private void endNode() throws IOException {
+            writeByte(END);
+            openNodes.remove(openNodes.size() - 1);
+        }
+
+        void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            while (!openNodes.isEmpty()) {
+                endNode();
+            }
+            flushBuffer();
+            out.flush();
+            finished = true;
+            Metrics.written(Metrics.installed(), start, bytesWritten);
+        }
+
+        void writeRef(String name) throws IOException {
+            Integer index = dictionary.get(name);
+            if (index != null) {
+                writeVarLong(index + 1);
+            } else {
+                dictionary.put(name, dictionary.size());
+                writeByte(0);
+                writeString(name);
+            }
+        }
+
+        void writeString(String s) throws IOException {
+            int length = utf8Length(s);
+            writeVarLong(length);
+            if (length > buffer.length) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                writeBytes(bytes, 0, bytes.length);
+                return;
+            }
+            ensureCapacity(length);
+            for (int n = 0, len = s.length(); n < len; ++n) {
+                char c = s.charAt(n);
+                if (c < 0x80) {
+                    buffer[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[position++] = (byte) (0xC0 | (c >> 6));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && n + 1 < len && Character.isLowSurrogate(s.charAt(n + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++n));
+                    buffer[position++] = (byte) (0xF0 | (cp >> 18));
+                    buffer[position++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // Unpaired surrogate, encoded as '?' just like String.getBytes does.
+                    buffer[position++] = '?';
+                } else {
+                    buffer[position++] = (byte) (0xE0 | (c >> 12));
+                    buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private static int utf8Length(String s) {
+            int length = 0;
+            for (int n = 0, len = s.length(); n < len; ++n) {
+                char c = s.charAt(n);
+                if (c < 0x80) {
+                    length += 1;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(c) && n + 1 < len && Character.isLowSurrogate(s.charAt(n + 1))) {
+                    length += 4;
+                    ++n;
+                } else if (Character.isSurrogate(c)) {
+                    length += 1;
+                } else {
+                    length += 3;
+                }
+            }
+            return length;
+        }
+
+        void writeVarLong(long value) throws IOException {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeFixedLong(long value) throws IOException {
+            ensureCapacity(8);
+            for (int n = 0; n < 8; ++n) {
+                buffer[position++] = (byte) value;
+                value >>>= 8;
+            }
+        }
+
+        void writeByte(int b) throws IOException {
+            ensureCapacity(1);
+            buffer[position++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+            if (length > buffer.length - position) {
+                flushBuffer();
+                if (length > buffer.length) {
+                    out.write(bytes, offset, length);
+                    bytesWritten += length;
+                    return;
+                }
+            }
+            System.arraycopy(bytes, offset, buffer, position, length);
+            position += length;
+        }
+
+        private void ensureCapacity(int length) throws IOException {
+            if (buffer.length - position < length) {
+                flushBuffer();
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            out.write(buffer, 0, position);
+            bytesWritten += position;
+            position = 0;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package p3;
+
+import static java.util.Objects.requireNonNull;
+import static p3.CompressedOutputStream.BLOCK_HEADER_SIZE;
+import static p3.CompressedOutputStream.MAGIC;
+import static p3.CompressedOutputStream.MAX_BLOCK_SIZE;
+import static p3.CompressedOutputStream.VERSION;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * An input stream that decompresses a container written by {@link CompressedOutputStream}.
+ * The compressed blocks are read ahead, and inflated concurrently in an executor, while
+ * the blocks before them are consumed. Only a bounded number of blocks are held in memory
+ * at any time.
+ * <p>
+ * {@link #decompressIfCompressed(InputStream)} detects whether a stream holds a container,
+ * which is how the loaders in this package read compressed and uncompressed documents alike.
+ */
+public final class CompressedInputStream extends InputStream {
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final InputStream in;
+    private final Executor executor;
+    /**
+     * The maximum number of blocks being inflated, or waiting to be consumed, at once.
+     */
+    private final int maxPendingBlocks;
+    /**
+     * The block size from the header of the container, which bounds the lengths of the blocks.
+     */
+    private final int blockSize;
+    private final Deque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+    private final byte[] header = new byte[BLOCK_HEADER_SIZE];
+    private byte[] block = new byte[0];
+    private int position;
+    /**
+     * Whether the end of the container has been read from the underlying stream.
+     */
+    private boolean ended;
+
+    /**
+     * Creates a stream that inflates blocks in the common pool.
+     */
+    public CompressedInputStream(InputStream in) throws IOException {
+        this(in, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a stream that inflates blocks in the given executor.
+     */
+    public CompressedInputStream(InputStream in, Executor executor) throws IOException {
+        this.in = requireNonNull(in);
+        this.executor = requireNonNull(executor);
+        this.maxPendingBlocks = 2 * Runtime.getRuntime().availableProcessors();
+        for (byte b : MAGIC) {
+            if (in.read() != b) {
+                throw new IOException("Not a compressed Persister document");
+            }
+        }
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("Unsupported compressed Persister version: " + version);
+        }
+        readFully(header, 0, 4);
+        this.blockSize = getIntLE(header, 0);
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IOException("Corrupt compressed document: invalid block size " + blockSize);
+        }
+    }
+
+    /**
+     * Returns a stream that decompresses the given stream if it holds a compressed container,
+     * and otherwise returns the same bytes as the given stream. The returned stream may read
+     * ahead from the given stream.
+     */
+    public static InputStream decompressIfCompressed(InputStream in) throws IOException {
+        requireNonNull(in);
+        InputStream source = in.markSupported() ? in : new BufferedInputStream(in);
+        source.mark(MAGIC.length);
+        boolean compressed = true;
+        for (byte b : MAGIC) {
+            if (source.read() != b) {
+                compressed = false;
+                break;
+            }
+        }
+        source.reset();
+        return compressed
+                ? new CompressedInputStream(source)
+                : source;
+    }
+
+    /**
+     * Checks if the given bytes start like a compressed container.
+     */
+    static boolean isCompressed(byte[] bytes) {
+        if (bytes.length < MAGIC.length) {
+            return false;
+        }
+        for (int n = 0; n < MAGIC.length; ++n) {
+            if (bytes[n] != MAGIC[n]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == block.length && !nextBlock()) {
+            return -1;
+        }
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (position == block.length && !nextBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, block.length - position);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return block.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pending.clear();
+        in.close();
+    }
+
+    /**
+     * Makes the next block the current one.
+     *
+     * @return false at the end of the container.
+     */
+    private boolean nextBlock() throws IOException {
+        while (!ended && pending.size() < maxPendingBlocks) {
+            readAhead();
+        }
+        if (pending.isEmpty()) {
+            return false;
+        }
+        try {
+            block = pending.remove().join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof IOException)
+                    ? (IOException) cause
+                    : new IOException("Failed to decompress a block", cause);
+        }
+        position = 0;
+        return true;
+    }
+
+    /**
+     * Reads the next compressed block from the underlying stream, and starts inflating it.
+     */
+    private void readAhead() throws IOException {
+        readFully(header, 0, 4);
+        int rawLength = getIntLE(header, 0);
+        if (rawLength == 0) {
+            ended = true;
+            return;
+        }
+        readFully(header, 4, BLOCK_HEADER_SIZE - 4);
+        int compressedLength = getIntLE(header, 4);
+        int checksum = getIntLE(header, 8);
+        // The lengths are checked before anything is allocated for them.
+        if (rawLength < 0 || rawLength > blockSize
+                || compressedLength < 0 || compressedLength > CompressedOutputStream.maxCompressedLength(blockSize)) {
+            throw new IOException("Corrupt compressed document: invalid block length");
+        }
+        byte[] compressed = new byte[compressedLength];
+        readFully(compressed, 0, compressedLength);
+        pending.add(CompletableFuture.supplyAsync(() -> inflate(compressed, rawLength, checksum), executor));
+    }
+
+    private static byte[] inflate(byte[] compressed, int rawLength, int checksum) {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(compressed);
+        byte[] raw = new byte[rawLength];
+        try {
+            int length = 0;
+            while (length < rawLength) {
+                int n = inflater.inflate(raw, length, rawLength - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new CompletionException(new IOException("Corrupt compressed document: truncated block"));
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new CompletionException(new IOException("Corrupt compressed document", e));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(raw);
+        if ((int) crc.getValue() != checksum) {
+            throw new CompletionException(new IOException("Corrupt compressed document: checksum mismatch"));
+        }
+        return raw;
+    }
+
+    private void readFully(byte[] bytes, int offset, int length) throws IOException {
+        for (int n = 0; n < length; ) {
+            int read = in.read(bytes, offset + n, length - n);
+            if (read < 0) {
+                throw new EOFException("Truncated compressed document");
+            }
+            n += read;
+        }
+    }
+
+    private static int getIntLE(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF)
+                | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16
+                | (bytes[offset + 3] & 0xFF) << 24;
+    }
+}
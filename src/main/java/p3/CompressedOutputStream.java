@@ -0,0 +1,252 @@
+package p3;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.Objects.requireNonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An output stream that compresses what is written to it into a container of independently
+ * deflated blocks, which can be read back with {@link CompressedInputStream}. Since the blocks
+ * are independent, they are compressed concurrently in an executor, and can be decompressed
+ * concurrently as well.
+ * <p>
+ * The container has the following layout, where all numbers are little endian:
+ * <pre>
+ * container := MAGIC VERSION int blockSize block* END
+ * block     := int rawLength (&gt; 0, &lt;= blockSize), int compressedLength, int CRC-32 of
+ *              the raw bytes, followed by the raw deflated bytes
+ * END       := int 0
+ * </pre>
+ * The block size in the header lets a reader reject the lengths of a corrupt block before
+ * allocating anything for it.
+ * Only a bounded number of blocks are held in memory at any time, regardless of the size of
+ * the document. The container is completed by calling {@link #finish()} or {@link #close()}.
+ * <p>
+ * Like other output streams, a CompressedOutputStream is not thread-safe.
+ */
+public final class CompressedOutputStream extends OutputStream {
+    static final byte[] MAGIC = { 'P', '3', 'Z' };
+    static final int VERSION = 1;
+    /**
+     * The size of the header of the container, i.e. the magic, the version and the block size.
+     */
+    static final int HEADER_SIZE = MAGIC.length + 1 + 4;
+    static final int BLOCK_HEADER_SIZE = 12;
+    /**
+     * The default number of uncompressed bytes per block.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 256 << 10;
+    /**
+     * The largest number of uncompressed bytes per block.
+     */
+    public static final int MAX_BLOCK_SIZE = 64 << 20;
+    /**
+     * The compression level. Persister documents are repetitive enough that the fastest
+     * level gets most of the reduction in size, at a fraction of the CPU cost of the others.
+     */
+    private static final int LEVEL = Deflater.BEST_SPEED;
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(LEVEL, true));
+
+    private final OutputStream out;
+    private final Executor executor;
+    private final int blockSize;
+    /**
+     * The maximum number of blocks being compressed, or waiting to be written, at once.
+     */
+    private final int maxPendingBlocks;
+    private final Deque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+    private byte[] block;
+    private int position;
+    private boolean finished;
+
+    /**
+     * Creates a stream that compresses blocks of the default size in the common pool.
+     */
+    public CompressedOutputStream(OutputStream out) throws IOException {
+        this(out, ForkJoinPool.commonPool(), DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a stream that compresses blocks of the given size, which must not be larger than
+     * {@link #MAX_BLOCK_SIZE}, in the given executor. Blocks are compressed in the calling thread
+     * if the executor runs its tasks there, e.g. {@code Runnable::run}.
+     */
+    public CompressedOutputStream(OutputStream out, Executor executor, int blockSize) throws IOException {
+        checkArgument(blockSize > 0 && blockSize <= MAX_BLOCK_SIZE, "Invalid block size: %s", blockSize);
+        this.out = requireNonNull(out);
+        this.executor = requireNonNull(executor);
+        this.blockSize = blockSize;
+        this.maxPendingBlocks = 2 * Runtime.getRuntime().availableProcessors();
+        this.block = new byte[blockSize];
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeIntLE(out, blockSize);
+    }
+
+    /**
+     * Returns the largest compressed length of a block of the given size, following zlib's
+     * {@code deflateBound} with room to spare.
+     */
+    static int maxCompressedLength(int blockSize) {
+        return blockSize + (blockSize >>> 12) + (blockSize >>> 14) + (blockSize >>> 25) + 64;
+    }
+
+    /**
+     * Creates a compressed file.
+     */
+    public static CompressedOutputStream open(File file) throws IOException {
+        requireNonNull(file);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            return new CompressedOutputStream(out);
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkState(!finished, "The stream has been finished");
+        if (position == block.length) {
+            endBlock();
+        }
+        block[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkState(!finished, "The stream has been finished");
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0) {
+            if (position == block.length) {
+                endBlock();
+            }
+            int n = Math.min(len, block.length - position);
+            System.arraycopy(b, off, block, position, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Ends the current block, even if it is not full, and writes all blocks compressed
+     * so far to the underlying stream, which is flushed.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (position > 0) {
+            endBlock();
+        }
+        while (!pending.isEmpty()) {
+            writeNextBlock();
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes all remaining blocks and the end of the container, and flushes the underlying
+     * stream, which is left open. Nothing more can be written after this.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        flush();
+        writeIntLE(out, 0);
+        out.flush();
+        finished = true;
+    }
+
+    /**
+     * Finishes the container, if not already done, and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void endBlock() throws IOException {
+        if (pending.size() >= maxPendingBlocks) {
+            writeNextBlock();
+        }
+        byte[] raw = block;
+        int length = position;
+        pending.add(CompletableFuture.supplyAsync(() -> compress(raw, length), executor));
+        block = new byte[blockSize];
+        position = 0;
+    }
+
+    private void writeNextBlock() throws IOException {
+        byte[] compressed;
+        try {
+            compressed = pending.remove().join();
+        } catch (CompletionException e) {
+            throw new IOException("Failed to compress a block", e.getCause());
+        }
+        out.write(compressed);
+    }
+
+    /**
+     * Returns the header and the compressed bytes of a block.
+     */
+    private static byte[] compress(byte[] raw, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(raw, 0, length);
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(raw, 0, length);
+        deflater.finish();
+        byte[] buffer = new byte[BLOCK_HEADER_SIZE + length / 2 + 64];
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (BLOCK_HEADER_SIZE + compressedLength == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            compressedLength += deflater.deflate(buffer, BLOCK_HEADER_SIZE + compressedLength,
+                    buffer.length - BLOCK_HEADER_SIZE - compressedLength);
+        }
+        putIntLE(buffer, 0, length);
+        putIntLE(buffer, 4, compressedLength);
+        putIntLE(buffer, 8, (int) crc.getValue());
+        return Arrays.copyOf(buffer, BLOCK_HEADER_SIZE + compressedLength);
+    }
+
+    private static void putIntLE(byte[] bytes, int offset, int value) {
+        for (int n = 0; n < 4; ++n) {
+            bytes[offset + n] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static void writeIntLE(OutputStream out, int value) throws IOException {
+        for (int n = 0; n < 4; ++n) {
+            out.write(value);
+            value >>>= 8;
+        }
+    }
+}
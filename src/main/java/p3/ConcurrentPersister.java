@@ -0,0 +1,453 @@
+package p3;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A thread-safe variant of {@link Persister}, for when several threads contribute values
+ * and children to the same tree at the same time.
+ * <p>
+ * Values are kept in {@link ConcurrentHashMap}s, and children in lock-free queues, so
+ * writers do not block each other, except for threads adding children to the same parent
+ * at the same time, and reads never block. The int, long and double values are kept
+ * unboxed, in a mutable cell per key, so putting a value for an existing key does not
+ * allocate. Arrays are copied when they are put and when they are read, like in Persister.
+ * Children are kept in the order they were added, with the order of children added
+ * concurrently being unspecified, but the same in {@link #getChildren(String)} and in a
+ * snapshot.
+ * <p>
+ * To save the tree, take a {@link #snapshot()} and store that. The snapshot is consistent:
+ * a writer registers itself for the duration of a single put or newChild, and a snapshot waits
+ * for the registered writers to finish, while holding off new ones, before it copies the tree.
+ * A snapshot therefore contains every change that completed before it was taken, and none of
+ * the changes that started after it, even when writers are active. Writers register in one of
+ * several counters, chosen by thread, so they do not contend on a single shared word.
+ */
+public final class ConcurrentPersister {
+    @Nullable
+    private final String name;
+    private final WriteBarrier barrier;
+    private final ConcurrentHashMap<String, String> stringVals = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, IntCell> intVals = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongCell> longVals = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, DoubleCell> doubleVals = new ConcurrentHashMap<>();
+    /**
+     * The arrays, which are copied on put and get, and never modified while in a map.
+     */
+    private final ConcurrentHashMap<String, int[]> intArrayVals = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, long[]> longArrayVals = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, double[]> doubleArrayVals = new ConcurrentHashMap<>();
+    /**
+     * All children, in the order they were added. A child is added to this queue and to the
+     * queue of its name while holding the lock of this queue, so that both queues have the
+     * children in the same order.
+     */
+    private final Queue<ConcurrentPersister> children = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<String, Queue<ConcurrentPersister>> childrenByName = new ConcurrentHashMap<>();
+
+    public ConcurrentPersister() {
+        this(null, new WriteBarrier());
+    }
+
+    private ConcurrentPersister(@Nullable String name, WriteBarrier barrier) {
+        this.name = name;
+        this.barrier = barrier;
+    }
+
+    public ConcurrentPersister putString(String key, String value) {
+        requireNonNull(key);
+        requireNonNull(value);
+        int stripe = barrier.enter();
+        try {
+            stringVals.put(key, value);
+        } finally {
+            barrier.exit(stripe);
+        }
+        return this;
+    }
+
+    public Optional<String> checkString(String key) {
+        return Optional.ofNullable(stringVals.get(requireNonNull(key)));
+    }
+
+    public String getString(String key) {
+        return get(stringVals, key, "string");
+    }
+
+    public String getString(String key, String defVal) {
+        return stringVals.getOrDefault(requireNonNull(key), defVal);
+    }
+
+    public ConcurrentPersister putInt(String key, int value) {
+        requireNonNull(key);
+        int stripe = barrier.enter();
+        try {
+            IntCell cell = intVals.get(key);
+            if (cell == null) {
+                cell = intVals.putIfAbsent(key, new IntCell(value));
+                if (cell == null) {
+                    return this;
+                }
+            }
+            cell.value = value;
+        } finally {
+            barrier.exit(stripe);
+        }
+        return this;
+    }
+
+    public OptionalInt checkInt(String key) {
+        IntCell cell = intVals.get(requireNonNull(key));
+        return (cell == null)
+                ? OptionalInt.empty()
+                : OptionalInt.of(cell.value);
+    }
+
+    public int getInt(String key) {
+        return get(intVals, key, "int").value;
+    }
+
+    public int getInt(String key, int defVal) {
+        IntCell cell = intVals.get(requireNonNull(key));
+        return (cell == null) ? defVal : cell.value;
+    }
+
+    public ConcurrentPersister putLong(String key, long value) {
+        requireNonNull(key);
+        int stripe = barrier.enter();
+        try {
+            LongCell cell = longVals.get(key);
+            if (cell == null) {
+                cell = longVals.putIfAbsent(key, new LongCell(value));
+                if (cell == null) {
+                    return this;
+                }
+            }
+            cell.value = value;
+        } finally {
+            barrier.exit(stripe);
+        }
+        return this;
+    }
+
+    public OptionalLong checkLong(String key) {
+        LongCell cell = longVals.get(requireNonNull(key));
+        return (cell == null)
+                ? OptionalLong.empty()
+                : OptionalLong.of(cell.value);
+    }
+
+    public long getLong(String key) {
+        return get(longVals, key, "long").value;
+    }
+
+    public long getLong(String key, long defVal) {
+        LongCell cell = longVals.get(requireNonNull(key));
+        return (cell == null) ? defVal : cell.value;
+    }
+
+    public ConcurrentPersister putDouble(String key, double value) {
+        requireNonNull(key);
+        int stripe = barrier.enter();
+        try {
+            DoubleCell cell = doubleVals.get(key);
+            if (cell == null) {
+                cell = doubleVals.putIfAbsent(key, new DoubleCell(value));
+                if (cell == null) {
+                    return this;
+                }
+            }
+            cell.value = value;
+        } finally {
+            barrier.exit(stripe);
+        }
+        return this;
+    }
+
+    public OptionalDouble checkDouble(String key) {
+        DoubleCell cell = doubleVals.get(requireNonNull(key));
+        return (cell == null)
+                ? OptionalDouble.empty()
+                : OptionalDouble.of(cell.value);
+    }
+
+    public double getDouble(String key) {
+        return get(doubleVals, key, "double").value;
+    }
+
+    public double getDouble(String key, double defVal) {
+        DoubleCell cell = doubleVals.get(requireNonNull(key));
+        return (cell == null) ? defVal : cell.value;
+    }
+
+    /**
+     * Puts a copy of the given array.
+     */
+    public ConcurrentPersister putIntArray(String key, int[] values) {
+        requireNonNull(key);
+        int[] copy = values.clone();
+        int stripe = barrier.enter();
+        try {
+            intArrayVals.put(key, copy);
+        } finally {
+            barrier.exit(stripe);
+        }
+        return this;
+    }
+
+    /**
+     * Returns a copy of the int array mapped to the given key, if any.
+     */
+    public Optional<int[]> checkIntArray(String key) {
+        int[] values = intArrayVals.get(requireNonNull(key));
+        return (values == null)
+                ? Optional.empty()
+                : Optional.of(values.clone());
+    }
+
+    /**
+     * Returns a copy of the int array mapped to the given key.
+     */
+    public int[] getIntArray(String key) {
+        return get(intArrayVals, key, "int array").clone();
+    }
+
+    /**
+     * Puts a copy of the given array.
+     */
+    public ConcurrentPersister putLongArray(String key, long[] values) {
+        requireNonNull(key);
+        long[] copy = values.clone();
+        int stripe = barrier.enter();
+        try {
+            longArrayVals.put(key, copy);
+        } finally {
+            barrier.exit(stripe);
+        }
+        return this;
+    }
+
+    /**
+     * Returns a copy of the long array mapped to the given key, if any.
+     */
+    public Optional<long[]> checkLongArray(String key) {
+        long[] values = longArrayVals.get(requireNonNull(key));
+        return (values == null)
+                ? Optional.empty()
+                : Optional.of(values.clone());
+    }
+
+    /**
+     * Returns a copy of the long array mapped to the given key.
+     */
+    public long[] getLongArray(String key) {
+        return get(longArrayVals, key, "long array").clone();
+    }
+
+    /**
+     * Puts a copy of the given array.
+     */
+    public ConcurrentPersister putDoubleArray(String key, double[] values) {
+        requireNonNull(key);
+        double[] copy = values.clone();
+        int stripe = barrier.enter();
+        try {
+            doubleArrayVals.put(key, copy);
+        } finally {
+            barrier.exit(stripe);
+        }
+        return this;
+    }
+
+    /**
+     * Returns a copy of the double array mapped to the given key, if any.
+     */
+    public Optional<double[]> checkDoubleArray(String key) {
+        double[] values = doubleArrayVals.get(requireNonNull(key));
+        return (values == null)
+                ? Optional.empty()
+                : Optional.of(values.clone());
+    }
+
+    /**
+     * Returns a copy of the double array mapped to the given key.
+     */
+    public double[] getDoubleArray(String key) {
+        return get(doubleArrayVals, key, "double array").clone();
+    }
+
+    private static <T> T get(ConcurrentHashMap<String, T> vals, String key, String type) {
+        T val = vals.get(requireNonNull(key));
+        if (val == null) {
+            throw new IllegalArgumentException("No such " + type + ": " + key);
+        }
+        return val;
+    }
+
+    public ConcurrentPersister newChild(String name) {
+        requireNonNull(name);
+        ConcurrentPersister child = new ConcurrentPersister(name, barrier);
+        int stripe = barrier.enter();
+        try {
+            synchronized (children) {
+                children.add(child);
+                childrenByName.computeIfAbsent(name, k -> new ConcurrentLinkedQueue<>()).add(child);
+            }
+        } finally {
+            barrier.exit(stripe);
+        }
+        return child;
+    }
+
+    public ImmutableList<ConcurrentPersister> getChildren(String name) {
+        Queue<ConcurrentPersister> list = childrenByName.get(requireNonNull(name));
+        return (list == null)
+                ? ImmutableList.of()
+                : ImmutableList.copyOf(list);
+    }
+
+    public ConcurrentPersister getChild(String name) {
+        ImmutableList<ConcurrentPersister> list = getChildren(name);
+        checkArgument(list.size() == 1, "Expected 1 child with name %s but found %s", name, list.size());
+        return list.get(0);
+    }
+
+    /**
+     * Returns a copy of this ConcurrentPersister and all its descendants, as a root Persister.
+     * Writers anywhere in the tree are blocked while the copy is made.
+     */
+    public Persister snapshot() {
+        barrier.close();
+        try {
+            return copy(new Persister());
+        } finally {
+            barrier.open();
+        }
+    }
+
+    private Persister copy(Persister target) {
+        stringVals.forEach(target::putString);
+        intVals.forEach((key, cell) -> target.putInt(key, cell.value));
+        longVals.forEach((key, cell) -> target.putLong(key, cell.value));
+        doubleVals.forEach((key, cell) -> target.putDouble(key, cell.value));
+        // The arrays are never modified, so the snapshot can share them.
+        intArrayVals.forEach(target::adoptIntArray);
+        longArrayVals.forEach(target::adoptLongArray);
+        doubleArrayVals.forEach(target::adoptDoubleArray);
+        for (ConcurrentPersister child : children) {
+            child.copy(target.newChild(child.name));
+        }
+        return target;
+    }
+
+
+    private static final class IntCell {
+        volatile int value;
+
+        IntCell(int value) {
+            this.value = value;
+        }
+    }
+
+
+    private static final class LongCell {
+        volatile long value;
+
+        LongCell(long value) {
+            this.value = value;
+        }
+    }
+
+
+    private static final class DoubleCell {
+        volatile double value;
+
+        DoubleCell(double value) {
+            this.value = value;
+        }
+    }
+
+
+    /**
+     * Lets writers proceed in parallel, and snapshots wait until no writer is active. A writer
+     * increments the counter of its stripe and then checks if a snapshot is being taken, while
+     * a snapshot sets its flag and then waits for all counters to drop to zero, so either the
+     * writer backs off or the snapshot waits for it. The counters are spread out over the array
+     * so that they do not share cache lines.
+     */
+    private static final class WriteBarrier {
+        /**
+         * The distance between two counters, in longs.
+         */
+        private static final int PADDING = 16;
+
+        private final AtomicLongArray counters;
+        private final int mask;
+        private final ReentrantLock snapshotLock = new ReentrantLock();
+        private volatile boolean closed;
+
+        WriteBarrier() {
+            int stripes = 1;
+            while (stripes < 2 * Runtime.getRuntime().availableProcessors()) {
+                stripes <<= 1;
+            }
+            this.counters = new AtomicLongArray(stripes * PADDING);
+            this.mask = stripes - 1;
+        }
+
+        /**
+         * Registers the current thread as a writer, waiting for any snapshot in progress to
+         * finish, and returns the stripe that must be passed to {@link #exit(int)}.
+         */
+        int enter() {
+            long id = Thread.currentThread().getId();
+            int index = ((int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask) * PADDING;
+            while (true) {
+                counters.incrementAndGet(index);
+                if (!closed) {
+                    return index;
+                }
+                counters.decrementAndGet(index);
+                // Waits for the snapshot to release the lock.
+                snapshotLock.lock();
+                snapshotLock.unlock();
+            }
+        }
+
+        void exit(int index) {
+            counters.decrementAndGet(index);
+        }
+
+        /**
+         * Holds off new writers, and waits for the active ones to finish.
+         */
+        void close() {
+            snapshotLock.lock();
+            closed = true;
+            for (int n = 0, length = counters.length(); n < length; n += PADDING) {
+                while (counters.get(n) != 0) {
+                    Thread.yield();
+                }
+            }
+        }
+
+        void open() {
+            closed = false;
+            snapshotLock.unlock();
+        }
+    }
+}
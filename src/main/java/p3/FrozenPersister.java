@@ -0,0 +1,383 @@
+package p3;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * An immutable snapshot of a {@link Persister}, created with {@link Persister#freeze()}.
+ * <p>
+ * The values of a FrozenPersister are kept in sorted key arrays with parallel value arrays,
+ * which take considerably less memory than the hash maps of a Persister, and are looked up
+ * by binary search. The hash code of every FrozenPersister is computed once, when it is created,
+ * and {@link #equals(Object)} compares the hash codes before comparing anything else. This
+ * makes FrozenPersisters suitable as keys in hash maps, and cheap to compare when they differ.
+ * <p>
+ * Two FrozenPersisters are equal if the Persisters they were created from are equal.
+ */
+public final class FrozenPersister {
+    private static final String[] NO_KEYS = new String[0];
+
+    @Nullable
+    private final String name;
+    private final String[] stringKeys;
+    private final String[] stringValues;
+    private final String[] intKeys;
+    private final int[] intValues;
+    private final String[] longKeys;
+    private final long[] longValues;
+    private final String[] doubleKeys;
+    private final double[] doubleValues;
+    private final String[] intArrayKeys;
+    private final int[][] intArrayValues;
+    private final String[] longArrayKeys;
+    private final long[][] longArrayValues;
+    private final String[] doubleArrayKeys;
+    private final double[][] doubleArrayValues;
+    /**
+     * All children, in the order they were added.
+     */
+    private final FrozenPersister[] children;
+    /**
+     * The distinct names of the children, in sorted order.
+     */
+    private final String[] childNames;
+    /**
+     * The children with the name at the same position in childNames, in the order they were added.
+     */
+    private final ImmutableList<ImmutableList<FrozenPersister>> childGroups;
+    private final int hash;
+
+    /**
+     * Creates a FrozenPersister. The key arrays must be sorted, and no array is copied.
+     */
+    FrozenPersister(@Nullable String name,
+                    String[] stringKeys, String[] stringValues,
+                    String[] intKeys, int[] intValues,
+                    String[] longKeys, long[] longValues,
+                    String[] doubleKeys, double[] doubleValues,
+                    String[] intArrayKeys, int[][] intArrayValues,
+                    String[] longArrayKeys, long[][] longArrayValues,
+                    String[] doubleArrayKeys, double[][] doubleArrayValues,
+                    FrozenPersister[] children) {
+        this.name = name;
+        this.stringKeys = stringKeys;
+        this.stringValues = stringValues;
+        this.intKeys = intKeys;
+        this.intValues = intValues;
+        this.longKeys = longKeys;
+        this.longValues = longValues;
+        this.doubleKeys = doubleKeys;
+        this.doubleValues = doubleValues;
+        this.intArrayKeys = intArrayKeys;
+        this.intArrayValues = intArrayValues;
+        this.longArrayKeys = longArrayKeys;
+        this.longArrayValues = longArrayValues;
+        this.doubleArrayKeys = doubleArrayKeys;
+        this.doubleArrayValues = doubleArrayValues;
+        this.children = children;
+        this.childNames = (children.length == 0)
+                ? NO_KEYS
+                : Arrays.stream(children).map(c -> c.name).distinct().sorted().toArray(String[]::new);
+        List<List<FrozenPersister>> groups = new ArrayList<>(childNames.length);
+        for (int n = 0; n < childNames.length; ++n) {
+            groups.add(new ArrayList<>());
+        }
+        for (FrozenPersister child : children) {
+            groups.get(Arrays.binarySearch(childNames, child.name)).add(child);
+        }
+        ImmutableList.Builder<ImmutableList<FrozenPersister>> builder = ImmutableList.builder();
+        groups.forEach(g -> builder.add(ImmutableList.copyOf(g)));
+        this.childGroups = builder.build();
+        this.hash = computeHash();
+    }
+
+    private int computeHash() {
+        int h = Arrays.hashCode(stringKeys);
+        h = 31 * h + Arrays.hashCode(stringValues);
+        h = 31 * h + Arrays.hashCode(intKeys);
+        h = 31 * h + Arrays.hashCode(intValues);
+        h = 31 * h + Arrays.hashCode(longKeys);
+        h = 31 * h + Arrays.hashCode(longValues);
+        h = 31 * h + Arrays.hashCode(doubleKeys);
+        h = 31 * h + Arrays.hashCode(doubleValues);
+        h = 31 * h + Arrays.hashCode(intArrayKeys);
+        h = 31 * h + Arrays.deepHashCode(intArrayValues);
+        h = 31 * h + Arrays.hashCode(longArrayKeys);
+        h = 31 * h + Arrays.deepHashCode(longArrayValues);
+        h = 31 * h + Arrays.hashCode(doubleArrayKeys);
+        h = 31 * h + Arrays.deepHashCode(doubleArrayValues);
+        h = 31 * h + Arrays.hashCode(childNames);
+        // The hash codes of the children are already cached, so this does not recurse.
+        return 31 * h + childGroups.hashCode();
+    }
+
+    public Optional<String> checkString(String key) {
+        int index = Arrays.binarySearch(stringKeys, requireNonNull(key));
+        return (index < 0)
+                ? Optional.empty()
+                : Optional.of(stringValues[index]);
+    }
+
+    public String getString(String key) {
+        int index = Arrays.binarySearch(stringKeys, requireNonNull(key));
+        if (index < 0) {
+            throw new IllegalArgumentException("No such string: " + key);
+        }
+        return stringValues[index];
+    }
+
+    public String getString(String key, String defVal) {
+        int index = Arrays.binarySearch(stringKeys, requireNonNull(key));
+        return (index < 0) ? defVal : stringValues[index];
+    }
+
+    public OptionalInt checkInt(String key) {
+        int index = Arrays.binarySearch(intKeys, requireNonNull(key));
+        return (index < 0)
+                ? OptionalInt.empty()
+                : OptionalInt.of(intValues[index]);
+    }
+
+    public int getInt(String key) {
+        int index = Arrays.binarySearch(intKeys, requireNonNull(key));
+        if (index < 0) {
+            throw new IllegalArgumentException("No such int: " + key);
+        }
+        return intValues[index];
+    }
+
+    public int getInt(String key, int defVal) {
+        int index = Arrays.binarySearch(intKeys, requireNonNull(key));
+        return (index < 0) ? defVal : intValues[index];
+    }
+
+    public OptionalLong checkLong(String key) {
+        int index = Arrays.binarySearch(longKeys, requireNonNull(key));
+        return (index < 0)
+                ? OptionalLong.empty()
+                : OptionalLong.of(longValues[index]);
+    }
+
+    public long getLong(String key) {
+        int index = Arrays.binarySearch(longKeys, requireNonNull(key));
+        if (index < 0) {
+            throw new IllegalArgumentException("No such long: " + key);
+        }
+        return longValues[index];
+    }
+
+    public long getLong(String key, long defVal) {
+        int index = Arrays.binarySearch(longKeys, requireNonNull(key));
+        return (index < 0) ? defVal : longValues[index];
+    }
+
+    public OptionalDouble checkDouble(String key) {
+        int index = Arrays.binarySearch(doubleKeys, requireNonNull(key));
+        return (index < 0)
+                ? OptionalDouble.empty()
+                : OptionalDouble.of(doubleValues[index]);
+    }
+
+    public double getDouble(String key) {
+        int index = Arrays.binarySearch(doubleKeys, requireNonNull(key));
+        if (index < 0) {
+            throw new IllegalArgumentException("No such double: " + key);
+        }
+        return doubleValues[index];
+    }
+
+    public double getDouble(String key, double defVal) {
+        int index = Arrays.binarySearch(doubleKeys, requireNonNull(key));
+        return (index < 0) ? defVal : doubleValues[index];
+    }
+
+    /**
+     * Returns a copy of the int array mapped to the given key, if any.
+     */
+    public Optional<int[]> checkIntArray(String key) {
+        int index = Arrays.binarySearch(intArrayKeys, requireNonNull(key));
+        return (index < 0)
+                ? Optional.empty()
+                : Optional.of(intArrayValues[index].clone());
+    }
+
+    /**
+     * Returns a copy of the int array mapped to the given key.
+     */
+    public int[] getIntArray(String key) {
+        int index = Arrays.binarySearch(intArrayKeys, requireNonNull(key));
+        if (index < 0) {
+            throw new IllegalArgumentException("No such int array: " + key);
+        }
+        return intArrayValues[index].clone();
+    }
+
+    /**
+     * Returns a copy of the long array mapped to the given key, if any.
+     */
+    public Optional<long[]> checkLongArray(String key) {
+        int index = Arrays.binarySearch(longArrayKeys, requireNonNull(key));
+        return (index < 0)
+                ? Optional.empty()
+                : Optional.of(longArrayValues[index].clone());
+    }
+
+    /**
+     * Returns a copy of the long array mapped to the given key.
+     */
+    public long[] getLongArray(String key) {
+        int index = Arrays.binarySearch(longArrayKeys, requireNonNull(key));
+        if (index < 0) {
+            throw new IllegalArgumentException("No such long array: " + key);
+        }
+        return longArrayValues[index].clone();
+    }
+
+    /**
+     * Returns a copy of the double array mapped to the given key, if any.
+     */
+    public Optional<double[]> checkDoubleArray(String key) {
+        int index = Arrays.binarySearch(doubleArrayKeys, requireNonNull(key));
+        return (index < 0)
+                ? Optional.empty()
+                : Optional.of(doubleArrayValues[index].clone());
+    }
+
+    /**
+     * Returns a copy of the double array mapped to the given key.
+     */
+    public double[] getDoubleArray(String key) {
+        int index = Arrays.binarySearch(doubleArrayKeys, requireNonNull(key));
+        if (index < 0) {
+            throw new IllegalArgumentException("No such double array: " + key);
+        }
+        return doubleArrayValues[index].clone();
+    }
+
+    /**
+     * Returns the children with the given name, in the order they were added. This does
+     * not copy the children.
+     */
+    public ImmutableList<FrozenPersister> getChildren(String name) {
+        int index = Arrays.binarySearch(childNames, requireNonNull(name));
+        return (index < 0)
+                ? ImmutableList.of()
+                : childGroups.get(index);
+    }
+
+    public FrozenPersister getChild(String name) {
+        ImmutableList<FrozenPersister> list = getChildren(name);
+        checkArgument(list.size() == 1, "Expected 1 child with name %s but found %s", name, list.size());
+        return list.get(0);
+    }
+
+    /**
+     * Returns an estimate of the number of bytes of heap used by this FrozenPersister and
+     * its children. The keys and names are not included, since they are normally shared.
+     */
+    long estimatedSize() {
+        // Object headers and fields of this, the arrays, and the child lists.
+        long size = 200 + 4L * (stringKeys.length + stringValues.length + intKeys.length + longKeys.length
+                + doubleKeys.length + intArrayKeys.length + longArrayKeys.length + doubleArrayKeys.length
+                + children.length + childNames.length + 2 * childGroups.size())
+                + 4L * intValues.length + 8L * longValues.length + 8L * doubleValues.length;
+        for (String value : stringValues) {
+            size += 40 + 2L * value.length();
+        }
+        for (int[] values : intArrayValues) {
+            size += 20 + 4L * values.length;
+        }
+        for (long[] values : longArrayValues) {
+            size += 20 + 8L * values.length;
+        }
+        for (double[] values : doubleArrayValues) {
+            size += 20 + 8L * values.length;
+        }
+        for (FrozenPersister child : children) {
+            size += child.estimatedSize();
+        }
+        return size;
+    }
+
+    /**
+     * Returns a new, mutable, root Persister that is equal to the Persister this
+     * FrozenPersister was created from.
+     */
+    public Persister toPersister() {
+        return copyTo(new Persister());
+    }
+
+    private Persister copyTo(Persister p) {
+        for (int n = 0; n < stringKeys.length; ++n) {
+            p.putString(stringKeys[n], stringValues[n]);
+        }
+        for (int n = 0; n < intKeys.length; ++n) {
+            p.putInt(intKeys[n], intValues[n]);
+        }
+        for (int n = 0; n < longKeys.length; ++n) {
+            p.putLong(longKeys[n], longValues[n]);
+        }
+        for (int n = 0; n < doubleKeys.length; ++n) {
+            p.putDouble(doubleKeys[n], doubleValues[n]);
+        }
+        // The arrays are never modified, so they can be shared with the Persister.
+        for (int n = 0; n < intArrayKeys.length; ++n) {
+            p.adoptIntArray(intArrayKeys[n], intArrayValues[n]);
+        }
+        for (int n = 0; n < longArrayKeys.length; ++n) {
+            p.adoptLongArray(longArrayKeys[n], longArrayValues[n]);
+        }
+        for (int n = 0; n < doubleArrayKeys.length; ++n) {
+            p.adoptDoubleArray(doubleArrayKeys[n], doubleArrayValues[n]);
+        }
+        for (FrozenPersister child : children) {
+            child.copyTo(p.newChild(child.name));
+        }
+        return p;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (obj instanceof FrozenPersister) {
+            FrozenPersister that = (FrozenPersister) obj;
+            return this.hash == that.hash &&
+                    Arrays.equals(this.stringKeys, that.stringKeys) &&
+                    Arrays.equals(this.stringValues, that.stringValues) &&
+                    Arrays.equals(this.intKeys, that.intKeys) &&
+                    Arrays.equals(this.intValues, that.intValues) &&
+                    Arrays.equals(this.longKeys, that.longKeys) &&
+                    Arrays.equals(this.longValues, that.longValues) &&
+                    Arrays.equals(this.doubleKeys, that.doubleKeys) &&
+                    Arrays.equals(this.doubleValues, that.doubleValues) &&
+                    Arrays.equals(this.intArrayKeys, that.intArrayKeys) &&
+                    Arrays.deepEquals(this.intArrayValues, that.intArrayValues) &&
+                    Arrays.equals(this.longArrayKeys, that.longArrayKeys) &&
+                    Arrays.deepEquals(this.longArrayValues, that.longArrayValues) &&
+                    Arrays.equals(this.doubleArrayKeys, that.doubleArrayKeys) &&
+                    Arrays.deepEquals(this.doubleArrayValues, that.doubleArrayValues) &&
+                    Arrays.equals(this.childNames, that.childNames) &&
+                    this.childGroups.equals(that.childGroups);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,374 @@
+package p3;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+import static p3.IndexedPersisterStore.ARRAY_ENTRY_SIZE;
+import static p3.IndexedPersisterStore.CHILD_ENTRY_SIZE;
+import static p3.IndexedPersisterStore.CHILD_ORDER_ENTRY_SIZE;
+import static p3.IndexedPersisterStore.COUNTS_SIZE;
+import static p3.IndexedPersisterStore.DOUBLE_ENTRY_SIZE;
+import static p3.IndexedPersisterStore.HEADER_SIZE;
+import static p3.IndexedPersisterStore.INT_ENTRY_SIZE;
+import static p3.IndexedPersisterStore.LONG_ENTRY_SIZE;
+import static p3.IndexedPersisterStore.MAGIC;
+import static p3.IndexedPersisterStore.STRING_ENTRY_SIZE;
+import static p3.IndexedPersisterStore.TRAILER_SIZE;
+import static p3.IndexedPersisterStore.VERSION;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A read-only view of a node in a file written by {@link IndexedPersisterStore}.
+ * <p>
+ * The file is memory mapped, and nothing is decoded up front. Every lookup does a
+ * binary search in the index of the node, and decodes only the entries it touches,
+ * which means that the cost of opening the file and the memory used are proportional
+ * to what is actually read rather than to the size of the file.
+ * <p>
+ * Instances are immutable, and can be used from multiple threads.
+ */
+public final class IndexedPersister {
+    /**
+     * The section of the child entries.
+     */
+    private static final int CHILDREN = 7;
+    /**
+     * The entry sizes of the sections of a node record.
+     */
+    private static final int[] ENTRY_SIZES = { STRING_ENTRY_SIZE, INT_ENTRY_SIZE, LONG_ENTRY_SIZE, DOUBLE_ENTRY_SIZE,
+            ARRAY_ENTRY_SIZE, ARRAY_ENTRY_SIZE, ARRAY_ENTRY_SIZE, CHILD_ENTRY_SIZE };
+
+    private final ByteBuffer buffer;
+    private final int offset;
+
+    private IndexedPersister(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+    }
+
+    /**
+     * Memory maps the given file, and returns a view of its root node.
+     */
+    public static IndexedPersister open(File file) throws IOException {
+        requireNonNull(file);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("The indexed Persister format is limited to files smaller than 2 GB");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            return root(buffer);
+        }
+    }
+
+    /**
+     * Returns a view of the root node of an indexed Persister held in a buffer.
+     */
+    static IndexedPersister root(ByteBuffer buffer) throws IOException {
+        int size = buffer.limit();
+        if (size < HEADER_SIZE + TRAILER_SIZE || !hasMagic(buffer, 0) || !hasMagic(buffer, size - MAGIC.length)) {
+            throw new IOException("Not an indexed Persister file");
+        }
+        int version = buffer.get(MAGIC.length);
+        if (version != VERSION) {
+            throw new IOException("Unsupported indexed Persister version: " + version);
+        }
+        int rootOffset = buffer.getInt(size - TRAILER_SIZE);
+        if (rootOffset < HEADER_SIZE || rootOffset > size - TRAILER_SIZE - COUNTS_SIZE) {
+            throw new IOException("Corrupt indexed Persister file: invalid root offset " + rootOffset);
+        }
+        return new IndexedPersister(buffer, rootOffset);
+    }
+
+    private static boolean hasMagic(ByteBuffer buffer, int offset) {
+        for (int n = 0; n < MAGIC.length; ++n) {
+            if (buffer.get(offset + n) != MAGIC[n]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Optional<String> checkString(String key) {
+        int entry = find(key, 0, STRING_ENTRY_SIZE);
+        return (entry < 0)
+                ? Optional.empty()
+                : Optional.of(readBlob(buffer.getInt(entry + 4)));
+    }
+
+    public String getString(String key) {
+        return checkString(key).orElseThrow(() -> new IllegalArgumentException("No such string: " + key));
+    }
+
+    public String getString(String key, String defVal) {
+        return checkString(key).orElse(defVal);
+    }
+
+    public OptionalInt checkInt(String key) {
+        int entry = find(key, 1, INT_ENTRY_SIZE);
+        return (entry < 0)
+                ? OptionalInt.empty()
+                : OptionalInt.of(buffer.getInt(entry + 4));
+    }
+
+    public int getInt(String key) {
+        return checkInt(key).orElseThrow(() -> new IllegalArgumentException("No such int: " + key));
+    }
+
+    public int getInt(String key, int defVal) {
+        int entry = find(key, 1, INT_ENTRY_SIZE);
+        return (entry < 0) ? defVal : buffer.getInt(entry + 4);
+    }
+
+    public OptionalLong checkLong(String key) {
+        int entry = find(key, 2, LONG_ENTRY_SIZE);
+        return (entry < 0)
+                ? OptionalLong.empty()
+                : OptionalLong.of(buffer.getLong(entry + 4));
+    }
+
+    public long getLong(String key) {
+        return checkLong(key).orElseThrow(() -> new IllegalArgumentException("No such long: " + key));
+    }
+
+    public long getLong(String key, long defVal) {
+        int entry = find(key, 2, LONG_ENTRY_SIZE);
+        return (entry < 0) ? defVal : buffer.getLong(entry + 4);
+    }
+
+    public OptionalDouble checkDouble(String key) {
+        int entry = find(key, 3, DOUBLE_ENTRY_SIZE);
+        return (entry < 0)
+                ? OptionalDouble.empty()
+                : OptionalDouble.of(buffer.getDouble(entry + 4));
+    }
+
+    public double getDouble(String key) {
+        return checkDouble(key).orElseThrow(() -> new IllegalArgumentException("No such double: " + key));
+    }
+
+    public double getDouble(String key, double defVal) {
+        int entry = find(key, 3, DOUBLE_ENTRY_SIZE);
+        return (entry < 0) ? defVal : buffer.getDouble(entry + 4);
+    }
+
+    /**
+     * Returns the int array mapped to the given key, if any. The elements are bulk copied
+     * from the file.
+     */
+    public Optional<int[]> checkIntArray(String key) {
+        int entry = find(key, 4, ARRAY_ENTRY_SIZE);
+        return (entry < 0)
+                ? Optional.empty()
+                : Optional.of(PackedArrays.toInts(blob(buffer.getInt(entry + 4))));
+    }
+
+    public int[] getIntArray(String key) {
+        return checkIntArray(key).orElseThrow(() -> new IllegalArgumentException("No such int array: " + key));
+    }
+
+    /**
+     * Returns the long array mapped to the given key, if any. The elements are bulk copied
+     * from the file.
+     */
+    public Optional<long[]> checkLongArray(String key) {
+        int entry = find(key, 5, ARRAY_ENTRY_SIZE);
+        return (entry < 0)
+                ? Optional.empty()
+                : Optional.of(PackedArrays.toLongs(blob(buffer.getInt(entry + 4))));
+    }
+
+    public long[] getLongArray(String key) {
+        return checkLongArray(key).orElseThrow(() -> new IllegalArgumentException("No such long array: " + key));
+    }
+
+    /**
+     * Returns the double array mapped to the given key, if any. The elements are bulk copied
+     * from the file.
+     */
+    public Optional<double[]> checkDoubleArray(String key) {
+        int entry = find(key, 6, ARRAY_ENTRY_SIZE);
+        return (entry < 0)
+                ? Optional.empty()
+                : Optional.of(PackedArrays.toDoubles(blob(buffer.getInt(entry + 4))));
+    }
+
+    public double[] getDoubleArray(String key) {
+        return checkDoubleArray(key).orElseThrow(() -> new IllegalArgumentException("No such double array: " + key));
+    }
+
+    public ImmutableList<IndexedPersister> getChildren(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int start = sectionStart(CHILDREN);
+        int count = count(CHILDREN);
+        // Find the first entry with the given name.
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareKey(buffer.getInt(start + mid * CHILD_ENTRY_SIZE), bytes) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        ImmutableList.Builder<IndexedPersister> builder = ImmutableList.builder();
+        for (int n = low; n < count; ++n) {
+            int entry = start + n * CHILD_ENTRY_SIZE;
+            if (compareKey(buffer.getInt(entry), bytes) != 0) {
+                break;
+            }
+            builder.add(child(entry));
+        }
+        return builder.build();
+    }
+
+    public IndexedPersister getChild(String name) {
+        ImmutableList<IndexedPersister> list = getChildren(name);
+        checkArgument(list.size() == 1, "Expected 1 child with name %s but found %s", name, list.size());
+        return list.get(0);
+    }
+
+    /**
+     * Decodes this node and all its descendants into a Persister. The children are added
+     * in the order they were written.
+     */
+    public Persister toPersister() {
+        Persister p = new Persister();
+        loadInto(p, new KeyDictionary());
+        return p;
+    }
+
+    private void loadInto(Persister p, KeyDictionary keys) {
+        int entry = sectionStart(0);
+        for (int n = count(0); n > 0; --n, entry += STRING_ENTRY_SIZE) {
+            p.putString(readKey(buffer.getInt(entry), keys), readBlob(buffer.getInt(entry + 4)));
+        }
+        for (int n = count(1); n > 0; --n, entry += INT_ENTRY_SIZE) {
+            p.putInt(readKey(buffer.getInt(entry), keys), buffer.getInt(entry + 4));
+        }
+        for (int n = count(2); n > 0; --n, entry += LONG_ENTRY_SIZE) {
+            p.putLong(readKey(buffer.getInt(entry), keys), buffer.getLong(entry + 4));
+        }
+        for (int n = count(3); n > 0; --n, entry += DOUBLE_ENTRY_SIZE) {
+            p.putDouble(readKey(buffer.getInt(entry), keys), buffer.getDouble(entry + 4));
+        }
+        for (int n = count(4); n > 0; --n, entry += ARRAY_ENTRY_SIZE) {
+            p.adoptIntArray(readKey(buffer.getInt(entry), keys), PackedArrays.toInts(blob(buffer.getInt(entry + 4))));
+        }
+        for (int n = count(5); n > 0; --n, entry += ARRAY_ENTRY_SIZE) {
+            p.adoptLongArray(readKey(buffer.getInt(entry), keys), PackedArrays.toLongs(blob(buffer.getInt(entry + 4))));
+        }
+        for (int n = count(6); n > 0; --n, entry += ARRAY_ENTRY_SIZE) {
+            p.adoptDoubleArray(readKey(buffer.getInt(entry), keys), PackedArrays.toDoubles(blob(buffer.getInt(entry + 4))));
+        }
+        int childCount = count(CHILDREN);
+        int orderStart = entry + childCount * CHILD_ENTRY_SIZE;
+        for (int n = 0; n < childCount; ++n) {
+            int childEntry = entry + CHILD_ENTRY_SIZE * buffer.getInt(orderStart + n * CHILD_ORDER_ENTRY_SIZE);
+            Persister child = p.newChild(readKey(buffer.getInt(childEntry), keys));
+            child(childEntry).loadInto(child, keys);
+        }
+    }
+
+    /**
+     * Returns a view of the child of the given child entry.
+     */
+    private IndexedPersister child(int entry) {
+        return new IndexedPersister(buffer, buffer.getInt(entry + 4));
+    }
+
+    /**
+     * Returns the number of entries in the given section of the node record.
+     */
+    private int count(int section) {
+        return buffer.getInt(offset + 4 * section);
+    }
+
+    /**
+     * Returns the offset of the first entry in the given section of the node record.
+     */
+    private int sectionStart(int section) {
+        int start = offset + COUNTS_SIZE;
+        for (int s = 0; s < section; ++s) {
+            start += count(s) * ENTRY_SIZES[s];
+        }
+        return start;
+    }
+
+    /**
+     * Returns the offset of the entry for the given key in a value section, or -1 if
+     * there is no such entry.
+     */
+    private int find(String key, int section, int entrySize) {
+        requireNonNull(key);
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int start = sectionStart(section);
+        int low = 0;
+        int high = count(section) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = start + mid * entrySize;
+            int c = compareKey(buffer.getInt(entry), bytes);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the UTF-8 bytes of the blob at the given offset with the given bytes.
+     */
+    private int compareKey(int blobOffset, byte[] key) {
+        int length = buffer.getInt(blobOffset);
+        int start = blobOffset + 4;
+        for (int n = 0, len = Math.min(length, key.length); n < len; ++n) {
+            int c = (buffer.get(start + n) & 0xFF) - (key[n] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - key.length;
+    }
+
+    private String readKey(int blobOffset, KeyDictionary keys) {
+        return keys.intern(readBlob(blobOffset));
+    }
+
+    /**
+     * Returns a view of the bytes of the blob at the given offset.
+     */
+    private ByteBuffer blob(int blobOffset) {
+        int length = buffer.getInt(blobOffset);
+        ByteBuffer src = buffer.duplicate();
+        src.position(blobOffset + 4);
+        src.limit(blobOffset + 4 + length);
+        return src;
+    }
+
+    private String readBlob(int blobOffset) {
+        int length = buffer.getInt(blobOffset);
+        byte[] bytes = new byte[length];
+        ByteBuffer src = buffer.duplicate();
+        src.position(blobOffset + 4);
+        src.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,453 @@
+package p3;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.Objects.requireNonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.primitives.UnsignedBytes;
+
+/**
+ * A PersisterStore that writes a file that can be read lazily, via a memory mapping,
+ * with {@link IndexedPersister}.
+ * <p>
+ * Nodes are written in post-order, i.e. a node record is written after all of its
+ * children, so that every node record can hold the offsets of its children. A node
+ * record has the following layout, where all numbers are little endian and all
+ * offsets are absolute file positions:
+ * <pre>
+ * int stringCount, intCount, longCount, doubleCount,
+ *     intArrayCount, longArrayCount, doubleArrayCount, childCount
+ * stringCount      x (int keyOffset, int valueOffset)
+ * intCount         x (int keyOffset, int value)
+ * longCount        x (int keyOffset, long value)
+ * doubleCount      x (int keyOffset, long IEEE 754 bits)
+ * intArrayCount    x (int keyOffset, int valueOffset)
+ * longArrayCount   x (int keyOffset, int valueOffset)
+ * doubleArrayCount x (int keyOffset, int valueOffset)
+ * childCount       x (int nameOffset, int childOffset)
+ * childCount       x (int childEntry)
+ * </pre>
+ * The value entries are sorted by the UTF-8 bytes of their keys, and the child entries
+ * by the UTF-8 bytes of their names (children with the same name are kept in the order
+ * they were added), which allows for binary searches. The child entries are followed by
+ * the index of the entry of every child in the order the children were added, so that
+ * the order of the children survives a round trip. Keys, names and string values are
+ * written as blobs of an int length followed by the UTF-8 bytes, and arrays as blobs of
+ * the little endian bytes of their elements. Keys and names are only written once per file.
+ * <p>
+ * The file starts with {@link #MAGIC} and a version byte, and ends with the offset of the
+ * root node followed by {@link #MAGIC} again. Since offsets are ints, the file must be
+ * smaller than 2 GB.
+ * <p>
+ * The values and the child offsets of every node on the path from the root to the node
+ * currently being written are kept in memory until the node is complete. Like
+ * {@link StreamingXmlPersisterStore}, this means that a child store can only be written
+ * to until one of its siblings (or an ancestor) is written to. The file is completed by
+ * calling {@link #finish()} or {@link #close()}.
+ */
+public final class IndexedPersisterStore extends PersisterStore<IndexedPersisterStore> implements Closeable {
+    static final byte[] MAGIC = { 'P', '3', 'I' };
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = MAGIC.length + 1;
+    static final int TRAILER_SIZE = 4 + MAGIC.length;
+    static final int COUNTS_SIZE = 8 * 4;
+    static final int STRING_ENTRY_SIZE = 8;
+    static final int INT_ENTRY_SIZE = 8;
+    static final int LONG_ENTRY_SIZE = 12;
+    static final int DOUBLE_ENTRY_SIZE = 12;
+    static final int ARRAY_ENTRY_SIZE = 8;
+    static final int CHILD_ENTRY_SIZE = 8;
+    static final int CHILD_ORDER_ENTRY_SIZE = 4;
+
+    private static final Comparator<byte[]> KEY_ORDER = UnsignedBytes.lexicographicalComparator();
+
+    private final Output output;
+    private final int depth;
+    private final Node node;
+
+    private IndexedPersisterStore(Output output, int depth) {
+        this.output = output;
+        this.depth = depth;
+        this.node = new Node();
+    }
+
+    /**
+     * Creates a store that writes to the given file.
+     */
+    public static IndexedPersisterStore open(File file) throws IOException {
+        requireNonNull(file);
+        return open(new FileOutputStream(file));
+    }
+
+    /**
+     * Creates a store that writes to the given stream.
+     */
+    public static IndexedPersisterStore open(OutputStream out) throws IOException {
+        requireNonNull(out);
+        Output output = new Output(out);
+        output.writeBytes(MAGIC);
+        output.writeByte(VERSION);
+        IndexedPersisterStore root = new IndexedPersisterStore(output, 0);
+        output.openNodes.add(root);
+        return root;
+    }
+
+    @Override
+    void putString(String key, String value) {
+        requireNonNull(key);
+        requireNonNull(value);
+        try {
+            output.enter(this);
+            Key k = output.key(key);
+            node.strings.put(k, output.writeBlob(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    void putInt(String key, int value) {
+        requireNonNull(key);
+        try {
+            output.enter(this);
+            node.ints.put(output.key(key), value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    void putLong(String key, long value) {
+        requireNonNull(key);
+        try {
+            output.enter(this);
+            node.longs.put(output.key(key), value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    void putDouble(String key, double value) {
+        requireNonNull(key);
+        try {
+            output.enter(this);
+            node.doubles.put(output.key(key), value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    void putIntArray(String key, int[] values) {
+        requireNonNull(key);
+        try {
+            output.enter(this);
+            Key k = output.key(key);
+            node.intArrays.put(k, output.writeBlob(PackedArrays.toBytes(values)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    void putLongArray(String key, long[] values) {
+        requireNonNull(key);
+        try {
+            output.enter(this);
+            Key k = output.key(key);
+            node.longArrays.put(k, output.writeBlob(PackedArrays.toBytes(values)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    void putDoubleArray(String key, double[] values) {
+        requireNonNull(key);
+        try {
+            output.enter(this);
+            Key k = output.key(key);
+            node.doubleArrays.put(k, output.writeBlob(PackedArrays.toBytes(values)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    IndexedPersisterStore newChild(String name) {
+        requireNonNull(name);
+        try {
+            output.enter(this);
+            IndexedPersisterStore child = new IndexedPersisterStore(output, depth + 1);
+            node.childNames.add(output.key(name));
+            output.openNodes.add(child);
+            return child;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    protected IndexedPersisterStore self() {
+        return this;
+    }
+
+    /**
+     * Writes all pending node records and the trailer, and flushes the output. The
+     * underlying stream is left open. No more values can be written after this.
+     */
+    public void finish() throws IOException {
+        output.finish();
+    }
+
+    /**
+     * Finishes the file, if not already done, and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            output.out.close();
+        }
+    }
+
+
+    /**
+     * A key or child name, and the offset of its blob.
+     */
+    private static final class Key implements Comparable<Key> {
+        final byte[] bytes;
+        final int offset;
+
+        Key(byte[] bytes, int offset) {
+            this.bytes = bytes;
+            this.offset = offset;
+        }
+
+        @Override
+        public int compareTo(Key o) {
+            return KEY_ORDER.compare(this.bytes, o.bytes);
+        }
+    }
+
+
+    /**
+     * The contents of a node that has not been written yet.
+     */
+    private static final class Node {
+        final Map<Key, Integer> strings = new TreeMap<>();
+        final Map<Key, Integer> ints = new TreeMap<>();
+        final Map<Key, Long> longs = new TreeMap<>();
+        final Map<Key, Double> doubles = new TreeMap<>();
+        final Map<Key, Integer> intArrays = new TreeMap<>();
+        final Map<Key, Integer> longArrays = new TreeMap<>();
+        final Map<Key, Integer> doubleArrays = new TreeMap<>();
+        final List<Key> childNames = new ArrayList<>();
+        final List<Integer> childOffsets = new ArrayList<>();
+    }
+
+
+    /**
+     * The state shared by all stores writing to the same file.
+     */
+    private static final class Output {
+        final OutputStream out;
+        private final byte[] buffer = new byte[8192];
+        private int bufferPosition;
+        private long position;
+        /**
+         * The stores whose nodes are currently open, indexed by depth.
+         */
+        final List<IndexedPersisterStore> openNodes = new ArrayList<>();
+        private final Map<String, Key> keys = new HashMap<>();
+        private boolean finished;
+        /**
+         * The time the store was opened, if metrics are installed.
+         */
+        private final long start = Metrics.start(Metrics.installed());
+
+        Output(OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * Makes the node of the given store the innermost open node, writing the records
+         * of any deeper nodes.
+         */
+        void enter(IndexedPersisterStore store) throws IOException {
+            checkState(!finished, "The document has been finished");
+            checkState(store.depth < openNodes.size() && openNodes.get(store.depth) == store,
+                    "The store is no longer writable, since a sibling or an ancestor has been written to");
+            while (openNodes.size() > store.depth + 1) {
+                int offset = endNode();
+                openNodes.get(openNodes.size() - 1).node.childOffsets.add(offset);
+            }
+        }
+
+        Key key(String name) throws IOException {
+            Key key = keys.get(name);
+            if (key == null) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                key = new Key(bytes, writeBlob(bytes));
+                keys.put(name, key);
+            }
+            return key;
+        }
+
+        /**
+         * Writes the record of the innermost open node, and returns its offset.
+         */
+        private int endNode() throws IOException {
+            Node node = openNodes.remove(openNodes.size() - 1).node;
+            int offset = offset();
+            writeInt(node.strings.size());
+            writeInt(node.ints.size());
+            writeInt(node.longs.size());
+            writeInt(node.doubles.size());
+            writeInt(node.intArrays.size());
+            writeInt(node.longArrays.size());
+            writeInt(node.doubleArrays.size());
+            writeInt(node.childNames.size());
+            for (Map.Entry<Key, Integer> e : node.strings.entrySet()) {
+                writeInt(e.getKey().offset);
+                writeInt(e.getValue());
+            }
+            for (Map.Entry<Key, Integer> e : node.ints.entrySet()) {
+                writeInt(e.getKey().offset);
+                writeInt(e.getValue());
+            }
+            for (Map.Entry<Key, Long> e : node.longs.entrySet()) {
+                writeInt(e.getKey().offset);
+                writeLong(e.getValue());
+            }
+            for (Map.Entry<Key, Double> e : node.doubles.entrySet()) {
+                writeInt(e.getKey().offset);
+                writeLong(Double.doubleToRawLongBits(e.getValue()));
+            }
+            writeBlobEntries(node.intArrays);
+            writeBlobEntries(node.longArrays);
+            writeBlobEntries(node.doubleArrays);
+            Integer[] order = new Integer[node.childNames.size()];
+            for (int n = 0; n < order.length; ++n) {
+                order[n] = n;
+            }
+            // A stable sort, which keeps children with the same name in the order they were added.
+            Arrays.sort(order, (a, b) -> node.childNames.get(a).compareTo(node.childNames.get(b)));
+            int[] entries = new int[order.length];
+            for (int n = 0; n < order.length; ++n) {
+                writeInt(node.childNames.get(order[n]).offset);
+                writeInt(node.childOffsets.get(order[n]));
+                entries[order[n]] = n;
+            }
+            for (int entry : entries) {
+                writeInt(entry);
+            }
+            return offset;
+        }
+
+        private void writeBlobEntries(Map<Key, Integer> entries) throws IOException {
+            for (Map.Entry<Key, Integer> e : entries.entrySet()) {
+                writeInt(e.getKey().offset);
+                writeInt(e.getValue());
+            }
+        }
+
+        void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            int rootOffset = 0;
+            while (!openNodes.isEmpty()) {
+                rootOffset = endNode();
+                if (!openNodes.isEmpty()) {
+                    openNodes.get(openNodes.size() - 1).node.childOffsets.add(rootOffset);
+                }
+            }
+            writeInt(rootOffset);
+            writeBytes(MAGIC);
+            flushBuffer();
+            out.flush();
+            finished = true;
+            Metrics.written(Metrics.installed(), start, position);
+        }
+
+        int writeBlob(byte[] bytes) throws IOException {
+            int offset = offset();
+            writeInt(bytes.length);
+            writeBytes(bytes);
+            return offset;
+        }
+
+        private int offset() throws IOException {
+            if (position > Integer.MAX_VALUE) {
+                throw new IOException("The indexed Persister format is limited to files smaller than 2 GB");
+            }
+            return (int) position;
+        }
+
+        void writeInt(int value) throws IOException {
+            ensureCapacity(4);
+            for (int n = 0; n < 4; ++n) {
+                buffer[bufferPosition++] = (byte) value;
+                value >>>= 8;
+            }
+            position += 4;
+        }
+
+        void writeLong(long value) throws IOException {
+            ensureCapacity(8);
+            for (int n = 0; n < 8; ++n) {
+                buffer[bufferPosition++] = (byte) value;
+                value >>>= 8;
+            }
+            position += 8;
+        }
+
+        void writeByte(int b) throws IOException {
+            ensureCapacity(1);
+            buffer[bufferPosition++] = (byte) b;
+            ++position;
+        }
+
+        void writeBytes(byte[] bytes) throws IOException {
+            if (bytes.length > buffer.length - bufferPosition) {
+                flushBuffer();
+                if (bytes.length > buffer.length) {
+                    out.write(bytes);
+                    position += bytes.length;
+                    return;
+                }
+            }
+            System.arraycopy(bytes, 0, buffer, bufferPosition, bytes.length);
+            bufferPosition += bytes.length;
+            position += bytes.length;
+        }
+
+        private void ensureCapacity(int length) throws IOException {
+            if (buffer.length - bufferPosition < length) {
+                flushBuffer();
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            out.write(buffer, 0, bufferPosition);
+            bufferPosition = 0;
+        }
+    }
+}
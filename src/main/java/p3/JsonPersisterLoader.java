@@ -0,0 +1,650 @@
+package p3;
+
+import static p3.JsonPersisterStore.CHILDREN;
+import static p3.JsonPersisterStore.DOUBLES;
+import static p3.JsonPersisterStore.DOUBLE_ARRAYS;
+import static p3.JsonPersisterStore.GROUPS;
+import static p3.JsonPersisterStore.INTS;
+import static p3.JsonPersisterStore.INT_ARRAYS;
+import static p3.JsonPersisterStore.LONGS;
+import static p3.JsonPersisterStore.LONG_ARRAYS;
+import static p3.JsonPersisterStore.NAME;
+import static p3.JsonPersisterStore.STRINGS;
+import static p3.JsonPersisterStore.Bytes.MAX_EXACT_INTEGER;
+import static p3.JsonPersisterStore.Bytes.POWERS_OF_TEN;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reads a Persister from the format written by {@link JsonPersisterStore}, directly from
+ * the UTF-8 encoded bytes, without building a tree of JSON values or tokens first.
+ */
+final class JsonPersisterLoader {
+    /**
+     * The number of keys that are remembered, so that the String of a key that is
+     * used again is reused rather than decoded again.
+     */
+    private static final int KEY_CACHE_SIZE = 512;
+
+    @Nullable
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+    /**
+     * The number of bytes read from the stream, or the length of the array.
+     */
+    private long bytesRead;
+    /**
+     * Holds the current number, or the current string if it could not be decoded in place.
+     */
+    private byte[] scratch = new byte[64];
+    private int scratchLength;
+    private final byte[][] cachedKeyBytes = new byte[KEY_CACHE_SIZE][];
+    private final String[] cachedKeys = new String[KEY_CACHE_SIZE];
+    private int[] intScratch = new int[16];
+    private long[] longScratch = new long[16];
+    private double[] doubleScratch = new double[16];
+
+    JsonPersisterLoader(InputStream in) {
+        this.in = in;
+        this.buffer = new byte[8192];
+    }
+
+    JsonPersisterLoader(byte[] bytes) {
+        this.in = null;
+        this.buffer = bytes;
+        this.limit = bytes.length;
+        this.bytesRead = bytes.length;
+    }
+
+    Persister load() throws IOException {
+        PersisterMetrics metrics = Metrics.installed();
+        long start = Metrics.start(metrics);
+        Persister root = readDocument();
+        if (metrics != PersisterMetrics.NOOP) {
+            metrics.phaseCompleted(PersisterMetrics.Phase.PARSE, System.nanoTime() - start);
+            metrics.bytesRead(bytesRead);
+            Metrics.loaded(metrics, root);
+        }
+        return root;
+    }
+
+    private Persister readDocument() throws IOException {
+        expect('{');
+        Persister root = new Persister();
+        Deque<Persister> persisters = new ArrayDeque<>();
+        persisters.push(root);
+        Persister p = root;
+        // Whether no member of the current object has been read yet.
+        boolean first = true;
+        while (true) {
+            int b = readNonSpace();
+            if (b == '}') {
+                persisters.pop();
+                if (persisters.isEmpty()) {
+                    break;
+                }
+                // Back in the array of children of the parent.
+                p = persisters.peek();
+                b = readNonSpace();
+                if (b == ',') {
+                    expect('{');
+                    p = readChildName(p);
+                    persisters.push(p);
+                } else if (b != ']') {
+                    throw syntaxError("',' or ']'", b);
+                }
+                first = false;
+                continue;
+            }
+            if (!first) {
+                if (b != ',') {
+                    throw syntaxError("',' or '}'", b);
+                }
+                b = readNonSpace();
+            }
+            if (b != '"') {
+                throw syntaxError("'\"'", b);
+            }
+            String member = readKey();
+            expect(':');
+            first = false;
+            if (member.equals(CHILDREN)) {
+                expect('[');
+                b = readNonSpace();
+                if (b == '{') {
+                    p = readChildName(p);
+                    persisters.push(p);
+                } else if (b != ']') {
+                    throw syntaxError("'{' or ']'", b);
+                }
+            } else {
+                readGroup(p, groupType(member));
+            }
+        }
+        int b = readNonSpaceOrEnd();
+        if (b >= 0) {
+            throw syntaxError("the end of the document", b);
+        }
+        return root;
+    }
+
+    /**
+     * Reads the name of a child, which must be the first member of its object, and adds
+     * the child to the given Persister.
+     */
+    private Persister readChildName(Persister parent) throws IOException {
+        expect('"');
+        String member = readKey();
+        if (!member.equals(NAME)) {
+            throw new IOException("Invalid JSON: expected the name of a child, but found \"" + member + "\"");
+        }
+        expect(':');
+        expect('"');
+        return parent.newChild(readKey());
+    }
+
+    private int groupType(String member) throws IOException {
+        for (int type = 0; type < GROUPS.length; ++type) {
+            if (GROUPS[type].equals(member)) {
+                return type;
+            }
+        }
+        throw new IOException("Invalid JSON: unexpected member \"" + member + "\"");
+    }
+
+    private void readGroup(Persister p, int type) throws IOException {
+        expect('{');
+        int b = readNonSpace();
+        if (b == '}') {
+            return;
+        }
+        while (true) {
+            if (b != '"') {
+                throw syntaxError("'\"'", b);
+            }
+            String key = readKey();
+            expect(':');
+            switch (type) {
+            case STRINGS:
+                expect('"');
+                p.putString(key, readString());
+                break;
+            case INTS:
+                p.putInt(key, readInt(readNonSpace()));
+                break;
+            case LONGS:
+                p.putLong(key, readLong(readNonSpace()));
+                break;
+            case DOUBLES:
+                p.putDouble(key, readDouble(readNonSpace()));
+                break;
+            case INT_ARRAYS:
+                p.adoptIntArray(key, readIntArray());
+                break;
+            case LONG_ARRAYS:
+                p.adoptLongArray(key, readLongArray());
+                break;
+            case DOUBLE_ARRAYS:
+                p.adoptDoubleArray(key, readDoubleArray());
+                break;
+            default:
+                throw new AssertionError(type);
+            }
+            b = readNonSpace();
+            if (b == '}') {
+                return;
+            }
+            if (b != ',') {
+                throw syntaxError("',' or '}'", b);
+            }
+            b = readNonSpace();
+        }
+    }
+
+    private int[] readIntArray() throws IOException {
+        expect('[');
+        int count = 0;
+        int b = readNonSpace();
+        while (b != ']') {
+            if (count == intScratch.length) {
+                intScratch = Arrays.copyOf(intScratch, 2 * count);
+            }
+            intScratch[count++] = readInt(b);
+            b = nextElement();
+        }
+        return Arrays.copyOf(intScratch, count);
+    }
+
+    private long[] readLongArray() throws IOException {
+        expect('[');
+        int count = 0;
+        int b = readNonSpace();
+        while (b != ']') {
+            if (count == longScratch.length) {
+                longScratch = Arrays.copyOf(longScratch, 2 * count);
+            }
+            longScratch[count++] = readLong(b);
+            b = nextElement();
+        }
+        return Arrays.copyOf(longScratch, count);
+    }
+
+    private double[] readDoubleArray() throws IOException {
+        expect('[');
+        int count = 0;
+        int b = readNonSpace();
+        while (b != ']') {
+            if (count == doubleScratch.length) {
+                doubleScratch = Arrays.copyOf(doubleScratch, 2 * count);
+            }
+            doubleScratch[count++] = readDouble(b);
+            b = nextElement();
+        }
+        return Arrays.copyOf(doubleScratch, count);
+    }
+
+    /**
+     * Reads the separator after an array element, and returns the first byte of the next
+     * element, or ']' at the end of the array.
+     */
+    private int nextElement() throws IOException {
+        int b = readNonSpace();
+        if (b == ',') {
+            b = readNonSpace();
+            if (b == ']') {
+                throw syntaxError("an array element", b);
+            }
+            return b;
+        }
+        if (b != ']') {
+            throw syntaxError("',' or ']'", b);
+        }
+        return b;
+    }
+
+    private int readInt(int first) throws IOException {
+        long value = readLong(first);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new IOException("Invalid JSON: int out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Reads an integer, accumulating it negatively so that Long.MIN_VALUE can be read.
+     */
+    private long readLong(int first) throws IOException {
+        readNumber(first);
+        byte[] s = scratch;
+        int n = 0;
+        boolean negative = s[0] == '-';
+        if (negative) {
+            ++n;
+        }
+        if (n == scratchLength) {
+            throw invalidNumber();
+        }
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multiplyMin = limit / 10;
+        long result = 0;
+        for (; n < scratchLength; ++n) {
+            int digit = s[n] - '0';
+            if (digit < 0 || digit > 9 || result < multiplyMin) {
+                throw invalidNumber();
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw invalidNumber();
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    /**
+     * Reads a double. Numbers with at most 15 significant digits and a small decimal exponent,
+     * which is most of them, take Clinger's fast path: the digits and the power of ten are both
+     * exactly representable as doubles, so a single multiplication or division gives the
+     * correctly rounded result. Other numbers are parsed by {@link Double#parseDouble(String)}.
+     */
+    private double readDouble(int first) throws IOException {
+        if (first == '"') {
+            String s = readString();
+            switch (s) {
+            case "NaN":
+                return Double.NaN;
+            case "Infinity":
+                return Double.POSITIVE_INFINITY;
+            case "-Infinity":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                throw new IOException("Invalid JSON: invalid double \"" + s + "\"");
+            }
+        }
+        readNumber(first);
+        byte[] s = scratch;
+        int n = 0;
+        boolean negative = s[0] == '-';
+        if (negative) {
+            ++n;
+        }
+        long mantissa = 0;
+        int significantDigits = 0;
+        int digits = 0;
+        int exponent = 0;
+        for (; n < scratchLength && s[n] >= '0' && s[n] <= '9'; ++n, ++digits) {
+            if (mantissa != 0 || s[n] != '0') {
+                mantissa = 10 * mantissa + (s[n] - '0');
+                ++significantDigits;
+            }
+        }
+        if (digits == 0) {
+            throw invalidNumber();
+        }
+        if (n < scratchLength && s[n] == '.') {
+            ++n;
+            int fractionStart = n;
+            for (; n < scratchLength && s[n] >= '0' && s[n] <= '9'; ++n) {
+                if (mantissa != 0 || s[n] != '0') {
+                    mantissa = 10 * mantissa + (s[n] - '0');
+                    ++significantDigits;
+                }
+                --exponent;
+                if (significantDigits > 18) {
+                    break;
+                }
+            }
+            if (n == fractionStart) {
+                throw invalidNumber();
+            }
+        }
+        if (n < scratchLength && (s[n] == 'e' || s[n] == 'E')) {
+            ++n;
+            boolean negativeExponent = n < scratchLength && s[n] == '-';
+            if (n < scratchLength && (s[n] == '-' || s[n] == '+')) {
+                ++n;
+            }
+            int exponentStart = n;
+            int e = 0;
+            for (; n < scratchLength && s[n] >= '0' && s[n] <= '9'; ++n) {
+                e = Math.min(10 * e + (s[n] - '0'), 100000);
+            }
+            if (n == exponentStart) {
+                throw invalidNumber();
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (n == scratchLength && significantDigits <= 18 && mantissa <= MAX_EXACT_INTEGER
+                && exponent >= -22 && exponent <= 22) {
+            double value = mantissa;
+            value = (exponent < 0)
+                    ? value / POWERS_OF_TEN[-exponent]
+                    : value * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+        try {
+            return Double.parseDouble(new String(scratch, 0, scratchLength, StandardCharsets.ISO_8859_1));
+        } catch (NumberFormatException e) {
+            throw invalidNumber();
+        }
+    }
+
+    /**
+     * Reads the bytes of a number, starting with the given byte, into the scratch array.
+     */
+    private void readNumber(int first) throws IOException {
+        if (first != '-' && (first < '0' || first > '9')) {
+            throw syntaxError("a number", first);
+        }
+        scratch[0] = (byte) first;
+        scratchLength = 1;
+        while (true) {
+            if (position == limit && !fill()) {
+                return;
+            }
+            byte b = buffer[position];
+            if ((b >= '0' && b <= '9') || b == '.' || b == 'e' || b == 'E' || b == '-' || b == '+') {
+                appendScratch(b);
+                ++position;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private IOException invalidNumber() {
+        return new IOException("Invalid JSON: invalid number "
+                + new String(scratch, 0, scratchLength, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Reads a string whose opening quote has been read, reusing the String of a recently
+     * read string with the same bytes.
+     */
+    private String readKey() throws IOException {
+        int start = position;
+        int hash = 0;
+        for (int n = start; n < limit; ++n) {
+            byte b = buffer[n];
+            if (b == '"') {
+                int length = n - start;
+                int slot = hash & (KEY_CACHE_SIZE - 1);
+                byte[] cached = cachedKeyBytes[slot];
+                position = n + 1;
+                if (cached != null && equal(cached, buffer, start, length)) {
+                    return cachedKeys[slot];
+                }
+                String key = new String(buffer, start, length, StandardCharsets.UTF_8);
+                cachedKeyBytes[slot] = Arrays.copyOfRange(buffer, start, n);
+                cachedKeys[slot] = key;
+                return key;
+            }
+            if (b == '\\' || (b >= 0 && b < 0x20)) {
+                break;
+            }
+            hash = 31 * hash + b;
+        }
+        return readString();
+    }
+
+    private static boolean equal(byte[] a, byte[] b, int offset, int length) {
+        if (a.length != length) {
+            return false;
+        }
+        for (int n = 0; n < length; ++n) {
+            if (a[n] != b[offset + n]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a string whose opening quote has been read.
+     */
+    private String readString() throws IOException {
+        int start = position;
+        for (int n = start; n < limit; ++n) {
+            byte b = buffer[n];
+            if (b == '"') {
+                position = n + 1;
+                return new String(buffer, start, n - start, StandardCharsets.UTF_8);
+            }
+            if (b == '\\' || (b >= 0 && b < 0x20)) {
+                break;
+            }
+        }
+        // The string has escapes, or continues beyond the buffer. Its UTF-8 bytes, with the
+        // escapes decoded, are collected in the scratch array.
+        scratchLength = 0;
+        int highSurrogate = -1;
+        while (true) {
+            int b = readByte();
+            if (b == '\\') {
+                b = readByte();
+                int c;
+                switch (b) {
+                case '"':
+                case '\\':
+                case '/':
+                    c = b;
+                    break;
+                case 'b':
+                    c = '\b';
+                    break;
+                case 'f':
+                    c = '\f';
+                    break;
+                case 'n':
+                    c = '\n';
+                    break;
+                case 'r':
+                    c = '\r';
+                    break;
+                case 't':
+                    c = '\t';
+                    break;
+                case 'u':
+                    c = readHex();
+                    break;
+                default:
+                    throw syntaxError("an escape sequence", b);
+                }
+                if (highSurrogate >= 0 && Character.isLowSurrogate((char) c)) {
+                    appendUtf8(Character.toCodePoint((char) highSurrogate, (char) c));
+                    highSurrogate = -1;
+                    continue;
+                }
+                if (highSurrogate >= 0) {
+                    // Unpaired surrogates are decoded as '?', which is how they are written.
+                    appendScratch((byte) '?');
+                    highSurrogate = -1;
+                }
+                if (Character.isHighSurrogate((char) c)) {
+                    highSurrogate = c;
+                } else if (Character.isSurrogate((char) c)) {
+                    appendScratch((byte) '?');
+                } else {
+                    appendUtf8(c);
+                }
+                continue;
+            }
+            if (highSurrogate >= 0) {
+                appendScratch((byte) '?');
+                highSurrogate = -1;
+            }
+            if (b == '"') {
+                return new String(scratch, 0, scratchLength, StandardCharsets.UTF_8);
+            }
+            if (b < 0x20) {
+                throw syntaxError("a string character", b);
+            }
+            appendScratch((byte) b);
+        }
+    }
+
+    private int readHex() throws IOException {
+        int c = 0;
+        for (int n = 0; n < 4; ++n) {
+            int b = readByte();
+            int digit = Character.digit(b, 16);
+            if (digit < 0) {
+                throw syntaxError("a hex digit", b);
+            }
+            c = (c << 4) | digit;
+        }
+        return c;
+    }
+
+    private void appendUtf8(int cp) {
+        if (cp < 0x80) {
+            appendScratch((byte) cp);
+        } else if (cp < 0x800) {
+            appendScratch((byte) (0xC0 | (cp >> 6)));
+            appendScratch((byte) (0x80 | (cp & 0x3F)));
+        } else if (cp < 0x10000) {
+            appendScratch((byte) (0xE0 | (cp >> 12)));
+            appendScratch((byte) (0x80 | ((cp >> 6) & 0x3F)));
+            appendScratch((byte) (0x80 | (cp & 0x3F)));
+        } else {
+            appendScratch((byte) (0xF0 | (cp >> 18)));
+            appendScratch((byte) (0x80 | ((cp >> 12) & 0x3F)));
+            appendScratch((byte) (0x80 | ((cp >> 6) & 0x3F)));
+            appendScratch((byte) (0x80 | (cp & 0x3F)));
+        }
+    }
+
+    private void appendScratch(byte b) {
+        if (scratchLength == scratch.length) {
+            scratch = Arrays.copyOf(scratch, 2 * scratchLength);
+        }
+        scratch[scratchLength++] = b;
+    }
+
+    private void expect(char expected) throws IOException {
+        int b = readNonSpace();
+        if (b != expected) {
+            throw syntaxError("'" + expected + "'", b);
+        }
+    }
+
+    private int readNonSpace() throws IOException {
+        int b = readNonSpaceOrEnd();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    /**
+     * Returns the next byte that is not whitespace, or -1 at the end of the document.
+     */
+    private int readNonSpaceOrEnd() throws IOException {
+        while (true) {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            int b = buffer[position++] & 0xFF;
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return b;
+            }
+        }
+    }
+
+    private int readByte() throws IOException {
+        if (position == limit && !fill()) {
+            throw new EOFException();
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private IOException syntaxError(String expected, int found) {
+        long offset = bytesRead - (limit - position) - 1;
+        return new IOException("Invalid JSON: expected " + expected + " but found '" + (char) found
+                + "' at byte " + offset);
+    }
+
+    private boolean fill() throws IOException {
+        if (in == null) {
+            return false;
+        }
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = n;
+        bytesRead += n;
+        return true;
+    }
+}
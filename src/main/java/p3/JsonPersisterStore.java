@@ -0,0 +1,609 @@
+package p3;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.Objects.requireNonNull;
+import static p3.XmlPersisterStore.DOUBLE_ARRAY_VALS;
+import static p3.XmlPersisterStore.DOUBLE_VALS;
+import static p3.XmlPersisterStore.INT_ARRAY_VALS;
+import static p3.XmlPersisterStore.INT_VALS;
+import static p3.XmlPersisterStore.LONG_ARRAY_VALS;
+import static p3.XmlPersisterStore.LONG_VALS;
+import static p3.XmlPersisterStore.STRING_VALS;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A PersisterStore that writes a JSON representation of the Persister directly to an output
+ * stream, as UTF-8 encoded bytes, as the Persister tree is walked. The output can be read back
+ * with {@link #load(InputStream)}, which parses the bytes directly into a Persister.
+ * <p>
+ * Every Persister is a JSON object, with its values in one object per type, and its children,
+ * in order, in an array. Children have their name as the first member:
+ * <pre>
+ * {"children":[{"name":"item","strings":{"label":"first"},"ints":{"id":1}},
+ *              {"name":"item","doubleArrays":{"weights":[0.5,1.0]}}],
+ *  "strings":{"kind":"wide"},"longs":{"timestamp":1500000000000}}
+ * </pre>
+ * The members for the value types are {@code strings}, {@code ints}, {@code longs},
+ * {@code doubles}, {@code intArrays}, {@code longArrays} and {@code doubleArrays}. Members
+ * without values are left out. Doubles are written with as many digits as needed to be read back
+ * exactly, and NaN and the infinities, which JSON numbers cannot represent, are written as the
+ * strings {@code "NaN"}, {@code "Infinity"} and {@code "-Infinity"}.
+ * <p>
+ * Like {@link BinaryPersisterStore}, only the path from the root to the node currently being
+ * written is kept in memory, which means that a child store can only be written to until one
+ * of its siblings (or an ancestor) is written to. The values of the nodes on that path are
+ * buffered until the node ends, which is why they follow the children in the output. The
+ * document is completed by calling {@link #finish()} or {@link #close()}.
+ */
+public final class JsonPersisterStore extends PersisterStore<JsonPersisterStore> implements Closeable {
+    static final String NAME = "name";
+    static final String CHILDREN = "children";
+    /**
+     * The names of the value members, indexed by type.
+     */
+    static final String[] GROUPS = { STRING_VALS, INT_VALS, LONG_VALS, DOUBLE_VALS,
+            INT_ARRAY_VALS, LONG_ARRAY_VALS, DOUBLE_ARRAY_VALS };
+    static final int STRINGS = 0;
+    static final int INTS = 1;
+    static final int LONGS = 2;
+    static final int DOUBLES = 3;
+    static final int INT_ARRAYS = 4;
+    static final int LONG_ARRAYS = 5;
+    static final int DOUBLE_ARRAYS = 6;
+
+    private final Output output;
+    private final int depth;
+
+    private JsonPersisterStore(Output output, int depth) {
+        this.output = output;
+        this.depth = depth;
+    }
+
+    /**
+     * Creates a store that writes UTF-8 encoded JSON to the given stream.
+     */
+    public static JsonPersisterStore open(OutputStream out) {
+        requireNonNull(out);
+        Output output = new Output(out);
+        JsonPersisterStore root = new JsonPersisterStore(output, 0);
+        output.main.append('{');
+        output.startNode(root, false);
+        return root;
+    }
+
+    /**
+     * Creates a store that writes to the given file.
+     */
+    public static JsonPersisterStore open(File file) throws IOException {
+        requireNonNull(file);
+        return open(new FileOutputStream(file));
+    }
+
+    /**
+     * Loads a Persister from a stream containing a JSON Persister document, which may
+     * be {@linkplain CompressedOutputStream compressed}.
+     */
+    public static Persister load(InputStream in) throws IOException {
+        requireNonNull(in);
+        return new JsonPersisterLoader(CompressedInputStream.decompressIfCompressed(in)).load();
+    }
+
+    /**
+     * Loads a Persister from a JSON Persister file.
+     */
+    public static Persister load(File file) throws IOException {
+        requireNonNull(file);
+        try (InputStream in = new FileInputStream(file)) {
+            return load(in);
+        }
+    }
+
+    /**
+     * Loads a Persister from an array holding a JSON Persister document, which may
+     * be {@linkplain CompressedOutputStream compressed}.
+     */
+    public static Persister load(byte[] bytes) throws IOException {
+        requireNonNull(bytes);
+        if (CompressedInputStream.isCompressed(bytes)) {
+            return load(new ByteArrayInputStream(bytes));
+        }
+        return new JsonPersisterLoader(bytes).load();
+    }
+
+    @Override
+    void putString(String key, String value) {
+        requireNonNull(value);
+        output.value(this, STRINGS, key).appendQuoted(value);
+    }
+
+    @Override
+    void putInt(String key, int value) {
+        output.value(this, INTS, key).appendLong(value);
+    }
+
+    @Override
+    void putLong(String key, long value) {
+        output.value(this, LONGS, key).appendLong(value);
+    }
+
+    @Override
+    void putDouble(String key, double value) {
+        output.value(this, DOUBLES, key).appendDouble(value);
+    }
+
+    @Override
+    void putIntArray(String key, int[] values) {
+        Bytes bytes = output.value(this, INT_ARRAYS, key);
+        bytes.append('[');
+        for (int n = 0; n < values.length; ++n) {
+            if (n > 0) {
+                bytes.append(',');
+            }
+            bytes.appendLong(values[n]);
+        }
+        bytes.append(']');
+    }
+
+    @Override
+    void putLongArray(String key, long[] values) {
+        Bytes bytes = output.value(this, LONG_ARRAYS, key);
+        bytes.append('[');
+        for (int n = 0; n < values.length; ++n) {
+            if (n > 0) {
+                bytes.append(',');
+            }
+            bytes.appendLong(values[n]);
+        }
+        bytes.append(']');
+    }
+
+    @Override
+    void putDoubleArray(String key, double[] values) {
+        Bytes bytes = output.value(this, DOUBLE_ARRAYS, key);
+        bytes.append('[');
+        for (int n = 0; n < values.length; ++n) {
+            if (n > 0) {
+                bytes.append(',');
+            }
+            bytes.appendDouble(values[n]);
+        }
+        bytes.append(']');
+    }
+
+    @Override
+    JsonPersisterStore newChild(String name) {
+        requireNonNull(name);
+        try {
+            return output.newChild(this, name);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    protected JsonPersisterStore self() {
+        return this;
+    }
+
+    /**
+     * Ends all open nodes and flushes the output. The underlying stream is left open.
+     * No more values can be written after this.
+     */
+    public void finish() throws IOException {
+        output.finish();
+    }
+
+    /**
+     * Finishes the document, if not already done, and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            output.out.close();
+        }
+    }
+
+
+    /**
+     * The state of an open node: whether it has members, and its values so far.
+     */
+    private static final class Node {
+        boolean hasMember;
+        boolean childrenOpen;
+        final Bytes[] groups = new Bytes[GROUPS.length];
+
+        Bytes group(int type) {
+            Bytes group = groups[type];
+            if (group == null) {
+                group = new Bytes(64);
+                groups[type] = group;
+            }
+            return group;
+        }
+    }
+
+
+    /**
+     * The state shared by all stores writing to the same document.
+     */
+    private static final class Output {
+        private static final int FLUSH_THRESHOLD = 8192;
+
+        final OutputStream out;
+        final Bytes main = new Bytes(FLUSH_THRESHOLD + 1024);
+        /**
+         * The stores whose nodes are currently open, indexed by depth.
+         */
+        private final List<JsonPersisterStore> openNodes = new ArrayList<>();
+        /**
+         * The state of the open nodes, indexed by depth. The state of a node that has ended
+         * is reused by the next node at the same depth.
+         */
+        private final List<Node> nodes = new ArrayList<>();
+        private boolean finished;
+        private long bytesWritten;
+        /**
+         * The time the store was opened, if metrics are installed.
+         */
+        private final long start = Metrics.start(Metrics.installed());
+
+        Output(OutputStream out) {
+            this.out = out;
+        }
+
+        void startNode(JsonPersisterStore store, boolean hasMember) {
+            openNodes.add(store);
+            if (nodes.size() < openNodes.size()) {
+                nodes.add(new Node());
+            }
+            Node node = nodes.get(store.depth);
+            node.hasMember = hasMember;
+            node.childrenOpen = false;
+        }
+
+        /**
+         * Makes the node of the given store the innermost open node, ending any deeper nodes.
+         */
+        void enter(JsonPersisterStore store) throws IOException {
+            checkState(!finished, "The document has been finished");
+            checkState(store.depth < openNodes.size() && openNodes.get(store.depth) == store,
+                    "The store is no longer writable, since a sibling or an ancestor has been written to");
+            while (openNodes.size() > store.depth + 1) {
+                endNode();
+            }
+        }
+
+        /**
+         * Returns the buffer of the given type of values of the node of the given store,
+         * with the key of a new value appended to it.
+         */
+        Bytes value(JsonPersisterStore store, int type, String key) {
+            requireNonNull(key);
+            try {
+                enter(store);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Bytes group = nodes.get(store.depth).group(type);
+            if (group.length > 0) {
+                group.append(',');
+            }
+            group.appendQuoted(key);
+            group.append(':');
+            return group;
+        }
+
+        JsonPersisterStore newChild(JsonPersisterStore parent, String name) throws IOException {
+            enter(parent);
+            Node node = nodes.get(parent.depth);
+            if (node.childrenOpen) {
+                main.append(',');
+            } else {
+                if (node.hasMember) {
+                    main.append(',');
+                }
+                main.appendQuoted(CHILDREN);
+                main.append(':');
+                main.append('[');
+                node.childrenOpen = true;
+                node.hasMember = true;
+            }
+            main.append('{');
+            main.appendQuoted(NAME);
+            main.append(':');
+            main.appendQuoted(name);
+            JsonPersisterStore child = new JsonPersisterStore(this, parent.depth + 1);
+            startNode(child, true);
+            flushIfNeeded();
+            return child;
+        }
+
+        private void endNode() throws IOException {
+            int last = openNodes.size() - 1;
+            Node node = nodes.get(last);
+            if (node.childrenOpen) {
+                main.append(']');
+            }
+            for (int type = 0; type < GROUPS.length; ++type) {
+                Bytes group = node.groups[type];
+                if (group != null && group.length > 0) {
+                    if (node.hasMember) {
+                        main.append(',');
+                    }
+                    main.appendQuoted(GROUPS[type]);
+                    main.append(':');
+                    main.append('{');
+                    main.append(group);
+                    main.append('}');
+                    node.hasMember = true;
+                    group.length = 0;
+                }
+            }
+            main.append('}');
+            openNodes.remove(last);
+            flushIfNeeded();
+        }
+
+        void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            while (!openNodes.isEmpty()) {
+                endNode();
+            }
+            flush();
+            out.flush();
+            finished = true;
+            Metrics.written(Metrics.installed(), start, bytesWritten);
+        }
+
+        private void flushIfNeeded() throws IOException {
+            if (main.length >= FLUSH_THRESHOLD) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            out.write(main.data, 0, main.length);
+            bytesWritten += main.length;
+            main.length = 0;
+        }
+    }
+
+
+    /**
+     * A growable byte array, with methods for appending JSON tokens as UTF-8 encoded bytes.
+     */
+    static final class Bytes {
+        private static final byte[] HEX = "0123456789abcdef".getBytes();
+        private static final byte[] LONG_MIN_VALUE = String.valueOf(Long.MIN_VALUE).getBytes();
+        /**
+         * The powers of ten that are exactly representable as doubles.
+         */
+        static final double[] POWERS_OF_TEN = {
+                1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+                1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+        /**
+         * The largest number such that all smaller integers are exactly representable as doubles.
+         */
+        static final double MAX_EXACT_INTEGER = 9007199254740992.0;
+        /**
+         * The maximum number of fraction digits written without falling back to
+         * {@link Double#toString(double)}.
+         */
+        private static final int MAX_FRACTION_DIGITS = 15;
+
+        byte[] data;
+        int length;
+
+        Bytes(int capacity) {
+            this.data = new byte[capacity];
+        }
+
+        private void ensureCapacity(int extra) {
+            if (data.length - length < extra) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+            }
+        }
+
+        void append(char c) {
+            ensureCapacity(1);
+            data[length++] = (byte) c;
+        }
+
+        void append(Bytes bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes.data, 0, data, length, bytes.length);
+            length += bytes.length;
+        }
+
+        private void appendAscii(String s) {
+            ensureCapacity(s.length());
+            for (int n = 0, len = s.length(); n < len; ++n) {
+                data[length++] = (byte) s.charAt(n);
+            }
+        }
+
+        /**
+         * Appends a JSON string. Unpaired surrogates are encoded as '?', just like
+         * String.getBytes does.
+         */
+        void appendQuoted(String s) {
+            // Every char takes at most 6 bytes, as an escape sequence.
+            ensureCapacity(6 * s.length() + 2);
+            byte[] d = data;
+            int pos = length;
+            d[pos++] = '"';
+            for (int n = 0, len = s.length(); n < len; ++n) {
+                char c = s.charAt(n);
+                if (c < 0x80) {
+                    if (c >= 0x20 && c != '"' && c != '\\') {
+                        d[pos++] = (byte) c;
+                    } else {
+                        d[pos++] = '\\';
+                        switch (c) {
+                        case '"':
+                        case '\\':
+                            d[pos++] = (byte) c;
+                            break;
+                        case '\n':
+                            d[pos++] = 'n';
+                            break;
+                        case '\r':
+                            d[pos++] = 'r';
+                            break;
+                        case '\t':
+                            d[pos++] = 't';
+                            break;
+                        default:
+                            d[pos++] = 'u';
+                            d[pos++] = '0';
+                            d[pos++] = '0';
+                            d[pos++] = HEX[c >> 4];
+                            d[pos++] = HEX[c & 0xF];
+                        }
+                    }
+                } else if (c < 0x800) {
+                    d[pos++] = (byte) (0xC0 | (c >> 6));
+                    d[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && n + 1 < len && Character.isLowSurrogate(s.charAt(n + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++n));
+                    d[pos++] = (byte) (0xF0 | (cp >> 18));
+                    d[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    d[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    d[pos++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    d[pos++] = '?';
+                } else {
+                    d[pos++] = (byte) (0xE0 | (c >> 12));
+                    d[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    d[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            d[pos++] = '"';
+            length = pos;
+        }
+
+        /**
+         * Appends the decimal digits of a long, without creating a String.
+         */
+        void appendLong(long value) {
+            if (value == Long.MIN_VALUE) {
+                ensureCapacity(LONG_MIN_VALUE.length);
+                System.arraycopy(LONG_MIN_VALUE, 0, data, length, LONG_MIN_VALUE.length);
+                length += LONG_MIN_VALUE.length;
+                return;
+            }
+            ensureCapacity(20);
+            if (value < 0) {
+                data[length++] = '-';
+                value = -value;
+            }
+            int digits = digits(value);
+            for (int pos = length + digits - 1; pos >= length; --pos) {
+                data[pos] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            length += digits;
+        }
+
+        private static int digits(long value) {
+            int digits = 1;
+            for (long limit = 10; digits < 19 && value >= limit; limit *= 10) {
+                ++digits;
+            }
+            return digits;
+        }
+
+        /**
+         * Appends a double, with enough digits to be parsed back to exactly the same value.
+         * <p>
+         * Most doubles in practice are decimals with a few fraction digits, such as 0.25 or
+         * 12345.6789. Those are found by scaling the value by powers of ten until it becomes
+         * an integer m that is exactly representable, and checking that m / 10^k, which is
+         * correctly rounded since both operands are exact, gives back the value. The decimal
+         * m * 10^-k then parses to the value, and is written without creating a String. Other
+         * doubles are written with {@link Double#toString(double)}.
+         */
+        void appendDouble(double value) {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                append('"');
+                appendAscii(Double.toString(value));
+                append('"');
+                return;
+            }
+            if (value == 0) {
+                appendAscii((Double.doubleToRawLongBits(value) < 0) ? "-0.0" : "0.0");
+                return;
+            }
+            for (int k = 0; k <= MAX_FRACTION_DIGITS; ++k) {
+                double scaled = value * POWERS_OF_TEN[k];
+                if (Math.abs(scaled) >= MAX_EXACT_INTEGER) {
+                    break;
+                }
+                long m = (long) scaled;
+                if (m == scaled && m / POWERS_OF_TEN[k] == value) {
+                    // The scaling may be inexact, and only succeed with a trailing zero.
+                    while (k > 1 && m % 10 == 0) {
+                        m /= 10;
+                        --k;
+                    }
+                    appendDecimal(m, k);
+                    return;
+                }
+            }
+            appendAscii(Double.toString(value));
+        }
+
+        /**
+         * Appends m * 10^-k, with at least one fraction digit.
+         */
+        private void appendDecimal(long m, int k) {
+            ensureCapacity(24 + k);
+            if (m < 0) {
+                data[length++] = '-';
+                m = -m;
+            }
+            int digits = digits(m);
+            if (k == 0) {
+                appendLong(m);
+                data[length++] = '.';
+                data[length++] = '0';
+                return;
+            }
+            int intDigits = digits - k;
+            if (intDigits <= 0) {
+                data[length++] = '0';
+                data[length++] = '.';
+                for (int n = intDigits; n < 0; ++n) {
+                    data[length++] = '0';
+                }
+                appendLong(m);
+                return;
+            }
+            int pos = length + digits;
+            for (int n = 0; n < digits; ++n) {
+                if (n == k) {
+                    data[pos--] = '.';
+                }
+                data[pos--] = (byte) ('0' + m % 10);
+                m /= 10;
+            }
+            length += digits + 1;
+        }
+    }
+}
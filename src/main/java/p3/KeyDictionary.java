@@ -0,0 +1,33 @@
+package p3;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps equal keys and child names to a single canonical String instance. The loaders use one
+ * dictionary per loaded tree, so that all Persisters of the tree share the same key instances,
+ * instead of each holding its own copy of the key strings parsed from the input.
+ * <p>
+ * A KeyDictionary is thread-safe, so it can be shared by the tasks of a parallel loader.
+ */
+final class KeyDictionary {
+    private final ConcurrentHashMap<String, String> keys = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the canonical instance of the given key, which is the given key itself if this
+     * is the first time this dictionary sees it.
+     */
+    String intern(String key) {
+        String canonical = keys.get(key);
+        if (canonical == null) {
+            canonical = keys.putIfAbsent(key, key);
+            if (canonical == null) {
+                canonical = key;
+            }
+        }
+        return canonical;
+    }
+
+    int size() {
+        return keys.size();
+    }
+}
@@ -0,0 +1,60 @@
+package p3;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Holds the installed {@link PersisterMetrics}, and reports the measurements that need
+ * some work to compute.
+ */
+final class Metrics {
+    private static volatile PersisterMetrics installed = PersisterMetrics.NOOP;
+
+    private Metrics() {}
+
+    static PersisterMetrics installed() {
+        return installed;
+    }
+
+    static void install(PersisterMetrics metrics) {
+        installed = requireNonNull(metrics);
+    }
+
+    /**
+     * Returns the current time for measuring a phase, or 0 if nothing is measured.
+     */
+    static long start(PersisterMetrics metrics) {
+        return (metrics == PersisterMetrics.NOOP) ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Reports that a store that writes directly to a stream has finished its document.
+     *
+     * @param start
+     *            the time the store was opened, as returned by {@link #start(PersisterMetrics)}.
+     * @param bytes
+     *            the size of the document, or -1 if it is not known.
+     */
+    static void written(PersisterMetrics metrics, long start, long bytes) {
+        if (metrics == PersisterMetrics.NOOP) {
+            return;
+        }
+        if (start != 0) {
+            metrics.phaseCompleted(PersisterMetrics.Phase.SERIALIZE, System.nanoTime() - start);
+        }
+        if (bytes >= 0) {
+            metrics.bytesWritten(bytes);
+        }
+    }
+
+    static void stored(PersisterMetrics metrics, Persister p) {
+        long[] counts = new long[8];
+        p.count(counts);
+        metrics.stored(counts[0], counts[1], counts[2], counts[3], counts[4], counts[5], counts[6], counts[7]);
+    }
+
+    static void loaded(PersisterMetrics metrics, Persister p) {
+        long[] counts = new long[8];
+        p.count(counts);
+        metrics.loaded(counts[0], counts[1], counts[2], counts[3], counts[4], counts[5], counts[6], counts[7]);
+    }
+}
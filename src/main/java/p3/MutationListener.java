@@ -0,0 +1,30 @@
+package p3;
+
+/**
+ * Is notified of the modifications of a tree of Persisters, after they have been made.
+ *
+ * @see Persister#setMutationListener(MutationListener)
+ */
+interface MutationListener {
+    void putString(Persister p, String key, String value);
+
+    void putInt(Persister p, String key, int value);
+
+    void putLong(Persister p, String key, long value);
+
+    void putDouble(Persister p, String key, double value);
+
+    /**
+     * Called when an array has been put. The array is owned by the Persister, and must not be modified.
+     */
+    void putIntArray(Persister p, String key, int[] values);
+
+    void putLongArray(Persister p, String key, long[] values);
+
+    void putDoubleArray(Persister p, String key, double[] values);
+
+    /**
+     * Called when a child has been added to the given parent.
+     */
+    void newChild(Persister parent, String name);
+}
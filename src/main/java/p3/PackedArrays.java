@@ -0,0 +1,130 @@
+package p3;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Converts int, long and double arrays to and from their packed form, which is the
+ * little endian bytes of the elements (IEEE 754 bits for doubles), one after the other.
+ * In XML the packed bytes are base64 encoded. The conversions are bulk copies, so no
+ * element is parsed or boxed on its own.
+ */
+final class PackedArrays {
+    private PackedArrays() {}
+
+    static byte[] toBytes(int[] values) {
+        ByteBuffer bytes = ByteBuffer.allocate(4 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asIntBuffer().put(values);
+        return bytes.array();
+    }
+
+    static byte[] toBytes(long[] values) {
+        ByteBuffer bytes = ByteBuffer.allocate(8 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asLongBuffer().put(values);
+        return bytes.array();
+    }
+
+    static byte[] toBytes(double[] values) {
+        ByteBuffer bytes = ByteBuffer.allocate(8 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asDoubleBuffer().put(values);
+        return bytes.array();
+    }
+
+    /**
+     * Reads ints from the remaining bytes of the given buffer, which must be a multiple of 4.
+     */
+    static int[] toInts(ByteBuffer bytes) {
+        checkLength(bytes, 4);
+        int[] values = new int[bytes.remaining() / 4];
+        bytes.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(values);
+        return values;
+    }
+
+    /**
+     * Reads longs from the remaining bytes of the given buffer, which must be a multiple of 8.
+     */
+    static long[] toLongs(ByteBuffer bytes) {
+        checkLength(bytes, 8);
+        long[] values = new long[bytes.remaining() / 8];
+        bytes.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(values);
+        return values;
+    }
+
+    /**
+     * Reads doubles from the remaining bytes of the given buffer, which must be a multiple of 8.
+     */
+    static double[] toDoubles(ByteBuffer bytes) {
+        checkLength(bytes, 8);
+        double[] values = new double[bytes.remaining() / 8];
+        bytes.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(values);
+        return values;
+    }
+
+    private static void checkLength(ByteBuffer bytes, int elementSize) {
+        if (bytes.remaining() % elementSize != 0) {
+            throw new IllegalArgumentException("Invalid packed array: " + bytes.remaining()
+                    + " bytes is not a multiple of " + elementSize);
+        }
+    }
+
+    static String encode(int[] values) {
+        return Base64.getEncoder().encodeToString(toBytes(values));
+    }
+
+    static String encode(long[] values) {
+        return Base64.getEncoder().encodeToString(toBytes(values));
+    }
+
+    static String encode(double[] values) {
+        return Base64.getEncoder().encodeToString(toBytes(values));
+    }
+
+    static int[] decodeInts(String base64) {
+        return toInts(ByteBuffer.wrap(Base64.getDecoder().decode(base64.trim())));
+    }
+
+    static long[] decodeLongs(String base64) {
+        return toLongs(ByteBuffer.wrap(Base64.getDecoder().decode(base64.trim())));
+    }
+
+    static double[] decodeDoubles(String base64) {
+        return toDoubles(ByteBuffer.wrap(Base64.getDecoder().decode(base64.trim())));
+    }
+
+    /**
+     * Checks if two maps of arrays have the same keys, mapped to arrays with the same contents.
+     */
+    static boolean equal(Map<String, ?> a, Map<String, ?> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (Map.Entry<String, ?> e : a.entrySet()) {
+            Object other = b.get(e.getKey());
+            if (other == null || !Objects.deepEquals(e.getValue(), other)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a hash code of a map of arrays that is consistent with {@link #equal(Map, Map)}.
+     */
+    static int hash(Map<String, ?> map) {
+        int h = 0;
+        for (Map.Entry<String, ?> e : map.entrySet()) {
+            Object value = e.getValue();
+            int valueHash = (value instanceof int[])
+                    ? Arrays.hashCode((int[]) value)
+                    : (value instanceof long[])
+                            ? Arrays.hashCode((long[]) value)
+                            : Arrays.hashCode((double[]) value);
+            h += e.getKey().hashCode() ^ valueHash;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,200 @@
+package p3;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static p3.XmlPersisterStore.DOUBLE_ARRAY_VALS;
+import static p3.XmlPersisterStore.DOUBLE_VALS;
+import static p3.XmlPersisterStore.INT_ARRAY_VALS;
+import static p3.XmlPersisterStore.INT_VALS;
+import static p3.XmlPersisterStore.LONG_ARRAY_VALS;
+import static p3.XmlPersisterStore.LONG_VALS;
+import static p3.XmlPersisterStore.NAME_ATTR;
+import static p3.XmlPersisterStore.PERSISTER_ELEMENT;
+import static p3.XmlPersisterStore.STRING_VALS;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.annotation.Nullable;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import com.google.common.base.Strings;
+
+/**
+ * Loads a Persister by parsing the XML into a DOM, and then populating the child
+ * Persisters of every node concurrently in a ForkJoinPool. The children are created
+ * in document order before they are populated, and each task only modifies the
+ * Persister it populates.
+ * <p>
+ * The DOM is parsed with deferred node expansion disabled, and is walked with
+ * {@link Node#getFirstChild()} and {@link Node#getNextSibling()} rather than with
+ * node lists. Reading a fully expanded DOM this way does not modify it, which is
+ * what allows separate threads to read disjoint subtrees of the same document.
+ */
+final class ParallelXmlPersisterLoader {
+    private static final String DEFER_NODE_EXPANSION = "http://apache.org/xml/features/dom/defer-node-expansion";
+    /**
+     * Children are loaded sequentially when the current worker thread already has more than
+     * this number of queued tasks that have not been stolen by other threads.
+     */
+    private static final int SURPLUS_TASKS_THRESHOLD = 2;
+
+    private ParallelXmlPersisterLoader() {}
+
+    static Persister load(InputSource source, ForkJoinPool pool) throws SAXException, IOException {
+        PersisterMetrics metrics = Metrics.installed();
+        long start = Metrics.start(metrics);
+        if (source.getByteStream() != null) {
+            source.setByteStream(CompressedInputStream.decompressIfCompressed(source.getByteStream()));
+        }
+        Document doc = newDocumentBuilder().parse(source);
+        long parsed = Metrics.start(metrics);
+        Element root = doc.getDocumentElement();
+        checkArgument(root.getNodeName().equals(PERSISTER_ELEMENT), "Expected root element name %s but got %s", PERSISTER_ELEMENT, root.getNodeName());
+        Persister p = new Persister();
+        pool.invoke(new LoadTask(root, p, new KeyDictionary()));
+        if (metrics != PersisterMetrics.NOOP) {
+            metrics.phaseCompleted(PersisterMetrics.Phase.PARSE, parsed - start);
+            metrics.phaseCompleted(PersisterMetrics.Phase.MATERIALIZE, System.nanoTime() - parsed);
+            Metrics.loaded(metrics, p);
+        }
+        return p;
+    }
+
+    private static DocumentBuilder newDocumentBuilder() {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            try {
+                factory.setFeature(DEFER_NODE_EXPANSION, false);
+            } catch (ParserConfigurationException e) {
+                // Not a Xerces based implementation, which means no deferred node expansion.
+            }
+            return factory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    private static final class LoadTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Element element;
+        private final Persister p;
+        private final KeyDictionary keys;
+
+        LoadTask(Element element, Persister p, KeyDictionary keys) {
+            this.element = element;
+            this.p = p;
+            this.keys = keys;
+        }
+
+        @Override
+        protected void compute() {
+            List<LoadTask> children = new ArrayList<>();
+            for (Element e = firstChildElement(element); e != null; e = nextSiblingElement(e)) {
+                switch (e.getNodeName()) {
+                case STRING_VALS:
+                    for (Element v = firstChildElement(e); v != null; v = nextSiblingElement(v)) {
+                        p.putString(keys.intern(v.getNodeName()), v.getTextContent().trim());
+                    }
+                    break;
+                case INT_VALS: {
+                    NamedNodeMap attrs = e.getAttributes();
+                    for (int n = 0; n < attrs.getLength(); ++n) {
+                        Attr attr = (Attr) attrs.item(n);
+                        p.putInt(keys.intern(attr.getName()), Integer.parseInt(attr.getValue()));
+                    }
+                    break;
+                }
+                case LONG_VALS: {
+                    NamedNodeMap attrs = e.getAttributes();
+                    for (int n = 0; n < attrs.getLength(); ++n) {
+                        Attr attr = (Attr) attrs.item(n);
+                        p.putLong(keys.intern(attr.getName()), Long.parseLong(attr.getValue()));
+                    }
+                    break;
+                }
+                case DOUBLE_VALS: {
+                    NamedNodeMap attrs = e.getAttributes();
+                    for (int n = 0; n < attrs.getLength(); ++n) {
+                        Attr attr = (Attr) attrs.item(n);
+                        p.putDouble(keys.intern(attr.getName()), Double.parseDouble(attr.getValue()));
+                    }
+                    break;
+                }
+                case INT_ARRAY_VALS: {
+                    NamedNodeMap attrs = e.getAttributes();
+                    for (int n = 0; n < attrs.getLength(); ++n) {
+                        Attr attr = (Attr) attrs.item(n);
+                        p.adoptIntArray(keys.intern(attr.getName()), PackedArrays.decodeInts(attr.getValue()));
+                    }
+                    break;
+                }
+                case LONG_ARRAY_VALS: {
+                    NamedNodeMap attrs = e.getAttributes();
+                    for (int n = 0; n < attrs.getLength(); ++n) {
+                        Attr attr = (Attr) attrs.item(n);
+                        p.adoptLongArray(keys.intern(attr.getName()), PackedArrays.decodeLongs(attr.getValue()));
+                    }
+                    break;
+                }
+                case DOUBLE_ARRAY_VALS: {
+                    NamedNodeMap attrs = e.getAttributes();
+                    for (int n = 0; n < attrs.getLength(); ++n) {
+                        Attr attr = (Attr) attrs.item(n);
+                        p.adoptDoubleArray(keys.intern(attr.getName()), PackedArrays.decodeDoubles(attr.getValue()));
+                    }
+                    break;
+                }
+                case PERSISTER_ELEMENT:
+                    String childName = e.getAttribute(NAME_ATTR);
+                    if (Strings.isNullOrEmpty(childName)) {
+                        throw new IllegalArgumentException("Invalid XML: <" + PERSISTER_ELEMENT + "> element without " + NAME_ATTR + " attribute.");
+                    }
+                    children.add(new LoadTask(e, p.newChild(keys.intern(childName)), keys));
+                    break;
+                default:
+                    throw new RuntimeException("Unexpected element encountered: " + e.getNodeName());
+                }
+            }
+            if (children.size() > 1 && getSurplusQueuedTaskCount() <= SURPLUS_TASKS_THRESHOLD) {
+                invokeAll(children);
+            } else {
+                for (LoadTask t : children) {
+                    t.compute();
+                }
+            }
+        }
+
+        @Nullable
+        private static Element firstChildElement(Element parent) {
+            Node n = parent.getFirstChild();
+            while (n != null && n.getNodeType() != Node.ELEMENT_NODE) {
+                n = n.getNextSibling();
+            }
+            return (Element) n;
+        }
+
+        @Nullable
+        private static Element nextSiblingElement(Element e) {
+            Node n = e.getNextSibling();
+            while (n != null && n.getNodeType() != Node.ELEMENT_NODE) {
+                n = n.getNextSibling();
+            }
+            return (Element) n;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package p3;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field that is stored and loaded by a {@link PersisterCodec}.
+ * <p>
+ * Fields of type {@code int}, {@code long}, {@code double} and {@code String} are stored as
+ * values. Fields of any other type are stored as a child, with the field's value encoded by
+ * the codec of the field's declared type. Fields of type {@code List<E>} are stored as a
+ * number of children with the same name, one for each element.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Persisted {
+    /**
+     * The key of the value, or the name of the child. Defaults to the name of the field.
+     */
+    String value() default "";
+}
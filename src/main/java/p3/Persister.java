@@ -3,6 +3,9 @@ package p3;
 import static com.google.common.base.Preconditions.checkArgument;
 import static java.util.Objects.requireNonNull;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -11,11 +14,33 @@ import java.util.Optional;
 import java.util.OptionalDouble;
 import java.util.OptionalInt;
 import java.util.OptionalLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+import javax.annotation.Nullable;
 
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ListMultimap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
+/**
+ * A tree of string, int, long and double values, and of int, long and double arrays.
+ * <p>
+ * A Persister is a handle to a node of the tree. The contents of the node, i.e. its values
+ * and its children, are kept in a separate state object. This allows for {@link #snapshot()
+ * snapshots} that are taken in constant time: the snapshot shares all state with the live tree,
+ * and state is copied only when it is modified after the snapshot was taken. Modifying a node
+ * copies the state of the node and of its ancestors, i.e. the path from the node up to the root,
+ * while all other state remains shared. Within the state, each value map, the order of the
+ * children, and each group of children with the same name are copied separately, the first time
+ * they are modified, so modifying a child copies only the group of that child in its parent.
+ * <p>
+ * Arrays are copied when they are put and when they are returned, so a Persister never
+ * shares an array with its caller. The elements of an array are kept together, and the
+ * stores write them in packed form rather than as separate values.
+ */
 public final class Persister {
     // TODO: Boolean support. JDK does not provide an OptionalBoolean. A couple of options:
     //         1. Use Optional<Boolean>
@@ -27,131 +52,909 @@ public final class Persister {
     // TODO: Associate a name with each persister? Coupled with a method getAllChildren()
     //       this can be useful in cases where we otherwise would have to store the name
     //       (or something equivalent) explicitly.
-    private final Map<String, String> stringVals = new HashMap<>();
-    private final Map<String, Integer> intVals = new HashMap<>();
-    private final Map<String, Long> longVals = new HashMap<>();
-    private final Map<String, Double> doubleVals = new HashMap<>();
-    private final ListMultimap<String, Persister> children = ArrayListMultimap.create();
+    @Nullable
+    private final String name;
+    @Nullable
+    private final Persister parent;
+    private final Tree tree;
+    private State state;
+    /**
+     * The Persisters of the children, at the same positions as the children in the state.
+     * The Persister of a child is created the first time it is asked for, and is then reused,
+     * so that there is never more than one Persister for the same node.
+     */
+    @Nullable
+    private ArrayList<Persister> childPersisters;
+    
+    public Persister() {
+        this(null, new Tree(), null);
+    }
+    
+    private Persister(@Nullable Persister parent, Tree tree, @Nullable State state) {
+        this.parent = parent;
+        this.tree = tree;
+        this.state = (state == null)
+                ? new State(null, 0, 0, tree.token)
+                : state;
+        this.name = (parent == null)
+                ? null
+                : this.state.name;
+    }
     
     public Persister putString(String key, String value) {
-        stringVals.put(requireNonNull(key), requireNonNull(value));
+        requireNonNull(key);
+        requireNonNull(value);
+        writableState().strings().put(key, value);
+        valuesChanged();
+        MutationListener listener = tree.listener;
+        if (listener != null) {
+            listener.putString(this, key, value);
+        }
         return this;
     }
     
     public Optional<String> checkString(String key) {
         requireNonNull(key);
-        return Optional.ofNullable(stringVals.get(key));
+        return Optional.ofNullable(state.stringVals.getOrDefault(key, null));
     }
-   
+    
     public String getString(String key) {
-        return checkString(key).orElseThrow(() -> new IllegalArgumentException("No such string: " + key));
+        requireNonNull(key);
+        String val = state.stringVals.getOrDefault(key, null);
+        if (val == null) {
+            throw new IllegalArgumentException("No such string: " + key);
+        }
+        return val;
     }
     
     public String getString(String key, String defVal) {
-        return checkString(key).orElse(defVal);
+        requireNonNull(key);
+        return state.stringVals.getOrDefault(key, defVal);
     }
     
     public Persister putInt(String key, int value) {
-        intVals.put(requireNonNull(key), value);
+        requireNonNull(key);
+        writableState().ints().put(key, value);
+        valuesChanged();
+        MutationListener listener = tree.listener;
+        if (listener != null) {
+            listener.putInt(this, key, value);
+        }
         return this;
     }
     
     public OptionalInt checkInt(String key) {
         requireNonNull(key);
-        Integer val = intVals.get(key);
-        return (val == null)
+        StringIntMap intVals = state.intVals;
+        int slot = intVals.indexOf(key);
+        return (slot < 0)
                 ? OptionalInt.empty()
-                : OptionalInt.of(val.intValue());
+                : OptionalInt.of(intVals.valueAt(slot));
     }
     
     public int getInt(String key) {
-        return checkInt(key).orElseThrow(() -> new IllegalArgumentException("No such int: " + key));
+        requireNonNull(key);
+        StringIntMap intVals = state.intVals;
+        int slot = intVals.indexOf(key);
+        if (slot < 0) {
+            throw new IllegalArgumentException("No such int: " + key);
+        }
+        return intVals.valueAt(slot);
     }
     
+    /**
+     * Returns the int value mapped to the given key, or the given default value if there
+     * is no such value. Unlike {@code checkInt(key).orElse(defVal)} this does not allocate.
+     */
     public int getInt(String key, int defVal) {
-        return checkInt(key).orElse(defVal);
+        requireNonNull(key);
+        return state.intVals.getOrDefault(key, defVal);
     }
     
     public Persister putLong(String key, long value) {
-        longVals.put(requireNonNull(key), value);
+        requireNonNull(key);
+        writableState().longs().put(key, value);
+        valuesChanged();
+        MutationListener listener = tree.listener;
+        if (listener != null) {
+            listener.putLong(this, key, value);
+        }
         return this;
     }
     
     public OptionalLong checkLong(String key) {
         requireNonNull(key);
-        Long val = longVals.get(key);
-        return (val == null)
+        StringLongMap longVals = state.longVals;
+        int slot = longVals.indexOf(key);
+        return (slot < 0)
                 ? OptionalLong.empty()
-                : OptionalLong.of(val.longValue());
+                : OptionalLong.of(longVals.valueAt(slot));
     }
     
     public long getLong(String key) {
-        return checkLong(key).orElseThrow(() -> new IllegalArgumentException("No such long: " + key));
+        requireNonNull(key);
+        StringLongMap longVals = state.longVals;
+        int slot = longVals.indexOf(key);
+        if (slot < 0) {
+            throw new IllegalArgumentException("No such long: " + key);
+        }
+        return longVals.valueAt(slot);
     }
     
+    /**
+     * Returns the long value mapped to the given key, or the given default value if there
+     * is no such value. Unlike {@code checkLong(key).orElse(defVal)} this does not allocate.
+     */
     public long getLong(String key, long defVal) {
-        return checkLong(key).orElse(defVal);
+        requireNonNull(key);
+        return state.longVals.getOrDefault(key, defVal);
     }
     
     public Persister putDouble(String key, double value) {
-        doubleVals.put(requireNonNull(key), value);
+        requireNonNull(key);
+        writableState().doubles().put(key, value);
+        valuesChanged();
+        MutationListener listener = tree.listener;
+        if (listener != null) {
+            listener.putDouble(this, key, value);
+        }
         return this;
     }
     
     public OptionalDouble checkDouble(String key) {
         requireNonNull(key);
-        Double val = doubleVals.get(key);
-        return (val == null)
+        StringDoubleMap doubleVals = state.doubleVals;
+        int slot = doubleVals.indexOf(key);
+        return (slot < 0)
                 ? OptionalDouble.empty()
-                : OptionalDouble.of(val.doubleValue());
+                : OptionalDouble.of(doubleVals.valueAt(slot));
     }
     
     public double getDouble(String key) {
-        return checkDouble(key).orElseThrow(() -> new IllegalArgumentException("No such double: " + key));
+        requireNonNull(key);
+        StringDoubleMap doubleVals = state.doubleVals;
+        int slot = doubleVals.indexOf(key);
+        if (slot < 0) {
+            throw new IllegalArgumentException("No such double: " + key);
+        }
+        return doubleVals.valueAt(slot);
     }
     
+    /**
+     * Returns the double value mapped to the given key, or the given default value if there
+     * is no such value. Unlike {@code checkDouble(key).orElse(defVal)} this does not allocate.
+     */
     public double getDouble(String key, double defVal) {
-        return checkDouble(key).orElse(defVal);
+        requireNonNull(key);
+        return state.doubleVals.getOrDefault(key, defVal);
+    }
+    
+    /**
+     * Puts a copy of the given array.
+     */
+    public Persister putIntArray(String key, int[] values) {
+        requireNonNull(key);
+        return adoptIntArray(key, values.clone());
+    }
+    
+    /**
+     * Puts the given array without copying it. The array must not be modified afterwards.
+     */
+    Persister adoptIntArray(String key, int[] values) {
+        requireNonNull(key);
+        requireNonNull(values);
+        writableState().intArrays().put(key, values);
+        valuesChanged();
+        MutationListener listener = tree.listener;
+        if (listener != null) {
+            listener.putIntArray(this, key, values);
+        }
+        return this;
+    }
+    
+    /**
+     * Returns a copy of the int array mapped to the given key, if any.
+     */
+    public Optional<int[]> checkIntArray(String key) {
+        requireNonNull(key);
+        int[] values = state.intArrayVals.get(key);
+        return (values == null)
+                ? Optional.empty()
+                : Optional.of(values.clone());
+    }
+    
+    /**
+     * Returns a copy of the int array mapped to the given key.
+     */
+    public int[] getIntArray(String key) {
+        requireNonNull(key);
+        int[] values = state.intArrayVals.get(key);
+        if (values == null) {
+            throw new IllegalArgumentException("No such int array: " + key);
+        }
+        return values.clone();
+    }
+    
+    /**
+     * Puts a copy of the given array.
+     */
+    public Persister putLongArray(String key, long[] values) {
+        requireNonNull(key);
+        return adoptLongArray(key, values.clone());
+    }
+    
+    /**
+     * Puts the given array without copying it. The array must not be modified afterwards.
+     */
+    Persister adoptLongArray(String key, long[] values) {
+        requireNonNull(key);
+        requireNonNull(values);
+        writableState().longArrays().put(key, values);
+        valuesChanged();
+        MutationListener listener = tree.listener;
+        if (listener != null) {
+            listener.putLongArray(this, key, values);
+        }
+        return this;
+    }
+    
+    /**
+     * Returns a copy of the long array mapped to the given key, if any.
+     */
+    public Optional<long[]> checkLongArray(String key) {
+        requireNonNull(key);
+        long[] values = state.longArrayVals.get(key);
+        return (values == null)
+                ? Optional.empty()
+                : Optional.of(values.clone());
+    }
+    
+    /**
+     * Returns a copy of the long array mapped to the given key.
+     */
+    public long[] getLongArray(String key) {
+        requireNonNull(key);
+        long[] values = state.longArrayVals.get(key);
+        if (values == null) {
+            throw new IllegalArgumentException("No such long array: " + key);
+        }
+        return values.clone();
+    }
+    
+    /**
+     * Puts a copy of the given array.
+     */
+    public Persister putDoubleArray(String key, double[] values) {
+        requireNonNull(key);
+        return adoptDoubleArray(key, values.clone());
+    }
+    
+    /**
+     * Puts the given array without copying it. The array must not be modified afterwards.
+     */
+    Persister adoptDoubleArray(String key, double[] values) {
+        requireNonNull(key);
+        requireNonNull(values);
+        writableState().doubleArrays().put(key, values);
+        valuesChanged();
+        MutationListener listener = tree.listener;
+        if (listener != null) {
+            listener.putDoubleArray(this, key, values);
+        }
+        return this;
+    }
+    
+    /**
+     * Returns a copy of the double array mapped to the given key, if any.
+     */
+    public Optional<double[]> checkDoubleArray(String key) {
+        requireNonNull(key);
+        double[] values = state.doubleArrayVals.get(key);
+        return (values == null)
+                ? Optional.empty()
+                : Optional.of(values.clone());
+    }
+    
+    /**
+     * Returns a copy of the double array mapped to the given key.
+     */
+    public double[] getDoubleArray(String key) {
+        requireNonNull(key);
+        double[] values = state.doubleArrayVals.get(key);
+        if (values == null) {
+            throw new IllegalArgumentException("No such double array: " + key);
+        }
+        return values.clone();
     }
     
     public Persister newChild(String name) {
         requireNonNull(name);
-        Persister child = new Persister();
-        children.put(name, child);
+        State s = writableState();
+        List<State> group = s.childrenByName.get(name);
+        State childState = new State(name, s.childCount, (group == null) ? 0 : group.size(), tree.token);
+        childState.added = true;
+        childState.dirty = true;
+        s.addChild(childState);
+        Persister child = childAt(childState.index);
+        markDirty();
+        MutationListener listener = tree.listener;
+        if (listener != null) {
+            listener.newChild(this, name);
+        }
+        return child;
+    }
+    
+    /**
+     * Adds a child with the contents of the given root, which is not copied: like a snapshot,
+     * the child shares all state with the root, and state is copied when either is modified.
+     */
+    Persister graftChild(String name, Persister root) {
+        requireNonNull(name);
+        checkArgument(root.parent == null, "Only a root Persister can be added as a child");
+        if (tree.listener != null) {
+            // The listener must see every value of the child.
+            Persister child = newChild(name);
+            root.copyTo(child);
+            return child;
+        }
+        // The state of the root is shared from now on, so it must not be modified in place anymore.
+        root.tree.token = new Object();
+        State s = writableState();
+        List<State> group = s.childrenByName.get(name);
+        State childState = new State(root.state, name, s.childCount, (group == null) ? 0 : group.size(), tree.token);
+        // The child has the same contents as the root, which no longer changes.
+        childState.digest = root.state.digest;
+        childState.added = true;
+        childState.dirty = true;
+        s.addChild(childState);
+        markDirty();
+        return childAt(childState.index);
+    }
+    
+    /**
+     * Returns the Persister of the child at the given position among all children,
+     * creating it if needed.
+     */
+    Persister childAt(int index) {
+        if (childPersisters == null) {
+            childPersisters = new ArrayList<>(state.childCount);
+        }
+        while (childPersisters.size() <= index) {
+            childPersisters.add(null);
+        }
+        Persister child = childPersisters.get(index);
+        if (child == null) {
+            child = new Persister(this, tree, state.child(index));
+            childPersisters.set(index, child);
+        }
         return child;
     }
     
+    /**
+     * Returns the index-th child with the given name, or null if there is no such child.
+     */
+    @Nullable
+    Persister getChild(String name, int index) {
+        List<State> group = state.childrenByName.get(name);
+        return (group == null || index >= group.size())
+                ? null
+                : childAt(group.get(index).index);
+    }
+    
     public ImmutableList<Persister> getChildren(String name) {
         requireNonNull(name);
-        return ImmutableList.copyOf(children.get(name));
+        List<State> group = state.childrenByName.get(name);
+        if (group == null) {
+            return ImmutableList.of();
+        }
+        ImmutableList.Builder<Persister> builder = ImmutableList.builder();
+        for (int n = 0, size = group.size(); n < size; ++n) {
+            builder.add(childAt(group.get(n).index));
+        }
+        return builder.build();
     }
     
     public Persister getChild(String name) {
         requireNonNull(name);
-        List<Persister> list = children.get(name);
-        checkArgument(list.size() == 1, "Expected 1 child with name %s but found %s", name, list.size());
-        return list.get(0);
+        List<State> group = state.childrenByName.get(name);
+        int size = (group == null) ? 0 : group.size();
+        checkArgument(size == 1, "Expected 1 child with name %s but found %s", name, size);
+        return childAt(group.get(0).index);
+    }
+    
+    /**
+     * Performs the given action for each child with the given name, in the order they
+     * were added. Unlike {@link #getChildren(String)} this does not copy the children.
+     */
+    public void forEachChild(String name, Consumer<? super Persister> action) {
+        requireNonNull(name);
+        requireNonNull(action);
+        List<State> group = state.childrenByName.get(name);
+        if (group != null) {
+            for (int n = 0, size = group.size(); n < size; ++n) {
+                action.accept(childAt(group.get(n).index));
+            }
+        }
+    }
+    
+    /**
+     * Performs the given action for each child, together with its name, in the order
+     * the children were added.
+     */
+    public void forEachChild(BiConsumer<? super String, ? super Persister> action) {
+        requireNonNull(action);
+        for (int n = 0, size = state.childCount; n < size; ++n) {
+            Persister child = childAt(n);
+            action.accept(child.name, child);
+        }
+    }
+    
+    /**
+     * Returns a snapshot of this Persister and all its descendants, as a new root Persister.
+     * Later changes to this Persister are not reflected in the snapshot, and changes to the
+     * snapshot are not reflected in this Persister.
+     * <p>
+     * Taking a snapshot takes constant time, since the snapshot initially shares all its
+     * state with the tree it was taken from. The price is paid later, when either tree is
+     * modified: the first modification of a node after a snapshot copies the state of the
+     * node and its ancestors. This makes snapshots suitable for saving a consistent view of
+     * a tree in the background, while the application keeps modifying the tree:
+     * <pre>
+     * Persister snapshot = root.snapshot();
+     * executor.submit(() -> XmlPersisterStore.newInstance().store(snapshot).writeTo(file));
+     * </pre>
+     * Note that the first modifications after a snapshot are more expensive for all
+     * Persisters of the tree this Persister belongs to, not only for this Persister and
+     * its descendants.
+     */
+    public Persister snapshot() {
+        // The state of the tree is now shared with the snapshot, so it must not be modified
+        // in place anymore. A new token makes all existing state read-only for both trees.
+        tree.token = new Object();
+        return new Persister(null, new Tree(), state);
+    }
+    
+    /**
+     * Returns the state of this Persister, after making sure that it can be modified
+     * in place. If the state is shared with a snapshot it is copied, and the copy replaces
+     * the original state in the parent, which in turn may have to be copied.
+     */
+    private State writableState() {
+        State s = state;
+        if (s.owner != tree.token) {
+            // The copy does not carry over the digest: it is about to be modified.
+            s = new State(s, tree.token);
+            if (parent != null) {
+                parent.writableState().replaceChild(s);
+                // The parent may have a digest that depends on the digest of the original.
+                parent.clearDigests();
+            }
+            state = s;
+        }
+        return s;
+    }
+    
+    /**
+     * Returns an immutable snapshot of this Persister and all its descendants.
+     * Later changes to this Persister are not reflected in the snapshot.
+     */
+    public FrozenPersister freeze() {
+        return freeze(state, name);
+    }
+    
+    private static FrozenPersister freeze(State state, @Nullable String name) {
+        StringStringMap stringVals = state.stringVals;
+        String[] stringKeys = sortedKeys(stringVals.size(), stringVals.slots(), stringVals::keyAt);
+        String[] stringValues = new String[stringKeys.length];
+        for (int n = 0; n < stringKeys.length; ++n) {
+            stringValues[n] = stringVals.valueAt(stringVals.indexOf(stringKeys[n]));
+        }
+        StringIntMap intVals = state.intVals;
+        String[] intKeys = sortedKeys(intVals.size(), intVals.slots(), intVals::keyAt);
+        int[] intValues = new int[intKeys.length];
+        for (int n = 0; n < intKeys.length; ++n) {
+            intValues[n] = intVals.valueAt(intVals.indexOf(intKeys[n]));
+        }
+        StringLongMap longVals = state.longVals;
+        String[] longKeys = sortedKeys(longVals.size(), longVals.slots(), longVals::keyAt);
+        long[] longValues = new long[longKeys.length];
+        for (int n = 0; n < longKeys.length; ++n) {
+            longValues[n] = longVals.valueAt(longVals.indexOf(longKeys[n]));
+        }
+        StringDoubleMap doubleVals = state.doubleVals;
+        String[] doubleKeys = sortedKeys(doubleVals.size(), doubleVals.slots(), doubleVals::keyAt);
+        double[] doubleValues = new double[doubleKeys.length];
+        for (int n = 0; n < doubleKeys.length; ++n) {
+            doubleValues[n] = doubleVals.valueAt(doubleVals.indexOf(doubleKeys[n]));
+        }
+        String[] intArrayKeys = sortedKeys(state.intArrayVals);
+        int[][] intArrayValues = new int[intArrayKeys.length][];
+        for (int n = 0; n < intArrayKeys.length; ++n) {
+            intArrayValues[n] = state.intArrayVals.get(intArrayKeys[n]);
+        }
+        String[] longArrayKeys = sortedKeys(state.longArrayVals);
+        long[][] longArrayValues = new long[longArrayKeys.length][];
+        for (int n = 0; n < longArrayKeys.length; ++n) {
+            longArrayValues[n] = state.longArrayVals.get(longArrayKeys[n]);
+        }
+        String[] doubleArrayKeys = sortedKeys(state.doubleArrayVals);
+        double[][] doubleArrayValues = new double[doubleArrayKeys.length][];
+        for (int n = 0; n < doubleArrayKeys.length; ++n) {
+            doubleArrayValues[n] = state.doubleArrayVals.get(doubleArrayKeys[n]);
+        }
+        FrozenPersister[] frozenChildren = new FrozenPersister[state.childCount];
+        for (int n = 0; n < frozenChildren.length; ++n) {
+            State child = state.child(n);
+            frozenChildren[n] = freeze(child, child.name);
+        }
+        return new FrozenPersister(name, stringKeys, stringValues, intKeys, intValues, longKeys, longValues,
+                doubleKeys, doubleValues, intArrayKeys, intArrayValues, longArrayKeys, longArrayValues,
+                doubleArrayKeys, doubleArrayValues, frozenChildren);
+    }
+    
+    private static String[] sortedKeys(int size, int slots, IntFunction<String> keyAt) {
+        String[] keys = new String[size];
+        for (int n = 0, k = 0; n < slots; ++n) {
+            String key = keyAt.apply(n);
+            if (key != null) {
+                keys[k++] = key;
+            }
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+    
+    private static String[] sortedKeys(Map<String, ?> map) {
+        String[] keys = map.keySet().toArray(new String[map.size()]);
+        Arrays.sort(keys);
+        return keys;
+    }
+    
+    /**
+     * Returns a digest of the contents of this Persister and all its descendants. Persisters
+     * that are {@linkplain #equals(Object) equal} have the same digest, regardless of the order
+     * in which their values were put, and different contents give different digests with
+     * overwhelming probability. The digest is stable, i.e. it does not change between runs.
+     * <p>
+     * The digest of a Persister is computed from its values, sorted by type and key, and from
+     * the digests of its children, so the digests of all descendants are computed as well.
+     * They are cached until a Persister is modified, which discards the cached digests of the
+     * Persister and its ancestors only. Computing the digest again after a change therefore
+     * costs time proportional to the size of the changed Persisters, not of the whole tree.
+     *
+     * @see PersisterDiff
+     */
+    public HashCode digest() {
+        return digest(state, true);
+    }
+    
+    /**
+     * Computes the digest of this Persister and all its descendants without using or
+     * updating any cached digests.
+     */
+    HashCode uncachedDigest() {
+        return digest(state, false);
+    }
+    
+    private static HashCode digest(State s, boolean cached) {
+        if (cached) {
+            HashCode digest = s.digest;
+            if (digest != null) {
+                return digest;
+            }
+        }
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        StringStringMap stringVals = s.stringVals;
+        hasher.putInt(stringVals.size());
+        for (String key : sortedKeys(stringVals.size(), stringVals.slots(), stringVals::keyAt)) {
+            putString(hasher, key);
+            putString(hasher, stringVals.valueAt(stringVals.indexOf(key)));
+        }
+        StringIntMap intVals = s.intVals;
+        hasher.putInt(intVals.size());
+        for (String key : sortedKeys(intVals.size(), intVals.slots(), intVals::keyAt)) {
+            putString(hasher, key);
+            hasher.putInt(intVals.valueAt(intVals.indexOf(key)));
+        }
+        StringLongMap longVals = s.longVals;
+        hasher.putInt(longVals.size());
+        for (String key : sortedKeys(longVals.size(), longVals.slots(), longVals::keyAt)) {
+            putString(hasher, key);
+            hasher.putLong(longVals.valueAt(longVals.indexOf(key)));
+        }
+        StringDoubleMap doubleVals = s.doubleVals;
+        hasher.putInt(doubleVals.size());
+        for (String key : sortedKeys(doubleVals.size(), doubleVals.slots(), doubleVals::keyAt)) {
+            putString(hasher, key);
+            hasher.putLong(Double.doubleToLongBits(doubleVals.valueAt(doubleVals.indexOf(key))));
+        }
+        hasher.putInt(s.intArrayVals.size());
+        for (String key : sortedKeys(s.intArrayVals)) {
+            putString(hasher, key);
+            int[] values = s.intArrayVals.get(key);
+            hasher.putInt(values.length);
+            for (int value : values) {
+                hasher.putInt(value);
+            }
+        }
+        hasher.putInt(s.longArrayVals.size());
+        for (String key : sortedKeys(s.longArrayVals)) {
+            putString(hasher, key);
+            long[] values = s.longArrayVals.get(key);
+            hasher.putInt(values.length);
+            for (long value : values) {
+                hasher.putLong(value);
+            }
+        }
+        hasher.putInt(s.doubleArrayVals.size());
+        for (String key : sortedKeys(s.doubleArrayVals)) {
+            putString(hasher, key);
+            double[] values = s.doubleArrayVals.get(key);
+            hasher.putInt(values.length);
+            for (double value : values) {
+                hasher.putLong(Double.doubleToLongBits(value));
+            }
+        }
+        // Like equals, the digest depends on the order of the children with the same name,
+        // but not on the order of children with different names.
+        hasher.putInt(s.childrenByName.size());
+        for (String name : sortedKeys(s.childrenByName)) {
+            putString(hasher, name);
+            List<State> group = s.childrenByName.get(name);
+            hasher.putInt(group.size());
+            for (int n = 0, size = group.size(); n < size; ++n) {
+                hasher.putBytes(digest(group.get(n), cached).asBytes());
+            }
+        }
+        HashCode digest = hasher.hash();
+        if (!cached) {
+            return digest;
+        }
+        // A State that is shared with a snapshot never changes, so its digest may be cached
+        // by any thread. Threads that race to cache it compute the same digest, and HashCode
+        // is immutable, so the digest can be safely read by other threads. The digests of
+        // the States of a tree, which may change, are only cached and cleared by the thread
+        // that modifies the tree.
+        s.digest = digest;
+        return digest;
+    }
+    
+    private static void putString(Hasher hasher, String s) {
+        hasher.putInt(s.length());
+        hasher.putUnencodedChars(s);
+    }
+    
+    /**
+     * Walks this Persister and all its descendants depth first, reporting all values
+     * and children to the given visitor. The values of a Persister are reported before
+     * its children, and the children are visited in the order they were added. Nothing
+     * is allocated during the walk, except for the Persisters of the children of a
+     * {@linkplain #snapshot() snapshot}, the first time they are visited.
+     */
+    public void accept(PersisterVisitor visitor) {
+        requireNonNull(visitor);
+        State s = state;
+        StringStringMap stringVals = s.stringVals;
+        for (int n = 0, slots = stringVals.slots(); n < slots; ++n) {
+            String key = stringVals.keyAt(n);
+            if (key != null) {
+                visitor.visitString(key, stringVals.valueAt(n));
+            }
+        }
+        StringIntMap intVals = s.intVals;
+        for (int n = 0, slots = intVals.slots(); n < slots; ++n) {
+            String key = intVals.keyAt(n);
+            if (key != null) {
+                visitor.visitInt(key, intVals.valueAt(n));
+            }
+        }
+        StringLongMap longVals = s.longVals;
+        for (int n = 0, slots = longVals.slots(); n < slots; ++n) {
+            String key = longVals.keyAt(n);
+            if (key != null) {
+                visitor.visitLong(key, longVals.valueAt(n));
+            }
+        }
+        StringDoubleMap doubleVals = s.doubleVals;
+        for (int n = 0, slots = doubleVals.slots(); n < slots; ++n) {
+            String key = doubleVals.keyAt(n);
+            if (key != null) {
+                visitor.visitDouble(key, doubleVals.valueAt(n));
+            }
+        }
+        s.intArrayVals.forEach((key, values) -> visitor.visitIntArray(key, values.clone()));
+        s.longArrayVals.forEach((key, values) -> visitor.visitLongArray(key, values.clone()));
+        s.doubleArrayVals.forEach((key, values) -> visitor.visitDoubleArray(key, values.clone()));
+        for (int n = 0, size = s.childCount; n < size; ++n) {
+            Persister child = childAt(n);
+            if (visitor.enterChild(child.name, child)) {
+                child.accept(visitor);
+                visitor.exitChild(child.name, child);
+            }
+        }
     }
     
     void storeIn(PersisterStore<?> store) {
-        for (Map.Entry<String, String> e: stringVals.entrySet()) {
-            store.putString(e.getKey(), e.getValue());
+        State s = state;
+        s.stringVals.forEach(store::putString);
+        s.intVals.forEach(store::putInt);
+        s.longVals.forEach(store::putLong);
+        s.doubleVals.forEach(store::putDouble);
+        s.intArrayVals.forEach(store::putIntArray);
+        s.longArrayVals.forEach(store::putLongArray);
+        s.doubleArrayVals.forEach(store::putDoubleArray);
+        if (s.childCount != 0) {
+            store.storeChildren(children());
+        }
+    }
+    
+    private void valuesChanged() {
+        state.valuesDirty = true;
+        markDirty();
+    }
+    
+    private void markDirty() {
+        clearDigests();
+        for (Persister p = this; p != null && !p.state.dirty; p = p.parent) {
+            p.writableState().dirty = true;
         }
-        for (Map.Entry<String, Integer> e : intVals.entrySet()) {
-            store.putInt(e.getKey(), e.getValue());
+    }
+    
+    /**
+     * Discards the digests of this Persister and its ancestors, whose states must be writable.
+     */
+    private void clearDigests() {
+        // A writable State with a digest implies digests for all its descendants, since copies
+        // of a State start without one, so the walk can stop at the first State without one.
+        for (Persister p = this; p != null && p.state.digest != null; p = p.parent) {
+            p.state.digest = null;
+        }
+    }
+    
+    /**
+     * Checks if this Persister, or any of its descendants, has changed since the last
+     * call to {@link #markClean()}. A change is a value being put, or a child being added.
+     * <p>
+     * Note that a Persister that has just been loaded is dirty, since it was built by
+     * putting values and adding children.
+     *
+     * @see PersisterPatch
+     */
+    public boolean isDirty() {
+        return state.dirty;
+    }
+    
+    /**
+     * Marks this Persister and all its descendants as unchanged. This is typically called on
+     * the root after it has been saved, or after a patch of the changes has been saved with
+     * {@link PersisterPatch}.
+     */
+    public void markClean() {
+        if (!state.dirty) {
+            return;
+        }
+        State s = writableState();
+        s.dirty = false;
+        s.valuesDirty = false;
+        s.added = false;
+        for (int n = 0, size = s.childCount; n < size; ++n) {
+            if (s.child(n).dirty) {
+                childAt(n).markClean();
+            }
+        }
+    }
+    
+    boolean hasDirtyValues() {
+        return state.valuesDirty;
+    }
+    
+    boolean isAdded() {
+        return state.added;
+    }
+    
+    /**
+     * Returns an unmodifiable view of all children, in the order they were added.
+     */
+    List<Persister> children() {
+        int size = state.childCount;
+        if (size == 0) {
+            return ImmutableList.of();
         }
-        for (Map.Entry<String, Long> e: longVals.entrySet()) {
-            store.putLong(e.getKey(), e.getValue());
+        for (int n = 0; n < size; ++n) {
+            childAt(n);
         }
-        for (Map.Entry<String, Double> e: doubleVals.entrySet()) {
-            store.putDouble(e.getKey(), e.getValue());
+        return Collections.unmodifiableList(childPersisters);
+    }
+    
+    /**
+     * Copies all values and children of this Persister into the given Persister.
+     */
+    void copyTo(Persister target) {
+        copyTo(state, target);
+    }
+    
+    private static void copyTo(State source, Persister target) {
+        copyValuesTo(source, target);
+        for (int n = 0, size = source.childCount; n < size; ++n) {
+            State child = source.child(n);
+            copyTo(child, target.newChild(child.name));
         }
-        for (Map.Entry<String, Persister> e : children.entries()) {
-            PersisterStore<?> childStore = store.newChild(e.getKey());
-            e.getValue().storeIn(childStore);
+    }
+    
+    /**
+     * Copies all values, but not the children, of this Persister into the given Persister.
+     */
+    void copyValuesTo(Persister target) {
+        copyValuesTo(state, target);
+    }
+    
+    private static void copyValuesTo(State source, Persister target) {
+        source.stringVals.forEach(target::putString);
+        source.intVals.forEach(target::putInt);
+        source.longVals.forEach(target::putLong);
+        source.doubleVals.forEach(target::putDouble);
+        // The arrays of a State are never modified, so they can be shared.
+        source.intArrayVals.forEach(target::adoptIntArray);
+        source.longArrayVals.forEach(target::adoptLongArray);
+        source.doubleArrayVals.forEach(target::adoptDoubleArray);
+    }
+    
+    /**
+     * Adds the number of nodes, the number of string, int, long and double values, and the
+     * number of int, long and double arrays, of this Persister and its descendants to the
+     * given array, in that order.
+     */
+    void count(long[] counts) {
+        count(state, counts);
+    }
+    
+    private static void count(State s, long[] counts) {
+        counts[0] += 1;
+        counts[1] += s.stringVals.size();
+        counts[2] += s.intVals.size();
+        counts[3] += s.longVals.size();
+        counts[4] += s.doubleVals.size();
+        counts[5] += s.intArrayVals.size();
+        counts[6] += s.longArrayVals.size();
+        counts[7] += s.doubleArrayVals.size();
+        for (int n = 0, size = s.childCount; n < size; ++n) {
+            count(s.child(n), counts);
         }
     }
     
+    /**
+     * Returns the name of this Persister, or null if this is a root.
+     */
+    @Nullable
+    String name() {
+        return name;
+    }
+    
+    /**
+     * Returns the parent of this Persister, or null if this is a root.
+     */
+    @Nullable
+    Persister parent() {
+        return parent;
+    }
+    
+    /**
+     * Returns the position of this Persister among all children of its parent.
+     */
+    int index() {
+        return state.index;
+    }
+    
+    /**
+     * Sets the listener that is notified of every value put and every child added
+     * to this Persister and its descendants. This must be a root. The listener does not
+     * carry over to snapshots.
+     */
+    void setMutationListener(@Nullable MutationListener listener) {
+        checkArgument(parent == null, "The listener can only be set on a root Persister");
+        tree.listener = listener;
+    }
+    
     @Override
     public boolean equals(Object obj) {
         if (obj == this) {
@@ -159,17 +962,314 @@ public final class Persister {
         }
         if (obj instanceof Persister) {
             Persister that = (Persister) obj;
-            return this.stringVals.equals(that.stringVals) &&
-                    this.intVals.equals(that.intVals) &&
-                    this.longVals.equals(that.longVals) &&
-                    this.doubleVals.equals(that.doubleVals) &&
-                    this.children.equals(that.children);
+            return this.state.equals(that.state);
         }
         return false;
     }
     
     @Override
     public int hashCode() {
-        return Objects.hash(this.stringVals, this.intVals, this.longVals, this.doubleVals, this.children);
+        return state.hashCode();
+    }
+    
+    
+    /**
+     * Holds the token that identifies the state the Persisters of a tree may modify in place,
+     * and the listener that is notified of the modifications.
+     */
+    private static final class Tree {
+        Object token = new Object();
+        @Nullable
+        MutationListener listener;
+    }
+    
+    
+    /**
+     * The contents of a Persister. After a snapshot has been taken a State may be shared
+     * by several trees, in which case it is never modified again. A State is only modified
+     * in place by the Persisters of the tree whose token is its owner.
+     */
+    private static final class State {
+        private static final int STRINGS = 1;
+        private static final int INTS = 2;
+        private static final int LONGS = 4;
+        private static final int DOUBLES = 8;
+        private static final int CHILD_ORDER = 16;
+        private static final int INT_ARRAYS = 32;
+        private static final int LONG_ARRAYS = 64;
+        private static final int DOUBLE_ARRAYS = 128;
+        private static final int CHILD_GROUPS = 256;
+        /**
+         * The parts that a new State owns. The array maps of a new State are the shared empty
+         * map, since most Persisters have no arrays.
+         */
+        private static final int ALL = STRINGS | INTS | LONGS | DOUBLES | CHILD_ORDER | CHILD_GROUPS;
+        private static final String[] NO_NAMES = new String[0];
+        private static final int[] NO_INDICES = new int[0];
+        
+        @Nullable
+        final String name;
+        /**
+         * The position of this State among all children of its parent.
+         */
+        final int index;
+        /**
+         * The position of this State among the children of its parent with the same name.
+         */
+        final int groupIndex;
+        final Object owner;
+        /**
+         * The parts of this State that are not shared with any other State, as a combination
+         * of the part flags.
+         */
+        private int ownedParts;
+        StringStringMap stringVals;
+        StringIntMap intVals;
+        StringLongMap longVals;
+        StringDoubleMap doubleVals;
+        /**
+         * The arrays, which are never modified once they have been put.
+         */
+        Map<String, int[]> intArrayVals;
+        Map<String, long[]> longArrayVals;
+        Map<String, double[]> doubleArrayVals;
+        /**
+         * The names of all children, in the order they were added, and the positions of
+         * the children in their groups. Unlike the groups, these never change when a child
+         * is replaced, so the first modification of a child after a snapshot copies only the
+         * group of the child.
+         */
+        String[] childNames;
+        int[] childGroupIndices;
+        int childCount;
+        /**
+         * The children, by name, in the order they were added.
+         */
+        HashMap<String, Group> childrenByName;
+        /**
+         * Whether this Persister or any of its descendants has changed since the last call
+         * to {@link Persister#markClean()}.
+         */
+        boolean dirty;
+        /**
+         * Whether a value of this Persister has been put since the last call to
+         * {@link Persister#markClean()}.
+         */
+        boolean valuesDirty;
+        /**
+         * Whether this Persister was added to its parent since the last call to
+         * {@link Persister#markClean()}.
+         */
+        boolean added;
+        /**
+         * The digest of this State, or null if it has not been computed since this State
+         * was last modified.
+         */
+        @Nullable
+        HashCode digest;
+        
+        State(@Nullable String name, int index, int groupIndex, Object owner) {
+            this.name = name;
+            this.index = index;
+            this.groupIndex = groupIndex;
+            this.owner = owner;
+            this.ownedParts = ALL;
+            this.stringVals = new StringStringMap();
+            this.intVals = new StringIntMap();
+            this.longVals = new StringLongMap();
+            this.doubleVals = new StringDoubleMap();
+            this.intArrayVals = Collections.emptyMap();
+            this.longArrayVals = Collections.emptyMap();
+            this.doubleArrayVals = Collections.emptyMap();
+            this.childNames = NO_NAMES;
+            this.childGroupIndices = NO_INDICES;
+            this.childrenByName = new HashMap<>();
+        }
+        
+        /**
+         * Creates a copy of the given State, which initially shares all its parts, but not
+         * its digest, with it.
+         */
+        State(State source, Object owner) {
+            this(source, source.name, source.index, source.groupIndex, owner);
+        }
+        
+        /**
+         * Creates a copy of the given State, at a new position, which initially shares all
+         * its parts, but not its digest, with it.
+         */
+        State(State source, @Nullable String name, int index, int groupIndex, Object owner) {
+            this.name = name;
+            this.index = index;
+            this.groupIndex = groupIndex;
+            this.owner = owner;
+            this.ownedParts = 0;
+            this.stringVals = source.stringVals;
+            this.intVals = source.intVals;
+            this.longVals = source.longVals;
+            this.doubleVals = source.doubleVals;
+            this.intArrayVals = source.intArrayVals;
+            this.longArrayVals = source.longArrayVals;
+            this.doubleArrayVals = source.doubleArrayVals;
+            this.childNames = source.childNames;
+            this.childGroupIndices = source.childGroupIndices;
+            this.childCount = source.childCount;
+            this.childrenByName = source.childrenByName;
+            this.dirty = source.dirty;
+            this.valuesDirty = source.valuesDirty;
+            this.added = source.added;
+        }
+        
+        /**
+         * Takes ownership of the given part, and returns whether it was already owned.
+         */
+        private boolean own(int part) {
+            if ((ownedParts & part) != 0) {
+                return true;
+            }
+            ownedParts |= part;
+            return false;
+        }
+        
+        StringStringMap strings() {
+            if (!own(STRINGS)) {
+                stringVals = new StringStringMap(stringVals);
+            }
+            return stringVals;
+        }
+        
+        StringIntMap ints() {
+            if (!own(INTS)) {
+                intVals = new StringIntMap(intVals);
+            }
+            return intVals;
+        }
+        
+        StringLongMap longs() {
+            if (!own(LONGS)) {
+                longVals = new StringLongMap(longVals);
+            }
+            return longVals;
+        }
+        
+        StringDoubleMap doubles() {
+            if (!own(DOUBLES)) {
+                doubleVals = new StringDoubleMap(doubleVals);
+            }
+            return doubleVals;
+        }
+        
+        Map<String, int[]> intArrays() {
+            if (!own(INT_ARRAYS)) {
+                intArrayVals = new HashMap<>(intArrayVals);
+            }
+            return intArrayVals;
+        }
+        
+        Map<String, long[]> longArrays() {
+            if (!own(LONG_ARRAYS)) {
+                longArrayVals = new HashMap<>(longArrayVals);
+            }
+            return longArrayVals;
+        }
+        
+        Map<String, double[]> doubleArrays() {
+            if (!own(DOUBLE_ARRAYS)) {
+                doubleArrayVals = new HashMap<>(doubleArrayVals);
+            }
+            return doubleArrayVals;
+        }
+        
+        /**
+         * Returns the child at the given position among all children.
+         */
+        State child(int index) {
+            return childrenByName.get(childNames[index]).get(childGroupIndices[index]);
+        }
+        
+        void addChild(State child) {
+            if (!own(CHILD_ORDER) || childCount == childNames.length) {
+                int capacity = (childCount == childNames.length)
+                        ? Math.max(4, 2 * childCount)
+                        : childNames.length;
+                childNames = Arrays.copyOf(childNames, capacity);
+                childGroupIndices = Arrays.copyOf(childGroupIndices, capacity);
+            }
+            childNames[childCount] = child.name;
+            childGroupIndices[childCount] = child.groupIndex;
+            ++childCount;
+            writableGroup(child.name).add(child);
+        }
+        
+        /**
+         * Replaces the child at the position of the given State with the given State.
+         */
+        void replaceChild(State child) {
+            writableGroup(child.name).set(child.groupIndex, child);
+        }
+        
+        /**
+         * Returns the group of children with the given name, after making sure that it can be
+         * modified in place. Only the map of the groups and the group itself are copied.
+         */
+        private Group writableGroup(String name) {
+            if (!own(CHILD_GROUPS)) {
+                childrenByName = new HashMap<>(childrenByName);
+            }
+            Group group = childrenByName.get(name);
+            if (group == null || group.owner != owner) {
+                group = (group == null)
+                        ? new Group(owner)
+                        : new Group(group, owner);
+                childrenByName.put(name, group);
+            }
+            return group;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (obj instanceof State) {
+                State that = (State) obj;
+                return this.stringVals.equals(that.stringVals) &&
+                        this.intVals.equals(that.intVals) &&
+                        this.longVals.equals(that.longVals) &&
+                        this.doubleVals.equals(that.doubleVals) &&
+                        PackedArrays.equal(this.intArrayVals, that.intArrayVals) &&
+                        PackedArrays.equal(this.longArrayVals, that.longArrayVals) &&
+                        PackedArrays.equal(this.doubleArrayVals, that.doubleArrayVals) &&
+                        this.childrenByName.equals(that.childrenByName);
+            }
+            return false;
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.stringVals, this.intVals, this.longVals, this.doubleVals, this.childrenByName,
+                    PackedArrays.hash(this.intArrayVals), PackedArrays.hash(this.longArrayVals),
+                    PackedArrays.hash(this.doubleArrayVals));
+        }
+    }
+    
+    
+    /**
+     * The children of a State with the same name. A group may be shared by several States,
+     * and is only modified in place by the State whose owner is also the owner of the group.
+     */
+    private static final class Group extends ArrayList<State> {
+        private static final long serialVersionUID = 1L;
+        
+        final transient Object owner;
+        
+        Group(Object owner) {
+            this.owner = owner;
+        }
+        
+        Group(Group source, Object owner) {
+            super(source);
+            this.owner = owner;
+        }
     }
 }
@@ -0,0 +1,175 @@
+package p3;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ExecutionException;
+
+import org.xml.sax.SAXException;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * A cache of Persisters loaded from files.
+ * <p>
+ * A cached Persister is reloaded when the last-modified time or the size of its file has
+ * changed. The cache is bounded by the estimated heap footprint of the cached Persisters, and
+ * evicts the least recently used ones first when the bound is exceeded. Concurrent requests for
+ * a file that is not in the cache result in a single load, that all the requesting threads wait for.
+ * <p>
+ * The Persisters are returned as {@link FrozenPersister}s, so they can be shared freely.
+ * Use {@link FrozenPersister#toPersister()} to get a Persister that can be modified.
+ */
+public final class PersisterCache {
+    /**
+     * Loads a Persister from a file.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        Persister load(File file) throws IOException;
+    }
+
+    private final Loader loader;
+    private final LoadingCache<File, Entry> cache;
+
+    private PersisterCache(long maximumSize, Loader loader) {
+        checkArgument(maximumSize >= 0, "maximumSize must not be negative: %s", maximumSize);
+        this.loader = requireNonNull(loader);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maximumSize)
+                .weigher((File file, Entry e) -> e.weight)
+                .recordStats()
+                .build(new CacheLoader<File, Entry>() {
+
+                    @Override
+                    public Entry load(File file) throws IOException {
+                        return PersisterCache.this.load(file);
+                    }
+                });
+    }
+
+    /**
+     * Creates a cache of Persisters loaded from XML files.
+     *
+     * @param maximumSize
+     *            the maximum estimated number of bytes of heap used by the cached Persisters.
+     */
+    public static PersisterCache newInstance(long maximumSize) {
+        return new PersisterCache(maximumSize, PersisterCache::loadXml);
+    }
+
+    /**
+     * Creates a cache of Persisters loaded with the given loader, such as
+     * {@code BinaryPersisterStore::load}.
+     *
+     * @param maximumSize
+     *            the maximum estimated number of bytes of heap used by the cached Persisters.
+     */
+    public static PersisterCache newInstance(long maximumSize, Loader loader) {
+        return new PersisterCache(maximumSize, loader);
+    }
+
+    private static Persister loadXml(File file) throws IOException {
+        try {
+            return XmlPersisterStore.load(file);
+        } catch (SAXException e) {
+            throw new IOException("Invalid XML in " + file, e);
+        }
+    }
+
+    /**
+     * Returns the Persister of the given file, loading it if it is not in the cache or if
+     * the file has changed since it was loaded.
+     */
+    public FrozenPersister get(File file) throws IOException {
+        File key = file.getAbsoluteFile();
+        try {
+            Entry e = cache.get(key);
+            if (e.isCurrent(attributes(key))) {
+                return e.persister;
+            }
+            // Only the first thread to see the stale entry removes it, so that
+            // the others wait for the same reload.
+            cache.asMap().remove(key, e);
+            return cache.get(key).persister;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        } catch (IOException e) {
+            // The file could not be read, for example because it has been deleted.
+            cache.invalidate(key);
+            throw e;
+        }
+    }
+
+    private Entry load(File file) throws IOException {
+        // The attributes are read first, so that if the file is modified while it is
+        // loaded, the next call to get() reloads it.
+        BasicFileAttributes attributes = attributes(file);
+        FrozenPersister persister = loader.load(file).freeze();
+        return new Entry(attributes, persister);
+    }
+
+    private static BasicFileAttributes attributes(File file) throws IOException {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    }
+
+    /**
+     * Removes the Persister of the given file from the cache.
+     */
+    public void invalidate(File file) {
+        cache.invalidate(file.getAbsoluteFile());
+    }
+
+    /**
+     * Removes all Persisters from the cache.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Returns the number of Persisters in the cache.
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * Returns the hit, miss, load and eviction counts of this cache. A reload of a file that
+     * has changed counts as a hit as well as a miss.
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+
+    private static final class Entry {
+        private final FileTime lastModified;
+        private final long fileSize;
+        private final FrozenPersister persister;
+        private final int weight;
+
+        Entry(BasicFileAttributes attributes, FrozenPersister persister) {
+            this.lastModified = attributes.lastModifiedTime();
+            this.fileSize = attributes.size();
+            this.persister = persister;
+            this.weight = (int) Math.min(Integer.MAX_VALUE, persister.estimatedSize());
+        }
+
+        boolean isCurrent(BasicFileAttributes attributes) {
+            return lastModified.equals(attributes.lastModifiedTime()) && fileSize == attributes.size();
+        }
+    }
+}
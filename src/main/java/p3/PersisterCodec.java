@@ -0,0 +1,508 @@
+package p3;
+
+import static java.util.Objects.requireNonNull;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+
+import com.google.common.base.Throwables;
+import com.google.common.primitives.Primitives;
+
+/**
+ * Converts objects of a class to and from Persisters, based on the {@link Persisted}
+ * annotations on the fields of the class and its superclasses.
+ * <p>
+ * The class must have a constructor without parameters, which may be private, and the
+ * persisted fields must not be static or final. The fields are accessed through method
+ * handles, which are looked up once per class: {@link #of(Class)} always returns the same
+ * codec for the same class.
+ * <p>
+ * The supported field types are int, long, double, String, int[], long[], double[], List of
+ * a persisted class, and persisted classes, which become children. A persisted class must
+ * have a constructor without parameters and at least one persisted field. Lists must be
+ * declared as List, not as a concrete collection type, and classes of the JDK, such as boxed
+ * primitives, cannot be children.
+ * <p>
+ * When decoding, a field whose key is missing from the Persister, or a List field without
+ * any children, keeps the value given to it by the constructor. When encoding, a String, array or child field that is null is skipped.
+ * <p>
+ * An object can also be stored directly in a PersisterStore, without building an
+ * intermediate Persister, with {@link PersisterStore#store(Object, PersisterCodec)}.
+ */
+public final class PersisterCodec<T> {
+    private static final ClassValue<PersisterCodec<?>> CODECS = new ClassValue<PersisterCodec<?>>() {
+
+        @Override
+        protected PersisterCodec<?> computeValue(Class<?> type) {
+            return new PersisterCodec<>(type);
+        }
+    };
+
+    private final Class<T> type;
+    private final MethodHandle constructor;
+    /**
+     * The bindings of the value fields, followed by the bindings of the child fields, so that
+     * all values are stored before the children.
+     */
+    private final Binding[] bindings;
+
+    private PersisterCodec(Class<T> type) {
+        this.type = type;
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            Constructor<T> c = type.getDeclaredConstructor();
+            c.setAccessible(true);
+            this.constructor = lookup.unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(type.getName() + " does not have a constructor without parameters");
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(e);
+        }
+        List<Binding> values = new ArrayList<>();
+        List<Binding> children = new ArrayList<>();
+        for (Field f : persistedFields(type)) {
+            Binding b = Binding.forField(f, lookup);
+            if (b.isChild()) {
+                children.add(b);
+            } else {
+                values.add(b);
+            }
+        }
+        values.addAll(children);
+        this.bindings = values.toArray(new Binding[0]);
+    }
+
+    private static List<Field> persistedFields(Class<?> type) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            List<Field> declared = new ArrayList<>();
+            for (Field f : c.getDeclaredFields()) {
+                if (f.isAnnotationPresent(Persisted.class)) {
+                    int modifiers = f.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers)) {
+                        throw new IllegalArgumentException("Persisted field must not be static or final: " + f);
+                    }
+                    declared.add(f);
+                }
+            }
+            // Superclass fields first.
+            fields.addAll(0, declared);
+        }
+        return fields;
+    }
+
+    /**
+     * Returns the codec for the given class.
+     *
+     * @throws IllegalArgumentException
+     *             if the class cannot be bound, e.g. because it does not have a constructor
+     *             without parameters, or has a persisted field of an unsupported type.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> PersisterCodec<T> of(Class<T> type) {
+        return (PersisterCodec<T>) CODECS.get(requireNonNull(type));
+    }
+
+    /**
+     * Returns a new root Persister holding the persisted fields of the given object.
+     */
+    public Persister encode(T object) {
+        Persister p = new Persister();
+        writeTo(object, new PersisterTarget(p));
+        return p;
+    }
+
+    /**
+     * Creates a new object, and sets its persisted fields from the given Persister.
+     */
+    public T decode(Persister p) {
+        requireNonNull(p);
+        try {
+            Object object = constructor.invokeExact();
+            for (Binding b : bindings) {
+                b.read(p, object);
+            }
+            return type.cast(object);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    void writeTo(T object, PersisterStore<?> store) {
+        requireNonNull(object);
+        try {
+            for (Binding b : bindings) {
+                b.write(object, store);
+            }
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    private static RuntimeException propagate(Throwable t) {
+        Throwables.throwIfUnchecked(t);
+        throw new RuntimeException(t);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> PersisterCodec<T> uncheckedCodec(Class<?> type) {
+        return (PersisterCodec<T>) of(type);
+    }
+
+
+    /**
+     * Binds a field to a key. The method handles are adapted to take the object as an Object,
+     * so that they can be invoked with invokeExact.
+     */
+    private abstract static class Binding {
+        final String key;
+        final MethodHandle getter;
+        final MethodHandle setter;
+
+        Binding(String key, MethodHandle getter, MethodHandle setter) {
+            this.key = key;
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        static Binding forField(Field f, MethodHandles.Lookup lookup) {
+            String key = f.getAnnotation(Persisted.class).value();
+            if (key.isEmpty()) {
+                key = f.getName();
+            }
+            Class<?> fieldType = f.getType();
+            Class<?> handleType = fieldType.isPrimitive() ? fieldType : Object.class;
+            MethodHandle getter;
+            MethodHandle setter;
+            try {
+                f.setAccessible(true);
+                getter = lookup.unreflectGetter(f).asType(MethodType.methodType(handleType, Object.class));
+                setter = lookup.unreflectSetter(f).asType(MethodType.methodType(void.class, Object.class, handleType));
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException(e);
+            }
+            if (fieldType == int.class) {
+                return new IntBinding(key, getter, setter);
+            } else if (fieldType == long.class) {
+                return new LongBinding(key, getter, setter);
+            } else if (fieldType == double.class) {
+                return new DoubleBinding(key, getter, setter);
+            } else if (fieldType == String.class) {
+                return new StringBinding(key, getter, setter);
+            } else if (fieldType == int[].class || fieldType == long[].class || fieldType == double[].class) {
+                return new ArrayBinding(key, getter, setter, fieldType.getComponentType());
+            } else if (fieldType == List.class) {
+                return new ListBinding(key, getter, setter, checkChildType(elementType(f), f));
+            } else if (Collection.class.isAssignableFrom(fieldType)) {
+                throw new IllegalArgumentException("A persisted list must be declared as a List: " + f);
+            }
+            return new ChildBinding(key, getter, setter, checkChildType(fieldType, f));
+        }
+
+        /**
+         * Checks that the given type can be bound as a child, without binding it yet, which
+         * would not terminate for recursive types.
+         */
+        private static Class<?> checkChildType(Class<?> type, Field f) {
+            if (type.isPrimitive() || type.isArray() || type.isInterface() || type.isEnum()
+                    || Modifier.isAbstract(type.getModifiers()) || Primitives.isWrapperType(type)
+                    || type.getName().startsWith("java.")) {
+                throw new IllegalArgumentException("Unsupported type of persisted field: " + f);
+            }
+            try {
+                type.getDeclaredConstructor();
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(type.getName() + " does not have a constructor without parameters: " + f);
+            }
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (field.isAnnotationPresent(Persisted.class)) {
+                        return type;
+                    }
+                }
+            }
+            throw new IllegalArgumentException(type.getName() + " does not have any persisted fields: " + f);
+        }
+
+        private static Class<?> elementType(Field f) {
+            Type type = f.getGenericType();
+            if (type instanceof ParameterizedType) {
+                Type arg = ((ParameterizedType) type).getActualTypeArguments()[0];
+                if (arg instanceof Class) {
+                    return (Class<?>) arg;
+                }
+            }
+            throw new IllegalArgumentException("The element type of a persisted List must be a class: " + f);
+        }
+
+        boolean isChild() {
+            return false;
+        }
+
+        abstract void write(Object object, PersisterStore<?> store) throws Throwable;
+
+        abstract void read(Persister p, Object object) throws Throwable;
+    }
+
+
+    private static final class IntBinding extends Binding {
+        IntBinding(String key, MethodHandle getter, MethodHandle setter) {
+            super(key, getter, setter);
+        }
+
+        @Override
+        void write(Object object, PersisterStore<?> store) throws Throwable {
+            store.putInt(key, (int) getter.invokeExact(object));
+        }
+
+        @Override
+        void read(Persister p, Object object) throws Throwable {
+            OptionalInt value = p.checkInt(key);
+            if (value.isPresent()) {
+                setter.invokeExact(object, value.getAsInt());
+            }
+        }
+    }
+
+
+    private static final class LongBinding extends Binding {
+        LongBinding(String key, MethodHandle getter, MethodHandle setter) {
+            super(key, getter, setter);
+        }
+
+        @Override
+        void write(Object object, PersisterStore<?> store) throws Throwable {
+            store.putLong(key, (long) getter.invokeExact(object));
+        }
+
+        @Override
+        void read(Persister p, Object object) throws Throwable {
+            OptionalLong value = p.checkLong(key);
+            if (value.isPresent()) {
+                setter.invokeExact(object, value.getAsLong());
+            }
+        }
+    }
+
+
+    private static final class DoubleBinding extends Binding {
+        DoubleBinding(String key, MethodHandle getter, MethodHandle setter) {
+            super(key, getter, setter);
+        }
+
+        @Override
+        void write(Object object, PersisterStore<?> store) throws Throwable {
+            store.putDouble(key, (double) getter.invokeExact(object));
+        }
+
+        @Override
+        void read(Persister p, Object object) throws Throwable {
+            OptionalDouble value = p.checkDouble(key);
+            if (value.isPresent()) {
+                setter.invokeExact(object, value.getAsDouble());
+            }
+        }
+    }
+
+
+    private static final class StringBinding extends Binding {
+        StringBinding(String key, MethodHandle getter, MethodHandle setter) {
+            super(key, getter, setter);
+        }
+
+        @Override
+        void write(Object object, PersisterStore<?> store) throws Throwable {
+            Object value = getter.invokeExact(object);
+            if (value != null) {
+                store.putString(key, (String) value);
+            }
+        }
+
+        @Override
+        void read(Persister p, Object object) throws Throwable {
+            Optional<String> value = p.checkString(key);
+            if (value.isPresent()) {
+                setter.invokeExact(object, (Object) value.get());
+            }
+        }
+    }
+
+
+    /**
+     * Binds an int[], long[] or double[] field to an array value.
+     */
+    private static final class ArrayBinding extends Binding {
+        private final Class<?> componentType;
+
+        ArrayBinding(String key, MethodHandle getter, MethodHandle setter, Class<?> componentType) {
+            super(key, getter, setter);
+            this.componentType = componentType;
+        }
+
+        @Override
+        void write(Object object, PersisterStore<?> store) throws Throwable {
+            Object value = getter.invokeExact(object);
+            if (value == null) {
+                return;
+            }
+            if (componentType == int.class) {
+                store.putIntArray(key, (int[]) value);
+            } else if (componentType == long.class) {
+                store.putLongArray(key, (long[]) value);
+            } else {
+                store.putDoubleArray(key, (double[]) value);
+            }
+        }
+
+        @Override
+        void read(Persister p, Object object) throws Throwable {
+            Optional<?> value = (componentType == int.class)
+                    ? p.checkIntArray(key)
+                    : (componentType == long.class)
+                            ? p.checkLongArray(key)
+                            : p.checkDoubleArray(key);
+            if (value.isPresent()) {
+                setter.invokeExact(object, (Object) value.get());
+            }
+        }
+    }
+
+
+    private static final class ChildBinding extends Binding {
+        private final Class<?> childType;
+
+        ChildBinding(String key, MethodHandle getter, MethodHandle setter, Class<?> childType) {
+            super(key, getter, setter);
+            this.childType = childType;
+        }
+
+        @Override
+        boolean isChild() {
+            return true;
+        }
+
+        @Override
+        void write(Object object, PersisterStore<?> store) throws Throwable {
+            Object child = getter.invokeExact(object);
+            if (child != null) {
+                // The codec of the child type is looked up on use, rather than when this
+                // binding is created, to allow for recursive types.
+                uncheckedCodec(childType).writeTo(child, store.newChild(key));
+            }
+        }
+
+        @Override
+        void read(Persister p, Object object) throws Throwable {
+            List<Persister> children = p.getChildren(key);
+            if (!children.isEmpty()) {
+                setter.invokeExact(object, (Object) of(childType).decode(children.get(0)));
+            }
+        }
+    }
+
+
+    private static final class ListBinding extends Binding {
+        private final Class<?> elementType;
+
+        ListBinding(String key, MethodHandle getter, MethodHandle setter, Class<?> elementType) {
+            super(key, getter, setter);
+            this.elementType = elementType;
+        }
+
+        @Override
+        boolean isChild() {
+            return true;
+        }
+
+        @Override
+        void write(Object object, PersisterStore<?> store) throws Throwable {
+            Object list = getter.invokeExact(object);
+            if (list != null) {
+                PersisterCodec<Object> codec = uncheckedCodec(elementType);
+                for (Object element : (List<?>) list) {
+                    codec.writeTo(element, store.newChild(key));
+                }
+            }
+        }
+
+        @Override
+        void read(Persister p, Object object) throws Throwable {
+            PersisterCodec<?> codec = of(elementType);
+            List<Object> list = new ArrayList<>();
+            p.forEachChild(key, c -> list.add(codec.decode(c)));
+            if (!list.isEmpty()) {
+                setter.invokeExact(object, (Object) list);
+            }
+        }
+    }
+
+
+    /**
+     * A PersisterStore that puts everything in a Persister.
+     */
+    private static final class PersisterTarget extends PersisterStore<PersisterTarget> {
+        private final Persister p;
+
+        PersisterTarget(Persister p) {
+            this.p = p;
+        }
+
+        @Override
+        void putString(String key, String value) {
+            p.putString(key, value);
+        }
+
+        @Override
+        void putInt(String key, int value) {
+            p.putInt(key, value);
+        }
+
+        @Override
+        void putLong(String key, long value) {
+            p.putLong(key, value);
+        }
+
+        @Override
+        void putDouble(String key, double value) {
+            p.putDouble(key, value);
+        }
+
+        @Override
+        void putIntArray(String key, int[] values) {
+            p.putIntArray(key, values);
+        }
+
+        @Override
+        void putLongArray(String key, long[] values) {
+            p.putLongArray(key, values);
+        }
+
+        @Override
+        void putDoubleArray(String key, double[] values) {
+            p.putDoubleArray(key, values);
+        }
+
+        @Override
+        PersisterTarget newChild(String name) {
+            return new PersisterTarget(p.newChild(name));
+        }
+
+        @Override
+        protected PersisterTarget self() {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package p3;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * The differences between two Persister trees, as a list of {@linkplain Change changes}
+ * that turn the first tree into the second:
+ * <pre>
+ * PersisterDiff diff = PersisterDiff.diff(live, reloaded);
+ * for (PersisterDiff.Change change : diff.getChanges()) {
+ *     log.info(change.toString());
+ * }
+ * </pre>
+ * The trees are compared by their {@linkplain Persister#digest() digests}: subtrees with
+ * the same digest are considered identical and are not visited. Since the digests are cached,
+ * comparing a large tree with a slightly modified copy of it costs time proportional to the
+ * size of the modified Persisters, rather than to the size of the whole tree.
+ * <p>
+ * Children are matched by their name and their index among the children with that name,
+ * which is also how {@link Persister#equals(Object)} compares them. A Persister is identified
+ * by its path from the root, e.g. {@code /item[3]/leaf[0]}, where the root itself is
+ * {@code /}.
+ */
+public final class PersisterDiff {
+    private final ImmutableList<Change> changes;
+
+    private PersisterDiff(ImmutableList<Change> changes) {
+        this.changes = changes;
+    }
+
+    /**
+     * Returns the differences between the given Persisters, which are compared as if both were
+     * roots. The changes are ordered depth first, with the changes to the values of a Persister
+     * before the changes to its children.
+     */
+    public static PersisterDiff diff(Persister a, Persister b) {
+        requireNonNull(a);
+        requireNonNull(b);
+        ImmutableList.Builder<Change> changes = ImmutableList.builder();
+        if (!a.digest().equals(b.digest())) {
+            diff(a, b, "", changes);
+        }
+        return new PersisterDiff(changes.build());
+    }
+
+    private static void diff(Persister a, Persister b, String path, ImmutableList.Builder<Change> changes) {
+        String nodePath = path.isEmpty()
+                ? "/"
+                : path;
+        Map<Target, TreeMap<String, Object>> valuesA = values(a);
+        Map<Target, TreeMap<String, Object>> valuesB = values(b);
+        for (Target target : Target.VALUES) {
+            TreeMap<String, Object> mapA = valuesA.get(target);
+            TreeMap<String, Object> mapB = valuesB.get(target);
+            if (mapA == null && mapB == null) {
+                continue;
+            }
+            TreeSet<String> keys = new TreeSet<>();
+            if (mapA != null) {
+                keys.addAll(mapA.keySet());
+            }
+            if (mapB != null) {
+                keys.addAll(mapB.keySet());
+            }
+            for (String key : keys) {
+                Object valueA = (mapA == null) ? null : mapA.get(key);
+                Object valueB = (mapB == null) ? null : mapB.get(key);
+                if (valueA == null) {
+                    changes.add(new Change(Kind.ADDED, target, nodePath, key));
+                } else if (valueB == null) {
+                    changes.add(new Change(Kind.REMOVED, target, nodePath, key));
+                } else if (!Objects.deepEquals(valueA, valueB)) {
+                    changes.add(new Change(Kind.CHANGED, target, nodePath, key));
+                }
+            }
+        }
+        TreeMap<String, List<Persister>> childrenA = childrenByName(a);
+        TreeMap<String, List<Persister>> childrenB = childrenByName(b);
+        TreeSet<String> names = new TreeSet<>(childrenA.keySet());
+        names.addAll(childrenB.keySet());
+        for (String name : names) {
+            List<Persister> groupA = childrenA.getOrDefault(name, ImmutableList.of());
+            List<Persister> groupB = childrenB.getOrDefault(name, ImmutableList.of());
+            for (int n = 0, size = Math.max(groupA.size(), groupB.size()); n < size; ++n) {
+                String childPath = path + "/" + name + "[" + n + "]";
+                if (n >= groupA.size()) {
+                    changes.add(new Change(Kind.ADDED, Target.CHILD, childPath, null));
+                } else if (n >= groupB.size()) {
+                    changes.add(new Change(Kind.REMOVED, Target.CHILD, childPath, null));
+                } else {
+                    Persister childA = groupA.get(n);
+                    Persister childB = groupB.get(n);
+                    if (!childA.digest().equals(childB.digest())) {
+                        diff(childA, childB, childPath, changes);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the values of the given Persister, but not of its children, by type and key.
+     */
+    private static Map<Target, TreeMap<String, Object>> values(Persister p) {
+        Map<Target, TreeMap<String, Object>> values = new EnumMap<>(Target.class);
+        p.accept(new PersisterVisitor() {
+
+            @Override
+            public void visitString(String key, String value) {
+                put(Target.STRING, key, value);
+            }
+
+            @Override
+            public void visitInt(String key, int value) {
+                put(Target.INT, key, value);
+            }
+
+            @Override
+            public void visitLong(String key, long value) {
+                put(Target.LONG, key, value);
+            }
+
+            @Override
+            public void visitDouble(String key, double value) {
+                put(Target.DOUBLE, key, value);
+            }
+
+            @Override
+            public void visitIntArray(String key, int[] value) {
+                put(Target.INT_ARRAY, key, value);
+            }
+
+            @Override
+            public void visitLongArray(String key, long[] value) {
+                put(Target.LONG_ARRAY, key, value);
+            }
+
+            @Override
+            public void visitDoubleArray(String key, double[] value) {
+                put(Target.DOUBLE_ARRAY, key, value);
+            }
+
+            @Override
+            public boolean enterChild(String name, Persister child) {
+                return false;
+            }
+
+            private void put(Target target, String key, Object value) {
+                values.computeIfAbsent(target, t -> new TreeMap<>()).put(key, value);
+            }
+        });
+        return values;
+    }
+
+    private static TreeMap<String, List<Persister>> childrenByName(Persister p) {
+        TreeMap<String, List<Persister>> byName = new TreeMap<>();
+        for (Persister child : p.children()) {
+            byName.computeIfAbsent(child.name(), k -> new ArrayList<>()).add(child);
+        }
+        return byName;
+    }
+
+    /**
+     * Returns all changes, in the order described by {@link #diff(Persister, Persister)}.
+     */
+    public ImmutableList<Change> getChanges() {
+        return changes;
+    }
+
+    /**
+     * Checks if the compared Persisters are equal, i.e. if there are no changes.
+     */
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Change change : changes) {
+            sb.append(change).append('\n');
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * How a value or a child differs between the compared Persisters.
+     */
+    public enum Kind {
+        /**
+         * Only the second Persister has the value or child.
+         */
+        ADDED,
+        /**
+         * Only the first Persister has the value or child.
+         */
+        REMOVED,
+        /**
+         * Both Persisters have the value, but with different contents. Children that are in
+         * both Persisters are never reported as changed; the changes within them are reported
+         * instead.
+         */
+        CHANGED
+    }
+
+
+    /**
+     * What a change applies to: a value of a given type, or a child.
+     */
+    public enum Target {
+        STRING,
+        INT,
+        LONG,
+        DOUBLE,
+        INT_ARRAY,
+        LONG_ARRAY,
+        DOUBLE_ARRAY,
+        CHILD;
+
+        private static final ImmutableList<Target> VALUES = ImmutableList.of(
+                STRING, INT, LONG, DOUBLE, INT_ARRAY, LONG_ARRAY, DOUBLE_ARRAY);
+    }
+
+
+    /**
+     * A single difference between the compared Persisters.
+     */
+    public static final class Change {
+        private final Kind kind;
+        private final Target target;
+        private final String path;
+        @Nullable
+        private final String key;
+
+        Change(Kind kind, Target target, String path, @Nullable String key) {
+            this.kind = requireNonNull(kind);
+            this.target = requireNonNull(target);
+            this.path = requireNonNull(path);
+            this.key = key;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public Target getTarget() {
+            return target;
+        }
+
+        /**
+         * Returns the path of the Persister holding the value, or of the child itself.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Returns the key of the value, or null if this is a change of a child.
+         */
+        @Nullable
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (obj instanceof Change) {
+                Change that = (Change) obj;
+                return this.kind == that.kind &&
+                        this.target == that.target &&
+                        this.path.equals(that.path) &&
+                        Objects.equals(this.key, that.key);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, target, path, key);
+        }
+
+        @Override
+        public String toString() {
+            return (key == null)
+                    ? kind + " " + target + " " + path
+                    : kind + " " + target + " " + path + " " + key;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package p3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A way of writing a Persister to a stream, and reading it back.
+ */
+public interface PersisterFormat {
+    /**
+     * The XML format of {@link XmlPersisterStore} and {@link StreamingXmlPersisterStore}.
+     * Reading also accepts compressed XML.
+     */
+    PersisterFormat XML = StandardFormat.XML;
+    /**
+     * The XML format, compressed with a {@link CompressedOutputStream}.
+     */
+    PersisterFormat COMPRESSED_XML = StandardFormat.COMPRESSED_XML;
+    /**
+     * The JSON format of {@link JsonPersisterStore}. Reading also accepts compressed JSON.
+     */
+    PersisterFormat JSON = StandardFormat.JSON;
+    /**
+     * The binary format of {@link BinaryPersisterStore}.
+     */
+    PersisterFormat BINARY = StandardFormat.BINARY;
+
+    /**
+     * Writes a Persister to a stream, and flushes the stream. The stream is left open.
+     */
+    void write(Persister persister, OutputStream out) throws IOException;
+
+    /**
+     * Reads a Persister from a stream. The caller is responsible for closing the stream.
+     */
+    Persister read(InputStream in) throws IOException;
+}
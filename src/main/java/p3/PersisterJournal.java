@@ -0,0 +1,742 @@
+package p3;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static p3.BinaryPersisterStore.CHILD;
+import static p3.BinaryPersisterStore.DOUBLE;
+import static p3.BinaryPersisterStore.DOUBLE_ARRAY;
+import static p3.BinaryPersisterStore.INT;
+import static p3.BinaryPersisterStore.INT_ARRAY;
+import static p3.BinaryPersisterStore.LONG;
+import static p3.BinaryPersisterStore.LONG_ARRAY;
+import static p3.BinaryPersisterStore.STRING;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+/**
+ * Keeps a Persister in a directory as a full snapshot followed by a journal of the changes
+ * made to it since the snapshot was written.
+ * <p>
+ * Every value put and every child added to the {@link #root() root} Persister, or any of its
+ * descendants, is appended to the journal as a small record, so the cost of saving a change does
+ * not depend on the size of the tree. When the journal grows beyond a threshold it is compacted:
+ * a new journal is started, and a snapshot of the tree is written in the background, after which
+ * the old snapshot and journal are deleted.
+ * <p>
+ * Records are buffered in memory until {@link #flush()} or {@link #sync()} is called, or the
+ * buffer is full. When the journal is opened again, the snapshot is loaded and the journal is
+ * replayed. A record that was only partly written, for instance because the process crashed in
+ * the middle of writing it, is detected by its checksum and is discarded together with everything
+ * after it.
+ * <p>
+ * The directory contains the following files, where the journal of generation n holds the changes
+ * made after the snapshot of generation n. The snapshot of generation 0 is always empty, and is
+ * never written.
+ * <pre>
+ * snapshot-n := a binary Persister document, see {@link BinaryPersisterStore}
+ * journal-n  := MAGIC VERSION frame*
+ * frame      := length (4 bytes, little endian) CRC-32 of record (4 bytes, little endian) record
+ * record     := STRING path ref string
+ *             | INT path ref varint
+ *             | LONG path ref varlong
+ *             | DOUBLE path ref 8 bytes
+ *             | INT_ARRAY path ref varint byte length, followed by the little endian elements
+ *             | LONG_ARRAY path ref varint byte length, followed by the little endian elements
+ *             | DOUBLE_ARRAY path ref varint byte length, followed by the little endian elements
+ *             | CHILD path ref
+ * path       := varint depth, followed by the varint position of the Persister among the children
+ *               of its parent, for each level from the root down
+ * </pre>
+ * The tags, refs, strings and numbers are encoded as in the binary format. Like the Persister
+ * itself, a PersisterJournal is not thread-safe.
+ */
+public final class PersisterJournal implements Closeable {
+    static final byte[] MAGIC = { 'P', '3', 'J' };
+    static final int VERSION = 1;
+    /**
+     * The default journal size, in bytes, beyond which the journal is compacted.
+     */
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 16L << 20;
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final int FRAME_HEADER_LENGTH = 8;
+
+    private final File dir;
+    private final long compactionThreshold;
+    private final Persister root;
+    private final ExecutorService executor;
+    private final Recorder recorder;
+    private int generation;
+    @Nullable
+    private CompletableFuture<Void> compaction;
+    private boolean closed;
+
+    private PersisterJournal(File dir, long compactionThreshold, Persister root, int generation, Recorder recorder) {
+        this.dir = dir;
+        this.compactionThreshold = compactionThreshold;
+        this.root = root;
+        this.generation = generation;
+        this.recorder = recorder;
+        recorder.journal = this;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "PersisterJournal");
+            t.setDaemon(true);
+            return t;
+        });
+        root.setMutationListener(recorder);
+    }
+
+    /**
+     * Opens the journal in the given directory, which is created if it does not exist,
+     * using the default compaction threshold.
+     */
+    public static PersisterJournal open(File dir) throws IOException {
+        return open(dir, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * Opens the journal in the given directory, which is created if it does not exist.
+     *
+     * @param compactionThreshold
+     *            the size of the journal, in bytes, beyond which it is compacted.
+     */
+    public static PersisterJournal open(File dir, long compactionThreshold) throws IOException {
+        checkArgument(compactionThreshold > 0, "compactionThreshold must be positive: %s", compactionThreshold);
+        Files.createDirectories(dir.toPath());
+        TreeMap<Integer, File> snapshots = new TreeMap<>();
+        TreeMap<Integer, File> journals = new TreeMap<>();
+        for (File f : listFiles(dir)) {
+            String name = f.getName();
+            if (name.endsWith(".tmp")) {
+                // Left behind by a compaction that did not complete.
+                Files.deleteIfExists(f.toPath());
+            } else if (name.startsWith(SNAPSHOT_PREFIX)) {
+                snapshots.put(parseGeneration(name, SNAPSHOT_PREFIX), f);
+            } else if (name.startsWith(JOURNAL_PREFIX)) {
+                journals.put(parseGeneration(name, JOURNAL_PREFIX), f);
+            }
+        }
+        int base = snapshots.isEmpty() ? 0 : snapshots.lastKey();
+        Persister root = snapshots.isEmpty()
+                ? new Persister()
+                : BinaryPersisterStore.load(snapshots.lastEntry().getValue());
+        List<Integer> replayed = new ArrayList<>(journals.tailMap(base).keySet());
+        Recorder recorder = null;
+        for (int n = 0; n < replayed.size(); ++n) {
+            int gen = replayed.get(n);
+            if (gen != base + n) {
+                throw new IOException("Missing journal of generation " + (base + n) + " in " + dir);
+            }
+            boolean last = (n == replayed.size() - 1);
+            Replay replay = new Replay(root);
+            long validLength = replay.run(journals.get(gen), last);
+            if (last) {
+                recorder = (validLength == 0)
+                        ? Recorder.create(journals.get(gen))
+                        : Recorder.append(journals.get(gen), validLength, replay.dictionary);
+            }
+        }
+        int generation = base + Math.max(replayed.size() - 1, 0);
+        if (recorder == null) {
+            recorder = Recorder.create(journalFile(dir, generation));
+        }
+        deleteOlderThan(dir, base);
+        return new PersisterJournal(dir, compactionThreshold, root, generation, recorder);
+    }
+
+    private static File[] listFiles(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list the files in " + dir);
+        }
+        return files;
+    }
+
+    private static int parseGeneration(String name, String prefix) throws IOException {
+        try {
+            return Integer.parseInt(name.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected file in journal directory: " + name);
+        }
+    }
+
+    private static File snapshotFile(File dir, int generation) {
+        return new File(dir, SNAPSHOT_PREFIX + generation);
+    }
+
+    private static File journalFile(File dir, int generation) {
+        return new File(dir, JOURNAL_PREFIX + generation);
+    }
+
+    /**
+     * Deletes the snapshots and journals of generations before the given one.
+     */
+    private static void deleteOlderThan(File dir, int generation) throws IOException {
+        for (File f : listFiles(dir)) {
+            String name = f.getName();
+            String prefix = name.startsWith(SNAPSHOT_PREFIX)
+                    ? SNAPSHOT_PREFIX
+                    : name.startsWith(JOURNAL_PREFIX) ? JOURNAL_PREFIX : null;
+            if (prefix != null && parseGeneration(name, prefix) < generation) {
+                Files.deleteIfExists(f.toPath());
+            }
+        }
+    }
+
+    /**
+     * Returns the root Persister. All changes made to it and its descendants are recorded in the journal.
+     */
+    public Persister root() {
+        return root;
+    }
+
+    /**
+     * Returns the size of the current journal in bytes, including records not yet flushed.
+     */
+    public long journalSize() {
+        return recorder.size;
+    }
+
+    /**
+     * Writes all buffered records to the journal file.
+     */
+    public void flush() throws IOException {
+        checkState(!closed, "The journal has been closed");
+        recorder.flush();
+    }
+
+    /**
+     * Writes all buffered records to the journal file, and forces them to disk.
+     */
+    public void sync() throws IOException {
+        checkState(!closed, "The journal has been closed");
+        recorder.sync();
+    }
+
+    /**
+     * Starts a new journal, and writes a snapshot of the tree in the background. If a compaction
+     * is already in progress this does nothing.
+     *
+     * @return a future that is completed when the snapshot has been written, and the old snapshot
+     *         and journal have been deleted.
+     */
+    public CompletableFuture<Void> compact() throws IOException {
+        checkState(!closed, "The journal has been closed");
+        if (compaction != null && !compaction.isDone()) {
+            return compaction;
+        }
+        Persister snapshot = root.snapshot();
+        int next = generation + 1;
+        recorder.startNewFile(journalFile(dir, next));
+        generation = next;
+        compaction = CompletableFuture.runAsync(() -> {
+            try {
+                PersisterWriter.writeAtomically(snapshot, snapshotFile(dir, next), PersisterFormat.BINARY);
+                deleteOlderThan(dir, next);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+        return compaction;
+    }
+
+    /**
+     * Flushes the journal, waits for any compaction in progress to complete, and closes the journal.
+     * Changes made to the root after this are not recorded.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        root.setMutationListener(null);
+        try {
+            recorder.close();
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.DAYS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for compaction to complete", e);
+            }
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (recorder.size > compactionThreshold && (compaction == null || compaction.isDone())) {
+            try {
+                compact();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+
+    /**
+     * Appends the changes of the tree to the current journal file.
+     */
+    private static final class Recorder implements MutationListener {
+        private FileChannel channel;
+        private OutputStream out;
+        /**
+         * The size of the journal file, including the records not yet flushed.
+         */
+        long size;
+        /**
+         * The keys and names that have been written to the journal file, and their references.
+         */
+        private Map<String, Integer> dictionary;
+        /**
+         * The journal to notify when a record has been written, or null while opening.
+         */
+        @Nullable
+        PersisterJournal journal;
+        private final CRC32 crc = new CRC32();
+        private byte[] record = new byte[256];
+        private int length;
+        private int[] path = new int[16];
+
+        private Recorder(FileChannel channel, long size, Map<String, Integer> dictionary) {
+            this.channel = channel;
+            this.out = newOutput(channel);
+            this.size = size;
+            this.dictionary = dictionary;
+        }
+
+        /**
+         * Creates a recorder that writes to a new journal file.
+         */
+        static Recorder create(File file) throws IOException {
+            FileChannel channel = createJournal(file);
+            return new Recorder(channel, channel.size(), new HashMap<>());
+        }
+
+        /**
+         * Creates a recorder that appends to an existing journal file, after discarding
+         * everything after the given length.
+         */
+        static Recorder append(File file, long validLength, Map<String, Integer> dictionary) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            try {
+                channel.truncate(validLength);
+                channel.position(validLength);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return new Recorder(channel, validLength, dictionary);
+        }
+
+        private static FileChannel createJournal(File file) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 1);
+                header.put(MAGIC).put((byte) VERSION).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return channel;
+        }
+
+        private static OutputStream newOutput(FileChannel channel) {
+            return new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+        }
+
+        /**
+         * Closes the current journal file, and continues in a new one.
+         */
+        void startNewFile(File file) throws IOException {
+            FileChannel next = createJournal(file);
+            try {
+                close();
+            } catch (IOException e) {
+                next.close();
+                throw e;
+            }
+            this.channel = next;
+            this.out = newOutput(next);
+            this.size = next.size();
+            this.dictionary = new HashMap<>();
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        void sync() throws IOException {
+            out.flush();
+            channel.force(false);
+        }
+
+        void close() throws IOException {
+            try {
+                out.flush();
+            } finally {
+                channel.close();
+            }
+        }
+
+        @Override
+        public void putString(Persister p, String key, String value) {
+            begin(STRING, p, key);
+            writeString(value);
+            end();
+        }
+
+        @Override
+        public void putInt(Persister p, String key, int value) {
+            begin(INT, p, key);
+            writeVarLong(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+            end();
+        }
+
+        @Override
+        public void putLong(Persister p, String key, long value) {
+            begin(LONG, p, key);
+            writeVarLong((value << 1) ^ (value >> 63));
+            end();
+        }
+
+        @Override
+        public void putDouble(Persister p, String key, double value) {
+            begin(DOUBLE, p, key);
+            long bits = Double.doubleToRawLongBits(value);
+            ensureCapacity(8);
+            for (int n = 0; n < 8; ++n) {
+                record[length++] = (byte) bits;
+                bits >>>= 8;
+            }
+            end();
+        }
+
+        @Override
+        public void putIntArray(Persister p, String key, int[] values) {
+            begin(INT_ARRAY, p, key);
+            writeBytes(PackedArrays.toBytes(values));
+            end();
+        }
+
+        @Override
+        public void putLongArray(Persister p, String key, long[] values) {
+            begin(LONG_ARRAY, p, key);
+            writeBytes(PackedArrays.toBytes(values));
+            end();
+        }
+
+        @Override
+        public void putDoubleArray(Persister p, String key, double[] values) {
+            begin(DOUBLE_ARRAY, p, key);
+            writeBytes(PackedArrays.toBytes(values));
+            end();
+        }
+
+        @Override
+        public void newChild(Persister parent, String name) {
+            begin(CHILD, parent, name);
+            end();
+        }
+
+        private void begin(int tag, Persister p, String ref) {
+            length = 0;
+            writeByte(tag);
+            int depth = 0;
+            for (Persister q = p; q.parent() != null; q = q.parent()) {
+                if (depth == path.length) {
+                    path = Arrays.copyOf(path, depth * 2);
+                }
+                path[depth++] = q.index();
+            }
+            writeVarLong(depth);
+            for (int n = depth - 1; n >= 0; --n) {
+                writeVarLong(path[n]);
+            }
+            Integer index = dictionary.get(ref);
+            if (index != null) {
+                writeVarLong(index + 1);
+            } else {
+                dictionary.put(ref, dictionary.size());
+                writeByte(0);
+                writeString(ref);
+            }
+        }
+
+        private void end() {
+            crc.reset();
+            crc.update(record, 0, length);
+            try {
+                writeIntLE(length);
+                writeIntLE((int) crc.getValue());
+                out.write(record, 0, length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            size += FRAME_HEADER_LENGTH + length;
+            if (journal != null) {
+                journal.compactIfNeeded();
+            }
+        }
+
+        private void writeIntLE(int value) throws IOException {
+            out.write(value);
+            out.write(value >>> 8);
+            out.write(value >>> 16);
+            out.write(value >>> 24);
+        }
+
+        private void writeString(String s) {
+            writeBytes(s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, record, length, bytes.length);
+            length += bytes.length;
+        }
+
+        private void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                record[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            record[length++] = (byte) value;
+        }
+
+        private void writeByte(int b) {
+            ensureCapacity(1);
+            record[length++] = (byte) b;
+        }
+
+        private void ensureCapacity(int n) {
+            if (record.length - length < n) {
+                record = Arrays.copyOf(record, Math.max(record.length * 2, length + n));
+            }
+        }
+    }
+
+
+    /**
+     * Applies the records of a journal file to a Persister.
+     */
+    private static final class Replay {
+        private final Persister root;
+        final Map<String, Integer> dictionary = new HashMap<>();
+        private final List<String> refs = new ArrayList<>();
+        private byte[] bytes;
+        private int position;
+        private int limit;
+
+        Replay(Persister root) {
+            this.root = root;
+        }
+
+        /**
+         * Applies all complete records of the given journal file.
+         *
+         * @param last
+         *            whether this is the last journal, the only one that may end with a
+         *            partly written record.
+         * @return the length of the file up to the end of the last complete record.
+         */
+        long run(File file, boolean last) throws IOException {
+            bytes = Files.readAllBytes(file.toPath());
+            position = 0;
+            limit = bytes.length;
+            if (limit < MAGIC.length + 1) {
+                // The header was not completely written.
+                return checkTorn(file, last, 0);
+            }
+            for (byte b : MAGIC) {
+                if (bytes[position++] != b) {
+                    throw new IOException("Not a Persister journal: " + file);
+                }
+            }
+            int version = bytes[position++];
+            if (version != VERSION) {
+                throw new IOException("Unsupported Persister journal version: " + version);
+            }
+            CRC32 crc = new CRC32();
+            while (position < bytes.length) {
+                int start = position;
+                if (bytes.length - position < FRAME_HEADER_LENGTH) {
+                    return checkTorn(file, last, start);
+                }
+                int length = readIntLE();
+                int checksum = readIntLE();
+                if (length < 0 || bytes.length - position < length) {
+                    return checkTorn(file, last, start);
+                }
+                crc.reset();
+                crc.update(bytes, position, length);
+                if ((int) crc.getValue() != checksum) {
+                    return checkTorn(file, last, start);
+                }
+                limit = position + length;
+                apply();
+                if (position != limit) {
+                    throw new IOException("Corrupt journal: record too long in " + file);
+                }
+                limit = bytes.length;
+            }
+            return bytes.length;
+        }
+
+        private static long checkTorn(File file, boolean last, long validLength) throws IOException {
+            if (!last) {
+                throw new IOException("Corrupt journal: incomplete record in " + file);
+            }
+            return validLength;
+        }
+
+        private void apply() throws IOException {
+            int tag = readByte();
+            Persister p = root;
+            long depth = readVarLong();
+            try {
+                for (long n = 0; n < depth; ++n) {
+                    p = p.childAt((int) readVarLong());
+                }
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Corrupt journal: no such child", e);
+            }
+            String ref = readRef();
+            switch (tag) {
+            case STRING:
+                p.putString(ref, readString());
+                break;
+            case INT: {
+                int zigzag = (int) readVarLong();
+                p.putInt(ref, (zigzag >>> 1) ^ -(zigzag & 1));
+                break;
+            }
+            case LONG: {
+                long zigzag = readVarLong();
+                p.putLong(ref, (zigzag >>> 1) ^ -(zigzag & 1));
+                break;
+            }
+            case DOUBLE: {
+                long bits = 0;
+                for (int shift = 0; shift < 64; shift += 8) {
+                    bits |= (long) readByte() << shift;
+                }
+                p.putDouble(ref, Double.longBitsToDouble(bits));
+                break;
+            }
+            case INT_ARRAY:
+                p.adoptIntArray(ref, PackedArrays.toInts(readBytes(4)));
+                break;
+            case LONG_ARRAY:
+                p.adoptLongArray(ref, PackedArrays.toLongs(readBytes(8)));
+                break;
+            case DOUBLE_ARRAY:
+                p.adoptDoubleArray(ref, PackedArrays.toDoubles(readBytes(8)));
+                break;
+            case CHILD:
+                p.newChild(ref);
+                break;
+            default:
+                throw new IOException("Corrupt journal: unexpected tag " + tag);
+            }
+        }
+
+        private String readRef() throws IOException {
+            long ref = readVarLong();
+            if (ref == 0) {
+                String name = readString();
+                dictionary.put(name, refs.size());
+                refs.add(name);
+                return name;
+            }
+            if (ref > refs.size()) {
+                throw new IOException("Corrupt journal: invalid dictionary reference " + ref);
+            }
+            return refs.get((int) ref - 1);
+        }
+
+        private String readString() throws IOException {
+            long length = readVarLong();
+            if (length > limit - position) {
+                throw new IOException("Corrupt journal: invalid string length " + length);
+            }
+            String s = new String(bytes, position, (int) length, StandardCharsets.UTF_8);
+            position += (int) length;
+            return s;
+        }
+
+        /**
+         * Reads a byte length, and returns a view of that many bytes, which must be a multiple
+         * of the given element size.
+         */
+        private ByteBuffer readBytes(int elementSize) throws IOException {
+            long length = readVarLong();
+            if (length > limit - position || length % elementSize != 0) {
+                throw new IOException("Corrupt journal: invalid array length " + length);
+            }
+            ByteBuffer view = ByteBuffer.wrap(bytes, position, (int) length);
+            position += (int) length;
+            return view;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Corrupt journal: malformed varint");
+        }
+
+        private int readIntLE() {
+            int value = (bytes[position] & 0xFF)
+                    | (bytes[position + 1] & 0xFF) << 8
+                    | (bytes[position + 2] & 0xFF) << 16
+                    | (bytes[position + 3] & 0xFF) << 24;
+            position += 4;
+            return value;
+        }
+
+        private int readByte() throws IOException {
+            if (position == limit) {
+                throw new IOException("Corrupt journal: record too short");
+            }
+            return bytes[position++] & 0xFF;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package p3;
+
+/**
+ * Is notified of the work done when Persisters are stored and loaded, such as the time spent
+ * in each phase, the number of nodes and values, and the number of bytes written and read.
+ * <p>
+ * A single listener is {@linkplain #install(PersisterMetrics) installed} for all stores and
+ * loaders. By default this is {@link #NOOP}, in which case nothing is measured at all. All
+ * methods do nothing by default, so an implementation only needs to override the ones it is
+ * interested in. The methods may be called from several threads concurrently.
+ *
+ * @see PersisterMetricsCollector
+ */
+public interface PersisterMetrics {
+    /**
+     * The listener that ignores everything. When this is installed no measurements are made.
+     */
+    PersisterMetrics NOOP = new PersisterMetrics() {};
+
+    /**
+     * The phases of storing and loading.
+     */
+    enum Phase {
+        /**
+         * Storing a Persister in a {@link PersisterStore}, for instance building the DOM of an
+         * {@link XmlPersisterStore}. For the stores that write directly to a stream this includes
+         * the serialization.
+         */
+        STORE,
+        /**
+         * Writing a document that has been stored, for instance pretty printing the DOM of an
+         * {@link XmlPersisterStore}. For the stores that write directly to a stream, such as
+         * {@link StreamingXmlPersisterStore}, this is the time from opening the store until the
+         * document is finished, which includes storing.
+         */
+        SERIALIZE,
+        /**
+         * Parsing a document. For the loaders that build the Persister directly from the
+         * document, without an intermediate DOM, this includes the materialization.
+         */
+        PARSE,
+        /**
+         * Building a Persister from a parsed DOM.
+         */
+        MATERIALIZE
+    }
+
+    /**
+     * Installs the listener used by all stores and loaders.
+     */
+    static void install(PersisterMetrics metrics) {
+        Metrics.install(metrics);
+    }
+
+    /**
+     * Returns the listener currently installed.
+     */
+    static PersisterMetrics installed() {
+        return Metrics.installed();
+    }
+
+    /**
+     * Called when a phase has completed.
+     */
+    default void phaseCompleted(Phase phase, long nanos) {}
+
+    /**
+     * Called when a Persister has been stored, with the number of nodes of the tree and the
+     * number of values of each type, including arrays.
+     */
+    default void stored(long nodes, long strings, long ints, long longs, long doubles,
+            long intArrays, long longArrays, long doubleArrays) {}
+
+    /**
+     * Called when a Persister has been loaded, with the number of nodes of the tree and the
+     * number of values of each type, including arrays.
+     */
+    default void loaded(long nodes, long strings, long ints, long longs, long doubles,
+            long intArrays, long longArrays, long doubleArrays) {}
+
+    /**
+     * Called when a document has been written, if its size is known.
+     */
+    default void bytesWritten(long bytes) {}
+
+    /**
+     * Called when a document has been read, if its size is known.
+     */
+    default void bytesRead(long bytes) {}
+}
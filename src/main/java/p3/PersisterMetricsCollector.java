@@ -0,0 +1,204 @@
+package p3;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.collect.ImmutableSortedMap;
+
+/**
+ * A {@link PersisterMetrics} that collects all measurements into histograms in memory.
+ * <p>
+ * The histograms are named as follows. The times are in nanoseconds.
+ * <ul>
+ * <li>{@code phase.store}, {@code phase.serialize}, {@code phase.parse} and {@code phase.materialize}:
+ * the time of each phase</li>
+ * <li>{@code stored.nodes}, {@code stored.strings}, {@code stored.ints}, {@code stored.longs} and
+ * {@code stored.doubles}: the number of nodes and values of each stored Persister</li>
+ * <li>{@code stored.intArrays}, {@code stored.longArrays} and {@code stored.doubleArrays}: the
+ * number of arrays of each stored Persister</li>
+ * <li>{@code loaded.nodes} etc: the same for each loaded Persister</li>
+ * <li>{@code bytes.written} and {@code bytes.read}: the size of each document written and read</li>
+ * </ul>
+ * A histogram only exists once something has been recorded in it.
+ */
+public final class PersisterMetricsCollector implements PersisterMetrics {
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the histogram with the given name, or null if nothing has been recorded in it.
+     */
+    public Histogram histogram(String name) {
+        return histograms.get(requireNonNull(name));
+    }
+
+    /**
+     * Returns all histograms, by name.
+     */
+    public ImmutableSortedMap<String, Histogram> histograms() {
+        return ImmutableSortedMap.copyOf(histograms);
+    }
+
+    /**
+     * Removes all histograms.
+     */
+    public void reset() {
+        histograms.clear();
+    }
+
+    private void record(String name, long value) {
+        histograms.computeIfAbsent(name, n -> new Histogram()).record(value);
+    }
+
+    @Override
+    public void phaseCompleted(Phase phase, long nanos) {
+        switch (phase) {
+        case STORE:
+            record("phase.store", nanos);
+            break;
+        case SERIALIZE:
+            record("phase.serialize", nanos);
+            break;
+        case PARSE:
+            record("phase.parse", nanos);
+            break;
+        case MATERIALIZE:
+            record("phase.materialize", nanos);
+            break;
+        default:
+            throw new AssertionError(phase);
+        }
+    }
+
+    @Override
+    public void stored(long nodes, long strings, long ints, long longs, long doubles,
+            long intArrays, long longArrays, long doubleArrays) {
+        record("stored.nodes", nodes);
+        record("stored.strings", strings);
+        record("stored.ints", ints);
+        record("stored.longs", longs);
+        record("stored.doubles", doubles);
+        record("stored.intArrays", intArrays);
+        record("stored.longArrays", longArrays);
+        record("stored.doubleArrays", doubleArrays);
+    }
+
+    @Override
+    public void loaded(long nodes, long strings, long ints, long longs, long doubles,
+            long intArrays, long longArrays, long doubleArrays) {
+        record("loaded.nodes", nodes);
+        record("loaded.strings", strings);
+        record("loaded.ints", ints);
+        record("loaded.longs", longs);
+        record("loaded.doubles", doubles);
+        record("loaded.intArrays", intArrays);
+        record("loaded.longArrays", longArrays);
+        record("loaded.doubleArrays", doubleArrays);
+    }
+
+    @Override
+    public void bytesWritten(long bytes) {
+        record("bytes.written", bytes);
+    }
+
+    @Override
+    public void bytesRead(long bytes) {
+        record("bytes.read", bytes);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        histograms().forEach((name, h) -> sb.append(name).append(": ").append(h).append('\n'));
+        return sb.toString();
+    }
+
+
+    /**
+     * A histogram of non-negative values, with a bucket for each power of two. Values can be
+     * recorded concurrently, without locking.
+     */
+    public static final class Histogram {
+        /**
+         * Bucket n holds the values with n significant bits, i.e. bucket 0 holds 0, and bucket
+         * n &gt; 0 holds the values from 2^(n-1) up to 2^n - 1.
+         */
+        private final AtomicLongArray buckets = new AtomicLongArray(65);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+        Histogram() {}
+
+        void record(long value) {
+            long v = Math.max(value, 0);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(v));
+            count.increment();
+            sum.add(v);
+            min.accumulateAndGet(v, Math::min);
+            max.accumulateAndGet(v, Math::max);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long sum() {
+            return sum.sum();
+        }
+
+        /**
+         * Returns the smallest value recorded, or 0 if none.
+         */
+        public long min() {
+            return (count() == 0) ? 0 : min.get();
+        }
+
+        /**
+         * Returns the largest value recorded, or 0 if none.
+         */
+        public long max() {
+            return (count() == 0) ? 0 : max.get();
+        }
+
+        public double mean() {
+            long n = count();
+            return (n == 0) ? 0 : (double) sum() / n;
+        }
+
+        /**
+         * Returns an upper bound of the given percentile of the recorded values, which is
+         * at most twice the actual value.
+         *
+         * @param percentile
+         *            between 0 and 100.
+         */
+        public long percentile(double percentile) {
+            long n = count();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * Math.min(Math.max(percentile, 0), 100) / 100);
+            long seen = 0;
+            for (int b = 0; b < 65; ++b) {
+                seen += buckets.get(b);
+                if (seen >= Math.max(rank, 1)) {
+                    long upper = (b == 0) ? 0 : (b == 64) ? Long.MAX_VALUE : (1L << b) - 1;
+                    return Math.min(upper, max());
+                }
+            }
+            return max();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d min=%d mean=%.1f p50=%d p99=%d max=%d",
+                    count(), min(), mean(), percentile(50), percentile(99), max());
+        }
+    }
+}
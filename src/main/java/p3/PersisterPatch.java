@@ -0,0 +1,129 @@
+package p3;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates and applies patches, which hold the changes made to a Persister tree since it
+ * was last {@linkplain Persister#markClean() marked as clean}. This allows for incremental
+ * saves, where only the changes are written instead of the whole tree:
+ * <pre>
+ * Persister patch = PersisterPatch.create(root);
+ * XmlPersisterStore.newInstance().store(patch).writeTo(patchFile);
+ * root.markClean();
+ * </pre>
+ * The tree is restored by loading the last full save, and then applying all patches written
+ * since then, in order.
+ * <p>
+ * A patch is itself a Persister, so it can be saved with any PersisterStore. It contains
+ * one child per change:
+ * <ul>
+ * <li>an {@value #UPDATE} child for every Persister whose values have changed, with a
+ * {@value #PATH} child identifying the Persister and a {@value #VALUES} child holding all
+ * its values; and</li>
+ * <li>an {@value #APPEND} child for every added child, with a {@value #PATH} child identifying
+ * the parent, the name of the added child as the string {@value #NAME}, and a copy of the
+ * added child and all its descendants as the {@value #NODE} child.</li>
+ * </ul>
+ * A path is a list of {@value #SEGMENT} children, from the root down, where every segment
+ * holds the {@value #NAME} of a child and its {@value #INDEX} among the children with that
+ * name.
+ * <p>
+ * The cost of creating a patch is proportional to the size of the changes, not to the size of
+ * the tree, since unchanged subtrees are never visited. Changes are tracked per Persister, so
+ * an update contains all values of a changed Persister, not only the changed ones.
+ */
+public final class PersisterPatch {
+    static final String UPDATE = "update";
+    static final String APPEND = "append";
+    static final String PATH = "path";
+    static final String SEGMENT = "segment";
+    static final String VALUES = "values";
+    static final String NODE = "node";
+    static final String NAME = "name";
+    static final String INDEX = "index";
+
+    private PersisterPatch() {}
+
+    /**
+     * Creates a patch holding the changes made to the given Persister and its descendants
+     * since the last call to {@link Persister#markClean()}. The Persister itself is not
+     * modified, i.e. it is not marked as clean.
+     */
+    public static Persister create(Persister root) {
+        requireNonNull(root);
+        Persister patch = new Persister();
+        Persister path = new Persister();
+        collect(root, path, patch);
+        return patch;
+    }
+
+    private static void collect(Persister p, Persister path, Persister patch) {
+        if (!p.isDirty()) {
+            return;
+        }
+        if (p.hasDirtyValues()) {
+            Persister update = patch.newChild(UPDATE);
+            path.copyTo(update.newChild(PATH));
+            p.copyValuesTo(update.newChild(VALUES));
+        }
+        List<Persister> children = p.children();
+        Map<String, Integer> indices = new HashMap<>();
+        for (int n = 0, size = children.size(); n < size; ++n) {
+            Persister child = children.get(n);
+            int index = indices.merge(child.name(), 1, Integer::sum) - 1;
+            if (child.isAdded()) {
+                Persister append = patch.newChild(APPEND);
+                path.copyTo(append.newChild(PATH));
+                append.putString(NAME, child.name());
+                child.copyTo(append.newChild(NODE));
+            } else if (child.isDirty()) {
+                Persister childPath = new Persister();
+                path.copyTo(childPath);
+                childPath.newChild(SEGMENT).putString(NAME, child.name()).putInt(INDEX, index);
+                collect(child, childPath, patch);
+            }
+        }
+    }
+
+    /**
+     * Applies a patch created by {@link #create(Persister)} to the given Persister, which
+     * must be in the state the patched Persister was in when it was last marked as clean.
+     *
+     * @throws IllegalArgumentException
+     *             if the patch is malformed, or does not match the given Persister.
+     */
+    public static void apply(Persister patch, Persister target) {
+        requireNonNull(patch);
+        requireNonNull(target);
+        for (Persister change : patch.children()) {
+            Persister p = resolve(target, change.getChild(PATH));
+            switch (change.name()) {
+            case UPDATE:
+                change.getChild(VALUES).copyValuesTo(p);
+                break;
+            case APPEND:
+                change.getChild(NODE).copyTo(p.newChild(change.getString(NAME)));
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid patch: unexpected change " + change.name());
+            }
+        }
+    }
+
+    private static Persister resolve(Persister root, Persister path) {
+        Persister p = root;
+        for (Persister segment : path.children()) {
+            String name = segment.getString(NAME);
+            int index = segment.getInt(INDEX);
+            Persister child = p.getChild(name, index);
+            checkArgument(child != null, "The patch does not match the Persister: no child %s[%s]", name, index);
+            p = child;
+        }
+        return p;
+    }
+}
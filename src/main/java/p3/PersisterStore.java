@@ -1,19 +1,51 @@
 package p3;
 
+import java.util.List;
+
 public abstract class PersisterStore<T extends PersisterStore<T>> {
     abstract void putString(String key, String value);
     abstract void putInt(String key, int value);
     abstract void putLong(String key, long value);
     abstract void putDouble(String key, double value);
+    abstract void putIntArray(String key, int[] values);
+    abstract void putLongArray(String key, long[] values);
+    abstract void putDoubleArray(String key, double[] values);
     abstract PersisterStore<T> newChild(String name);
     
+    /**
+     * Stores the children of a Persister, in the given order. The default implementation
+     * stores them one after the other, in a new child store each.
+     */
+    void storeChildren(List<Persister> children) {
+        for (Persister child : children) {
+            child.storeIn(newChild(child.name()));
+        }
+    }
+    
     /**
      * Stores the given Persister in this storage.
      * 
      * @return {@code this} storage.
      */
     public final T store(Persister persister) {
+        PersisterMetrics metrics = Metrics.installed();
+        long start = Metrics.start(metrics);
         persister.storeIn(this);
+        if (metrics != PersisterMetrics.NOOP) {
+            metrics.phaseCompleted(PersisterMetrics.Phase.STORE, System.nanoTime() - start);
+            Metrics.stored(metrics, persister);
+        }
+        return self();
+    }
+    
+    /**
+     * Stores the given object in this storage, using the given codec. Unlike
+     * {@code store(codec.encode(value))} this does not build an intermediate Persister.
+     * 
+     * @return {@code this} storage.
+     */
+    public final <V> T store(V value, PersisterCodec<V> codec) {
+        codec.writeTo(value, this);
         return self();
     }
     
@@ -0,0 +1,43 @@
+package p3;
+
+/**
+ * Receives the values and children of a Persister tree, as it is walked by
+ * {@link Persister#accept(PersisterVisitor)}. All methods have empty default
+ * implementations, so that a visitor only needs to implement what it is
+ * interested in.
+ */
+public interface PersisterVisitor {
+
+    default void visitString(String key, String value) {}
+
+    default void visitInt(String key, int value) {}
+
+    default void visitLong(String key, long value) {}
+
+    default void visitDouble(String key, double value) {}
+
+    /**
+     * Called with a copy of an int array, after all single values of the Persister.
+     */
+    default void visitIntArray(String key, int[] values) {}
+
+    default void visitLongArray(String key, long[] values) {}
+
+    default void visitDoubleArray(String key, double[] values) {}
+
+    /**
+     * Called before the values and children of a child are visited.
+     * 
+     * @return {@code true} if the child should be visited, {@code false} if the child
+     *         and all its descendants should be skipped. {@link #exitChild(String, Persister)}
+     *         is not called for a skipped child.
+     */
+    default boolean enterChild(String name, Persister child) {
+        return true;
+    }
+
+    /**
+     * Called after the values and children of a child have been visited.
+     */
+    default void exitChild(String name, Persister child) {}
+}
@@ -0,0 +1,274 @@
+package p3;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Saves Persisters to files in the background.
+ * <p>
+ * {@link #save(Persister, File, PersisterFormat)} takes a {@linkplain Persister#snapshot() snapshot}
+ * of the Persister, and returns immediately. The snapshot is then serialized in a background thread,
+ * to a temporary file in the same directory as the target file, which is synced to disk and then
+ * atomically renamed to the target file. A crash during the save therefore leaves either the old
+ * or the new file in place, never a partially written one.
+ * <p>
+ * Saves of the same file are done one at a time, in order. If a file is saved again before an earlier
+ * save of it has started, only the latest Persister is written, and both saves complete when it has
+ * been written.
+ * <p>
+ * A file that is replaced keeps its permissions, where the file system supports POSIX permissions.
+ * A new file gets the default permissions of the platform.
+ */
+public final class PersisterWriter implements Closeable {
+    private final ExecutorService executor;
+    private final ConcurrentMap<File, Target> targets = new ConcurrentHashMap<>();
+
+    private PersisterWriter(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a writer that saves files in a single background thread.
+     */
+    public static PersisterWriter newInstance() {
+        return newInstance(1);
+    }
+
+    /**
+     * Creates a writer that saves up to the given number of different files concurrently.
+     */
+    public static PersisterWriter newInstance(int threads) {
+        return new PersisterWriter(Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "PersisterWriter");
+            t.setDaemon(true);
+            return t;
+        }));
+    }
+
+    /**
+     * Saves a Persister to a file in the background.
+     *
+     * @return a future that is completed when the Persister, or a Persister saved to the same
+     *         file later, has been written.
+     */
+    public CompletableFuture<Void> save(Persister persister, File file, PersisterFormat format) {
+        Persister snapshot = persister.snapshot();
+        requireNonNull(format);
+        while (true) {
+            Target target = targets.computeIfAbsent(file.getAbsoluteFile(), Target::new);
+            CompletableFuture<Void> future = target.save(snapshot, format);
+            if (future != null) {
+                return future;
+            }
+            // The target has just been removed, since it was idle.
+        }
+    }
+
+    /**
+     * Returns the number of files that have saves pending or in progress.
+     */
+    int activeTargets() {
+        return targets.size();
+    }
+
+    /**
+     * Waits for all saves to complete, and stops the background threads. Saves
+     * requested after this fail with a {@link RejectedExecutionException}.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // Keep waiting.
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for saves to complete", e);
+        }
+    }
+
+    /**
+     * Writes a Persister to a temporary file, syncs it to disk, and renames it to the given file.
+     */
+    static void writeAtomically(Persister persister, File file, PersisterFormat format) throws IOException {
+        Path target = file.toPath().toAbsolutePath();
+        Path dir = target.getParent();
+        Path temp = createTempFile(dir, target.getFileName().toString());
+        try {
+            copyPermissions(target, temp);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+                format.write(persister, out);
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        syncDirectory(dir);
+    }
+
+    /**
+     * Creates a new, empty file in the given directory. Unlike {@link Files#createTempFile},
+     * which restricts the permissions to the owner, this gives the file the default permissions.
+     */
+    private static Path createTempFile(Path dir, String prefix) throws IOException {
+        while (true) {
+            Path temp = dir.resolve(prefix + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+            try {
+                return Files.createFile(temp);
+            } catch (FileAlreadyExistsException e) {
+                // Try another name.
+            }
+        }
+    }
+
+    /**
+     * Gives the temporary file the permissions of the file it replaces, if it exists and the
+     * file system supports POSIX permissions.
+     */
+    private static void copyPermissions(Path target, Path temp) throws IOException {
+        if (Files.getFileAttributeView(target, PosixFileAttributeView.class) == null) {
+            return;
+        }
+        try {
+            Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+        } catch (NoSuchFileException e) {
+            // The file is new.
+        }
+    }
+
+    /**
+     * Syncs the directory, to make the rename durable. Not all platforms support this,
+     * so failures are ignored.
+     */
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported on this platform.
+        }
+    }
+
+
+    /**
+     * The saves of a file.
+     */
+    private final class Target {
+        private final File file;
+        /**
+         * The latest Persister to save, if a save is pending.
+         */
+        @Nullable
+        private Persister pending;
+        private PersisterFormat format;
+        @Nullable
+        private CompletableFuture<Void> pendingFuture;
+        /**
+         * Whether a task is scheduled or running that saves the pending Persister.
+         */
+        private boolean scheduled;
+        /**
+         * Whether this target has been removed from the map of targets, since it was idle.
+         * A save of the same file then creates a new target.
+         */
+        private boolean removed;
+
+        Target(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Saves the given Persister, or returns null if this target has been removed.
+         */
+        @Nullable
+        synchronized CompletableFuture<Void> save(Persister persister, PersisterFormat format) {
+            if (removed) {
+                return null;
+            }
+            this.pending = persister;
+            this.format = format;
+            if (pendingFuture == null) {
+                pendingFuture = new CompletableFuture<>();
+            }
+            CompletableFuture<Void> future = pendingFuture;
+            if (!scheduled) {
+                try {
+                    executor.execute(this::drain);
+                    scheduled = true;
+                } catch (RejectedExecutionException e) {
+                    pending = null;
+                    pendingFuture = null;
+                    remove();
+                    future.completeExceptionally(e);
+                }
+            }
+            return future;
+        }
+
+        /**
+         * Saves pending Persisters until there are none left.
+         */
+        private void drain() {
+            while (true) {
+                Persister persister;
+                PersisterFormat format;
+                CompletableFuture<Void> future;
+                synchronized (this) {
+                    if (pending == null) {
+                        scheduled = false;
+                        remove();
+                        return;
+                    }
+                    persister = pending;
+                    format = this.format;
+                    future = pendingFuture;
+                    pending = null;
+                    pendingFuture = null;
+                }
+                try {
+                    writeAtomically(persister, file, format);
+                    future.complete(null);
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        }
+
+        /**
+         * Removes this idle target from the map of targets, so that the map does not grow with
+         * every file ever saved. Must be called while holding the lock of this target.
+         */
+        private void remove() {
+            removed = true;
+            targets.remove(file, this);
+        }
+    }
+}
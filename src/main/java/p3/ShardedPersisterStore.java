@@ -0,0 +1,316 @@
+package p3;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Stores a Persister in a directory, with every child of the root in a file of its own, called
+ * a shard. The values of the root are in a shard as well, and a manifest lists the names and
+ * shards of the children, in order. Shards are written and read in parallel, and a single child
+ * can be loaded without reading the rest of the tree:
+ * <pre>
+ * ShardedPersisterStore.newInstance(PersisterFormat.BINARY).store(root).writeTo(dir);
+ * Persister root = ShardedPersisterStore.load(dir, PersisterFormat.BINARY);
+ * ImmutableList&lt;Persister&gt; users = ShardedPersisterStore.loadChildren(dir, PersisterFormat.BINARY, "user");
+ * </pre>
+ * A shard is named after the {@linkplain Persister#digest() digest} of its contents, which is
+ * computed from the stored contents on every write, so a shard that is already in the
+ * directory is not written again. Saving a large tree in which
+ * only a few children have changed therefore writes only those children, and the manifest.
+ * Every file is written to a temporary file first and then renamed, with the manifest last,
+ * so a failed save leaves the previous contents of the directory readable. Shards that are no
+ * longer listed in the manifest are deleted after it has been written.
+ * <p>
+ * The shards and the manifest are written in a {@link PersisterFormat}, which can be any of
+ * the standard formats, or a format of its own built on any other {@link PersisterStore}.
+ * A directory must always be read and written in the same format.
+ * <p>
+ * Storing a Persister takes a {@linkplain Persister#snapshot() snapshot} of every child, so
+ * the Persister can be modified while it is being written.
+ */
+public final class ShardedPersisterStore extends PersisterStore<ShardedPersisterStore> {
+    static final String MANIFEST = "manifest";
+    static final String VERSION = "version";
+    static final String VALUES = "values";
+    static final String SHARD = "shard";
+    static final String NAME = "name";
+    static final String FILE = "file";
+    static final String SHARD_SUFFIX = ".shard";
+    private static final int CURRENT_VERSION = 1;
+    private static final Pattern SHARD_FILE = Pattern.compile("[0-9a-f]{32}\\.shard");
+
+    private final PersisterFormat format;
+    /**
+     * The values and children stored so far. For the store of a child, this is the child.
+     */
+    private final Persister root;
+
+    private ShardedPersisterStore(PersisterFormat format, Persister root) {
+        this.format = format;
+        this.root = root;
+    }
+
+    /**
+     * Creates a store that writes the shards and the manifest in the given format.
+     */
+    public static ShardedPersisterStore newInstance(PersisterFormat format) {
+        return new ShardedPersisterStore(requireNonNull(format), new Persister());
+    }
+
+    @Override
+    void putString(String key, String value) {
+        root.putString(key, value);
+    }
+
+    @Override
+    void putInt(String key, int value) {
+        root.putInt(key, value);
+    }
+
+    @Override
+    void putLong(String key, long value) {
+        root.putLong(key, value);
+    }
+
+    @Override
+    void putDouble(String key, double value) {
+        root.putDouble(key, value);
+    }
+
+    @Override
+    void putIntArray(String key, int[] values) {
+        root.putIntArray(key, values);
+    }
+
+    @Override
+    void putLongArray(String key, long[] values) {
+        root.putLongArray(key, values);
+    }
+
+    @Override
+    void putDoubleArray(String key, double[] values) {
+        root.putDoubleArray(key, values);
+    }
+
+    @Override
+    ShardedPersisterStore newChild(String name) {
+        return new ShardedPersisterStore(format, root.newChild(name));
+    }
+
+    @Override
+    void storeChildren(List<Persister> children) {
+        for (Persister child : children) {
+            root.graftChild(child.name(), child.snapshot());
+        }
+    }
+
+    @Override
+    protected ShardedPersisterStore self() {
+        return this;
+    }
+
+    /**
+     * Writes the stored Persister to the given directory, which is created if needed. The
+     * shards are written in the common pool.
+     *
+     * @return the number of shards written, which excludes the shards that were already in
+     *         the directory.
+     */
+    public int writeTo(File dir) throws IOException {
+        return writeTo(dir, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Writes the stored Persister to the given directory, which is created if needed. The
+     * shards are written in the given executor.
+     *
+     * @return the number of shards written, which excludes the shards that were already in
+     *         the directory.
+     */
+    public int writeTo(File dir, Executor executor) throws IOException {
+        requireNonNull(dir);
+        requireNonNull(executor);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create the directory " + dir);
+        }
+        // The shards to write, by file name. Children with the same contents share a shard.
+        Map<String, Persister> shards = new LinkedHashMap<>();
+        Persister manifest = new Persister();
+        manifest.putInt(VERSION, CURRENT_VERSION);
+        Persister values = new Persister();
+        root.copyValuesTo(values);
+        manifest.putString(VALUES, addShard(values, shards));
+        for (Persister child : root.children()) {
+            manifest.newChild(SHARD)
+                    .putString(NAME, child.name())
+                    .putString(FILE, addShard(child, shards));
+        }
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (Map.Entry<String, Persister> e : shards.entrySet()) {
+            File file = new File(dir, e.getKey());
+            if (!file.exists()) {
+                Persister shard = e.getValue();
+                writes.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        PersisterWriter.writeAtomically(shard, file, format);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }, executor));
+            }
+        }
+        join(writes);
+        PersisterWriter.writeAtomically(manifest, new File(dir, MANIFEST), format);
+        deleteUnlistedShards(dir, shards.keySet());
+        return writes.size();
+    }
+
+    private static String addShard(Persister shard, Map<String, Persister> shards) {
+        // A shard is skipped if a file with its name exists, so the name must never come
+        // from a cached digest that could be out of date.
+        String fileName = shard.uncachedDigest() + SHARD_SUFFIX;
+        shards.putIfAbsent(fileName, shard);
+        return fileName;
+    }
+
+    private static void deleteUnlistedShards(File dir, Set<String> listed) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Failed to list the directory " + dir);
+        }
+        for (File file : files) {
+            String fileName = file.getName();
+            if (SHARD_FILE.matcher(fileName).matches() && !listed.contains(fileName) && !file.delete()) {
+                throw new IOException("Failed to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Loads a Persister from a directory written by a ShardedPersisterStore. The shards are
+     * read in the common pool.
+     */
+    public static Persister load(File dir, PersisterFormat format) throws IOException {
+        return load(dir, format, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Loads a Persister from a directory written by a ShardedPersisterStore. The shards are
+     * read in the given executor.
+     */
+    public static Persister load(File dir, PersisterFormat format, Executor executor) throws IOException {
+        requireNonNull(dir);
+        requireNonNull(format);
+        requireNonNull(executor);
+        Persister manifest = readManifest(dir, format);
+        List<Persister> entries = manifest.getChildren(SHARD);
+        Map<String, CompletableFuture<Persister>> reads = new HashMap<>();
+        CompletableFuture<Persister> values = read(dir, manifest.getString(VALUES), format, executor, reads);
+        for (Persister entry : entries) {
+            read(dir, entry.getString(FILE), format, executor, reads);
+        }
+        join(reads.values());
+        // The shards are added to the tree without being copied.
+        Persister root = values.join();
+        for (Persister entry : entries) {
+            root.graftChild(entry.getString(NAME), reads.get(entry.getString(FILE)).join());
+        }
+        return root;
+    }
+
+    /**
+     * Loads the children of the root with the given name from a directory written by
+     * a ShardedPersisterStore, in order, without reading any other shards. The shards
+     * are read in the common pool.
+     */
+    public static ImmutableList<Persister> loadChildren(File dir, PersisterFormat format, String name) throws IOException {
+        requireNonNull(dir);
+        requireNonNull(format);
+        requireNonNull(name);
+        Persister manifest = readManifest(dir, format);
+        Executor executor = ForkJoinPool.commonPool();
+        Map<String, CompletableFuture<Persister>> reads = new HashMap<>();
+        List<CompletableFuture<Persister>> children = new ArrayList<>();
+        for (Persister entry : manifest.getChildren(SHARD)) {
+            if (entry.getString(NAME).equals(name)) {
+                children.add(read(dir, entry.getString(FILE), format, executor, reads));
+            }
+        }
+        join(children);
+        ImmutableList.Builder<Persister> builder = ImmutableList.builder();
+        for (CompletableFuture<Persister> child : children) {
+            // Children with the same contents share a shard, and must not share the Persister.
+            builder.add(child.join().snapshot());
+        }
+        return builder.build();
+    }
+
+    private static Persister readManifest(File dir, PersisterFormat format) throws IOException {
+        File file = new File(dir, MANIFEST);
+        if (!file.isFile()) {
+            throw new FileNotFoundException("No manifest in " + dir);
+        }
+        Persister manifest = read(file, format);
+        int version = manifest.getInt(VERSION, 0);
+        if (version != CURRENT_VERSION) {
+            throw new IOException("Unsupported sharded store version: " + version);
+        }
+        return manifest;
+    }
+
+    /**
+     * Starts reading the given shard, unless it is already being read.
+     */
+    private static CompletableFuture<Persister> read(File dir, String fileName, PersisterFormat format,
+            Executor executor, Map<String, CompletableFuture<Persister>> reads) {
+        return reads.computeIfAbsent(fileName, f -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return read(new File(dir, f), format);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor));
+    }
+
+    private static Persister read(File file, PersisterFormat format) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return format.read(in);
+        }
+    }
+
+    /**
+     * Waits for all the given futures, and rethrows the first failure.
+     */
+    private static void join(Collection<? extends CompletableFuture<?>> futures) throws IOException {
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw e;
+        }
+    }
+}
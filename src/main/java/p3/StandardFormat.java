@@ -0,0 +1,77 @@
+package p3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.xml.sax.SAXException;
+
+/**
+ * The formats of the stores in this package.
+ */
+enum StandardFormat implements PersisterFormat {
+    XML {
+
+        @Override
+        public void write(Persister persister, OutputStream out) throws IOException {
+            StreamingXmlPersisterStore store = StreamingXmlPersisterStore.open(out);
+            store.store(persister);
+            store.finish();
+        }
+
+        @Override
+        public Persister read(InputStream in) throws IOException {
+            try {
+                return XmlPersisterStore.load(in);
+            } catch (SAXException e) {
+                throw new IOException(e);
+            }
+        }
+    },
+
+    COMPRESSED_XML {
+
+        @Override
+        public void write(Persister persister, OutputStream out) throws IOException {
+            CompressedOutputStream compressed = new CompressedOutputStream(out);
+            XML.write(persister, compressed);
+            compressed.finish();
+        }
+
+        @Override
+        public Persister read(InputStream in) throws IOException {
+            // The XML loader detects the compression.
+            return XML.read(in);
+        }
+    },
+
+    JSON {
+
+        @Override
+        public void write(Persister persister, OutputStream out) throws IOException {
+            JsonPersisterStore store = JsonPersisterStore.open(out);
+            store.store(persister);
+            store.finish();
+        }
+
+        @Override
+        public Persister read(InputStream in) throws IOException {
+            return JsonPersisterStore.load(in);
+        }
+    },
+
+    BINARY {
+
+        @Override
+        public void write(Persister persister, OutputStream out) throws IOException {
+            BinaryPersisterStore store = BinaryPersisterStore.open(out);
+            store.store(persister);
+            store.finish();
+        }
+
+        @Override
+        public Persister read(InputStream in) throws IOException {
+            return BinaryPersisterStore.load(in);
+        }
+    };
+}
@@ -0,0 +1,470 @@
+package p3;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.Objects.requireNonNull;
+import static p3.XmlPersisterStore.DOUBLE_ARRAY_VALS;
+import static p3.XmlPersisterStore.DOUBLE_VALS;
+import static p3.XmlPersisterStore.INT_ARRAY_VALS;
+import static p3.XmlPersisterStore.INT_VALS;
+import static p3.XmlPersisterStore.LONG_ARRAY_VALS;
+import static p3.XmlPersisterStore.LONG_VALS;
+import static p3.XmlPersisterStore.NAME_ATTR;
+import static p3.XmlPersisterStore.PERSISTER_ELEMENT;
+import static p3.XmlPersisterStore.ROOT_NAME;
+import static p3.XmlPersisterStore.STRING_VALS;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * A PersisterStore that writes the XML representation directly to an output
+ * stream as the Persister tree is walked, without building a DOM. The output
+ * can be read back with {@link XmlPersisterStore#load(java.io.InputStream)}.
+ * <p>
+ * Only the path from the root to the node currently being written is kept in
+ * memory, so the memory footprint does not depend on the size of the document.
+ * A consequence of this is that a child store can only be written to until one
+ * of its siblings (or an ancestor) is written to, at which point its element is
+ * closed.
+ * <p>
+ * The document is completed by calling {@link #finish()} or {@link #close()}.
+ * <p>
+ * In {@linkplain #parallel(ForkJoinPool) parallel mode}, sibling subtrees are serialized
+ * concurrently into separate in-memory fragments, which are then written in their original
+ * order. The output is identical to that of a sequential store, but in this mode the
+ * subtrees being serialized are buffered in memory.
+ */
+public final class StreamingXmlPersisterStore extends PersisterStore<StreamingXmlPersisterStore> implements Closeable {
+    private static final int INDENT = 2;
+    /**
+     * The number of fragments per thread that the children of a node are split into, when
+     * stored in parallel. More fragments than threads allow for balancing uneven subtrees.
+     */
+    private static final int FRAGMENTS_PER_THREAD = 4;
+    /**
+     * Children are stored sequentially when the current worker thread already has more than
+     * this number of queued tasks that have not been stolen by other threads.
+     */
+    private static final int SURPLUS_TASKS_THRESHOLD = 2;
+    private static final ThreadLocal<XMLOutputFactory> OUTPUT_FACTORY = ThreadLocal.withInitial(XMLOutputFactory::newInstance);
+
+    private final Output output;
+    private final int depth;
+
+    private StreamingXmlPersisterStore(Output output, int depth) {
+        this.output = output;
+        this.depth = depth;
+    }
+
+    /**
+     * Creates a store that writes UTF-8 encoded XML to the given stream.
+     */
+    public static StreamingXmlPersisterStore open(OutputStream out) throws IOException {
+        requireNonNull(out);
+        if (Metrics.installed() == PersisterMetrics.NOOP) {
+            return open(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+        }
+        CountingOutputStream counter = new CountingOutputStream(out);
+        return open(new BufferedWriter(new OutputStreamWriter(counter, StandardCharsets.UTF_8)), counter);
+    }
+
+    /**
+     * Creates a store that writes XML to the given file.
+     */
+    public static StreamingXmlPersisterStore open(File file) throws IOException {
+        requireNonNull(file);
+        return open(new FileOutputStream(file));
+    }
+
+    /**
+     * Creates a store that writes XML to the given writer.
+     */
+    public static StreamingXmlPersisterStore open(Writer writer) throws IOException {
+        requireNonNull(writer);
+        return open(writer, null);
+    }
+
+    /**
+     * Creates a store that writes XML to the given writer, and reports the size of the
+     * document from the given counter, if any, once it is finished.
+     */
+    private static StreamingXmlPersisterStore open(Writer writer, @Nullable CountingOutputStream counter) throws IOException {
+        try {
+            XMLStreamWriter xml = OUTPUT_FACTORY.get().createXMLStreamWriter(writer);
+            Output output = new Output(writer, xml, 0, null);
+            output.start = Metrics.start(Metrics.installed());
+            output.counter = counter;
+            xml.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+            StreamingXmlPersisterStore root = new StreamingXmlPersisterStore(output, 0);
+            output.startNode(root, ROOT_NAME);
+            return root;
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    void putString(String key, String value) {
+        requireNonNull(key);
+        requireNonNull(value);
+        try {
+            output.group(this, STRING_VALS, false);
+            output.indent(depth + 2);
+            output.xml.writeStartElement(key);
+            output.xml.writeCharacters(value);
+            output.xml.writeEndElement();
+        } catch (XMLStreamException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    void putInt(String key, int value) {
+        putAttribute(INT_VALS, key, String.valueOf(value));
+    }
+
+    @Override
+    void putLong(String key, long value) {
+        putAttribute(LONG_VALS, key, String.valueOf(value));
+    }
+
+    @Override
+    void putDouble(String key, double value) {
+        putAttribute(DOUBLE_VALS, key, String.valueOf(value));
+    }
+
+    @Override
+    void putIntArray(String key, int[] values) {
+        putAttribute(INT_ARRAY_VALS, key, PackedArrays.encode(values));
+    }
+
+    @Override
+    void putLongArray(String key, long[] values) {
+        putAttribute(LONG_ARRAY_VALS, key, PackedArrays.encode(values));
+    }
+
+    @Override
+    void putDoubleArray(String key, double[] values) {
+        putAttribute(DOUBLE_ARRAY_VALS, key, PackedArrays.encode(values));
+    }
+
+    private void putAttribute(String group, String key, String value) {
+        requireNonNull(key);
+        try {
+            output.group(this, group, true);
+            output.xml.writeAttribute(key, value);
+        } catch (XMLStreamException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    StreamingXmlPersisterStore newChild(String name) {
+        requireNonNull(name);
+        try {
+            output.enter(this);
+            StreamingXmlPersisterStore child = new StreamingXmlPersisterStore(output, depth + 1);
+            output.startNode(child, name);
+            return child;
+        } catch (XMLStreamException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    void storeChildren(List<Persister> children) {
+        ForkJoinPool pool = output.pool;
+        if (pool == null || children.size() < 2 ||
+                (ForkJoinTask.getPool() == pool && ForkJoinTask.getSurplusQueuedTaskCount() > SURPLUS_TASKS_THRESHOLD)) {
+            super.storeChildren(children);
+            return;
+        }
+        try {
+            output.enter(this);
+            int size = children.size();
+            int fragmentCount = Math.min(size, pool.getParallelism() * FRAGMENTS_PER_THREAD);
+            List<Fragment> fragments = new ArrayList<>(fragmentCount);
+            for (int n = 0; n < fragmentCount; ++n) {
+                List<Persister> siblings = children.subList(size * n / fragmentCount, size * (n + 1) / fragmentCount);
+                fragments.add(new Fragment(siblings, depth + 1, pool));
+            }
+            if (ForkJoinTask.getPool() == pool) {
+                ForkJoinTask.invokeAll(fragments);
+            } else {
+                pool.invoke(new RecursiveAction() {
+
+                    @Override
+                    protected void compute() {
+                        invokeAll(fragments);
+                    }
+                });
+            }
+            for (Fragment f : fragments) {
+                output.writeRaw(f.join());
+            }
+        } catch (XMLStreamException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    protected StreamingXmlPersisterStore self() {
+        return this;
+    }
+
+    /**
+     * Enables parallel mode, in which the children of a node are serialized concurrently
+     * in the given pool. This must be called before anything is stored.
+     * 
+     * @return {@code this} store.
+     */
+    public StreamingXmlPersisterStore parallel(ForkJoinPool pool) {
+        requireNonNull(pool);
+        checkState(depth == 0 && output.isEmpty(), "Parallel mode must be enabled before anything is stored");
+        output.pool = pool;
+        return this;
+    }
+
+    /**
+     * Closes all open elements, ends the document and flushes the output. The underlying
+     * stream or writer is left open. No more values can be written after this.
+     */
+    public void finish() throws IOException {
+        try {
+            output.finish();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Finishes the document, if not already done, and closes the underlying stream or writer.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            output.writer.close();
+        }
+    }
+
+
+    /**
+     * Serializes a range of sibling subtrees into a string.
+     */
+    private static final class Fragment extends RecursiveTask<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Persister> siblings;
+        private final int depth;
+        private final ForkJoinPool pool;
+
+        Fragment(List<Persister> siblings, int depth, ForkJoinPool pool) {
+            this.siblings = siblings;
+            this.depth = depth;
+            this.pool = pool;
+        }
+
+        @Override
+        protected String compute() {
+            try {
+                StringWriter writer = new StringWriter();
+                XMLStreamWriter xml = OUTPUT_FACTORY.get().createXMLStreamWriter(writer);
+                Output output = new Output(writer, xml, depth, pool);
+                for (Persister p : siblings) {
+                    StreamingXmlPersisterStore store = new StreamingXmlPersisterStore(output, depth);
+                    output.startNode(store, p.name());
+                    p.storeIn(store);
+                    output.endNodes();
+                }
+                xml.flush();
+                return writer.toString();
+            } catch (XMLStreamException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+
+    /**
+     * The state shared by all stores writing to the same document, or to the same fragment
+     * of a document.
+     */
+    private static final class Output {
+        final Writer writer;
+        final XMLStreamWriter xml;
+        /**
+         * The depth of the outermost node elements written by this output.
+         */
+        private final int baseDepth;
+        @Nullable
+        ForkJoinPool pool;
+        /**
+         * The stores whose node elements are currently open, indexed by depth relative to
+         * the base depth.
+         */
+        private final List<StreamingXmlPersisterStore> openNodes = new ArrayList<>();
+        /**
+         * Whether the corresponding open node element has any content.
+         */
+        private final List<Boolean> nodeHasContent = new ArrayList<>();
+        /**
+         * The value group element that is open in the innermost node, if any.
+         */
+        @Nullable
+        private String openGroup;
+        private boolean finished;
+        /**
+         * The time the document was started, if metrics are installed. This is 0 for
+         * fragments, which do not report any metrics.
+         */
+        long start;
+        /**
+         * Counts the bytes of the document, if metrics are installed and it is written
+         * to a stream.
+         */
+        @Nullable
+        CountingOutputStream counter;
+
+        Output(Writer writer, XMLStreamWriter xml, int baseDepth, @Nullable ForkJoinPool pool) {
+            this.writer = writer;
+            this.xml = xml;
+            this.baseDepth = baseDepth;
+            this.pool = pool;
+        }
+
+        boolean isEmpty() {
+            return openNodes.size() == 1 && !nodeHasContent.get(0);
+        }
+
+        void startNode(StreamingXmlPersisterStore store, String name) throws XMLStreamException {
+            indent(store.depth);
+            xml.writeStartElement(PERSISTER_ELEMENT);
+            xml.writeAttribute(NAME_ATTR, name);
+            openNodes.add(store);
+            nodeHasContent.add(false);
+        }
+
+        /**
+         * Makes the node element of the given store the innermost open element, closing
+         * any open value group and any deeper node elements.
+         */
+        void enter(StreamingXmlPersisterStore store) throws XMLStreamException {
+            checkState(!finished, "The document has been finished");
+            int index = store.depth - baseDepth;
+            checkState(index < openNodes.size() && openNodes.get(index) == store,
+                    "The store is no longer writable, since a sibling or an ancestor has been written to");
+            while (openNodes.size() > index + 1) {
+                endNode();
+            }
+            closeGroup();
+            nodeHasContent.set(index, true);
+        }
+
+        /**
+         * Makes sure a value group element with the given name is open in the node element
+         * of the given store.
+         */
+        void group(StreamingXmlPersisterStore store, String group, boolean attributesOnly) throws XMLStreamException {
+            int index = store.depth - baseDepth;
+            if (group.equals(openGroup) && openNodes.size() == index + 1 && openNodes.get(index) == store) {
+                return;
+            }
+            enter(store);
+            indent(store.depth + 1);
+            if (attributesOnly) {
+                xml.writeEmptyElement(group);
+            } else {
+                xml.writeStartElement(group);
+            }
+            openGroup = group;
+        }
+
+        private void closeGroup() throws XMLStreamException {
+            if (openGroup == null) {
+                return;
+            }
+            if (openGroup.equals(STRING_VALS)) {
+                indent(baseDepth + openNodes.size());
+                xml.writeEndElement();
+            }
+            openGroup = null;
+        }
+
+        private void endNode() throws XMLStreamException {
+            closeGroup();
+            int last = openNodes.size() - 1;
+            if (nodeHasContent.get(last)) {
+                indent(baseDepth + last);
+            }
+            xml.writeEndElement();
+            openNodes.remove(last);
+            nodeHasContent.remove(last);
+        }
+
+        void indent(int level) throws XMLStreamException {
+            StringBuilder sb = new StringBuilder(1 + level * INDENT).append('\n');
+            for (int n = 0; n < level * INDENT; ++n) {
+                sb.append(' ');
+            }
+            xml.writeCharacters(sb.toString());
+        }
+
+        /**
+         * Writes an already serialized fragment of the document.
+         */
+        void writeRaw(String fragment) throws XMLStreamException, IOException {
+            // Makes sure that the start tag of the current element is closed.
+            xml.writeCharacters("");
+            xml.flush();
+            writer.write(fragment);
+        }
+
+        void endNodes() throws XMLStreamException {
+            while (!openNodes.isEmpty()) {
+                endNode();
+            }
+        }
+
+        void finish() throws XMLStreamException, IOException {
+            if (finished) {
+                return;
+            }
+            endNodes();
+            xml.writeCharacters("\n");
+            xml.writeEndDocument();
+            xml.flush();
+            finished = true;
+            if (start != 0) {
+                // The writer must be flushed for the counter to see every byte.
+                writer.flush();
+                Metrics.written(Metrics.installed(), start, (counter == null) ? -1 : counter.getCount());
+            }
+        }
+    }
+}
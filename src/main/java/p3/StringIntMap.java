@@ -0,0 +1,183 @@
+package p3;
+
+import java.util.function.ObjIntConsumer;
+
+/**
+ * A map from String keys to int values, using open addressing with linear probing.
+ * Unlike a {@code Map<String, Integer>} it stores the values unboxed, and does not allocate
+ * anything on lookups. The arrays are not allocated until the first value is put.
+ * <p>
+ * {@link #equals(Object)} and {@link #hashCode()} follow the contract of {@link java.util.Map},
+ * i.e. they give the same results as the equivalent {@code Map<String, Integer>} would.
+ */
+final class StringIntMap {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private String[] keys;
+    private int[] values;
+    private int size;
+
+    StringIntMap() {}
+
+    /**
+     * Creates a copy of the given map.
+     */
+    StringIntMap(StringIntMap source) {
+        if (source.keys != null) {
+            this.keys = source.keys.clone();
+            this.values = source.values.clone();
+            this.size = source.size;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the number of slots. Together with {@link #keyAt(int)} and {@link #valueAt(int)}
+     * this allows for iterating over the entries without allocating.
+     */
+    int slots() {
+        return (keys == null) ? 0 : keys.length;
+    }
+
+    /**
+     * Returns the key in the given slot, or null if the slot is empty.
+     */
+    String keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Returns the slot of the given key, or -1 if the key is not present.
+     */
+    int indexOf(String key) {
+        if (keys == null) {
+            return -1;
+        }
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            String k = keys[slot];
+            if (k == null) {
+                return -1;
+            }
+            if (k.equals(key)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Returns the value in the given slot.
+     */
+    int valueAt(int slot) {
+        return values[slot];
+    }
+
+    int getOrDefault(String key, int defVal) {
+        int slot = indexOf(key);
+        return (slot < 0) ? defVal : values[slot];
+    }
+
+    void put(String key, int value) {
+        if (keys == null) {
+            keys = new String[INITIAL_CAPACITY];
+            values = new int[INITIAL_CAPACITY];
+        }
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        for (String k = keys[slot]; k != null; k = keys[slot]) {
+            if (k.equals(key)) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size * 4 > keys.length * 3) {
+            resize();
+        }
+    }
+
+    private void resize() {
+        String[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new String[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int n = 0; n < oldKeys.length; ++n) {
+            String k = oldKeys[n];
+            if (k != null) {
+                int slot = hash(k) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = k;
+                values[slot] = oldValues[n];
+            }
+        }
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    void forEach(ObjIntConsumer<String> action) {
+        if (keys == null) {
+            return;
+        }
+        for (int n = 0; n < keys.length; ++n) {
+            if (keys[n] != null) {
+                action.accept(keys[n], values[n]);
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (obj instanceof StringIntMap) {
+            StringIntMap that = (StringIntMap) obj;
+            if (this.size != that.size) {
+                return false;
+            }
+            for (int n = 0; this.keys != null && n < this.keys.length; ++n) {
+                if (this.keys[n] != null) {
+                    int slot = that.indexOf(this.keys[n]);
+                    if (slot < 0 || this.values[n] != that.values[slot]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 0;
+        for (int n = 0; keys != null && n < keys.length; ++n) {
+            if (keys[n] != null) {
+                h += keys[n].hashCode() ^ Integer.hashCode(values[n]);
+            }
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        forEach((k, v) -> sb.append(sb.length() > 1 ? ", " : "").append(k).append('=').append(v));
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,279 @@
+package p3;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static p3.XmlPersisterStore.DOUBLE_ARRAY_VALS;
+import static p3.XmlPersisterStore.DOUBLE_VALS;
+import static p3.XmlPersisterStore.INT_ARRAY_VALS;
+import static p3.XmlPersisterStore.INT_VALS;
+import static p3.XmlPersisterStore.LONG_ARRAY_VALS;
+import static p3.XmlPersisterStore.LONG_VALS;
+import static p3.XmlPersisterStore.NAME_ATTR;
+import static p3.XmlPersisterStore.PERSISTER_ELEMENT;
+import static p3.XmlPersisterStore.STRING_VALS;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.CountingInputStream;
+
+/**
+ * Builds a Persister directly from SAX parse events, without going via a DOM.
+ * Only the path from the root to the node currently being parsed is kept
+ * in addition to the Persister tree itself.
+ * <p>
+ * The loader can also be given a path of child names, in which case only the nodes at
+ * the end of the path are built, as separate root Persisters. All other nodes are skipped
+ * as they are parsed.
+ */
+final class XmlPersisterLoader extends DefaultHandler {
+    /**
+     * The Persisters being built, from the innermost outwards.
+     */
+    private final Deque<Persister> persisters = new ArrayDeque<>();
+    private final StringBuilder text = new StringBuilder();
+    private final KeyDictionary keys = new KeyDictionary();
+    /**
+     * The child names leading to the nodes to build, empty to build the whole tree.
+     */
+    private final ImmutableList<String> path;
+    private final ImmutableList.Builder<Persister> results = ImmutableList.builder();
+    private boolean started;
+    /**
+     * The number of names of the path matched by the currently open nodes.
+     */
+    private int matched;
+    /**
+     * The value group element we are currently in, if any.
+     */
+    @Nullable
+    private String group;
+    /**
+     * The key of the string value element we are currently in, if any.
+     */
+    @Nullable
+    private String stringKey;
+    /**
+     * The number of currently open elements whose content is not relevant to us,
+     * such as elements nested inside a string value.
+     */
+    private int ignoredDepth;
+
+    private XmlPersisterLoader(List<String> path) {
+        this.path = ImmutableList.copyOf(path);
+    }
+
+    static Persister load(File file) throws SAXException, IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return parse(fileSource(file, in), ImmutableList.of()).result();
+        }
+    }
+
+    static Persister load(InputStream in) throws SAXException, IOException {
+        return parse(new InputSource(in), ImmutableList.of()).result();
+    }
+
+    static Persister load(InputSource source) throws SAXException, IOException {
+        return parse(source, ImmutableList.of()).result();
+    }
+
+    /**
+     * Returns a source that reads the given file from the given stream of its contents.
+     * Unlike a source with only a system id, the stream can be decompressed if needed.
+     */
+    static InputSource fileSource(File file, InputStream in) {
+        InputSource source = new InputSource(in);
+        source.setSystemId(file.toURI().toASCIIString());
+        return source;
+    }
+
+    /**
+     * Loads the nodes at the end of the given path of child names.
+     */
+    static ImmutableList<Persister> load(InputSource source, List<String> path) throws SAXException, IOException {
+        XmlPersisterLoader loader = parse(source, path);
+        if (!loader.started) {
+            throw new IllegalArgumentException("Invalid XML: no root element");
+        }
+        return loader.results.build();
+    }
+
+    /**
+     * Parses the given source, reporting to the installed metrics. A byte stream is
+     * decompressed if it holds a {@linkplain CompressedOutputStream compressed} document.
+     */
+    private static XmlPersisterLoader parse(InputSource source, List<String> path) throws SAXException, IOException {
+        XmlPersisterLoader loader = new XmlPersisterLoader(path);
+        PersisterMetrics metrics = Metrics.installed();
+        CountingInputStream counter = null;
+        if (source.getByteStream() != null) {
+            InputStream in = source.getByteStream();
+            if (metrics != PersisterMetrics.NOOP) {
+                // Counts the bytes as stored, before any decompression.
+                counter = new CountingInputStream(in);
+                in = counter;
+            }
+            source.setByteStream(CompressedInputStream.decompressIfCompressed(in));
+        }
+        if (metrics == PersisterMetrics.NOOP) {
+            newParser().parse(source, loader);
+            return loader;
+        }
+        long start = System.nanoTime();
+        newParser().parse(source, loader);
+        metrics.phaseCompleted(PersisterMetrics.Phase.PARSE, System.nanoTime() - start);
+        if (counter != null) {
+            metrics.bytesRead(counter.getCount());
+        }
+        for (Persister p : loader.results.build()) {
+            Metrics.loaded(metrics, p);
+        }
+        return loader;
+    }
+
+    private static SAXParser newParser() throws SAXException {
+        try {
+            return SAXParserFactory.newInstance().newSAXParser();
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Persister result() {
+        if (!started) {
+            throw new IllegalArgumentException("Invalid XML: no root element");
+        }
+        return results.build().get(0);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        if (!started) {
+            checkArgument(qName.equals(PERSISTER_ELEMENT), "Expected root element name %s but got %s", PERSISTER_ELEMENT, qName);
+            started = true;
+            if (path.isEmpty()) {
+                startResult();
+            }
+            return;
+        }
+        if (ignoredDepth > 0 || stringKey != null) {
+            ++ignoredDepth;
+            return;
+        }
+        if (persisters.isEmpty()) {
+            // We are in a node on the path, looking for the next name of the path. Everything
+            // else, including the values of the node, is skipped.
+            if (qName.equals(PERSISTER_ELEMENT) && path.get(matched).equals(attributes.getValue(NAME_ATTR))) {
+                if (++matched == path.size()) {
+                    startResult();
+                }
+            } else {
+                ++ignoredDepth;
+            }
+            return;
+        }
+        if (group != null) {
+            if (group.equals(STRING_VALS)) {
+                stringKey = keys.intern(qName);
+                text.setLength(0);
+            } else {
+                ++ignoredDepth;
+            }
+            return;
+        }
+        Persister p = persisters.peek();
+        switch (qName) {
+        case STRING_VALS:
+            break;
+        case INT_VALS:
+            for (int n = 0; n < attributes.getLength(); ++n) {
+                p.putInt(keys.intern(attributes.getQName(n)), Integer.parseInt(attributes.getValue(n)));
+            }
+            break;
+        case LONG_VALS:
+            for (int n = 0; n < attributes.getLength(); ++n) {
+                p.putLong(keys.intern(attributes.getQName(n)), Long.parseLong(attributes.getValue(n)));
+            }
+            break;
+        case DOUBLE_VALS:
+            for (int n = 0; n < attributes.getLength(); ++n) {
+                p.putDouble(keys.intern(attributes.getQName(n)), Double.parseDouble(attributes.getValue(n)));
+            }
+            break;
+        case INT_ARRAY_VALS:
+            for (int n = 0; n < attributes.getLength(); ++n) {
+                p.adoptIntArray(keys.intern(attributes.getQName(n)), PackedArrays.decodeInts(attributes.getValue(n)));
+            }
+            break;
+        case LONG_ARRAY_VALS:
+            for (int n = 0; n < attributes.getLength(); ++n) {
+                p.adoptLongArray(keys.intern(attributes.getQName(n)), PackedArrays.decodeLongs(attributes.getValue(n)));
+            }
+            break;
+        case DOUBLE_ARRAY_VALS:
+            for (int n = 0; n < attributes.getLength(); ++n) {
+                p.adoptDoubleArray(keys.intern(attributes.getQName(n)), PackedArrays.decodeDoubles(attributes.getValue(n)));
+            }
+            break;
+        case PERSISTER_ELEMENT:
+            String name = attributes.getValue(NAME_ATTR);
+            if (Strings.isNullOrEmpty(name)) {
+                throw new IllegalArgumentException("Invalid XML: <" + PERSISTER_ELEMENT + "> element without " + NAME_ATTR + " attribute.");
+            }
+            persisters.push(p.newChild(keys.intern(name)));
+            return;
+        default:
+            throw new RuntimeException("Unexpected element encountered: " + qName);
+        }
+        group = qName;
+    }
+
+    private void startResult() {
+        Persister p = new Persister();
+        results.add(p);
+        persisters.push(p);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (stringKey != null) {
+            text.append(ch, start, length);
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        if (ignoredDepth > 0) {
+            --ignoredDepth;
+        } else if (stringKey != null) {
+            persisters.peek().putString(stringKey, text.toString().trim());
+            stringKey = null;
+        } else if (group != null) {
+            group = null;
+        } else if (persisters.isEmpty()) {
+            // A node on the path has ended.
+            --matched;
+        } else {
+            persisters.pop();
+            if (persisters.isEmpty()) {
+                --matched;
+            }
+        }
+    }
+}
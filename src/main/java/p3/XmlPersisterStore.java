@@ -4,11 +4,15 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static java.util.Objects.requireNonNull;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 
@@ -20,13 +24,15 @@ import javax.xml.parsers.ParserConfigurationException;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.CountingOutputStream;
 
 import tzeth.exhume.dom.Attributes;
-import tzeth.exhume.dom.DomParsers;
 import tzeth.exhume.dom.Elements;
 import tzeth.exhume.dom.XmlPrettyPrint;
 
@@ -36,12 +42,20 @@ public final class XmlPersisterStore extends PersisterStore<XmlPersisterStore> {
     // Another option would be to implement some kind of escape mechanism, and (if necessary) 
     // include a translation table in the XML representation.
 
-    private static final String PERSISTER_ELEMENT = "node";
-    private static final String NAME_ATTR = "name";
-    private static final String STRING_VALS = "strings";
-    private static final String INT_VALS = "ints";
-    private static final String LONG_VALS = "longs";
-    private static final String DOUBLE_VALS = "doubles";
+    static final String PERSISTER_ELEMENT = "node";
+    static final String NAME_ATTR = "name";
+    static final String STRING_VALS = "strings";
+    static final String INT_VALS = "ints";
+    static final String LONG_VALS = "longs";
+    static final String DOUBLE_VALS = "doubles";
+    /**
+     * The arrays are written as attributes like the single values, with the base64 encoded
+     * little endian bytes of the elements as attribute values.
+     */
+    static final String INT_ARRAY_VALS = "intArrays";
+    static final String LONG_ARRAY_VALS = "longArrays";
+    static final String DOUBLE_ARRAY_VALS = "doubleArrays";
+    static final String ROOT_NAME = "_root_";
     
     private final Document document;
     private final Element element;
@@ -49,6 +63,9 @@ public final class XmlPersisterStore extends PersisterStore<XmlPersisterStore> {
     private Element intVals;
     private Element longVals;
     private Element doubleVals;
+    private Element intArrayVals;
+    private Element longArrayVals;
+    private Element doubleArrayVals;
 
     private XmlPersisterStore(Document doc) {
         this.document = requireNonNull(doc);
@@ -78,27 +95,141 @@ public final class XmlPersisterStore extends PersisterStore<XmlPersisterStore> {
             DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
             DocumentBuilder builder = factory.newDocumentBuilder();
             Document doc = builder.newDocument();
-            return new XmlPersisterStore(doc, "_root_", null);
+            return new XmlPersisterStore(doc, ROOT_NAME, null);
         } catch (ParserConfigurationException e) {
             throw new RuntimeException(e);
         }
     }
     
     public static Persister load(Document doc) {
+        PersisterMetrics metrics = Metrics.installed();
+        long start = Metrics.start(metrics);
         XmlPersisterStore store = new XmlPersisterStore(doc);
-        return store.toPersister();
+        Persister p = store.toPersister();
+        if (metrics != PersisterMetrics.NOOP) {
+            metrics.phaseCompleted(PersisterMetrics.Phase.MATERIALIZE, System.nanoTime() - start);
+            Metrics.loaded(metrics, p);
+        }
+        return p;
     }
     
+    /**
+     * Loads a Persister from an XML file. The Persister is built directly from the
+     * parse events, without first building a DOM of the document. A file written with
+     * {@link #writeCompressedTo(File)} is decompressed on the fly.
+     */
     public static Persister load(File file) throws SAXException, IOException {
-        return load(DomParsers.parseFile(file));
+        requireNonNull(file);
+        return XmlPersisterLoader.load(file);
     }
     
+    /**
+     * Loads a Persister from an XML stream. The Persister is built directly from the
+     * parse events, without first building a DOM of the document. A stream written with
+     * {@link #writeCompressedTo(OutputStream)} is decompressed on the fly.
+     */
     public static Persister load(InputStream in) throws SAXException, IOException {
-        return load(DomParsers.parseStream(in));
+        requireNonNull(in);
+        return XmlPersisterLoader.load(in);
     }
     
+    /**
+     * Loads a Persister from a string of XML. The Persister is built directly from the
+     * parse events, without first building a DOM of the document.
+     */
     public static Persister load(String content) throws SAXException {
-        return load(DomParsers.parseXml(content));
+        requireNonNull(content);
+        try {
+            return XmlPersisterLoader.load(new InputSource(new StringReader(content)));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Loads the Persisters at the end of the given path of child names from an XML file.
+     * For example, the path {@code ["plugins", "plugin"]} gives the {@code plugin} children
+     * of all {@code plugins} children of the root, in document order. An empty path gives
+     * the root.
+     * <p>
+     * Only the Persisters at the end of the path, and their descendants, are built. All other
+     * nodes are skipped as the document is parsed, so the memory used does not depend on the
+     * size of the rest of the document. The returned Persisters are roots.
+     */
+    public static ImmutableList<Persister> load(File file, List<String> path) throws SAXException, IOException {
+        requireNonNull(file);
+        requireNonNull(path);
+        try (InputStream in = new FileInputStream(file)) {
+            return XmlPersisterLoader.load(XmlPersisterLoader.fileSource(file, in), path);
+        }
+    }
+    
+    /**
+     * Loads the Persisters at the end of the given path of child names from an XML stream.
+     * 
+     * @see #load(File, List)
+     */
+    public static ImmutableList<Persister> load(InputStream in, List<String> path) throws SAXException, IOException {
+        requireNonNull(in);
+        requireNonNull(path);
+        return XmlPersisterLoader.load(new InputSource(in), path);
+    }
+    
+    /**
+     * Loads the Persisters at the end of the given path of child names from a string of XML.
+     * 
+     * @see #load(File, List)
+     */
+    public static ImmutableList<Persister> load(String content, List<String> path) throws SAXException {
+        requireNonNull(content);
+        requireNonNull(path);
+        try {
+            return XmlPersisterLoader.load(new InputSource(new StringReader(content)), path);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Loads a Persister from an XML file, building sibling child Persisters concurrently
+     * in the given pool. The document itself is parsed sequentially into a DOM first.
+     * The children of every Persister are in document order, just like with a
+     * sequential load.
+     */
+    public static Persister load(File file, ForkJoinPool pool) throws SAXException, IOException {
+        requireNonNull(file);
+        requireNonNull(pool);
+        try (InputStream in = new FileInputStream(file)) {
+            return ParallelXmlPersisterLoader.load(XmlPersisterLoader.fileSource(file, in), pool);
+        }
+    }
+    
+    /**
+     * Loads a Persister from an XML stream, building sibling child Persisters concurrently
+     * in the given pool. The document itself is parsed sequentially into a DOM first.
+     * The children of every Persister are in document order, just like with a
+     * sequential load.
+     */
+    public static Persister load(InputStream in, ForkJoinPool pool) throws SAXException, IOException {
+        requireNonNull(in);
+        requireNonNull(pool);
+        return ParallelXmlPersisterLoader.load(new InputSource(in), pool);
+    }
+    
+    /**
+     * Loads a Persister from a string of XML, building sibling child Persisters concurrently
+     * in the given pool. The document itself is parsed sequentially into a DOM first.
+     * The children of every Persister are in document order, just like with a
+     * sequential load.
+     */
+    public static Persister load(String content, ForkJoinPool pool) throws SAXException {
+        requireNonNull(content);
+        requireNonNull(pool);
+        try {
+            return ParallelXmlPersisterLoader.load(new InputSource(new StringReader(content)), pool);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
@@ -139,6 +270,33 @@ public final class XmlPersisterStore extends PersisterStore<XmlPersisterStore> {
         doubleVals.setAttribute(key, String.valueOf(value));
     }
 
+    @Override
+    void putIntArray(String key, int[] values) {
+        requireNonNull(key);
+        if (intArrayVals == null) {
+            intArrayVals = createElement(INT_ARRAY_VALS, element);
+        }
+        intArrayVals.setAttribute(key, PackedArrays.encode(values));
+    }
+
+    @Override
+    void putLongArray(String key, long[] values) {
+        requireNonNull(key);
+        if (longArrayVals == null) {
+            longArrayVals = createElement(LONG_ARRAY_VALS, element);
+        }
+        longArrayVals.setAttribute(key, PackedArrays.encode(values));
+    }
+
+    @Override
+    void putDoubleArray(String key, double[] values) {
+        requireNonNull(key);
+        if (doubleArrayVals == null) {
+            doubleArrayVals = createElement(DOUBLE_ARRAY_VALS, element);
+        }
+        doubleArrayVals.setAttribute(key, PackedArrays.encode(values));
+    }
+
     @Override
     XmlPersisterStore newChild(String name) {
         requireNonNull(name);
@@ -154,7 +312,13 @@ public final class XmlPersisterStore extends PersisterStore<XmlPersisterStore> {
      * Returns a string representation of the XML.
      */
     public String getXml() {
-        return prettyPrinter().toString(this.document);
+        PersisterMetrics metrics = Metrics.installed();
+        long start = Metrics.start(metrics);
+        String xml = prettyPrinter().toString(this.document);
+        if (metrics != PersisterMetrics.NOOP) {
+            metrics.phaseCompleted(PersisterMetrics.Phase.SERIALIZE, System.nanoTime() - start);
+        }
+        return xml;
     }
     
     /**
@@ -162,12 +326,48 @@ public final class XmlPersisterStore extends PersisterStore<XmlPersisterStore> {
      */
     public void writeTo(File file) throws IOException {
         requireNonNull(file);
+        PersisterMetrics metrics = Metrics.installed();
+        long start = Metrics.start(metrics);
         prettyPrinter().write(this.document, file);
+        if (metrics != PersisterMetrics.NOOP) {
+            metrics.phaseCompleted(PersisterMetrics.Phase.SERIALIZE, System.nanoTime() - start);
+            metrics.bytesWritten(file.length());
+        }
     }
     
     public void writeTo(OutputStream out) throws IOException {
         requireNonNull(out);
-        prettyPrinter().write(this.document, new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        PersisterMetrics metrics = Metrics.installed();
+        if (metrics == PersisterMetrics.NOOP) {
+            prettyPrinter().write(this.document, new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            return;
+        }
+        long start = System.nanoTime();
+        CountingOutputStream counter = new CountingOutputStream(out);
+        prettyPrinter().write(this.document, new OutputStreamWriter(counter, StandardCharsets.UTF_8));
+        metrics.phaseCompleted(PersisterMetrics.Phase.SERIALIZE, System.nanoTime() - start);
+        metrics.bytesWritten(counter.getCount());
+    }
+    
+    /**
+     * Writes the XML to a file, compressed with a {@link CompressedOutputStream}.
+     */
+    public void writeCompressedTo(File file) throws IOException {
+        requireNonNull(file);
+        try (CompressedOutputStream out = CompressedOutputStream.open(file)) {
+            writeTo(out);
+        }
+    }
+    
+    /**
+     * Writes the XML to a stream, compressed with a {@link CompressedOutputStream}. The
+     * stream is left open.
+     */
+    public void writeCompressedTo(OutputStream out) throws IOException {
+        requireNonNull(out);
+        CompressedOutputStream compressed = new CompressedOutputStream(out);
+        writeTo(compressed);
+        compressed.finish();
     }
     
     private static XmlPrettyPrint prettyPrinter() {
@@ -177,27 +377,36 @@ public final class XmlPersisterStore extends PersisterStore<XmlPersisterStore> {
     @VisibleForTesting
     Persister toPersister() {
         Persister p = new Persister();
-        loadPersister(p, this.element);
+        loadPersister(p, this.element, new KeyDictionary());
         return p;
     }
 
-    private static void loadPersister(Persister p, Element parent) {
+    private static void loadPersister(Persister p, Element parent, KeyDictionary keys) {
         for (Element e : Elements.under(parent)) {
             switch (e.getNodeName()) {
             case STRING_VALS:
-                loadStrings(e, p);
+                loadStrings(e, p, keys);
                 break;
             case INT_VALS:
-                loadInts(e, p);
+                loadInts(e, p, keys);
                 break;
             case LONG_VALS:
-                loadLongs(e, p);
+                loadLongs(e, p, keys);
                 break;
             case DOUBLE_VALS:
-                loadDoubles(e, p);
+                loadDoubles(e, p, keys);
+                break;
+            case INT_ARRAY_VALS:
+                loadAttrValues(e, keys, PackedArrays::decodeInts, p::adoptIntArray);
+                break;
+            case LONG_ARRAY_VALS:
+                loadAttrValues(e, keys, PackedArrays::decodeLongs, p::adoptLongArray);
+                break;
+            case DOUBLE_ARRAY_VALS:
+                loadAttrValues(e, keys, PackedArrays::decodeDoubles, p::adoptDoubleArray);
                 break;
             case PERSISTER_ELEMENT:
-                loadChild(e, p);
+                loadChild(e, p, keys);
                 break;
             default:
                 throw new RuntimeException("Unexpected element encountered: " + e.getNodeName());
@@ -205,40 +414,40 @@ public final class XmlPersisterStore extends PersisterStore<XmlPersisterStore> {
         }
     }
     
-    private static void loadStrings(Element stringVals, Persister p) {
+    private static void loadStrings(Element stringVals, Persister p, KeyDictionary keys) {
         for (Element e : Elements.under(stringVals)) {
-            String key = e.getNodeName();
+            String key = keys.intern(e.getNodeName());
             String value = e.getTextContent().trim();
             p.putString(key, value);
         }
     }
     
-    private static void loadInts(Element intVals, Persister p) {
-        loadAttrValues(intVals, p, Integer::valueOf, p::putInt);
+    private static void loadInts(Element intVals, Persister p, KeyDictionary keys) {
+        loadAttrValues(intVals, keys, Integer::valueOf, p::putInt);
     }
     
-    private static void loadLongs(Element longVals, Persister p) {
-        loadAttrValues(longVals, p, Long::valueOf, p::putLong);
+    private static void loadLongs(Element longVals, Persister p, KeyDictionary keys) {
+        loadAttrValues(longVals, keys, Long::valueOf, p::putLong);
     }
     
-    private static void loadDoubles(Element doubleVals, Persister p) {
-        loadAttrValues(doubleVals, p, Double::valueOf, p::putDouble);
+    private static void loadDoubles(Element doubleVals, Persister p, KeyDictionary keys) {
+        loadAttrValues(doubleVals, keys, Double::valueOf, p::putDouble);
     }
     
-    private static <T> void loadAttrValues(Element e, Persister p, Function<String, T> valueFactory, BiConsumer<String, T> consumer) {
+    private static <T> void loadAttrValues(Element e, KeyDictionary keys, Function<String, T> valueFactory, BiConsumer<String, T> consumer) {
         for (Attr attr : Attributes.in(e)) {
-            String key = attr.getName();
+            String key = keys.intern(attr.getName());
             T value = valueFactory.apply(attr.getValue());
             consumer.accept(key, value);
         }
     }
     
-    private static void loadChild(Element e, Persister p) {
+    private static void loadChild(Element e, Persister p, KeyDictionary keys) {
         String name = e.getAttribute(NAME_ATTR);
         if (Strings.isNullOrEmpty(name)) {
             throw new IllegalArgumentException("Invalid XML: <" + PERSISTER_ELEMENT + "> element without " + NAME_ATTR + " attribute.");
         }
-        Persister child = p.newChild(name);
-        loadPersister(child, e);
+        Persister child = p.newChild(keys.intern(name));
+        loadPersister(child, e, keys);
     }
 }
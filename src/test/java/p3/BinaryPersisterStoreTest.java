@@ -0,0 +1,174 @@
+package p3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public final class BinaryPersisterStoreTest {
+
+    @Test
+    public void hierarchicalPersister() throws Exception {
+        Persister p = createPersister();
+
+        Persister restored = BinaryPersisterStore.load(toBytes(p));
+        assertEquals(p, restored);
+    }
+
+    @Test
+    public void extremeValues() throws Exception {
+        Persister p = new Persister();
+        p.putInt("min", Integer.MIN_VALUE);
+        p.putInt("max", Integer.MAX_VALUE);
+        p.putInt("minusOne", -1);
+        p.putLong("min", Long.MIN_VALUE);
+        p.putLong("max", Long.MAX_VALUE);
+        p.putDouble("nan", Double.NaN);
+        p.putDouble("negZero", -0.0);
+        p.putDouble("inf", Double.NEGATIVE_INFINITY);
+        p.putDouble("tiny", Double.MIN_VALUE);
+        p.putString("empty", "");
+        p.putString("padded", "  not trimmed  ");
+        p.putString("unicode", "\u00e5\u00e4\u00f6 \u20ac \ud83d\ude00");
+        char[] chars = new char[20000];
+        Arrays.fill(chars, '\u00e9');
+        p.putString("long", new String(chars));
+
+        assertEquals(p, BinaryPersisterStore.load(new ByteArrayInputStream(toBytes(p))));
+    }
+
+    @Test
+    public void packedArrays() throws Exception {
+        Persister p = new Persister();
+        // Larger than the buffers of the store and the loader.
+        double[] doubles = new double[5000];
+        for (int n = 0; n < doubles.length; ++n) {
+            doubles[n] = Math.sin(n);
+        }
+        p.putDoubleArray("d", doubles);
+        p.putIntArray("i", new int[] { Integer.MIN_VALUE, -1, 0, Integer.MAX_VALUE });
+        p.newChild("c").putLongArray("l", new long[] { Long.MIN_VALUE, Long.MAX_VALUE });
+        p.putLongArray("empty", new long[0]);
+        byte[] bytes = toBytes(p);
+
+        assertEquals(p, BinaryPersisterStore.load(bytes));
+        assertEquals(p, BinaryPersisterStore.load(new ByteArrayInputStream(bytes)));
+        // The elements are written raw, 8 bytes per double.
+        assertTrue(bytes.length < 8 * doubles.length + 200);
+    }
+
+    @Test
+    public void channelRoundTrip() throws Exception {
+        Persister p = createPersister();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (BinaryPersisterStore store = BinaryPersisterStore.open(Channels.newChannel(out))) {
+            store.store(p);
+        }
+
+        Persister restored = BinaryPersisterStore.load(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+        assertEquals(p, restored);
+    }
+
+    @Test
+    public void smallerThanXml() throws Exception {
+        Persister p = new Persister();
+        for (int n = 0; n < 1000; ++n) {
+            Persister c = p.newChild("item");
+            c.putInt("id", n);
+            c.putLong("timestamp", 1500000000000L + n);
+            c.putDouble("value", n * 0.5);
+        }
+        XmlPersisterStore xml = XmlPersisterStore.newInstance();
+        xml.store(p);
+
+        assertTrue(toBytes(p).length * 3 < xml.getXml().length());
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedDocument() throws Exception {
+        byte[] bytes = toBytes(createPersister());
+        BinaryPersisterStore.load(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    @Test(expected = EOFException.class)
+    public void corruptLengthInBytes() throws Exception {
+        BinaryPersisterStore.load(corruptLength());
+    }
+
+    @Test(expected = EOFException.class)
+    public void corruptLengthInStream() throws Exception {
+        BinaryPersisterStore.load(new ByteArrayInputStream(corruptLength()));
+    }
+
+    @Test
+    public void longValuesFromStream() throws Exception {
+        char[] chars = new char[3 << 20];
+        Arrays.fill(chars, 'x');
+        Persister p = new Persister();
+        p.putString("s", new String(chars));
+        p.putLongArray("l", new long[300000]);
+
+        assertEquals(p, BinaryPersisterStore.load(new ByteArrayInputStream(toBytes(p))));
+    }
+
+    @Test(expected = IOException.class)
+    public void notABinaryDocument() throws Exception {
+        BinaryPersisterStore.load(new ByteArrayInputStream("<node/>".getBytes("UTF-8")));
+    }
+
+    /**
+     * Returns a document with a string value whose length is close to 2 GB.
+     */
+    private static byte[] corruptLength() {
+        byte[] bytes = Arrays.copyOf(BinaryPersisterStore.MAGIC, BinaryPersisterStore.MAGIC.length + 12);
+        int n = BinaryPersisterStore.MAGIC.length;
+        bytes[n++] = BinaryPersisterStore.VERSION;
+        bytes[n++] = BinaryPersisterStore.STRING;
+        // A new key "k", followed by the length of the value.
+        bytes[n++] = 0;
+        bytes[n++] = 1;
+        bytes[n++] = 'k';
+        bytes[n++] = (byte) 0xFF;
+        bytes[n++] = (byte) 0xFF;
+        bytes[n++] = (byte) 0xFF;
+        bytes[n++] = (byte) 0xFF;
+        bytes[n++] = 0x07;
+        return bytes;
+    }
+
+    private static byte[] toBytes(Persister p) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (BinaryPersisterStore store = BinaryPersisterStore.open(out)) {
+            store.store(p);
+        }
+        return out.toByteArray();
+    }
+
+    private static Persister createPersister() {
+        Persister p = new Persister();
+        p.putInt("x", 42);
+        p.putInt("y", -84);
+        p.putString("x", "xylophone");
+        p.putString("z", "zebra");
+        p.putLong("now", System.currentTimeMillis());
+        p.putDouble("x", 0.25);
+        p.putDouble("w", 12345.6789);
+        Persister c1 = p.newChild("c");
+        c1.putInt("x", 32);
+        c1.putString("fruit", "apple");
+        Persister c2 = p.newChild("c");
+        c2.putInt("x", 16);
+        c2.putString("fruit", "banana");
+        Persister c21 = c2.newChild("c2");
+        c21.putString("color", "yellow");
+        p.newChild("empty");
+        return p;
+    }
+}
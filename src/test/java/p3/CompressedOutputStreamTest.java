@@ -0,0 +1,174 @@
+package p3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+
+public final class CompressedOutputStreamTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws Exception {
+        byte[] data = new byte[100000];
+        Random random = new Random(7);
+        for (int n = 0; n < data.length; ++n) {
+            data[n] = (byte) ((n % 100 < 50) ? random.nextInt() : n);
+        }
+        // Small blocks, written both one byte at a time and in chunks that span blocks.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (CompressedOutputStream compressed = new CompressedOutputStream(out, ForkJoinPool.commonPool(), 1000)) {
+            for (int n = 0; n < 500; ++n) {
+                compressed.write(data[n]);
+            }
+            compressed.write(data, 500, data.length - 500);
+        }
+
+        assertArrayEquals(data, readAll(new CompressedInputStream(new ByteArrayInputStream(out.toByteArray()))));
+        assertArrayEquals(data, readAll(CompressedInputStream.decompressIfCompressed(new ByteArrayInputStream(out.toByteArray()))));
+    }
+
+    @Test
+    public void sequentialExecutor() throws Exception {
+        byte[] data = "abc".getBytes();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (CompressedOutputStream compressed = new CompressedOutputStream(out, Runnable::run, 2)) {
+            compressed.write(data);
+            compressed.flush();
+            compressed.write(data);
+        }
+
+        assertArrayEquals("abcabc".getBytes(), readAll(new CompressedInputStream(new ByteArrayInputStream(out.toByteArray()), Runnable::run)));
+    }
+
+    @Test
+    public void emptyContainer() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new CompressedOutputStream(out).close();
+
+        assertEquals(0, readAll(new CompressedInputStream(new ByteArrayInputStream(out.toByteArray()))).length);
+    }
+
+    @Test
+    public void uncompressedStreamIsPassedThrough() throws Exception {
+        byte[] data = "<node name=\"_root_\"/>".getBytes();
+        assertArrayEquals(data, readAll(CompressedInputStream.decompressIfCompressed(new ByteArrayInputStream(data))));
+        assertEquals(0, readAll(CompressedInputStream.decompressIfCompressed(new ByteArrayInputStream(new byte[0]))).length);
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptBlock() throws Exception {
+        byte[] bytes = compress(new byte[1000]);
+        // Flips a bit of the checksum of the block, which follows the header and two lengths.
+        bytes[CompressedOutputStream.HEADER_SIZE + 8] ^= 1;
+        readAll(new CompressedInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptBlockLength() throws Exception {
+        byte[] bytes = compress(new byte[1000]);
+        // A compressed length of nearly 2 GB must not be allocated.
+        bytes[CompressedOutputStream.HEADER_SIZE + 7] = 0x7F;
+        readAll(new CompressedInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptBlockSize() throws Exception {
+        byte[] bytes = compress(new byte[1000]);
+        bytes[CompressedOutputStream.HEADER_SIZE - 1] = 0x7F;
+        readAll(new CompressedInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test
+    public void incompressibleBlocks() throws Exception {
+        byte[] data = new byte[100000];
+        new Random(3).nextBytes(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (CompressedOutputStream compressed = new CompressedOutputStream(out, ForkJoinPool.commonPool(), 40000)) {
+            compressed.write(data);
+        }
+
+        assertArrayEquals(data, readAll(new CompressedInputStream(new ByteArrayInputStream(out.toByteArray()))));
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedContainer() throws Exception {
+        byte[] bytes = compress(new byte[1000]);
+        readAll(new CompressedInputStream(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 1))));
+    }
+
+    @Test
+    public void compressedXml() throws Exception {
+        Persister p = createPersister();
+        XmlPersisterStore store = XmlPersisterStore.newInstance().store(p);
+        File file = folder.newFile();
+        store.writeCompressedTo(file);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.writeCompressedTo(out);
+
+        assertTrue(file.length() * 5 < store.getXml().length());
+        assertEquals(p, XmlPersisterStore.load(file));
+        assertEquals(p, XmlPersisterStore.load(new ByteArrayInputStream(out.toByteArray())));
+        assertEquals(p, XmlPersisterStore.load(file, ForkJoinPool.commonPool()));
+        assertEquals(ImmutableList.of(p.getChildren("item").get(7)),
+                XmlPersisterStore.load(file, ImmutableList.of("item")).subList(7, 8));
+    }
+
+    @Test
+    public void compressedFormats() throws Exception {
+        Persister p = createPersister();
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        PersisterFormat.COMPRESSED_XML.write(p, xml);
+        assertEquals(p, PersisterFormat.COMPRESSED_XML.read(new ByteArrayInputStream(xml.toByteArray())));
+        assertEquals(p, PersisterFormat.XML.read(new ByteArrayInputStream(xml.toByteArray())));
+
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        try (BinaryPersisterStore store = BinaryPersisterStore.open(new CompressedOutputStream(binary))) {
+            store.store(p);
+        }
+        assertEquals(p, BinaryPersisterStore.load(binary.toByteArray()));
+        assertEquals(p, BinaryPersisterStore.load(new ByteArrayInputStream(binary.toByteArray())));
+    }
+
+    private static Persister createPersister() {
+        Persister p = new Persister();
+        for (int n = 0; n < 5000; ++n) {
+            Persister c = p.newChild("item");
+            c.putInt("id", n);
+            c.putString("name", "item " + n);
+            c.putDouble("value", n * 0.5);
+        }
+        return p;
+    }
+
+    private static byte[] compress(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (CompressedOutputStream compressed = new CompressedOutputStream(out)) {
+            compressed.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try (InputStream s = in) {
+            return ByteStreams.toByteArray(s);
+        }
+    }
+}
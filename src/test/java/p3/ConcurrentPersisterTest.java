@@ -0,0 +1,182 @@
+package p3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public final class ConcurrentPersisterTest {
+    private static final int WORKERS = 4;
+    private static final int ITEMS = 2000;
+
+    @Test
+    public void snapshotIsEqualToEquivalentPersister() {
+        ConcurrentPersister cp = new ConcurrentPersister();
+        cp.putString("s", "string").putInt("i", 1).putLong("l", 2L).putDouble("d", 0.5);
+        ConcurrentPersister c = cp.newChild("c");
+        c.putInt("x", 1);
+        c.newChild("gc").putString("fruit", "apple");
+        cp.newChild("c").putInt("x", 2);
+
+        Persister expected = new Persister();
+        expected.putString("s", "string").putInt("i", 1).putLong("l", 2L).putDouble("d", 0.5);
+        Persister e = expected.newChild("c");
+        e.putInt("x", 1);
+        e.newChild("gc").putString("fruit", "apple");
+        expected.newChild("c").putInt("x", 2);
+
+        assertEquals(expected, cp.snapshot());
+        assertEquals(2, cp.getChildren("c").size());
+        assertEquals(1, cp.getInt("i"));
+        assertEquals(7, cp.getInt("missing", 7));
+        assertFalse(cp.checkLong("missing").isPresent());
+    }
+
+    @Test
+    public void valuesCanBeReplaced() {
+        ConcurrentPersister cp = new ConcurrentPersister();
+        cp.putInt("i", 1).putLong("l", 2L).putDouble("d", 0.5);
+        cp.putInt("i", -1).putLong("l", Long.MIN_VALUE).putDouble("d", Double.NaN);
+
+        assertEquals(-1, cp.getInt("i"));
+        assertEquals(Long.MIN_VALUE, cp.getLong("l"));
+        assertTrue(Double.isNaN(cp.getDouble("d")));
+        assertEquals(new Persister().putInt("i", -1).putLong("l", Long.MIN_VALUE).putDouble("d", Double.NaN),
+                cp.snapshot());
+    }
+
+    @Test
+    public void arrays() {
+        ConcurrentPersister cp = new ConcurrentPersister();
+        int[] ints = { 1, 2, 3 };
+        cp.putIntArray("i", ints).putLongArray("l", new long[] { Long.MIN_VALUE });
+        cp.newChild("c").putDoubleArray("d", new double[] { 0.5 });
+        ints[0] = -1;
+        cp.getIntArray("i")[1] = -2;
+
+        assertArrayEquals(new int[] { 1, 2, 3 }, cp.getIntArray("i"));
+        assertFalse(cp.checkDoubleArray("d").isPresent());
+        Persister expected = new Persister();
+        expected.putIntArray("i", new int[] { 1, 2, 3 }).putLongArray("l", new long[] { Long.MIN_VALUE });
+        expected.newChild("c").putDoubleArray("d", new double[] { 0.5 });
+        assertEquals(expected, cp.snapshot());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getMissingValue() {
+        new ConcurrentPersister().getDouble("missing");
+    }
+
+    /**
+     * Every worker repeatedly adds an item, puts a value in it, and then updates its count.
+     * Since a snapshot must contain a prefix of the changes of every worker, the items in a
+     * snapshot are numbered consecutively, only the last one can be missing its value, and
+     * the count lags behind the number of items by one or two.
+     */
+    @Test
+    public void snapshotsAreConsistentWhileWritersAreActive() throws Exception {
+        ConcurrentPersister root = new ConcurrentPersister();
+        ExecutorService executor = Executors.newFixedThreadPool(WORKERS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int w = 0; w < WORKERS; ++w) {
+                int id = w;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    ConcurrentPersister worker = root.newChild("worker");
+                    worker.putInt("id", id);
+                    for (int n = 0; n < ITEMS; ++n) {
+                        worker.newChild("item").putInt("n", n);
+                        worker.putInt("count", n);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            int snapshots = 0;
+            boolean done;
+            do {
+                done = futures.stream().allMatch(Future::isDone);
+                verify(root.snapshot());
+                ++snapshots;
+            } while (!done);
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            assertTrue(snapshots > 0);
+
+            Persister last = root.snapshot();
+            assertEquals(WORKERS, last.getChildren("worker").size());
+            for (Persister worker : last.getChildren("worker")) {
+                assertEquals(ITEMS, worker.getChildren("item").size());
+                assertEquals(ITEMS - 1, worker.getInt("count"));
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void childrenAddedConcurrentlyHaveTheSameOrderInASnapshot() throws Exception {
+        ConcurrentPersister root = new ConcurrentPersister();
+        ExecutorService executor = Executors.newFixedThreadPool(WORKERS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int w = 0; w < WORKERS; ++w) {
+                int id = w;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int n = 0; n < ITEMS; ++n) {
+                        root.newChild("x").putInt("n", id * ITEMS + n);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> f : futures) {
+                f.get();
+            }
+
+            List<ConcurrentPersister> live = root.getChildren("x");
+            List<Persister> snapshot = root.snapshot().getChildren("x");
+            assertEquals(WORKERS * ITEMS, live.size());
+            assertEquals(live.size(), snapshot.size());
+            for (int n = 0; n < live.size(); ++n) {
+                assertEquals(live.get(n).getInt("n"), snapshot.get(n).getInt("n"));
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void verify(Persister snapshot) {
+        for (Persister worker : snapshot.getChildren("worker")) {
+            List<Persister> items = worker.getChildren("item");
+            for (int n = 0; n < items.size() - 1; ++n) {
+                assertEquals(n, items.get(n).getInt("n"));
+            }
+            if (!items.isEmpty()) {
+                int last = items.size() - 1;
+                assertEquals(last, items.get(last).getInt("n", last));
+                int count = worker.getInt("count", -1);
+                assertTrue(count == last || count == last - 1);
+            } else {
+                assertFalse(worker.checkInt("count").isPresent());
+            }
+        }
+    }
+}
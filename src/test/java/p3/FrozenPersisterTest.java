@@ -0,0 +1,104 @@
+package p3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public final class FrozenPersisterTest {
+
+    @Test
+    public void valuesAndChildren() {
+        FrozenPersister f = createPersister().freeze();
+        assertEquals("zebra", f.getString("z"));
+        assertEquals("default", f.getString("missing", "default"));
+        assertEquals(42, f.getInt("x"));
+        assertEquals(84, f.checkInt("y").getAsInt());
+        assertFalse(f.checkInt("missing").isPresent());
+        assertEquals(123456789012L, f.getLong("now"));
+        assertEquals(0.25, f.getDouble("x"), 0.0);
+        assertEquals(-1.0, f.getDouble("missing", -1.0), 0.0);
+        assertEquals(2, f.getChildren("c").size());
+        assertEquals("apple", f.getChildren("c").get(0).getString("fruit"));
+        assertEquals("banana", f.getChildren("c").get(1).getString("fruit"));
+        assertEquals("yellow", f.getChildren("c").get(1).getChild("c2").getString("color"));
+        assertTrue(f.getChildren("missing").isEmpty());
+        assertArrayEquals(new int[] { 1, 2, 3 }, f.getIntArray("x"));
+        assertArrayEquals(new long[] { Long.MAX_VALUE }, f.getChildren("c").get(0).getLongArray("l"));
+        assertFalse(f.checkDoubleArray("x").isPresent());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getMissingValue() {
+        createPersister().freeze().getLong("missing");
+    }
+
+    @Test
+    public void equalPersistersFreezeToEqualSnapshots() {
+        FrozenPersister f1 = createPersister().freeze();
+        FrozenPersister f2 = createPersister().freeze();
+        assertEquals(f1, f2);
+        assertEquals(f1.hashCode(), f2.hashCode());
+
+        Map<FrozenPersister, String> map = new HashMap<>();
+        map.put(f1, "first");
+        assertEquals("first", map.get(f2));
+    }
+
+    @Test
+    public void differentPersistersFreezeToDifferentSnapshots() {
+        Persister p = createPersister();
+        FrozenPersister before = p.freeze();
+        p.getChildren("c").get(1).getChild("c2").putInt("ripe", 1);
+        assertNotEquals(before, p.freeze());
+
+        Persister q = createPersister();
+        q.newChild("c");
+        assertNotEquals(before, q.freeze());
+    }
+
+    @Test
+    public void snapshotIsNotAffectedByLaterChanges() {
+        Persister p = createPersister();
+        FrozenPersister f = p.freeze();
+        p.putInt("x", 0);
+        p.newChild("empty");
+        assertEquals(42, f.getInt("x"));
+        assertEquals(1, f.getChildren("empty").size());
+    }
+
+    @Test
+    public void toPersister() {
+        Persister p = createPersister();
+        assertEquals(p, p.freeze().toPersister());
+    }
+
+    private static Persister createPersister() {
+        Persister p = new Persister();
+        p.putInt("x", 42);
+        p.putInt("y", 84);
+        p.putString("x", "xylophone");
+        p.putString("z", "zebra");
+        p.putLong("now", 123456789012L);
+        p.putDouble("x", 0.25);
+        p.putDouble("w", 12345.6789);
+        p.putIntArray("x", new int[] { 1, 2, 3 });
+        Persister c1 = p.newChild("c");
+        c1.putInt("x", 32);
+        c1.putString("fruit", "apple");
+        c1.putLongArray("l", new long[] { Long.MAX_VALUE });
+        p.newChild("empty");
+        Persister c2 = p.newChild("c");
+        c2.putInt("x", 16);
+        c2.putString("fruit", "banana");
+        Persister c21 = c2.newChild("c2");
+        c21.putString("color", "yellow");
+        return p;
+    }
+}
@@ -0,0 +1,136 @@
+package p3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class IndexedPersisterTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws Exception {
+        Persister p = new Persister();
+        p.putInt("x", 42);
+        p.putInt("y", 84);
+        p.putString("x", "xylophone");
+        p.putString("z", "zebra");
+        p.putLong("now", System.currentTimeMillis());
+        p.putDouble("x", 0.25);
+        p.putDouble("w", 12345.6789);
+        Persister c1 = p.newChild("c");
+        c1.putInt("x", 32);
+        c1.putString("fruit", "apple");
+        Persister c2 = p.newChild("c");
+        c2.putInt("x", 16);
+        c2.putString("fruit", "banana");
+        Persister c21 = c2.newChild("c2");
+        c21.putString("color", "yellow");
+        p.newChild("empty");
+
+        IndexedPersister indexed = IndexedPersister.open(write(p));
+
+        assertEquals(p, indexed.toPersister());
+    }
+
+    @Test
+    public void arrays() throws Exception {
+        Persister p = new Persister();
+        p.putIntArray("i", new int[] { 1, -2, 3 });
+        p.putLongArray("l", new long[] { Long.MIN_VALUE });
+        p.putDoubleArray("d", new double[] { 0.5, Double.NaN });
+        p.putDoubleArray("empty", new double[0]);
+        p.putInt("i", 4);
+        p.newChild("c").putIntArray("i", new int[] { 5 });
+
+        IndexedPersister indexed = IndexedPersister.open(write(p));
+
+        assertArrayEquals(new int[] { 1, -2, 3 }, indexed.getIntArray("i"));
+        assertArrayEquals(new long[] { Long.MIN_VALUE }, indexed.getLongArray("l"));
+        assertArrayEquals(new double[] { 0.5, Double.NaN }, indexed.getDoubleArray("d"), 0.0);
+        assertEquals(0, indexed.getDoubleArray("empty").length);
+        assertFalse(indexed.checkIntArray("l").isPresent());
+        assertEquals(4, indexed.getInt("i"));
+        assertArrayEquals(new int[] { 5 }, indexed.getChild("c").getIntArray("i"));
+        assertEquals(p, indexed.toPersister());
+    }
+
+    @Test
+    public void lookups() throws Exception {
+        Persister p = new Persister();
+        for (int n = 0; n < 100; ++n) {
+            p.putInt("i" + n, n);
+            p.putLong("l" + n, n * 1000000000L);
+            p.putString("s" + n, "value " + n);
+            p.putDouble("d" + n, n / 4.0);
+            p.newChild(n % 2 == 0 ? "even" : "odd").putInt("n", n);
+        }
+        p.putString("\uffff", "bmp");
+        p.putString("\ud83d\ude00", "supplementary");
+
+        IndexedPersister indexed = IndexedPersister.open(write(p));
+
+        assertEquals(37, indexed.getInt("i37"));
+        assertEquals(99000000000L, indexed.getLong("l99"));
+        assertEquals("value 0", indexed.getString("s0"));
+        assertEquals(12.5, indexed.getDouble("d50"), 0.0);
+        assertEquals("bmp", indexed.getString("\uffff"));
+        assertEquals("supplementary", indexed.getString("\ud83d\ude00"));
+        assertFalse(indexed.checkInt("s0").isPresent());
+        assertFalse(indexed.checkString("missing").isPresent());
+        assertEquals(-1, indexed.getInt("i100", -1));
+        assertEquals(50, indexed.getChildren("even").size());
+        assertEquals(51, indexed.getChildren("odd").get(25).getInt("n"));
+        assertTrue(indexed.getChildren("none").isEmpty());
+    }
+
+    @Test
+    public void childrenKeepTheirOrder() throws Exception {
+        Persister p = new Persister();
+        p.newChild("b").putInt("n", 0);
+        p.newChild("a").putInt("n", 1);
+        p.newChild("b").putInt("n", 2);
+        p.newChild("a").putInt("n", 3);
+
+        Persister restored = IndexedPersister.open(write(p)).toPersister();
+
+        int[] n = new int[1];
+        restored.forEachChild((name, child) -> assertEquals(n[0]++, child.getInt("n")));
+        assertEquals(4, n[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getChildRequiresExactlyOneChild() throws Exception {
+        Persister p = new Persister();
+        p.newChild("c");
+        p.newChild("c");
+
+        IndexedPersister.open(write(p)).getChild("c");
+    }
+
+    @Test(expected = IOException.class)
+    public void notAnIndexedFile() throws Exception {
+        File file = folder.newFile("not-indexed.xml");
+        XmlPersisterStore xml = XmlPersisterStore.newInstance();
+        xml.store(new Persister().putInt("x", 1));
+        xml.writeTo(file);
+
+        IndexedPersister.open(file);
+    }
+
+    private File write(Persister p) throws IOException {
+        File file = folder.newFile();
+        try (IndexedPersisterStore store = IndexedPersisterStore.open(file)) {
+            store.store(p);
+        }
+        return file;
+    }
+}
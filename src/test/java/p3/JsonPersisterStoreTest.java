@@ -0,0 +1,237 @@
+package p3;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public final class JsonPersisterStoreTest {
+
+    @Test
+    public void hierarchicalPersister() throws Exception {
+        Persister p = createPersister();
+        byte[] bytes = toBytes(p);
+
+        assertEquals(p, JsonPersisterStore.load(bytes));
+        assertEquals(p, JsonPersisterStore.load(new ByteArrayInputStream(bytes)));
+        // Every token spans reads from the stream.
+        assertEquals(p, JsonPersisterStore.load(new OneByteAtATime(new ByteArrayInputStream(bytes))));
+    }
+
+    @Test
+    public void layout() throws Exception {
+        Persister p = new Persister();
+        p.putString("kind", "list");
+        Persister item = p.newChild("item");
+        item.putInt("id", 1);
+        item.putDoubleArray("weights", new double[] { 0.5, 1 });
+        p.newChild("empty");
+        p.putLong("stamp", -7L);
+
+        assertEquals("{\"children\":[{\"name\":\"item\",\"ints\":{\"id\":1},\"doubleArrays\":{\"weights\":[0.5,1.0]}},"
+                + "{\"name\":\"empty\"}],\"strings\":{\"kind\":\"list\"},\"longs\":{\"stamp\":-7}}",
+                new String(toBytes(p), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void extremeValues() throws Exception {
+        Persister p = new Persister();
+        p.putInt("min", Integer.MIN_VALUE);
+        p.putInt("max", Integer.MAX_VALUE);
+        p.putInt("minusOne", -1);
+        p.putLong("min", Long.MIN_VALUE);
+        p.putLong("max", Long.MAX_VALUE);
+        p.putDouble("nan", Double.NaN);
+        p.putDouble("negZero", -0.0);
+        p.putDouble("inf", Double.NEGATIVE_INFINITY);
+        p.putDouble("posInf", Double.POSITIVE_INFINITY);
+        p.putDouble("tiny", Double.MIN_VALUE);
+        p.putDouble("huge", Double.MAX_VALUE);
+        p.putDouble("third", 1 / 3.0);
+        p.putString("empty", "");
+        p.putString("escapes", "\"quoted\" \\ / \n\r\t\b\f \u0001 \u001f");
+        p.putString("unicode", "åäö € 😀");
+        p.putString("unicode key €", "x");
+        char[] chars = new char[20000];
+        Arrays.fill(chars, 'é');
+        p.putString("long", new String(chars));
+
+        assertEquals(p, JsonPersisterStore.load(toBytes(p)));
+        assertEquals(p, JsonPersisterStore.load(new OneByteAtATime(new ByteArrayInputStream(toBytes(p)))));
+    }
+
+    @Test
+    public void doublesAreReadBackExactly() throws Exception {
+        Random random = new Random(11);
+        double[] values = new double[20000];
+        for (int n = 0; n < values.length; ++n) {
+            switch (n % 4) {
+            case 0:
+                // Any bit pattern.
+                values[n] = Double.longBitsToDouble(random.nextLong());
+                break;
+            case 1:
+                values[n] = random.nextDouble();
+                break;
+            case 2:
+                // Decimals with a few fraction digits, which take the fast paths.
+                values[n] = random.nextInt(2000000) / 1000.0 - 1000;
+                break;
+            default:
+                values[n] = random.nextGaussian() * Math.pow(10, random.nextInt(40) - 20);
+            }
+        }
+        Persister p = new Persister();
+        p.putDoubleArray("values", values);
+        for (int n = 0; n < 1000; ++n) {
+            p.putDouble("d" + n, values[n]);
+        }
+
+        Persister restored = JsonPersisterStore.load(toBytes(p));
+        double[] restoredValues = restored.getDoubleArray("values");
+        for (int n = 0; n < values.length; ++n) {
+            assertEquals(Double.doubleToLongBits(values[n]), Double.doubleToLongBits(restoredValues[n]));
+        }
+        assertEquals(p, restored);
+    }
+
+    @Test
+    public void formatting() throws Exception {
+        assertEquals("0.25", format(0.25));
+        assertEquals("-0.0", format(-0.0));
+        assertEquals("100.0", format(100));
+        assertEquals("-12345.6789", format(-12345.6789));
+        assertEquals("0.001", format(0.001));
+        assertEquals("0.1", format(0.1));
+        assertEquals("1.0E20", format(1e20));
+        assertEquals("0.30000000000000004", format(0.1 + 0.2));
+        assertEquals("\"NaN\"", format(Double.NaN));
+    }
+
+    @Test
+    public void standardJson() throws Exception {
+        // Whitespace, escapes and numbers that the store does not write itself.
+        String json = "{ \"strings\" : { \"a\" : \"\\u00e5\\ud83d\\ude00\\/\" } ,\n"
+                + "  \"children\" : [ { \"name\" : \"c\" , \"doubles\" : { \"x\" : 1E2 , \"y\" : -2.5e-3 , \"z\" : 0 } } ] ,"
+                + "  \"ints\" : { } }";
+        Persister expected = new Persister();
+        expected.putString("a", "å😀/");
+        expected.newChild("c").putDouble("x", 100).putDouble("y", -0.0025).putDouble("z", 0);
+
+        assertEquals(expected, JsonPersisterStore.load(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void valuesAfterChildren() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonPersisterStore store = JsonPersisterStore.open(out)) {
+            store.putInt("a", 1);
+            store.newChild("c").putString("s", "x");
+            store.putInt("b", 2);
+            store.putString("s", "y");
+        }
+        Persister expected = new Persister();
+        expected.putInt("a", 1).putInt("b", 2).putString("s", "y");
+        expected.newChild("c").putString("s", "x");
+
+        assertEquals(expected, JsonPersisterStore.load(out.toByteArray()));
+    }
+
+    @Test
+    public void formats() throws Exception {
+        Persister p = createPersister();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PersisterFormat.JSON.write(p, out);
+        assertEquals(p, PersisterFormat.JSON.read(new ByteArrayInputStream(out.toByteArray())));
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (CompressedOutputStream c = new CompressedOutputStream(compressed)) {
+            c.write(out.toByteArray());
+        }
+        assertEquals(p, JsonPersisterStore.load(compressed.toByteArray()));
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedDocument() throws Exception {
+        byte[] bytes = toBytes(createPersister());
+        JsonPersisterStore.load(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void notAJsonDocument() throws Exception {
+        JsonPersisterStore.load("<node/>".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = IOException.class)
+    public void intOutOfRange() throws Exception {
+        JsonPersisterStore.load("{\"ints\":{\"x\":2147483648}}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = IOException.class)
+    public void missingComma() throws Exception {
+        JsonPersisterStore.load("{\"ints\":{\"x\":1}\"longs\":{}}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String format(double value) {
+        JsonPersisterStore.Bytes bytes = new JsonPersisterStore.Bytes(1);
+        bytes.appendDouble(value);
+        return new String(bytes.data, 0, bytes.length, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] toBytes(Persister p) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonPersisterStore store = JsonPersisterStore.open(out)) {
+            store.store(p);
+        }
+        return out.toByteArray();
+    }
+
+    private static Persister createPersister() {
+        Persister p = new Persister();
+        p.putInt("x", 42);
+        p.putInt("y", -84);
+        p.putString("x", "xylophone");
+        p.putString("z", "zebra");
+        p.putLong("now", System.currentTimeMillis());
+        p.putDouble("x", 0.25);
+        p.putDouble("w", 12345.6789);
+        p.putIntArray("x", new int[] { 1, 2, 3 });
+        p.putLongArray("empty", new long[0]);
+        Persister c1 = p.newChild("c");
+        c1.putInt("x", 32);
+        c1.putString("fruit", "apple");
+        Persister c2 = p.newChild("c");
+        c2.putInt("x", 16);
+        c2.putString("fruit", "banana");
+        Persister c21 = c2.newChild("c2");
+        c21.putString("color", "yellow");
+        c21.putDoubleArray("d", new double[] { 0.5, -1e-300 });
+        c21.newChild("deep").newChild("deeper");
+        p.newChild("empty");
+        return p;
+    }
+
+
+    /**
+     * Returns at most one byte per read.
+     */
+    private static final class OneByteAtATime extends FilterInputStream {
+        OneByteAtATime(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package p3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class PersisterCacheTest {
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("p3-cache").toFile();
+    }
+
+    @After
+    public void deleteDir() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void hitsAndMisses() throws Exception {
+        File file = write("a.xml", createPersister(1));
+        PersisterCache cache = PersisterCache.newInstance(1 << 20);
+
+        FrozenPersister first = cache.get(file);
+        assertEquals(createPersister(1).freeze(), first);
+        assertSame(first, cache.get(file));
+        assertEquals(1, cache.stats().missCount());
+        assertEquals(1, cache.stats().hitCount());
+    }
+
+    @Test
+    public void changedFileIsReloaded() throws Exception {
+        File file = write("a.xml", createPersister(1));
+        PersisterCache cache = PersisterCache.newInstance(1 << 20);
+        FrozenPersister first = cache.get(file);
+
+        write("a.xml", createPersister(2));
+        file.setLastModified(file.lastModified() + 2000);
+        FrozenPersister second = cache.get(file);
+        assertNotEquals(first, second);
+        assertEquals(createPersister(2).freeze(), second);
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.stats().loadCount());
+    }
+
+    @Test
+    public void deletedFile() throws Exception {
+        File file = write("a.xml", createPersister(1));
+        PersisterCache cache = PersisterCache.newInstance(1 << 20);
+        cache.get(file);
+
+        file.delete();
+        try {
+            cache.get(file);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictsWhenFull() throws Exception {
+        long size = createPersister(0).freeze().estimatedSize();
+        PersisterCache cache = PersisterCache.newInstance(3 * size);
+        for (int n = 0; n < 10; ++n) {
+            cache.get(write(n + ".xml", createPersister(n)));
+        }
+        assertTrue(cache.size() <= 3);
+        assertTrue(cache.stats().evictionCount() >= 7);
+    }
+
+    @Test
+    public void concurrentLoadsOfSameFileAreCollapsed() throws Exception {
+        File file = write("a.xml", createPersister(1));
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        PersisterCache cache = PersisterCache.newInstance(1 << 20, f -> {
+            loads.incrementAndGet();
+            loading.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return BinaryPersisterStore.load(toBinary(createPersister(1)));
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<FrozenPersister>> results = new ArrayList<>();
+            for (int n = 0; n < 4; ++n) {
+                results.add(executor.submit(() -> cache.get(file)));
+            }
+            assertTrue(loading.await(10, TimeUnit.SECONDS));
+            Thread.sleep(50);
+            release.countDown();
+            FrozenPersister first = results.get(0).get();
+            for (Future<FrozenPersister> f : results) {
+                assertSame(first, f.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, loads.get());
+    }
+
+    private File write(String name, Persister p) throws IOException {
+        File file = new File(dir, name);
+        XmlPersisterStore store = XmlPersisterStore.newInstance();
+        store.store(p);
+        store.writeTo(file);
+        return file;
+    }
+
+    private static byte[] toBinary(Persister p) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (BinaryPersisterStore store = BinaryPersisterStore.open(out)) {
+            store.store(p);
+        }
+        return out.toByteArray();
+    }
+
+    private static Persister createPersister(int n) {
+        Persister p = new Persister();
+        p.putInt("n", n);
+        p.putString("s", "value " + n);
+        for (int i = 0; i < 20; ++i) {
+            Persister c = p.newChild("c");
+            c.putLong("i", i);
+            c.putDouble("d", n * i);
+        }
+        return p;
+    }
+}
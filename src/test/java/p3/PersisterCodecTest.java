@@ -0,0 +1,263 @@
+package p3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public final class PersisterCodecTest {
+
+    @Test
+    public void encode() {
+        Persister p = PersisterCodec.of(Order.class).encode(createOrder());
+
+        assertEquals("o-17", p.getString("id"));
+        assertEquals(3, p.getInt("priority"));
+        assertEquals(1234567890123L, p.getLong("created"));
+        assertEquals(99.5, p.getDouble("total"), 0.0);
+        assertEquals("Alice", p.getChild("customer").getString("name"));
+        assertEquals(2, p.getChildren("line").size());
+        assertEquals("pen", p.getChildren("line").get(0).getString("item"));
+    }
+
+    @Test
+    public void roundTrip() {
+        PersisterCodec<Order> codec = PersisterCodec.of(Order.class);
+        Order order = createOrder();
+
+        Order decoded = codec.decode(codec.encode(order));
+        assertEquals(order.id, decoded.id);
+        assertEquals(order.priority, decoded.priority);
+        assertEquals(order.created, decoded.created);
+        assertEquals(order.total, decoded.total, 0.0);
+        assertEquals("Alice", decoded.customer.name);
+        assertEquals(order.tag, decoded.tag);
+        assertEquals(2, decoded.lines.size());
+        assertEquals("paper", decoded.lines.get(1).item);
+        assertEquals(500, decoded.lines.get(1).quantity);
+        assertArrayEquals(order.weights, decoded.weights, 0.0);
+        assertEquals(codec.encode(order), codec.encode(decoded));
+    }
+
+    @Test
+    public void storeDirectly() throws Exception {
+        PersisterCodec<Order> codec = PersisterCodec.of(Order.class);
+        Order order = createOrder();
+        Persister expected = codec.encode(order);
+
+        XmlPersisterStore xml = XmlPersisterStore.newInstance();
+        xml.store(order, codec);
+        assertEquals(expected, XmlPersisterStore.load(xml.getXml()));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (BinaryPersisterStore binary = BinaryPersisterStore.open(out)) {
+            binary.store(order, codec);
+        }
+        assertEquals(expected, BinaryPersisterStore.load(out.toByteArray()));
+    }
+
+    @Test
+    public void nullsAreSkipped() {
+        Order order = new Order();
+        order.id = null;
+        Persister p = PersisterCodec.of(Order.class).encode(order);
+
+        assertTrue(!p.checkString("id").isPresent());
+        assertTrue(p.getChildren("customer").isEmpty());
+        assertTrue(p.getChildren("line").isEmpty());
+    }
+
+    @Test
+    public void missingValuesKeepTheirInitialValue() {
+        Persister p = new Persister();
+        p.putInt("priority", 7);
+
+        Order order = PersisterCodec.of(Order.class).decode(p);
+        assertEquals(7, order.priority);
+        assertEquals("new", order.id);
+        assertEquals(-1L, order.created);
+        assertNull(order.customer);
+        assertTrue(order.lines.isEmpty());
+    }
+
+    @Test
+    public void recursiveType() {
+        Node root = new Node();
+        root.value = 1;
+        root.next = new Node();
+        root.next.value = 2;
+        PersisterCodec<Node> codec = PersisterCodec.of(Node.class);
+
+        Persister p = codec.encode(root);
+        assertEquals(2, p.getChild("next").getInt("value"));
+        Node decoded = codec.decode(p);
+        assertEquals(2, decoded.next.value);
+        assertNull(decoded.next.next);
+    }
+
+    @Test
+    public void codecsAreCached() {
+        assertSame(PersisterCodec.of(Order.class), PersisterCodec.of(Order.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void finalFieldsAreRejected() {
+        PersisterCodec.of(WithFinalField.class);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noDefaultConstructor() {
+        PersisterCodec.of(WithoutDefaultConstructor.class);
+    }
+
+    @Test
+    public void unsupportedChildTypesAreRejected() {
+        for (Class<?> type : Arrays.asList(WithArrayList.class, WithBoxedInt.class, WithEnum.class,
+                WithObject.class, WithEmptyChild.class)) {
+            try {
+                PersisterCodec.of(type);
+                fail(type.getSimpleName());
+            } catch (IllegalArgumentException expected) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void listWithoutChildrenKeepsItsInitialValue() {
+        Order order = PersisterCodec.of(Order.class).decode(new Persister());
+
+        order.lines.add(new Line());
+        assertEquals(1, order.lines.size());
+    }
+
+    private static Order createOrder() {
+        Order order = new Order();
+        order.id = "o-17";
+        order.priority = 3;
+        order.created = 1234567890123L;
+        order.total = 99.5;
+        order.tag = "rush";
+        order.weights = new double[] { 0.25, 1.5 };
+        order.customer = new Customer();
+        order.customer.name = "Alice";
+        Line pen = new Line();
+        pen.item = "pen";
+        pen.quantity = 2;
+        Line paper = new Line();
+        paper.item = "paper";
+        paper.quantity = 500;
+        order.lines.add(pen);
+        order.lines.add(paper);
+        return order;
+    }
+
+
+    private static class Tagged {
+        @Persisted
+        String tag;
+    }
+
+
+    private static final class Order extends Tagged {
+        @Persisted
+        private String id = "new";
+        @Persisted
+        private int priority;
+        @Persisted
+        private long created = -1L;
+        @Persisted
+        private double total;
+        @Persisted
+        private Customer customer;
+        @Persisted("line")
+        private List<Line> lines = new ArrayList<>();
+        @Persisted
+        private double[] weights;
+        @SuppressWarnings("unused")
+        private int notPersisted = 42;
+    }
+
+
+    private static final class Customer {
+        @Persisted
+        String name;
+    }
+
+
+    private static final class Line {
+        @Persisted
+        String item;
+        @Persisted
+        int quantity;
+    }
+
+
+    private static final class Node {
+        @Persisted
+        int value;
+        @Persisted
+        Node next;
+    }
+
+
+    private static final class WithFinalField {
+        @Persisted
+        private final int value = 1;
+    }
+
+
+    private static final class WithArrayList {
+        @Persisted
+        ArrayList<Line> lines;
+    }
+
+
+    private static final class WithBoxedInt {
+        @Persisted
+        Integer value;
+    }
+
+
+    private static final class WithEnum {
+        @Persisted
+        Thread.State state;
+    }
+
+
+    private static final class WithObject {
+        @Persisted
+        Object value;
+    }
+
+
+    private static final class WithEmptyChild {
+        @Persisted
+        Empty empty;
+    }
+
+
+    private static final class Empty {
+        @SuppressWarnings("unused")
+        int notPersisted;
+    }
+
+
+    private static final class WithoutDefaultConstructor {
+        @Persisted
+        int value;
+
+        WithoutDefaultConstructor(int value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package p3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import p3.PersisterDiff.Change;
+import p3.PersisterDiff.Kind;
+import p3.PersisterDiff.Target;
+
+public final class PersisterDiffTest {
+
+    @Test
+    public void equalTrees() {
+        assertTrue(PersisterDiff.diff(createPersister(), createPersister()).isEmpty());
+    }
+
+    @Test
+    public void changedValues() {
+        Persister a = createPersister();
+        Persister b = createPersister();
+        Persister item = b.getChildren("item").get(3);
+        item.putInt("id", 100);
+        item.putString("extra", "x");
+        item.putDoubleArray("weights", new double[] { 0.5 });
+        b.putLong("id", 1L);
+
+        assertEquals(ImmutableList.of(
+                new Change(Kind.ADDED, Target.LONG, "/", "id"),
+                new Change(Kind.ADDED, Target.STRING, "/item[3]", "extra"),
+                new Change(Kind.CHANGED, Target.INT, "/item[3]", "id"),
+                new Change(Kind.CHANGED, Target.DOUBLE_ARRAY, "/item[3]", "weights")),
+                PersisterDiff.diff(a, b).getChanges());
+        assertEquals(ImmutableList.of(
+                new Change(Kind.REMOVED, Target.LONG, "/", "id"),
+                new Change(Kind.REMOVED, Target.STRING, "/item[3]", "extra"),
+                new Change(Kind.CHANGED, Target.INT, "/item[3]", "id"),
+                new Change(Kind.CHANGED, Target.DOUBLE_ARRAY, "/item[3]", "weights")),
+                PersisterDiff.diff(b, a).getChanges());
+    }
+
+    @Test
+    public void addedAndRemovedChildren() {
+        Persister a = createPersister();
+        a.newChild("old");
+        Persister b = createPersister();
+        b.newChild("item");
+        b.getChildren("item").get(5).getChild("leaf").newChild("new").putInt("x", 1);
+
+        assertEquals(ImmutableList.of(
+                new Change(Kind.ADDED, Target.CHILD, "/item[5]/leaf[0]/new[0]", null),
+                new Change(Kind.ADDED, Target.CHILD, "/item[10]", null),
+                new Change(Kind.REMOVED, Target.CHILD, "/old[0]", null)),
+                PersisterDiff.diff(a, b).getChanges());
+    }
+
+    @Test
+    public void snapshotOfLiveTree() {
+        Persister live = createPersister();
+        Persister snapshot = live.snapshot();
+        live.getChildren("item").get(7).getChild("leaf").putLong("stamp", 2L);
+
+        PersisterDiff diff = PersisterDiff.diff(snapshot, live);
+        assertEquals(ImmutableList.of(new Change(Kind.CHANGED, Target.LONG, "/item[7]/leaf[0]", "stamp")),
+                diff.getChanges());
+        assertEquals("CHANGED LONG /item[7]/leaf[0] stamp\n", diff.toString());
+    }
+
+    private static Persister createPersister() {
+        Persister p = new Persister();
+        p.putString("name", "root");
+        for (int n = 0; n < 10; ++n) {
+            Persister item = p.newChild("item");
+            item.putInt("id", n);
+            item.putDoubleArray("weights", new double[] { n, n / 2.0 });
+            item.newChild("leaf").putLong("stamp", 1L);
+        }
+        return p;
+    }
+}
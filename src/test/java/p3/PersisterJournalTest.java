@@ -0,0 +1,169 @@
+package p3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class PersisterJournalTest {
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("p3-journal").toFile();
+    }
+
+    @After
+    public void deleteDir() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void changesAreReplayed() throws Exception {
+        Persister expected;
+        try (PersisterJournal journal = PersisterJournal.open(dir)) {
+            Persister root = journal.root();
+            root.putInt("i", 1);
+            root.putString("s", "åäö");
+            Persister c = root.newChild("c");
+            c.putLong("l", Long.MIN_VALUE);
+            c.newChild("gc").putDouble("d", -0.0);
+            c.putIntArray("a", new int[] { 1, -1 });
+            root.putDoubleArray("a", new double[] { 0.5 });
+            root.putLongArray("a", new long[0]);
+            root.newChild("c").putInt("i", -5);
+            c.putInt("i", 7);
+            root.putInt("i", 2);
+            expected = root.snapshot();
+        }
+        try (PersisterJournal journal = PersisterJournal.open(dir)) {
+            assertEquals(expected, journal.root());
+        }
+    }
+
+    @Test
+    public void reopenedJournalCanBeAppendedTo() throws Exception {
+        try (PersisterJournal journal = PersisterJournal.open(dir)) {
+            journal.root().newChild("c").putInt("i", 1);
+        }
+        try (PersisterJournal journal = PersisterJournal.open(dir)) {
+            journal.root().getChild("c").putInt("i", 2);
+            journal.root().newChild("d").putString("s", "x");
+        }
+        try (PersisterJournal journal = PersisterJournal.open(dir)) {
+            Persister root = journal.root();
+            assertEquals(2, root.getChild("c").getInt("i"));
+            assertEquals("x", root.getChild("d").getString("s"));
+        }
+    }
+
+    @Test
+    public void tornRecordIsDiscarded() throws Exception {
+        try (PersisterJournal journal = PersisterJournal.open(dir)) {
+            journal.root().putInt("a", 1);
+            journal.root().putInt("b", 2);
+        }
+        File journalFile = new File(dir, "journal-0");
+        try (RandomAccessFile f = new RandomAccessFile(journalFile, "rw")) {
+            f.setLength(f.length() - 1);
+        }
+        try (PersisterJournal journal = PersisterJournal.open(dir)) {
+            assertEquals(1, journal.root().getInt("a"));
+            assertFalse(journal.root().checkInt("b").isPresent());
+            journal.root().putInt("c", 3);
+        }
+        try (PersisterJournal journal = PersisterJournal.open(dir)) {
+            assertEquals(1, journal.root().getInt("a"));
+            assertEquals(3, journal.root().getInt("c"));
+        }
+    }
+
+    @Test
+    public void corruptRecordIsDiscarded() throws Exception {
+        try (PersisterJournal journal = PersisterJournal.open(dir)) {
+            journal.root().putString("a", "first");
+            journal.root().putString("b", "second");
+        }
+        File journalFile = new File(dir, "journal-0");
+        byte[] bytes = Files.readAllBytes(journalFile.toPath());
+        // Flip a bit in the value of the last record.
+        bytes[bytes.length - 2] ^= 1;
+        Files.write(journalFile.toPath(), bytes);
+        try (PersisterJournal journal = PersisterJournal.open(dir)) {
+            assertEquals("first", journal.root().getString("a"));
+            assertFalse(journal.root().checkString("b").isPresent());
+        }
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        Random random = new Random(5);
+        Persister expected;
+        try (PersisterJournal journal = PersisterJournal.open(dir, 4096)) {
+            List<Persister> nodes = new ArrayList<>();
+            nodes.add(journal.root());
+            for (int n = 0; n < 5000; ++n) {
+                Persister p = nodes.get(random.nextInt(nodes.size()));
+                if (random.nextInt(10) == 0) {
+                    nodes.add(p.newChild("c" + random.nextInt(3)));
+                } else {
+                    p.putInt("i" + random.nextInt(10), n);
+                }
+            }
+            // The journal has been compacted on the way, which starts a new journal.
+            assertTrue(Arrays.stream(dir.list()).anyMatch(name -> name.startsWith("journal-") && !name.equals("journal-0")));
+            journal.compact().get();
+            expected = journal.root().snapshot();
+        }
+        String[] files = dir.list();
+        Arrays.sort(files);
+        assertEquals(2, files.length);
+        assertTrue(files[0].startsWith("journal-"));
+        assertTrue(files[1].startsWith("snapshot-"));
+        try (PersisterJournal journal = PersisterJournal.open(dir)) {
+            assertEquals(expected, journal.root());
+        }
+    }
+
+    @Test
+    public void journalIsReplayedOnTopOfSnapshot() throws Exception {
+        try (PersisterJournal journal = PersisterJournal.open(dir)) {
+            journal.root().putInt("a", 1);
+            journal.compact().get();
+            journal.root().putInt("a", 2);
+            journal.root().newChild("c");
+        }
+        try (PersisterJournal journal = PersisterJournal.open(dir)) {
+            assertEquals(2, journal.root().getInt("a"));
+            assertEquals(1, journal.root().getChildren("c").size());
+        }
+    }
+
+    @Test
+    public void changesAfterCloseAreNotRecorded() throws Exception {
+        Persister root;
+        try (PersisterJournal journal = PersisterJournal.open(dir)) {
+            root = journal.root();
+            root.putInt("a", 1);
+        }
+        root.putInt("a", 2);
+        try (PersisterJournal journal = PersisterJournal.open(dir)) {
+            assertEquals(1, journal.root().getInt("a"));
+        }
+    }
+}
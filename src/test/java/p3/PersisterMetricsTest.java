@@ -0,0 +1,130 @@
+package p3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class PersisterMetricsTest {
+    private final PersisterMetricsCollector collector = new PersisterMetricsCollector();
+
+    @Before
+    public void install() {
+        PersisterMetrics.install(collector);
+    }
+
+    @After
+    public void uninstall() {
+        PersisterMetrics.install(PersisterMetrics.NOOP);
+    }
+
+    @Test
+    public void xmlStoreAndLoad() throws Exception {
+        Persister p = createPersister();
+        XmlPersisterStore store = XmlPersisterStore.newInstance();
+        store.store(p);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.writeTo(out);
+        XmlPersisterStore.load(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(1, collector.histogram("phase.store").count());
+        assertEquals(1, collector.histogram("phase.serialize").count());
+        assertEquals(1, collector.histogram("phase.parse").count());
+        assertNull(collector.histogram("phase.materialize"));
+        assertEquals(3, collector.histogram("stored.nodes").max());
+        assertEquals(2, collector.histogram("stored.ints").max());
+        assertEquals(1, collector.histogram("stored.strings").max());
+        assertEquals(1, collector.histogram("stored.longs").max());
+        assertEquals(0, collector.histogram("stored.doubles").max());
+        assertEquals(3, collector.histogram("loaded.nodes").max());
+        assertEquals(2, collector.histogram("loaded.ints").max());
+        assertEquals(1, collector.histogram("stored.intArrays").max());
+        assertEquals(0, collector.histogram("stored.longArrays").max());
+        assertEquals(2, collector.histogram("stored.doubleArrays").max());
+        assertEquals(2, collector.histogram("loaded.doubleArrays").max());
+        assertEquals(out.size(), collector.histogram("bytes.written").max());
+        assertEquals(out.size(), collector.histogram("bytes.read").max());
+    }
+
+    @Test
+    public void binaryStoreAndLoad() throws Exception {
+        Persister p = createPersister();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (BinaryPersisterStore store = BinaryPersisterStore.open(out)) {
+            store.store(p);
+        }
+        BinaryPersisterStore.load(out.toByteArray());
+
+        assertEquals(out.size(), collector.histogram("bytes.written").max());
+        assertEquals(out.size(), collector.histogram("bytes.read").max());
+        assertEquals(3, collector.histogram("loaded.nodes").max());
+        assertEquals(1, collector.histogram("loaded.intArrays").max());
+        assertEquals(1, collector.histogram("phase.parse").count());
+    }
+
+    @Test
+    public void streamingStores() throws Exception {
+        Persister p = createPersister();
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        PersisterFormat.XML.write(p, xml);
+
+        assertEquals(1, collector.histogram("phase.serialize").count());
+        assertEquals(xml.size(), collector.histogram("bytes.written").max());
+
+        collector.reset();
+        ByteArrayOutputStream indexed = new ByteArrayOutputStream();
+        try (IndexedPersisterStore store = IndexedPersisterStore.open(indexed)) {
+            store.store(p);
+        }
+
+        assertEquals(1, collector.histogram("phase.serialize").count());
+        assertEquals(indexed.size(), collector.histogram("bytes.written").max());
+        assertEquals(3, collector.histogram("stored.nodes").max());
+    }
+
+    @Test
+    public void histogram() {
+        PersisterMetricsCollector.Histogram h = new PersisterMetricsCollector.Histogram();
+        assertEquals(0, h.percentile(50));
+        for (int n = 1; n <= 100; ++n) {
+            h.record(n);
+        }
+        assertEquals(100, h.count());
+        assertEquals(5050, h.sum());
+        assertEquals(1, h.min());
+        assertEquals(100, h.max());
+        assertEquals(50.5, h.mean(), 0.0);
+        long p50 = h.percentile(50);
+        assertTrue(p50 >= 50 && p50 < 100);
+        assertEquals(100, h.percentile(100));
+        assertEquals(1, h.percentile(0));
+    }
+
+    @Test
+    public void noopIsTheDefault() {
+        uninstall();
+        assertSame(PersisterMetrics.NOOP, PersisterMetrics.installed());
+        XmlPersisterStore.newInstance().store(createPersister());
+        assertTrue(collector.histograms().isEmpty());
+    }
+
+    private static Persister createPersister() {
+        Persister p = new Persister();
+        p.putInt("a", 1);
+        p.putInt("b", 2);
+        p.putString("s", "x");
+        p.putIntArray("i", new int[] { 1, 2 });
+        p.newChild("c").putLong("l", 3L);
+        Persister c = p.newChild("c");
+        c.putDoubleArray("d1", new double[] { 0.5 });
+        c.putDoubleArray("d2", new double[0]);
+        return p;
+    }
+}
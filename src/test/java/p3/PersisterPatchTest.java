@@ -0,0 +1,108 @@
+package p3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public final class PersisterPatchTest {
+
+    @Test
+    public void dirtyStatePropagatesToRoot() {
+        Persister root = new Persister();
+        Persister c = root.newChild("c");
+        Persister gc = c.newChild("gc");
+        root.markClean();
+        assertFalse(root.isDirty());
+        assertFalse(gc.isDirty());
+
+        gc.putInt("x", 1);
+        assertTrue(gc.isDirty());
+        assertTrue(c.isDirty());
+        assertTrue(root.isDirty());
+
+        root.markClean();
+        assertFalse(root.isDirty());
+        assertFalse(c.isDirty());
+        assertFalse(gc.isDirty());
+    }
+
+    @Test
+    public void emptyPatchForCleanPersister() {
+        Persister root = createTree();
+        root.markClean();
+        assertTrue(PersisterPatch.create(root).children().isEmpty());
+    }
+
+    @Test
+    public void patchRestoresChanges() throws Exception {
+        Persister root = createTree();
+        root.markClean();
+        Persister saved = XmlPersisterStore.load(toXml(root));
+
+        root.getChildren("c").get(1).putInt("x", 99);
+        root.getChildren("c").get(1).getChild("d").putString("s", "changed");
+        root.putLong("version", 2L);
+        Persister added = root.newChild("c");
+        added.putString("fruit", "cherry");
+        added.newChild("d").putDouble("weight", 0.5);
+        // Changes to a Persister added since the last save end up in the append record.
+        added.putInt("x", 3);
+
+        Persister patch = PersisterPatch.create(root);
+        assertEquals(3, patch.getChildren(PersisterPatch.UPDATE).size());
+        assertEquals(1, patch.getChildren(PersisterPatch.APPEND).size());
+
+        // The patch survives a round trip through a store.
+        PersisterPatch.apply(XmlPersisterStore.load(toXml(patch)), saved);
+        assertEquals(root, saved);
+    }
+
+    @Test
+    public void successivePatches() {
+        Persister root = createTree();
+        root.markClean();
+        Persister saved = new Persister();
+        root.copyTo(saved);
+
+        root.getChildren("c").get(0).putString("fruit", "apricot");
+        Persister first = PersisterPatch.create(root);
+        root.markClean();
+        root.newChild("e").putInt("n", 1);
+        Persister second = PersisterPatch.create(root);
+        root.markClean();
+
+        PersisterPatch.apply(first, saved);
+        PersisterPatch.apply(second, saved);
+        assertEquals(root, saved);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void patchMustMatchTarget() {
+        Persister root = createTree();
+        root.markClean();
+        root.getChildren("c").get(1).putInt("x", 99);
+        PersisterPatch.apply(PersisterPatch.create(root), new Persister());
+    }
+
+    private static Persister createTree() {
+        Persister root = new Persister();
+        root.putLong("version", 1L);
+        Persister c1 = root.newChild("c");
+        c1.putInt("x", 1);
+        c1.putString("fruit", "apple");
+        Persister c2 = root.newChild("c");
+        c2.putInt("x", 2);
+        c2.putString("fruit", "banana");
+        c2.newChild("d").putString("s", "original");
+        root.newChild("e");
+        return root;
+    }
+
+    private static String toXml(Persister p) {
+        XmlPersisterStore store = XmlPersisterStore.newInstance();
+        store.store(p);
+        return store.getXml();
+    }
+}
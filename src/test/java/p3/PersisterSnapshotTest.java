@@ -0,0 +1,279 @@
+package p3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.hash.HashCode;
+
+public final class PersisterSnapshotTest {
+
+    @Test
+    public void snapshotIsNotAffectedByChangesToTheLiveTree() {
+        Persister root = new Persister();
+        root.putInt("x", 1);
+        Persister c = root.newChild("c");
+        c.putString("s", "before");
+        Persister gc = c.newChild("gc");
+        gc.putDouble("d", 0.5);
+
+        Persister snapshot = root.snapshot();
+        gc.putDouble("d", 1.5);
+        c.putString("s", "after");
+        c.newChild("gc").putLong("l", 3L);
+        root.putInt("x", 2);
+
+        assertEquals(1, snapshot.getInt("x"));
+        assertEquals("before", snapshot.getChild("c").getString("s"));
+        assertEquals(1, snapshot.getChild("c").getChildren("gc").size());
+        assertEquals(0.5, snapshot.getChild("c").getChild("gc").getDouble("d"), 0.0);
+
+        assertEquals(2, root.getInt("x"));
+        assertEquals("after", c.getString("s"));
+        assertEquals(1.5, root.getChild("c").getChildren("gc").get(0).getDouble("d"), 0.0);
+        assertEquals(2, root.getChild("c").getChildren("gc").size());
+    }
+
+    @Test
+    public void arraysAreNotShared() {
+        Persister root = new Persister();
+        Persister c = root.newChild("c");
+        c.putIntArray("a", new int[] { 1, 2 });
+
+        Persister snapshot = root.snapshot();
+        c.putIntArray("a", new int[] { 3 });
+        c.putLongArray("b", new long[] { 4L });
+
+        assertArrayEquals(new int[] { 1, 2 }, snapshot.getChild("c").getIntArray("a"));
+        assertFalse(snapshot.getChild("c").checkLongArray("b").isPresent());
+        assertArrayEquals(new int[] { 3 }, c.getIntArray("a"));
+    }
+
+    @Test
+    public void digestsOfSharedStateAreNotAffectedByChanges() {
+        Persister root = new Persister();
+        Persister c = root.newChild("c");
+        c.putInt("x", 1);
+        root.newChild("d").putInt("y", 2);
+        HashCode digest = root.digest();
+
+        Persister snapshot = root.snapshot();
+        c.putInt("x", 2);
+
+        assertEquals(digest, snapshot.digest());
+        assertNotEquals(digest, root.digest());
+        assertEquals(snapshot.getChild("d").digest(), root.getChild("d").digest());
+        c.putInt("x", 1);
+        assertEquals(digest, root.digest());
+    }
+
+    @Test
+    public void childrenKeepTheirOrderWhenModifiedAfterSnapshot() {
+        Persister root = new Persister();
+        root.newChild("b").putInt("x", 1);
+        root.newChild("a").putInt("x", 2);
+        root.newChild("b").putInt("x", 3);
+        Persister snapshot = root.snapshot();
+
+        root.getChildren("b").get(1).putInt("x", 4);
+        root.newChild("a").putInt("x", 5);
+        root.getChild("a", 0).putInt("x", 6);
+
+        List<Integer> values = new ArrayList<>();
+        root.forEachChild((name, child) -> values.add(child.getInt("x")));
+        assertEquals(Arrays.asList(1, 6, 4, 5), values);
+        values.clear();
+        snapshot.forEachChild((name, child) -> values.add(child.getInt("x")));
+        assertEquals(Arrays.asList(1, 2, 3), values);
+    }
+
+    @Test
+    public void digestIsRecomputedAfterChangeBelowSharedState() {
+        Persister root = new Persister();
+        Persister leaf = root.newChild("a").newChild("b").newChild("leaf");
+        leaf.putInt("x", 1);
+        root.newChild("other");
+
+        root.snapshot();
+        // Copies the root, but leaves the path to the leaf shared, with cached digests.
+        root.getChild("other").putInt("y", 1);
+        HashCode digest = root.digest();
+        leaf.putInt("x", 2);
+
+        assertNotEquals(digest, root.digest());
+        assertEquals(copyOf(root).digest(), root.digest());
+    }
+
+    @Test
+    public void digestsComputedConcurrentlyForSnapshotsDoNotGoStale() throws Exception {
+        Persister root = new Persister();
+        for (int n = 0; n < 200; ++n) {
+            root.newChild("item").putInt("id", n);
+        }
+        Persister leaf = root.newChild("a").newChild("b").newChild("leaf");
+        for (int n = 0; n < 500; ++n) {
+            Persister snapshot = root.snapshot();
+            Thread thread = new Thread(snapshot::digest);
+            thread.start();
+            leaf.putInt("x", n);
+            thread.join();
+
+            assertEquals(copyOf(root).digest(), root.digest());
+        }
+    }
+
+    @Test
+    public void graftedChildIsIndependentOfItsSource() {
+        Persister source = new Persister();
+        source.putInt("x", 1);
+        source.newChild("c").putInt("y", 2);
+        Persister root = new Persister();
+        Persister first = root.graftChild("a", source);
+        Persister second = root.graftChild("a", source);
+
+        first.getChild("c").putInt("y", 3);
+        source.putInt("x", 4);
+        second.newChild("d");
+
+        assertEquals(3, first.getChild("c").getInt("y"));
+        assertEquals(2, second.getChild("c").getInt("y"));
+        assertEquals(1, first.getInt("x"));
+        assertEquals(1, root.getChildren("a").get(1).getInt("x"));
+        assertEquals(2, source.getChild("c").getInt("y"));
+        assertTrue(first.getChildren("d").isEmpty());
+        assertEquals(1, second.index());
+    }
+
+    @Test
+    public void liveTreeIsNotAffectedByChangesToTheSnapshot() {
+        Persister root = new Persister();
+        root.newChild("c").putInt("x", 1);
+
+        Persister snapshot = root.snapshot();
+        snapshot.getChild("c").putInt("x", 2);
+        snapshot.newChild("d");
+
+        assertEquals(1, root.getChild("c").getInt("x"));
+        assertTrue(root.getChildren("d").isEmpty());
+        assertEquals(2, snapshot.getChild("c").getInt("x"));
+    }
+
+    @Test
+    public void persistersOfChildrenAreStable() {
+        Persister root = new Persister();
+        Persister c = root.newChild("c");
+        root.snapshot();
+        c.putInt("x", 1);
+        assertSame(c, root.getChild("c"));
+        assertEquals(1, root.getChild("c").getInt("x"));
+
+        Persister snapshot = root.snapshot();
+        assertSame(snapshot.getChild("c"), snapshot.getChild("c"));
+    }
+
+    @Test
+    public void snapshotOfChildIsRoot() throws Exception {
+        Persister root = new Persister();
+        Persister c = root.newChild("c");
+        c.putInt("x", 1);
+        c.newChild("gc").putInt("y", 2);
+
+        Persister snapshot = c.snapshot();
+        assertEquals(c, snapshot);
+        XmlPersisterStore store = XmlPersisterStore.newInstance();
+        store.store(snapshot);
+        assertEquals(snapshot, XmlPersisterStore.load(store.getXml()));
+        // Modifying the root of the live tree must not affect the snapshot either.
+        root.putInt("z", 3);
+        c.getChild("gc").putInt("y", 4);
+        assertEquals(2, snapshot.getChild("gc").getInt("y"));
+    }
+
+    @Test
+    public void successiveSnapshots() {
+        Persister root = new Persister();
+        Persister c = root.newChild("c");
+        List<Persister> snapshots = new ArrayList<>();
+        for (int n = 0; n < 10; ++n) {
+            c.putInt("n", n);
+            snapshots.add(root.snapshot());
+        }
+        for (int n = 0; n < 10; ++n) {
+            assertEquals(n, snapshots.get(n).getChild("c").getInt("n"));
+        }
+    }
+
+    @Test
+    public void dirtyStateIsPartOfSnapshot() {
+        Persister root = new Persister();
+        Persister c = root.newChild("c");
+        root.markClean();
+        c.putInt("x", 1);
+
+        Persister snapshot = root.snapshot();
+        root.markClean();
+        assertFalse(root.isDirty());
+        assertTrue(snapshot.isDirty());
+        assertEquals(1, PersisterPatch.create(snapshot).getChildren(PersisterPatch.UPDATE).size());
+    }
+
+    /**
+     * Applies random changes to a tree, taking snapshots as it goes, and checks that every
+     * snapshot is equal to a deep copy made at the same time.
+     */
+    @Test
+    public void randomChanges() {
+        Random random = new Random(11);
+        Persister root = new Persister();
+        List<Persister> nodes = new ArrayList<>();
+        nodes.add(root);
+        List<Persister> snapshots = new ArrayList<>();
+        List<Persister> copies = new ArrayList<>();
+        for (int n = 0; n < 2000; ++n) {
+            Persister p = nodes.get(random.nextInt(nodes.size()));
+            switch (random.nextInt(5)) {
+            case 0:
+                nodes.add(p.newChild("c" + random.nextInt(3)));
+                break;
+            case 1:
+                p.putString("s" + random.nextInt(5), Integer.toString(n));
+                break;
+            case 2:
+                p.putInt("i" + random.nextInt(5), n);
+                break;
+            case 3:
+                p.putLong("l" + random.nextInt(5), n);
+                break;
+            default:
+                p.putDouble("d" + random.nextInt(5), n);
+            }
+            if (random.nextInt(50) == 0) {
+                Persister copy = new Persister();
+                root.copyTo(copy);
+                snapshots.add(root.snapshot());
+                copies.add(copy);
+            }
+        }
+        assertFalse(snapshots.isEmpty());
+        for (int n = 0; n < snapshots.size(); ++n) {
+            assertEquals(copies.get(n), snapshots.get(n));
+        }
+        assertNotEquals(snapshots.get(0), root);
+    }
+
+    private static Persister copyOf(Persister p) {
+        Persister copy = new Persister();
+        p.copyTo(copy);
+        return copy;
+    }
+}
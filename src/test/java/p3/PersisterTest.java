@@ -2,10 +2,14 @@ package p3;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.junit.Before;
 import org.junit.Test;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
 
 public final class PersisterTest {
     private Persister p;
@@ -107,6 +111,142 @@ public final class PersisterTest {
         p.getChild("child");
     }
     
+    @Test
+    public void forEachChildWithName() {
+        Persister c1 = p.newChild("child");
+        p.newChild("other");
+        Persister c2 = p.newChild("child");
+        List<Persister> visited = new ArrayList<>();
+        p.forEachChild("child", visited::add);
+        assertEquals(ImmutableList.of(c1, c2), visited);
+    }
+    
+    @Test
+    public void forEachChildInOrderOfAddition() {
+        p.newChild("b");
+        p.newChild("a");
+        p.newChild("b");
+        List<String> names = new ArrayList<>();
+        p.forEachChild((name, child) -> names.add(name));
+        assertEquals(ImmutableList.of("b", "a", "b"), names);
+    }
+    
+    @Test(expected = UnsupportedOperationException.class)
+    public void childrenCannotBeModified() {
+        p.newChild("a");
+        p.children().clear();
+    }
+    
+    @Test
+    public void putAndGetArrays() {
+        int[] ints = { 1, -2, 3 };
+        p.putIntArray("a", ints);
+        p.putLongArray("a", new long[] { Long.MIN_VALUE });
+        p.putDoubleArray("a", new double[0]);
+        ints[0] = 100;
+        
+        assertArrayEquals(new int[] { 1, -2, 3 }, p.getIntArray("a"));
+        assertArrayEquals(new long[] { Long.MIN_VALUE }, p.checkLongArray("a").get());
+        assertEquals(0, p.getDoubleArray("a").length);
+        assertFalse(p.checkIntArray("b").isPresent());
+        // The arrays are copied on the way out as well.
+        p.getIntArray("a")[0] = 100;
+        assertEquals(1, p.getIntArray("a")[0]);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void missingArray() {
+        p.putInt("x", 1);
+        p.getIntArray("x");
+    }
+    
+    @Test
+    public void arraysAreComparedByContents() {
+        Persister other = new Persister();
+        p.putDoubleArray("d", new double[] { 0.5, Double.NaN });
+        other.putDoubleArray("d", new double[] { 0.5, Double.NaN });
+        assertEquals(p, other);
+        assertEquals(p.hashCode(), other.hashCode());
+        other.putDoubleArray("d", new double[] { 0.5 });
+        assertNotEquals(p, other);
+    }
+    
+    @Test
+    public void digestDependsOnContentsOnly() {
+        p.putInt("x", 1);
+        p.putString("s", "t");
+        p.newChild("a").putIntArray("i", new int[] { 1, 2 });
+        p.newChild("b").putDouble("d", 0.5);
+        p.newChild("a");
+        Persister other = new Persister();
+        other.newChild("b").putDouble("d", 0.5);
+        other.newChild("a").putIntArray("i", new int[] { 1, 2 });
+        other.putString("s", "t");
+        other.newChild("a");
+        other.putInt("x", 1);
+        
+        assertEquals(p, other);
+        assertEquals(p.digest(), other.digest());
+        assertNotEquals(new Persister().putInt("x", 1).digest(), new Persister().putLong("x", 1L).digest());
+        assertNotEquals(new Persister().putString("ab", "c").digest(), new Persister().putString("a", "bc").digest());
+    }
+    
+    @Test
+    public void digestIsRecomputedAfterChange() {
+        Persister leaf = p.newChild("a").newChild("b");
+        leaf.putInt("x", 1);
+        Persister sibling = p.newChild("c");
+        HashCode before = p.digest();
+        HashCode siblingBefore = sibling.digest();
+        
+        leaf.putInt("x", 2);
+        assertNotEquals(before, p.digest());
+        assertEquals(siblingBefore, sibling.digest());
+        leaf.putInt("x", 1);
+        assertEquals(before, p.digest());
+        leaf.newChild("d");
+        assertNotEquals(before, p.digest());
+    }
+    
+    @Test
+    public void visitor() {
+        p.putInt("x", 1);
+        p.putString("s", "t");
+        Persister c = p.newChild("c");
+        c.putInt("x", 2);
+        c.putLong("l", 3L);
+        c.newChild("d").putDouble("d", 4.0);
+        p.newChild("skipped").putInt("x", 100);
+        
+        int[] intSum = new int[1];
+        List<String> events = new ArrayList<>();
+        p.accept(new PersisterVisitor() {
+            @Override
+            public void visitInt(String key, int value) {
+                intSum[0] += value;
+            }
+            
+            @Override
+            public void visitDouble(String key, double value) {
+                events.add("double " + key);
+            }
+
+            @Override
+            public boolean enterChild(String name, Persister child) {
+                events.add("enter " + name);
+                return !name.equals("skipped");
+            }
+
+            @Override
+            public void exitChild(String name, Persister child) {
+                events.add("exit " + name);
+            }
+        });
+        
+        assertEquals(3, intSum[0]);
+        assertEquals(ImmutableList.of("enter c", "enter d", "double d", "exit d", "exit c", "enter skipped"), events);
+    }
+    
     @Test
     public void store() {
         p.putInt("x", 42);
@@ -116,14 +256,17 @@ public final class PersisterTest {
         p.putLong("now", System.currentTimeMillis());
         p.putDouble("x", 0.25);
         p.putDouble("w", 12345.6789);
+        p.putIntArray("x", new int[] { 1, 2, 3 });
         Persister c1 = p.newChild("c");
         c1.putInt("x", 32);
         c1.putString("fruit", "apple");
+        c1.putLongArray("l", new long[] { 4L });
         Persister c2 = p.newChild("c");
         c2.putInt("x", 16);
         c2.putString("fruit", "banana");
         Persister c21 = c2.newChild("c2");
         c21.putString("color", "yellow");
+        c21.putDoubleArray("d", new double[] { 0.5 });
         p.newChild("empty");
         
         Persister backer = new Persister();
@@ -161,6 +304,21 @@ public final class PersisterTest {
             backer.putDouble(key, value);
         }
 
+        @Override
+        void putIntArray(String key, int[] values) {
+            backer.putIntArray(key, values);
+        }
+
+        @Override
+        void putLongArray(String key, long[] values) {
+            backer.putLongArray(key, values);
+        }
+
+        @Override
+        void putDoubleArray(String key, double[] values) {
+            backer.putDoubleArray(key, values);
+        }
+
         @Override
         MockStore newChild(String name) {
             return new MockStore(backer.newChild(name));
@@ -0,0 +1,210 @@
+package p3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class PersisterWriterTest {
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("p3-writer").toFile();
+    }
+
+    @After
+    public void deleteDir() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        File file = new File(dir, "a.xml");
+        File binary = new File(dir, "a.bin");
+        Persister p = createPersister(1);
+        try (PersisterWriter writer = PersisterWriter.newInstance()) {
+            writer.save(p, file, PersisterFormat.XML).get();
+            writer.save(p, binary, PersisterFormat.BINARY).get();
+        }
+        assertEquals(p, read(file, PersisterFormat.XML));
+        assertEquals(p, read(binary, PersisterFormat.BINARY));
+        assertEquals(2, dir.listFiles().length);
+    }
+
+    @Test
+    public void laterChangesAreNotSaved() throws Exception {
+        File file = new File(dir, "a.xml");
+        Persister p = createPersister(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try (PersisterWriter writer = PersisterWriter.newInstance()) {
+            CompletableFuture<Void> future = writer.save(p, file, blockingFormat(release, new AtomicInteger()));
+            p.putInt("n", 2);
+            release.countDown();
+            future.get();
+        }
+        assertEquals(createPersister(1), XmlPersisterStore.load(file));
+    }
+
+    @Test
+    public void replacedFileKeepsItsPermissions() throws Exception {
+        File file = new File(dir, "a.xml");
+        assumeTrue(Files.getFileAttributeView(dir.toPath(), PosixFileAttributeView.class) != null);
+        Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+        try (PersisterWriter writer = PersisterWriter.newInstance()) {
+            writer.save(createPersister(1), file, PersisterFormat.XML).get();
+            Files.setPosixFilePermissions(file.toPath(), permissions);
+            writer.save(createPersister(2), file, PersisterFormat.XML).get();
+        }
+        assertEquals(permissions, Files.getPosixFilePermissions(file.toPath()));
+        assertEquals(createPersister(2), XmlPersisterStore.load(file));
+    }
+
+    @Test
+    public void idleFilesAreForgotten() throws Exception {
+        try (PersisterWriter writer = PersisterWriter.newInstance(2)) {
+            for (int n = 0; n < 20; ++n) {
+                writer.save(createPersister(n), new File(dir, n + ".xml"), PersisterFormat.XML).get();
+            }
+            writer.save(createPersister(0), new File(dir, "0.xml"), PersisterFormat.XML).get();
+            // The target is removed by the background thread after the future is completed.
+            for (int n = 0; n < 100 && writer.activeTargets() > 0; ++n) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, writer.activeTargets());
+        }
+        assertEquals(createPersister(0), XmlPersisterStore.load(new File(dir, "0.xml")));
+        assertEquals(20, dir.listFiles().length);
+    }
+
+    @Test
+    public void pendingSavesAreCoalesced() throws Exception {
+        File file = new File(dir, "a.xml");
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger writes = new AtomicInteger();
+        PersisterFormat format = blockingFormat(release, writes);
+        try (PersisterWriter writer = PersisterWriter.newInstance()) {
+            CompletableFuture<Void> first = writer.save(createPersister(0), file, format);
+            // Wait for the first save to start, so that the others are pending.
+            while (writes.get() == 0) {
+                Thread.sleep(1);
+            }
+            CompletableFuture<Void> second = writer.save(createPersister(1), file, format);
+            for (int n = 2; n < 10; ++n) {
+                assertSame(second, writer.save(createPersister(n), file, format));
+            }
+            release.countDown();
+            first.get();
+            second.get();
+        }
+        assertEquals(2, writes.get());
+        assertEquals(createPersister(9), XmlPersisterStore.load(file));
+    }
+
+    @Test
+    public void failedSaveLeavesOldFile() throws Exception {
+        File file = new File(dir, "a.xml");
+        PersisterFormat failing = new PersisterFormat() {
+
+            @Override
+            public void write(Persister persister, OutputStream out) throws IOException {
+                out.write("<partial".getBytes());
+                throw new IOException("Disk full");
+            }
+
+            @Override
+            public Persister read(InputStream in) throws IOException {
+                throw new UnsupportedOperationException();
+            }
+        };
+        try (PersisterWriter writer = PersisterWriter.newInstance()) {
+            writer.save(createPersister(1), file, PersisterFormat.XML).get();
+            try {
+                writer.save(createPersister(2), file, failing).get();
+                fail("Expected the save to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+        assertEquals(createPersister(1), XmlPersisterStore.load(file));
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    @Test
+    public void saveAfterClose() throws Exception {
+        PersisterWriter writer = PersisterWriter.newInstance();
+        writer.close();
+        try {
+            writer.save(createPersister(1), new File(dir, "a.xml"), PersisterFormat.XML).get();
+            fail("Expected the save to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    /**
+     * Returns an XML format that counts the writes, and waits for the latch before writing.
+     */
+    private static PersisterFormat blockingFormat(CountDownLatch release, AtomicInteger writes) {
+        return new PersisterFormat() {
+
+            @Override
+            public void write(Persister persister, OutputStream out) throws IOException {
+                writes.incrementAndGet();
+                try {
+                    if (!release.await(10, TimeUnit.SECONDS)) {
+                        throw new IOException("Timed out");
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                PersisterFormat.XML.write(persister, out);
+            }
+
+            @Override
+            public Persister read(InputStream in) throws IOException {
+                return PersisterFormat.XML.read(in);
+            }
+        };
+    }
+
+    private static Persister createPersister(int n) {
+        Persister p = new Persister();
+        p.putInt("n", n);
+        Persister c = p.newChild("c");
+        c.putString("s", "value " + n);
+        c.newChild("gc").putDouble("d", n / 2.0);
+        return p;
+    }
+
+    private static Persister read(File file, PersisterFormat format) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return format.read(in);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package p3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableList;
+
+public final class ShardedPersisterStoreTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws Exception {
+        Persister p = createPersister();
+        for (PersisterFormat format : Arrays.asList(PersisterFormat.XML, PersisterFormat.BINARY)) {
+            File dir = folder.newFolder();
+            ShardedPersisterStore.newInstance(format).store(p).writeTo(dir);
+
+            Persister loaded = ShardedPersisterStore.load(dir, format);
+            assertEquals(p, loaded);
+            assertEquals(p.digest(), loaded.digest());
+            // Every distinct child, the root values and the manifest.
+            assertEquals(13, dir.list().length);
+        }
+    }
+
+    @Test
+    public void loadedTreeCanBeModified() throws Exception {
+        File dir = folder.newFolder();
+        ShardedPersisterStore.newInstance(PersisterFormat.BINARY).store(createPersister()).writeTo(dir);
+        Persister loaded = ShardedPersisterStore.load(dir, PersisterFormat.BINARY);
+
+        // The two "group" children share a shard, and must not affect each other.
+        loaded.getChildren("group").get(0).putInt("x", 5);
+        assertEquals(5, loaded.getChildren("group").get(0).getInt("x"));
+        assertFalse(loaded.getChildren("group").get(1).checkInt("x").isPresent());
+    }
+
+    @Test
+    public void unchangedShardsAreNotWritten() throws Exception {
+        File dir = folder.newFolder();
+        Persister p = createPersister();
+        assertEquals(12, ShardedPersisterStore.newInstance(PersisterFormat.XML).store(p).writeTo(dir));
+
+        p.getChildren("item").get(4).putString("label", "changed");
+        p.newChild("item").putInt("id", 10);
+        assertEquals(2, ShardedPersisterStore.newInstance(PersisterFormat.XML).store(p).writeTo(dir));
+        assertEquals(0, ShardedPersisterStore.newInstance(PersisterFormat.XML).store(p).writeTo(dir));
+        // The shard of the old contents of item 4 has been deleted.
+        assertEquals(14, dir.list().length);
+        assertEquals(p, ShardedPersisterStore.load(dir, PersisterFormat.XML));
+
+        p.putInt("count", 11);
+        assertEquals(1, ShardedPersisterStore.newInstance(PersisterFormat.XML).store(p).writeTo(dir));
+        assertEquals(p, ShardedPersisterStore.load(dir, PersisterFormat.XML));
+    }
+
+    @Test
+    public void loadChildren() throws Exception {
+        File dir = folder.newFolder();
+        Persister p = createPersister();
+        ShardedPersisterStore.newInstance(PersisterFormat.BINARY).store(p).writeTo(dir);
+
+        assertEquals(p.getChildren("item"), ShardedPersisterStore.loadChildren(dir, PersisterFormat.BINARY, "item"));
+        assertEquals(p.getChildren("group"), ShardedPersisterStore.loadChildren(dir, PersisterFormat.BINARY, "group"));
+        assertEquals(ImmutableList.of(), ShardedPersisterStore.loadChildren(dir, PersisterFormat.BINARY, "none"));
+    }
+
+    @Test
+    public void storeWithCodec() throws Exception {
+        File dir = folder.newFolder();
+        Catalog catalog = new Catalog();
+        catalog.name = "tools";
+        for (int n = 0; n < 3; ++n) {
+            Entry entry = new Entry();
+            entry.id = n;
+            catalog.entries.add(entry);
+        }
+        PersisterCodec<Catalog> codec = PersisterCodec.of(Catalog.class);
+        ShardedPersisterStore.newInstance(PersisterFormat.XML).store(catalog, codec).writeTo(dir);
+
+        assertEquals(codec.encode(catalog), ShardedPersisterStore.load(dir, PersisterFormat.XML));
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void missingManifest() throws Exception {
+        ShardedPersisterStore.load(folder.newFolder(), PersisterFormat.XML);
+    }
+
+    @Test
+    public void storingTakesSnapshots() throws Exception {
+        File dir = folder.newFolder();
+        Persister p = createPersister();
+        ShardedPersisterStore store = ShardedPersisterStore.newInstance(PersisterFormat.BINARY).store(p);
+        Persister expected = p.snapshot();
+        p.getChildren("item").get(0).putInt("id", -1);
+        store.writeTo(dir);
+
+        assertEquals(expected, ShardedPersisterStore.load(dir, PersisterFormat.BINARY));
+        assertTrue(new File(dir, ShardedPersisterStore.MANIFEST).isFile());
+    }
+
+    @Test
+    public void treeIsModifiedWhileBeingWritten() throws Exception {
+        File dir = folder.newFolder();
+        Persister p = createPersister();
+        // Computes the digests of the shared state before the tree is modified.
+        p.digest();
+        ShardedPersisterStore store = ShardedPersisterStore.newInstance(PersisterFormat.BINARY).store(p);
+        Persister expected = p.snapshot();
+        int[] changes = new int[1];
+        Executor modifyingExecutor = r -> {
+            Persister item = p.getChildren("item").get(changes[0] % 10);
+            item.getChild("leaf").putDouble("weight", -changes[0]);
+            item.digest();
+            ++changes[0];
+            r.run();
+        };
+        store.writeTo(dir, modifyingExecutor);
+        assertEquals(expected, ShardedPersisterStore.load(dir, PersisterFormat.BINARY));
+
+        // The items modified during the first save are written by the next one.
+        store = ShardedPersisterStore.newInstance(PersisterFormat.BINARY).store(p);
+        expected = p.snapshot();
+        assertTrue(store.writeTo(dir, modifyingExecutor) > 0);
+        assertEquals(expected, ShardedPersisterStore.load(dir, PersisterFormat.BINARY));
+    }
+
+    private static Persister createPersister() {
+        Persister p = new Persister();
+        p.putString("name", "root");
+        p.putIntArray("sizes", new int[] { 1, 2, 3 });
+        for (int n = 0; n < 10; ++n) {
+            Persister item = p.newChild("item");
+            item.putInt("id", n);
+            item.putString("label", "item " + n);
+            item.newChild("leaf").putDouble("weight", n / 3.0);
+        }
+        p.newChild("group").putString("kind", "same");
+        p.newChild("group").putString("kind", "same");
+        return p;
+    }
+
+
+    private static final class Catalog {
+        @Persisted
+        String name;
+        @Persisted("entry")
+        List<Entry> entries = new ArrayList<>();
+    }
+
+
+    private static final class Entry {
+        @Persisted
+        int id;
+    }
+}
@@ -0,0 +1,111 @@
+package p3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public final class StreamingXmlPersisterStoreTest {
+
+    @Test
+    public void hierarchicalPersister() throws Exception {
+        Persister p = new Persister();
+        p.putInt("x", 42);
+        p.putInt("y", 84);
+        p.putString("x", "xylophone");
+        p.putString("z", "zebra & <friends>");
+        p.putLong("now", System.currentTimeMillis());
+        p.putDouble("x", 0.25);
+        p.putDouble("w", 12345.6789);
+        Persister c1 = p.newChild("c");
+        c1.putInt("x", 32);
+        c1.putString("fruit", "apple");
+        Persister c2 = p.newChild("c");
+        c2.putInt("x", 16);
+        c2.putString("fruit", "banana");
+        Persister c21 = c2.newChild("c2");
+        c21.putString("color", "yellow");
+        p.newChild("empty");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (StreamingXmlPersisterStore store = StreamingXmlPersisterStore.open(out)) {
+            store.store(p);
+        }
+
+        Persister restored = XmlPersisterStore.load(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(p, restored);
+    }
+
+    @Test
+    public void valuesInterleavedWithChildren() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (StreamingXmlPersisterStore store = StreamingXmlPersisterStore.open(out)) {
+            store.putInt("a", 1);
+            StreamingXmlPersisterStore child = store.newChild("c");
+            child.putString("s", "t");
+            store.putInt("b", 2);
+        }
+
+        Persister expected = new Persister();
+        expected.putInt("a", 1);
+        expected.putInt("b", 2);
+        expected.newChild("c").putString("s", "t");
+        assertEquals(expected, XmlPersisterStore.load(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    @Test
+    public void parallelOutputIsIdenticalToSequentialOutput() throws Exception {
+        Random random = new Random(17);
+        Persister p = new Persister();
+        p.putInt("x", 1);
+        populate(p, random, 3);
+        
+        ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+        try (StreamingXmlPersisterStore store = StreamingXmlPersisterStore.open(sequential)) {
+            store.store(p);
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+            try (StreamingXmlPersisterStore store = StreamingXmlPersisterStore.open(parallel).parallel(pool)) {
+                store.store(p);
+            }
+            assertArrayEquals(sequential.toByteArray(), parallel.toByteArray());
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(p, XmlPersisterStore.load(new ByteArrayInputStream(sequential.toByteArray())));
+    }
+    
+    private static void populate(Persister p, Random random, int depth) {
+        if (depth == 0) {
+            return;
+        }
+        int childCount = 2 + random.nextInt(10);
+        for (int n = 0; n < childCount; ++n) {
+            Persister c = p.newChild("c" + random.nextInt(3));
+            if (random.nextBoolean()) {
+                c.putInt("i", random.nextInt());
+                c.putString("s", "<" + random.nextLong() + ">");
+            }
+            if (random.nextBoolean()) {
+                c.putDouble("d", random.nextDouble());
+            }
+            populate(c, random, depth - 1);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedChildIsNotWritable() throws Exception {
+        try (StreamingXmlPersisterStore store = StreamingXmlPersisterStore.open(new ByteArrayOutputStream())) {
+            StreamingXmlPersisterStore first = store.newChild("c");
+            store.newChild("c");
+            first.putInt("x", 1);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package p3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public final class StringIntMapTest {
+
+    @Test
+    public void putGetAndOverwrite() {
+        StringIntMap map = new StringIntMap();
+        assertEquals(-1, map.indexOf("x"));
+        assertEquals(7, map.getOrDefault("x", 7));
+        map.put("x", 1);
+        map.put("x", 2);
+        assertEquals(1, map.size());
+        assertEquals(2, map.valueAt(map.indexOf("x")));
+    }
+
+    @Test
+    public void behavesLikeHashMapWhenGrowing() {
+        StringIntMap map = new StringIntMap();
+        Map<String, Integer> expected = new HashMap<>();
+        for (int n = 0; n < 1000; ++n) {
+            map.put("k" + n, n * 31);
+            expected.put("k" + n, n * 31);
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<String, Integer> e : expected.entrySet()) {
+            assertEquals(e.getValue().intValue(), map.getOrDefault(e.getKey(), -1));
+        }
+        assertEquals(expected.hashCode(), map.hashCode());
+        Map<String, Integer> visited = new HashMap<>();
+        map.forEach(visited::put);
+        assertEquals(expected, visited);
+    }
+
+    @Test
+    public void equalityIgnoresInsertionOrder() {
+        StringIntMap a = new StringIntMap();
+        StringIntMap b = new StringIntMap();
+        for (int n = 0; n < 20; ++n) {
+            a.put("k" + n, n);
+            b.put("k" + (19 - n), 19 - n);
+        }
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        b.put("k0", 100);
+        assertNotEquals(a, b);
+    }
+
+    @Test
+    public void doubleEqualityFollowsDoubleEquals() {
+        StringDoubleMap a = new StringDoubleMap();
+        StringDoubleMap b = new StringDoubleMap();
+        a.put("nan", Double.NaN);
+        b.put("nan", Double.NaN);
+        assertEquals(a, b);
+        a.put("zero", 0.0);
+        b.put("zero", -0.0);
+        assertNotEquals(a, b);
+    }
+}
@@ -1,9 +1,18 @@
 package p3;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableList;
+
+import tzeth.exhume.dom.DomParsers;
+
 public final class XmlPersisterStoreTest {
 
     @Test
@@ -33,4 +42,168 @@ public final class XmlPersisterStoreTest {
         Persister restored = XmlPersisterStore.load(xml);
         assertEquals(p, restored);
     }
+    
+    @Test
+    public void packedArrays() throws Exception {
+        Persister p = new Persister();
+        int[] ints = new int[1000];
+        for (int n = 0; n < ints.length; ++n) {
+            ints[n] = n * n - 500;
+        }
+        p.putIntArray("i", ints);
+        p.putIntArray("empty", new int[0]);
+        p.newChild("c").putLongArray("l", new long[] { Long.MIN_VALUE, 0L, Long.MAX_VALUE });
+        p.newChild("c").putDoubleArray("d", new double[] { -0.0, Double.NaN, Double.MIN_VALUE, 1e300 });
+        
+        XmlPersisterStore xmlStore = XmlPersisterStore.newInstance();
+        xmlStore.store(p);
+        String xml = xmlStore.getXml();
+        // Each array is a single attribute.
+        assertEquals(1, xml.split(" i=").length - 1);
+        
+        assertEquals(p, XmlPersisterStore.load(xml));
+        assertEquals(p, XmlPersisterStore.load(DomParsers.parseXml(xml)));
+        assertEquals(p, XmlPersisterStore.load(xml, ForkJoinPool.commonPool()));
+        StringWriter streamed = new StringWriter();
+        try (StreamingXmlPersisterStore store = StreamingXmlPersisterStore.open(streamed)) {
+            store.store(p);
+        }
+        assertEquals(p, XmlPersisterStore.load(streamed.toString()));
+    }
+    
+    @Test
+    public void domAndStreamingLoadAgree() throws Exception {
+        String xml = "<node name=\"_root_\">" +
+                "<strings><s> padded &amp; escaped </s><t>a<b>nested</b>c</t></strings>" +
+                "<ints x=\"1\" y=\"-2\"/>" +
+                "<longs l=\"12345678901\"/>" +
+                "<doubles d=\"0.5\"/>" +
+                "<node name=\"c\"><ints x=\"3\"/><node name=\"d\"/></node>" +
+                "<node name=\"c\"/>" +
+                "</node>";
+        
+        Persister streamed = XmlPersisterStore.load(xml);
+        assertEquals(XmlPersisterStore.load(DomParsers.parseXml(xml)), streamed);
+        assertEquals("padded & escaped", streamed.getString("s"));
+        assertEquals("anestedc", streamed.getString("t"));
+        assertEquals(2, streamed.getChildren("c").size());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void rootElementMustBeNode() throws Exception {
+        XmlPersisterStore.load("<root><ints x=\"1\"/></root>");
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void childWithoutNameIsRejected() throws Exception {
+        XmlPersisterStore.load("<node name=\"_root_\"><node/></node>");
+    }
+    
+    @Test
+    public void parallelLoadPreservesDocumentOrder() throws Exception {
+        Persister p = new Persister();
+        p.putString("s", "root");
+        for (int n = 0; n < 200; ++n) {
+            Persister c = p.newChild(n % 3 == 0 ? "a" : "b");
+            c.putInt("n", n);
+            for (int m = 0; m < 5; ++m) {
+                c.newChild("leaf").putLong("m", m);
+            }
+        }
+        XmlPersisterStore xmlStore = XmlPersisterStore.newInstance();
+        xmlStore.store(p);
+        
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertEquals(p, XmlPersisterStore.load(xmlStore.getXml(), pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    @Test
+    public void loadedKeysAndNamesAreShared() throws Exception {
+        Persister p = new Persister();
+        for (int n = 0; n < 2; ++n) {
+            Persister c = p.newChild("child");
+            c.putString("s", "value");
+            c.putInt("i", n);
+        }
+        XmlPersisterStore xmlStore = XmlPersisterStore.newInstance();
+        xmlStore.store(p);
+        
+        Persister sax = XmlPersisterStore.load(xmlStore.getXml());
+        assertKeysShared(sax.getChildren("child"));
+        Persister dom = XmlPersisterStore.load(DomParsers.parseXml(xmlStore.getXml()));
+        assertKeysShared(dom.getChildren("child"));
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            assertKeysShared(XmlPersisterStore.load(xmlStore.getXml(), pool).getChildren("child"));
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    @Test
+    public void loadByPath() throws Exception {
+        Persister p = new Persister();
+        p.putString("title", "root");
+        for (int n = 0; n < 3; ++n) {
+            Persister other = p.newChild("other");
+            other.newChild("plugin").putInt("n", -1);
+        }
+        Persister plugins = p.newChild("plugins");
+        plugins.putInt("count", 2);
+        for (int n = 0; n < 2; ++n) {
+            Persister plugin = plugins.newChild("plugin");
+            plugin.putInt("n", n);
+            plugin.putString("s", "plugin " + n);
+            plugin.newChild("config").putDouble("d", n);
+            // A nested node with a name on the path must not be mistaken for a match.
+            plugin.newChild("plugin").putInt("n", 100 + n);
+        }
+        p.newChild("plugins").newChild("plugin").putInt("n", 2);
+        XmlPersisterStore store = XmlPersisterStore.newInstance();
+        store.store(p);
+        String xml = store.getXml();
+        
+        List<Persister> loaded = XmlPersisterStore.load(xml, ImmutableList.of("plugins", "plugin"));
+        assertEquals(3, loaded.size());
+        assertEquals(plugins.getChildren("plugin").get(0), loaded.get(0));
+        assertEquals(plugins.getChildren("plugin").get(1), loaded.get(1));
+        assertEquals(2, loaded.get(2).getInt("n"));
+        
+        assertEquals(ImmutableList.of(p), XmlPersisterStore.load(xml, ImmutableList.of()));
+        assertEquals(3, XmlPersisterStore.load(xml, ImmutableList.of("other")).size());
+        assertEquals(ImmutableList.of(), XmlPersisterStore.load(xml, ImmutableList.of("plugins", "missing")));
+        assertEquals(ImmutableList.of(), XmlPersisterStore.load(xml, ImmutableList.of("plugin")));
+    }
+    
+    private static void assertKeysShared(List<Persister> children) {
+        Persister first = children.get(0);
+        Persister second = children.get(1);
+        assertSame(first.name(), second.name());
+        assertSame(keyOf(first, "s"), keyOf(second, "s"));
+        assertSame(keyOf(first, "i"), keyOf(second, "i"));
+    }
+    
+    private static String keyOf(Persister p, String key) {
+        String[] found = new String[1];
+        p.accept(new PersisterVisitor() {
+            @Override
+            public void visitString(String k, String value) {
+                if (k.equals(key)) {
+                    found[0] = k;
+                }
+            }
+            
+            @Override
+            public void visitInt(String k, int value) {
+                if (k.equals(key)) {
+                    found[0] = k;
+                }
+            }
+        });
+        return found[0];
+    }
 }